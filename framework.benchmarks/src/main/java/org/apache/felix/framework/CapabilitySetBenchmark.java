@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.framework.capabilityset.CapabilitySet;
+import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Version;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.resource.Capability;
+
+/**
+ * Measures {@link CapabilitySet#match(SimpleFilter, boolean)} for package
+ * requirements against a set of package capabilities, as done by the
+ * resolver for every import.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CapabilitySetBenchmark
+{
+    @Param({"100", "1000", "5000"})
+    public int capabilityCount;
+
+    private CapabilitySet m_capSet;
+    private SimpleFilter m_indexed;
+    private SimpleFilter m_versioned;
+
+    @Setup
+    public void setup()
+    {
+        m_capSet = new CapabilitySet(
+            Collections.singletonList(PackageNamespace.PACKAGE_NAMESPACE), true);
+        for (int i = 0; i < capabilityCount; i++)
+        {
+            Map<String, Object> attrs = new HashMap<String, Object>();
+            attrs.put(PackageNamespace.PACKAGE_NAMESPACE, "synthetic.pkg" + i);
+            attrs.put(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE, new Version(1, i % 10, 0));
+            m_capSet.addCapability(new BundleCapabilityImpl(
+                null, PackageNamespace.PACKAGE_NAMESPACE,
+                Collections.<String, String>emptyMap(), attrs));
+        }
+        String pkg = "synthetic.pkg" + (capabilityCount / 2);
+        m_indexed = SimpleFilter.parse("(osgi.wiring.package=" + pkg + ")");
+        m_versioned = SimpleFilter.parse("(&(osgi.wiring.package=" + pkg
+            + ")(version>=1.0.0)(!(version>=2.0.0)))");
+    }
+
+    @Benchmark
+    public Set<Capability> matchPackage()
+    {
+        return m_capSet.match(m_indexed, false);
+    }
+
+    @Benchmark
+    public Set<Capability> matchPackageVersionRange()
+    {
+        return m_capSet.match(m_versioned, false);
+    }
+}
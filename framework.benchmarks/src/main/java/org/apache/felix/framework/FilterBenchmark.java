@@ -0,0 +1,82 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Constants;
+import org.osgi.framework.InvalidSyntaxException;
+
+/**
+ * Measures {@link FilterImpl} parsing and matching against service
+ * properties for typical service filters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark
+{
+    @Param({
+        "(objectClass=org.example.Service)",
+        "(&(objectClass=org.example.Service)(service.ranking>=10))",
+        "(&(objectClass=org.example.*)(|(name=foo)(name=bar))(!(disabled=true)))"})
+    public String filter;
+
+    private FilterImpl m_filter;
+    private Map<String, Object> m_props;
+
+    @Setup
+    public void setup() throws InvalidSyntaxException
+    {
+        m_filter = new FilterImpl(filter);
+        m_props = new HashMap<String, Object>();
+        m_props.put(Constants.OBJECTCLASS, new String[] { "org.example.Service", "org.example.Other" });
+        m_props.put(Constants.SERVICE_ID, Long.valueOf(42));
+        m_props.put(Constants.SERVICE_RANKING, Integer.valueOf(20));
+        m_props.put("name", "bar");
+    }
+
+    @Benchmark
+    public FilterImpl parse() throws InvalidSyntaxException
+    {
+        return new FilterImpl(filter);
+    }
+
+    @Benchmark
+    public boolean match()
+    {
+        return m_filter.matches(m_props);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+/**
+ * Measures how long it takes to install, resolve and start a set of
+ * synthetic bundles in an embedded framework. Every invocation uses a
+ * freshly started framework with a clean cache; the phases preceding the
+ * measured one are performed during the invocation setup, so each
+ * benchmark only measures its own phase.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FrameworkLifecycleBenchmark
+{
+    @Param({"100", "1000", "5000"})
+    public int bundleCount;
+
+    private File m_dir;
+    private File[] m_files;
+    private Felix m_felix;
+    private Bundle[] m_bundles;
+
+    @Setup(Level.Trial)
+    public void createBundles() throws IOException
+    {
+        m_dir = File.createTempFile("felix.benchmark", "");
+        m_dir.delete();
+        m_files = SyntheticBundles.create(new File(m_dir, "bundles"), bundleCount);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteBundles()
+    {
+        SyntheticBundles.delete(m_dir);
+    }
+
+    @Setup(Level.Invocation)
+    public void startFramework(BenchmarkParams params) throws BundleException
+    {
+        m_felix = SyntheticBundles.startFramework(new File(m_dir, "cache"));
+        m_bundles = null;
+        String name = params.getBenchmark();
+        if (!name.endsWith(".install"))
+        {
+            m_bundles = SyntheticBundles.install(m_felix.getBundleContext(), m_files);
+        }
+        if (name.endsWith(".start"))
+        {
+            resolve();
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void stopFramework() throws Exception
+    {
+        SyntheticBundles.stopFramework(m_felix);
+        m_felix = null;
+        m_bundles = null;
+    }
+
+    @Benchmark
+    public Bundle[] install() throws BundleException
+    {
+        return SyntheticBundles.install(m_felix.getBundleContext(), m_files);
+    }
+
+    @Benchmark
+    public boolean resolve()
+    {
+        return m_felix.adapt(FrameworkWiring.class).resolveBundles(null);
+    }
+
+    @Benchmark
+    public Bundle[] start() throws BundleException
+    {
+        for (int i = 0; i < m_bundles.length; i++)
+        {
+            m_bundles[i].start();
+        }
+        return m_bundles;
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.framework.synthetic.SyntheticActivator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Measures service lookup and class loading throughput in an embedded
+ * framework with a set of started synthetic bundles. Each thread picks the
+ * bundle or service to use at random.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameworkRuntimeBenchmark
+{
+    @Param({"100", "1000", "5000"})
+    public int bundleCount;
+
+    Felix m_felix;
+    BundleContext m_context;
+    Bundle[] m_bundles;
+    String[] m_filters;
+    String[] m_missingClasses;
+    private File m_dir;
+
+    @Setup
+    public void startFramework() throws Exception
+    {
+        m_dir = File.createTempFile("felix.benchmark", "");
+        m_dir.delete();
+        File[] files = SyntheticBundles.create(new File(m_dir, "bundles"), bundleCount);
+        m_felix = SyntheticBundles.startFramework(new File(m_dir, "cache"));
+        m_context = m_felix.getBundleContext();
+        m_bundles = SyntheticBundles.install(m_context, files);
+        m_filters = new String[bundleCount];
+        m_missingClasses = new String[bundleCount];
+        for (int i = 0; i < bundleCount; i++)
+        {
+            m_bundles[i].start();
+            m_filters[i] = "(" + SyntheticActivator.INDEX_PROP + "=" + i + ")";
+            m_missingClasses[i] = "synthetic.pkg" + i + ".Missing";
+        }
+    }
+
+    @TearDown
+    public void stopFramework() throws Exception
+    {
+        SyntheticBundles.stopFramework(m_felix);
+        SyntheticBundles.delete(m_dir);
+    }
+
+    @State(Scope.Thread)
+    public static class Index
+    {
+        private final Random m_random = new Random(42);
+        private int m_count;
+
+        @Setup
+        public void setup(FrameworkRuntimeBenchmark benchmark)
+        {
+            m_count = benchmark.bundleCount;
+        }
+
+        int next()
+        {
+            return m_random.nextInt(m_count);
+        }
+    }
+
+    @Benchmark
+    public ServiceReference<?> serviceLookupByClass()
+    {
+        return m_context.getServiceReference(Runnable.class.getName());
+    }
+
+    @Benchmark
+    public ServiceReference<?>[] serviceLookupByFilter(Index index) throws InvalidSyntaxException
+    {
+        return m_context.getServiceReferences(Runnable.class.getName(), m_filters[index.next()]);
+    }
+
+    @Benchmark
+    public Object getUngetService(Index index) throws InvalidSyntaxException
+    {
+        ServiceReference<?> ref = m_context.getServiceReferences(
+            Runnable.class.getName(), m_filters[index.next()])[0];
+        Object svc = m_context.getService(ref);
+        m_context.ungetService(ref);
+        return svc;
+    }
+
+    @Benchmark
+    public Class<?> loadLocalClass(Index index) throws ClassNotFoundException
+    {
+        return m_bundles[index.next()].loadClass(SyntheticBundles.ACTIVATOR_CLASS);
+    }
+
+    @Benchmark
+    public Class<?> loadImportedClass(Index index) throws ClassNotFoundException
+    {
+        return m_bundles[index.next()].loadClass("org.osgi.framework.BundleActivator");
+    }
+
+    @Benchmark
+    public Class<?> loadMissingClass(Index index)
+    {
+        int i = index.next();
+        try
+        {
+            return m_bundles[i].loadClass(m_missingClasses[i]);
+        }
+        catch (ClassNotFoundException ex)
+        {
+            return null;
+        }
+    }
+}
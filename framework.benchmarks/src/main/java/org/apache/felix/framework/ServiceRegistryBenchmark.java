@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.PrototypeServiceFactory;
+import org.osgi.framework.ServiceFactory;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Measures the <tt>getService</tt>/<tt>ungetService</tt> throughput of the
+ * service registry for singleton, bundle and prototype scoped services. The
+ * client bundles are either shared by all threads, which contend on the
+ * usage counts of a single bundle, or distinct per thread. Run the
+ * {@link #main(String[])} method to measure with 1 to 64 threads, or pass
+ * <tt>-t</tt> to the JMH runner.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceRegistryBenchmark
+{
+    private static final AtomicLong BUNDLE_IDS = new AtomicLong();
+
+    @Param({"singleton", "bundle", "prototype"})
+    public String scope;
+
+    @Param({"false", "true"})
+    public boolean sharedClient;
+
+    ServiceRegistry m_registry;
+    ServiceReference<?> m_ref;
+    Bundle m_sharedClient;
+    boolean m_isPrototype;
+
+    @Setup
+    public void setup()
+    {
+        m_registry = new ServiceRegistry(null, null);
+        Object svcObj;
+        if ("singleton".equals(scope))
+        {
+            svcObj = new Object();
+        }
+        else if ("bundle".equals(scope))
+        {
+            svcObj = new ServiceFactory<Object>()
+            {
+                public Object getService(Bundle bundle, ServiceRegistration<Object> registration)
+                {
+                    return new Object();
+                }
+
+                public void ungetService(Bundle bundle, ServiceRegistration<Object> registration, Object service)
+                {
+                }
+            };
+        }
+        else if ("prototype".equals(scope))
+        {
+            svcObj = new PrototypeServiceFactory<Object>()
+            {
+                public Object getService(Bundle bundle, ServiceRegistration<Object> registration)
+                {
+                    return new Object();
+                }
+
+                public void ungetService(Bundle bundle, ServiceRegistration<Object> registration, Object service)
+                {
+                }
+            };
+        }
+        else
+        {
+            throw new IllegalArgumentException("Unknown scope: " + scope);
+        }
+        m_isPrototype = "prototype".equals(scope);
+        ServiceRegistration<?> reg = m_registry.registerService(
+            createBundle(), new String[] { Object.class.getName() }, svcObj, null);
+        m_ref = reg.getReference();
+        m_sharedClient = createBundle();
+    }
+
+    @State(Scope.Thread)
+    public static class Client
+    {
+        Bundle m_bundle;
+
+        @Setup
+        public void setup(ServiceRegistryBenchmark benchmark)
+        {
+            m_bundle = benchmark.sharedClient ? benchmark.m_sharedClient : createBundle();
+        }
+    }
+
+    @Benchmark
+    public Object getUngetService(Client client)
+    {
+        Object svc = m_registry.getService(client.m_bundle, m_ref, m_isPrototype);
+        m_registry.ungetService(client.m_bundle, m_ref, m_isPrototype ? svc : null);
+        return svc;
+    }
+
+    /**
+     * Creates a bundle stub which only provides its bundle identifier, which
+     * is all the service registry needs from registering and using bundles.
+     */
+    static Bundle createBundle()
+    {
+        final long id = BUNDLE_IDS.incrementAndGet();
+        return (Bundle) Proxy.newProxyInstance(
+            ServiceRegistryBenchmark.class.getClassLoader(), new Class[] { Bundle.class },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    if (method.getName().equals("getBundleId"))
+                    {
+                        return Long.valueOf(id);
+                    }
+                    if (method.getName().equals("equals"))
+                    {
+                        return Boolean.valueOf(proxy == args[0]);
+                    }
+                    if (method.getName().equals("hashCode"))
+                    {
+                        return Integer.valueOf(System.identityHashCode(proxy));
+                    }
+                    if (method.getName().equals("toString"))
+                    {
+                        return "bundle " + id;
+                    }
+                    return null;
+                }
+            });
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        for (int threads = 1; threads <= 64; threads *= 2)
+        {
+            Options opts = new OptionsBuilder()
+                .include(ServiceRegistryBenchmark.class.getSimpleName())
+                .threads(threads)
+                .build();
+            new Runner(opts).run();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.framework.util.StringComparator;
+import org.apache.felix.framework.util.StringMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.Constants;
+
+/**
+ * Compares {@link StringMap} with the case-insensitive <tt>TreeMap</tt> it
+ * replaced on the headers of a typical bundle manifest. Run with
+ * <tt>-prof gc</tt> to compare the memory allocated for each map by the
+ * <tt>create</tt> benchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringMapBenchmark
+{
+    @Param({"StringMap", "TreeMap"})
+    public String impl;
+
+    private Map<String, Object> m_manifest;
+    private Map<String, Object> m_headers;
+    private String[] m_lookups;
+
+    @Setup
+    public void setup()
+    {
+        m_manifest = new LinkedHashMap<String, Object>();
+        m_manifest.put("Manifest-Version", "1.0");
+        m_manifest.put("Bnd-LastModified", "1444404432541");
+        m_manifest.put("Build-Jdk", "1.7.0_79");
+        m_manifest.put("Built-By", "builder");
+        m_manifest.put("Created-By", "Apache Maven Bundle Plugin");
+        m_manifest.put("Tool", "Bnd-2.4.1.201501161923");
+        m_manifest.put(Constants.BUNDLE_MANIFESTVERSION, "2");
+        m_manifest.put(Constants.BUNDLE_NAME, "Synthetic Bundle");
+        m_manifest.put(Constants.BUNDLE_SYMBOLICNAME, "org.example.synthetic");
+        m_manifest.put(Constants.BUNDLE_VERSION, "1.2.3");
+        m_manifest.put(Constants.BUNDLE_VENDOR, "The Apache Software Foundation");
+        m_manifest.put(Constants.BUNDLE_DESCRIPTION, "A synthetic bundle.");
+        m_manifest.put(Constants.BUNDLE_DOCURL, "http://felix.apache.org/");
+        m_manifest.put(Constants.BUNDLE_LICENSE, "http://www.apache.org/licenses/LICENSE-2.0.txt");
+        m_manifest.put(Constants.BUNDLE_ACTIVATOR, "org.example.synthetic.Activator");
+        m_manifest.put(Constants.EXPORT_PACKAGE, "org.example.synthetic;version=\"1.2.3\"");
+        m_manifest.put(Constants.IMPORT_PACKAGE, "org.osgi.framework;version=\"[1.6,2)\"");
+        m_manifest.put(Constants.REQUIRE_CAPABILITY,
+            "osgi.ee;filter:=\"(&(osgi.ee=JavaSE)(version=1.6))\"");
+        m_headers = create();
+        // Lookups as done by the framework, with different case and
+        // including a missing header.
+        m_lookups = new String[] {
+            Constants.BUNDLE_SYMBOLICNAME, "bundle-version", Constants.FRAGMENT_HOST,
+            Constants.BUNDLE_ACTIVATOR, "IMPORT-PACKAGE", Constants.BUNDLE_LOCALIZATION };
+    }
+
+    @Benchmark
+    public Map<String, Object> create()
+    {
+        Map<String, Object> map = "TreeMap".equals(impl)
+            ? new TreeMap<String, Object>(StringComparator.COMPARATOR)
+            : new StringMap();
+        map.putAll(m_manifest);
+        return map;
+    }
+
+    @Benchmark
+    public int lookup()
+    {
+        int found = 0;
+        for (String key : m_lookups)
+        {
+            if (m_headers.get(key) != null)
+            {
+                found++;
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.apache.felix.framework.synthetic.SyntheticActivator;
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+
+/**
+ * Creates synthetic bundle sets and embedded frameworks for the benchmarks.
+ * Synthetic bundle <tt>i</tt> exports the package <tt>synthetic.pkg&lt;i&gt;</tt>
+ * and imports the packages of bundles <tt>i - 1</tt> and <tt>i / 2</tt>,
+ * which gives the resolver both long and fanned out dependency chains. Each
+ * bundle contains its own copy of {@link SyntheticActivator}.
+ */
+final class SyntheticBundles
+{
+    static final String ACTIVATOR_CLASS = SyntheticActivator.class.getName();
+
+    private SyntheticBundles()
+    {
+    }
+
+    /**
+     * Writes the specified number of synthetic bundles to a directory.
+     * @param dir the directory to write the bundles to.
+     * @param count the number of bundles.
+     * @return the bundle files in index order.
+     * @throws IOException if the bundles cannot be written.
+    **/
+    static File[] create(File dir, int count) throws IOException
+    {
+        byte[] activator = readClass(SyntheticActivator.class);
+        dir.mkdirs();
+        File[] files = new File[count];
+        for (int i = 0; i < count; i++)
+        {
+            files[i] = new File(dir, "synthetic-" + i + ".jar");
+            Manifest mf = new Manifest();
+            Attributes attrs = mf.getMainAttributes();
+            attrs.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+            attrs.putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+            attrs.putValue(Constants.BUNDLE_SYMBOLICNAME, "synthetic.bundle" + i);
+            attrs.putValue(Constants.BUNDLE_VERSION, "1.0.0");
+            attrs.putValue(Constants.BUNDLE_ACTIVATOR, ACTIVATOR_CLASS);
+            attrs.putValue(Constants.EXPORT_PACKAGE, "synthetic.pkg" + i + ";version=\"1.0.0\"");
+            StringBuilder imports = new StringBuilder("org.osgi.framework");
+            if (i > 0)
+            {
+                imports.append(",synthetic.pkg").append(i - 1).append(";version=\"[1,2)\"");
+            }
+            if ((i / 2) < (i - 1))
+            {
+                imports.append(",synthetic.pkg").append(i / 2).append(";version=\"[1,2)\"");
+            }
+            attrs.putValue(Constants.IMPORT_PACKAGE, imports.toString());
+            attrs.putValue(SyntheticActivator.INDEX_HEADER, Integer.toString(i));
+
+            JarOutputStream jos = new JarOutputStream(new FileOutputStream(files[i]), mf);
+            try
+            {
+                jos.putNextEntry(new JarEntry(ACTIVATOR_CLASS.replace('.', '/') + ".class"));
+                jos.write(activator);
+                jos.closeEntry();
+            }
+            finally
+            {
+                jos.close();
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Creates and starts an embedded framework with a clean cache.
+     * @param cacheDir the framework storage directory.
+     * @return the started framework.
+     * @throws BundleException if the framework cannot be started.
+    **/
+    static Felix startFramework(File cacheDir) throws BundleException
+    {
+        Map<String, Object> config = new HashMap<String, Object>();
+        config.put(Constants.FRAMEWORK_STORAGE, cacheDir.getAbsolutePath());
+        config.put(Constants.FRAMEWORK_STORAGE_CLEAN, Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+        config.put(FelixConstants.LOG_LEVEL_PROP, "1");
+        Felix felix = new Felix(config);
+        felix.start();
+        return felix;
+    }
+
+    /**
+     * Installs the specified bundle files.
+     * @param context the context to install the bundles with.
+     * @param files the bundle files.
+     * @return the installed bundles.
+     * @throws BundleException if a bundle cannot be installed.
+    **/
+    static Bundle[] install(BundleContext context, File[] files) throws BundleException
+    {
+        Bundle[] bundles = new Bundle[files.length];
+        for (int i = 0; i < files.length; i++)
+        {
+            bundles[i] = context.installBundle(files[i].toURI().toString());
+        }
+        return bundles;
+    }
+
+    /**
+     * Stops the framework and waits for it to be stopped.
+     * @param felix the framework or <tt>null</tt>.
+     * @throws Exception if the framework cannot be stopped.
+    **/
+    static void stopFramework(Felix felix) throws Exception
+    {
+        if (felix != null)
+        {
+            felix.stop();
+            felix.waitForStop(0);
+        }
+    }
+
+    /**
+     * Recursively deletes a file or directory.
+     * @param file the file to delete.
+    **/
+    static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        for (int i = 0; (children != null) && (i < children.length); i++)
+        {
+            delete(children[i]);
+        }
+        file.delete();
+    }
+
+    private static byte[] readClass(Class<?> clazz) throws IOException
+    {
+        InputStream is = clazz.getResourceAsStream("/" + clazz.getName().replace('.', '/') + ".class");
+        try
+        {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n = is.read(buf); n >= 0; n = is.read(buf))
+            {
+                baos.write(buf, 0, n);
+            }
+            return baos.toByteArray();
+        }
+        finally
+        {
+            is.close();
+        }
+    }
+}
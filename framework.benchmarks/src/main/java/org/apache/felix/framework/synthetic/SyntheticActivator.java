@@ -0,0 +1,51 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.synthetic;
+
+import java.util.Hashtable;
+
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+
+/**
+ * The activator of the synthetic benchmark bundles. Its class file is
+ * copied into every synthetic bundle as a private package, so each bundle
+ * defines its own copy of this class. On start it registers itself as a
+ * <tt>java.lang.Runnable</tt> service with the index of its bundle.
+ */
+public class SyntheticActivator implements BundleActivator, Runnable
+{
+    public static final String INDEX_HEADER = "Synthetic-Index";
+    public static final String INDEX_PROP = "synthetic.index";
+
+    public void start(BundleContext context)
+    {
+        Hashtable<String, Object> props = new Hashtable<String, Object>();
+        props.put(INDEX_PROP, Integer.valueOf(context.getBundle().getHeaders().get(INDEX_HEADER)));
+        context.registerService(Runnable.class.getName(), this, props);
+    }
+
+    public void stop(BundleContext context)
+    {
+    }
+
+    public void run()
+    {
+    }
+}
@@ -38,10 +38,12 @@ import java.util.Set;
 import java.util.StringTokenizer;
 
 import org.apache.felix.framework.cache.BundleArchive;
+import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.SecurityManagerEx;
 import org.apache.felix.framework.util.ShrinkableCollection;
 import org.apache.felix.framework.util.StringMap;
 import org.apache.felix.framework.util.Util;
+import org.apache.felix.framework.util.manifestparser.ManifestCache;
 import org.osgi.dto.DTO;
 import org.osgi.framework.AdaptPermission;
 import org.osgi.framework.AdminPermission;
@@ -1273,13 +1275,22 @@ class BundleImpl implements Bundle, BundleRevisions
         // create an associated revision object for it.
         Map headerMap = m_archive.getCurrentRevision().getManifestHeader();
 
+        // If enabled, cache the parsed manifest in the revision directory,
+        // which is discarded together with the revision.
+        File manifestCache = "true".equalsIgnoreCase(
+            (String) getFramework().getConfig().get(FelixConstants.MANIFEST_CACHE_PROP))
+            ? new File(m_archive.getCurrentRevision().getRevisionRootDir(),
+                ManifestCache.FILE_NAME)
+            : null;
+
         // Create the bundle revision instance.
         BundleRevisionImpl revision = new BundleRevisionImpl(
             this,
             Long.toString(getBundleId())
                 + "." + m_archive.getCurrentRevisionNumber().toString(),
             headerMap,
-            m_archive.getCurrentRevision().getContent());
+            m_archive.getCurrentRevision().getContent(),
+            manifestCache);
 
         // For R4 bundles, verify that the bundle symbolic name + version
         // is unique unless this check has been disabled.
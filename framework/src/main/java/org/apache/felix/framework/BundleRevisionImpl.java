@@ -18,8 +18,12 @@
  */
 package org.apache.felix.framework;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.security.ProtectionDomain;
@@ -33,6 +37,7 @@ import org.apache.felix.framework.cache.Content;
 import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.SecureAction;
 import org.apache.felix.framework.util.Util;
+import org.apache.felix.framework.util.manifestparser.ManifestCache;
 import org.apache.felix.framework.util.manifestparser.ManifestParser;
 import org.apache.felix.framework.util.manifestparser.NativeLibrary;
 import org.osgi.framework.Bundle;
@@ -107,17 +112,29 @@ public class BundleRevisionImpl implements BundleRevision, Resource
     BundleRevisionImpl(
         BundleImpl bundle, String id, Map headerMap, Content content)
         throws BundleException
+    {
+        this(bundle, id, headerMap, content, null);
+    }
+
+    /**
+     * Creates a revision from the given manifest headers. If a manifest cache
+     * file is given, the parsed capabilities and requirements are loaded from
+     * it when it was written for the same headers; otherwise the headers are
+     * parsed and the result is written to the file.
+     * @param manifestCache The file caching the parsed manifest or
+     *        <tt>null</tt> if the manifest should always be parsed.
+    **/
+    BundleRevisionImpl(
+        BundleImpl bundle, String id, Map headerMap, Content content,
+        File manifestCache)
+        throws BundleException
     {
         m_bundle = bundle;
         m_id = id;
         m_headerMap = headerMap;
         m_content = content;
 
-        ManifestParser mp = new ManifestParser(
-            bundle.getFramework().getLogger(),
-            bundle.getFramework().getConfig(),
-            this,
-            m_headerMap);
+        ManifestParser mp = parseManifest(manifestCache);
 
         // Record some of the parsed metadata. Note, if this is an extension
         // bundle it's exports are removed, since they will be added to the
@@ -139,6 +156,78 @@ public class BundleRevisionImpl implements BundleRevision, Resource
         m_isFragment = m_headerMap.containsKey(Constants.FRAGMENT_HOST);
     }
 
+    private ManifestParser parseManifest(File manifestCache) throws BundleException
+    {
+        Logger logger = m_bundle.getFramework().getLogger();
+        Map configMap = m_bundle.getFramework().getConfig();
+
+        if ((manifestCache != null) && m_secureAction.fileExists(manifestCache))
+        {
+            InputStream is = null;
+            try
+            {
+                is = m_secureAction.getFileInputStream(manifestCache);
+                ManifestParser mp = ManifestCache.read(
+                    logger, configMap, this, m_headerMap, new BufferedInputStream(is));
+                if (mp != null)
+                {
+                    return mp;
+                }
+                logger.log(m_bundle, Logger.LOG_DEBUG,
+                    "Manifest changed, ignoring cached manifest metadata.");
+            }
+            catch (Exception ex)
+            {
+                logger.log(m_bundle, Logger.LOG_WARNING,
+                    "Unable to load cached manifest metadata.", ex);
+            }
+            finally
+            {
+                try
+                {
+                    if (is != null) is.close();
+                }
+                catch (IOException ex)
+                {
+                    // Not much we can do.
+                }
+            }
+        }
+
+        ManifestParser mp = new ManifestParser(logger, configMap, this, m_headerMap);
+
+        if (manifestCache != null)
+        {
+            OutputStream os = null;
+            try
+            {
+                os = new BufferedOutputStream(
+                    m_secureAction.getFileOutputStream(manifestCache));
+                ManifestCache.write(mp, configMap, m_headerMap, os);
+                os.close();
+                os = null;
+            }
+            catch (Exception ex)
+            {
+                logger.log(m_bundle, Logger.LOG_DEBUG,
+                    "Unable to cache manifest metadata.", ex);
+                if (os != null)
+                {
+                    try
+                    {
+                        os.close();
+                    }
+                    catch (IOException ex2)
+                    {
+                        // Not much we can do.
+                    }
+                }
+                m_secureAction.deleteFile(manifestCache);
+            }
+        }
+        return mp;
+    }
+
     static SecureAction getSecureAction()
     {
         return m_secureAction;
@@ -34,12 +34,15 @@ import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.felix.framework.cache.Content;
 import org.apache.felix.framework.cache.JarContent;
@@ -154,6 +157,33 @@ public class BundleWiringImpl implements BundleWiring
     // Flag indicating whether this wiring has been disposed.
     private volatile boolean m_isDisposed = false;
 
+    // Maximum number of failed lookups remembered per wiring.
+    private static final int NEGATIVE_CACHE_SIZE = 256;
+    // Class and resource names that could not be found by the imports,
+    // required bundles, bundle content or dynamic imports; resource names
+    // are prefixed with '/' to distinguish them from class names. Except
+    // for dynamic wires, which clear the cache, these sources only change
+    // for a wiring with dynamic imports, whose entries are therefore only
+    // valid for the resolver state version they were recorded with.
+    private final Map<String, Boolean> m_negativeCache =
+        new LinkedHashMap<String, Boolean>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest)
+            {
+                return size() > NEGATIVE_CACHE_SIZE;
+            }
+        };
+    private long m_negativeCacheVersion = -1;
+    // Whether the host or a fragment declares dynamic imports.
+    private final boolean m_hasDynamicImports;
+    // Number of dynamic wires added to this wiring, which is only changed
+    // while holding the negative cache lock.
+    private volatile int m_dynamicWireCount = 0;
+    // Memoized boot delegation decisions per package name.
+    private final ConcurrentMap<String, Boolean> m_bootDelegatedPkgs =
+        new ConcurrentHashMap<String, Boolean>();
+
     BundleWiringImpl(
         Logger logger, Map configMap, StatefulResolver resolver,
         BundleRevisionImpl revision, List<BundleRevision> fragments,
@@ -223,6 +253,7 @@ public class BundleWiringImpl implements BundleWiring
                 }
             }
         }
+        int resolvedCount = reqList.size();
         // Next add dynamic requirements from host.
         for (BundleRequirement req : m_revision.getDeclaredRequirements(null))
         {
@@ -254,6 +285,7 @@ public class BundleWiringImpl implements BundleWiring
             }
         }
         m_resolvedReqs = ImmutableList.newInstance(reqList);
+        m_hasDynamicImports = (reqList.size() > resolvedCount);
 
         // Calculate resolved list of capabilities, which includes:
         // 1. All capabilities from host and any fragments except for exported
@@ -487,6 +519,7 @@ public class BundleWiringImpl implements BundleWiring
         }
         m_classLoader = null;
         m_isDisposed = true;
+        clearNegativeCache();
     }
 
 // TODO: OSGi R4.3 - This really shouldn't be public, but it is needed by the
@@ -664,6 +697,22 @@ public class BundleWiringImpl implements BundleWiring
         // to cause any issues.
         m_wires = ImmutableList.newInstance(wires);
         m_importedPkgs = importedPkgs;
+        // The new package source may provide previously missing classes.
+        synchronized (m_negativeCache)
+        {
+            m_dynamicWireCount++;
+            clearNegativeCache();
+        }
+    }
+
+    /**
+     * Returns the number of dynamic wires added to this wiring, which
+     * changes whenever the wiring is changed in place.
+     * @return The number of dynamic wires.
+    **/
+    int getDynamicWireCount()
+    {
+        return m_dynamicWireCount;
     }
 
     @Override
@@ -1296,6 +1345,17 @@ public class BundleWiringImpl implements BundleWiring
             return true;
         }
 
+        Boolean memo = m_bootDelegatedPkgs.get(pkgName);
+        if (memo == null)
+        {
+            memo = Boolean.valueOf(isBootDelegationPackage(pkgName));
+            m_bootDelegatedPkgs.put(pkgName, memo);
+        }
+        return memo.booleanValue();
+    }
+
+    private boolean isBootDelegationPackage(String pkgName)
+    {
         boolean result = false;
 
         // Only consider delegation if we have a package name, since
@@ -1519,13 +1579,23 @@ public class BundleWiringImpl implements BundleWiring
                     }
                 }
 
+                // Skip the search if an earlier search in the current resolver
+                // state did not find the class or resource.
+                String negativeKey = (isClass) ? name : "/" + name;
+                long version = getNegativeCacheVersion();
+                int dynamicWires = m_dynamicWireCount;
+                boolean isKnownMissing = isNegativeCached(negativeKey);
+
                 // Look in the revision's imports. Note that the search may
                 // be aborted if this method throws an exception, otherwise
                 // it continues if a null is returned.
-                result = searchImports(pkgName, name, isClass);
+                if (!isKnownMissing)
+                {
+                    result = searchImports(pkgName, name, isClass);
+                }
 
                 // If not found, try the revision's own class path.
-                if (result == null)
+                if ((result == null) && !isKnownMissing)
                 {
                     if (isClass)
                     {
@@ -1550,8 +1620,19 @@ public class BundleWiringImpl implements BundleWiring
                     if (result == null)
                     {
                         result = searchDynamicImports(pkgName, name, isClass);
+                        if (result == null)
+                        {
+                            addNegativeCache(negativeKey, version, dynamicWires);
+                        }
                     }
                 }
+
+                // Finally, try implicit boot delegation, which depends on
+                // the caller and therefore is never cached.
+                if (result == null)
+                {
+                    result = searchImplicitBootDelegation(name, isClass);
+                }
             }
             finally
             {
@@ -1583,6 +1664,58 @@ public class BundleWiringImpl implements BundleWiring
         return result;
     }
 
+    /**
+     * Returns the version of the state that failed lookups depend on
+     * besides this wiring, which is the resolver state for a wiring with
+     * dynamic imports and constant otherwise.
+    **/
+    private long getNegativeCacheVersion()
+    {
+        return m_hasDynamicImports ? m_resolver.getStateVersion() : 0;
+    }
+
+    private boolean isNegativeCached(String key)
+    {
+        synchronized (m_negativeCache)
+        {
+            if (m_negativeCacheVersion != getNegativeCacheVersion())
+            {
+                m_negativeCache.clear();
+                return false;
+            }
+            return m_negativeCache.containsKey(key);
+        }
+    }
+
+    private void addNegativeCache(String key, long version, int dynamicWires)
+    {
+        synchronized (m_negativeCache)
+        {
+            // Only remember the failure if neither the resolver state nor
+            // this wiring changed during the search.
+            if ((version != getNegativeCacheVersion())
+                || (dynamicWires != m_dynamicWireCount))
+            {
+                return;
+            }
+            if (m_negativeCacheVersion != version)
+            {
+                m_negativeCache.clear();
+                m_negativeCacheVersion = version;
+            }
+            m_negativeCache.put(key, Boolean.TRUE);
+        }
+    }
+
+    private void clearNegativeCache()
+    {
+        synchronized (m_negativeCache)
+        {
+            m_negativeCache.clear();
+            m_negativeCacheVersion = -1;
+        }
+    }
+
     private Object searchImports(String pkgName, String name, boolean isClass)
         throws ClassNotFoundException, ResourceNotFoundException
     {
@@ -1673,6 +1806,12 @@ public class BundleWiringImpl implements BundleWiring
                 : (Object) ((BundleWiringImpl) provider.getWiring()).getResourceByDelegation(name);
         }
 
+        return null;
+    }
+
+    private Object searchImplicitBootDelegation(final String name, final boolean isClass)
+        throws ClassNotFoundException, ResourceNotFoundException
+    {
         // If implicit boot delegation is enabled, then try to guess whether
         // we should boot delegate.
         if (m_implicitBootDelegation)
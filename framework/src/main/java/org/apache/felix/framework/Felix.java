@@ -49,6 +49,13 @@ import java.util.StringTokenizer;
 import java.util.TreeMap;
 import java.util.TreeSet;
 import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.felix.framework.BundleWiringImpl.BundleClassLoader;
 import org.apache.felix.framework.ServiceRegistry.ServiceRegistryCallbacks;
@@ -256,11 +263,21 @@ public class Felix extends BundleImpl implements Framework
      *       sets an upper limit on how many files the cache will open. The default
      *       value is zero, which means there is no limit.
      *   </li>
+     *   <li><tt>felix.cache.mmap</tt> - Enables or disables memory-mapping of
+     *       bundle JAR files, in which case they do not count against the file
+     *       limit. The default value is <tt>false</tt>.
+     *   </li>
      *   <li><tt>felix.cache.locking</tt> - Enables or disables bundle cache locking,
      *       which is used to prevent concurrent access to the bundle cache. This is
      *       enabled by default, but on older/smaller JVMs file channel locking is
      *       not available; set this property to <tt>false</tt> to disable it.
      *   </li>
+     *   <li><tt>felix.cache.resolution</tt> - Flag to indicate whether the
+     *       wirings of resolved bundles are persisted in the bundle cache when
+     *       the framework stops and reinstated on the next start, as long as
+     *       the installed bundles and the configuration are unchanged. The
+     *       default value is "<tt>false</tt>".
+     *   </li>
      *   <li><tt>felix.cache.bufsize</tt> - Sets the buffer size to be used by
      *       the cache; the default value is 4096. The integer value of this
      *       string provides control over the size of the internal buffer of the
@@ -308,6 +325,21 @@ public class Felix extends BundleImpl implements Framework
      *   <li><tt>felix.startlevel.bundle</tt> - The default start level for
      *       newly installed bundles; the default value is 1.
      *   </li>
+     *   <li><tt>felix.startlevel.parallel</tt> - Enables starting the bundles
+     *       of a single start level concurrently when the framework start level
+     *       is raised. The value is either "<tt>true</tt>", to use one thread per
+     *       available processor, or the number of threads to use. All bundles of
+     *       a start level are started before the next start level is processed.
+     *       By default bundles are started sequentially.
+     *   </li>
+     *   <li><tt>felix.eventdispatcher.shards</tt> - Enables delivering
+     *       asynchronous events on threads owned by this framework instance.
+     *       The value is either "<tt>true</tt>", to use one thread per available
+     *       processor, or the number of threads to use. The listeners of a
+     *       bundle are always served by the same thread, so a slow listener
+     *       only delays the listeners sharing its thread. By default a single
+     *       thread shared by all framework instances is used.
+     *   </li>
      *   <li><tt>felix.service.urlhandlers</tt> - Flag to indicate whether
      *       to activate the URL Handlers service for the framework instance;
      *       the default value is "<tt>true</tt>". Activating the URL Handlers
@@ -439,7 +471,8 @@ public class Felix extends BundleImpl implements Framework
         }
 
         // Create event dispatcher.
-        m_dispatcher = new EventDispatcher(m_logger, m_registry);
+        m_dispatcher = new EventDispatcher(
+            m_logger, m_registry, getEventDispatcherShards());
 
         // Create framework wiring object.
         m_fwkWiring = new FrameworkWiringImpl(this, m_registry);
@@ -819,6 +852,22 @@ public class Felix extends BundleImpl implements Framework
                 // keep the max value.
                 m_nextId = Math.max(m_nextId, loadNextId());
 
+                // Load the resolution of the previous run, which is reinstated
+                // if the installed bundles did not change.
+                if (isResolutionCacheEnabled())
+                {
+                    try
+                    {
+                        m_resolver.loadResolution(
+                            m_cache.getSystemBundleDataFile(ResolutionCache.FILE_NAME));
+                    }
+                    catch (Exception ex)
+                    {
+                        m_logger.log(Logger.LOG_WARNING,
+                            "Unable to load cached resolution.", ex);
+                    }
+                }
+
                 // The framework is now in its startup sequence.
                 setBundleStateAndNotify(this, Bundle.STARTING);
 
@@ -1289,126 +1338,82 @@ public class Felix extends BundleImpl implements Framework
             int high = (isLowering) ? m_activeStartLevel : m_targetStartLevel;
             m_activeStartLevel = (isLowering) ? high : low;
 
-            // Process bundles and stop or start them accordingly.
-            while (bundlesRemaining)
-            {
-                StartLevelTuple tuple;
+            // Create a pool for starting the bundles of a start level
+            // concurrently if parallel activation is configured; the pool is
+            // only used when raising the start level.
+            ExecutorService executor = (isLowering) ? null : createStartLevelExecutor();
 
-                // Remove our tuple to be processed while holding the queue lock
-                // and update the active start level accordingly, which allows
-                // us to determine in startBundle() if concurrent requests to
-                // start a bundle should be handled synchronously or just added
-                // to the queue and handled asynchronously.
-                synchronized (m_startLevelBundles)
+            try
+            {
+                // Process bundles and stop or start them accordingly.
+                while (bundlesRemaining)
                 {
-                    if (isLowering)
-                    {
-                        tuple = m_startLevelBundles.last();
-                    }
-                    else
-                    {
-                        tuple = m_startLevelBundles.first();
-                    }
+                    StartLevelTuple tuple;
+                    List<StartLevelTuple> batch = null;
 
-                    if ((tuple.m_level >= low) && (tuple.m_level <= high))
+                    // Remove our tuple to be processed while holding the queue lock
+                    // and update the active start level accordingly, which allows
+                    // us to determine in startBundle() if concurrent requests to
+                    // start a bundle should be handled synchronously or just added
+                    // to the queue and handled asynchronously.
+                    synchronized (m_startLevelBundles)
                     {
-                        m_activeStartLevel = tuple.m_level;
-                    }
-                }
-
-                // Ignore the system bundle, since its start() and
-                // stop() methods get called explicitly in Felix.start()
-                // and Felix.stop(), respectively.
-                if (tuple.m_bundle.getBundleId() != 0)
-                {
-                    // Lock the current bundle.
-                    try
-                    {
-                        acquireBundleLock(tuple.m_bundle,
-                            Bundle.INSTALLED | Bundle.RESOLVED | Bundle.ACTIVE
-                            | Bundle.STARTING | Bundle.STOPPING);
-                    }
-                    catch (IllegalStateException ex)
-                    {
-                        // Ignore if the bundle has been uninstalled.
-                        if (tuple.m_bundle.getState() != Bundle.UNINSTALLED)
+                        if (isLowering)
                         {
-                            fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, ex);
-                            m_logger.log(tuple.m_bundle,
-                                Logger.LOG_ERROR,
-                                "Error locking " + tuple.m_bundle._getLocation(), ex);
+                            tuple = m_startLevelBundles.last();
                         }
                         else
                         {
-                            synchronized (m_startLevelBundles)
-                            {
-                                m_startLevelBundles.remove(tuple);
-                                bundlesRemaining = !m_startLevelBundles.isEmpty();
-                            }
+                            tuple = m_startLevelBundles.first();
                         }
-                        continue;
-                    }
 
-                    try
-                    {
-                        // Start the bundle if necessary.
-                        // Note that we only attempt to start the bundle if
-                        // its start level is equal to the active start level,
-                        // which means we assume lower bundles are in the state
-                        // they should be in (i.e., we won't attempt to restart
-                        // them if they previously failed to start).
-                        if (!isLowering
-                            && (((tuple.m_bundle.getPersistentState() == Bundle.ACTIVE)
-                                || (tuple.m_bundle.getPersistentState() == Bundle.STARTING))
-                                && (tuple.m_level == m_activeStartLevel)))
+                        if ((tuple.m_level >= low) && (tuple.m_level <= high))
                         {
-                            try
-                            {
-// TODO: LAZY - Not sure if this is the best way...
-                                int options = Bundle.START_TRANSIENT;
-                                options = (tuple.m_bundle.getPersistentState() == Bundle.STARTING)
-                                    ? options | Bundle.START_ACTIVATION_POLICY
-                                    : options;
-                                startBundle(tuple.m_bundle, options);
-                            }
-                            catch (Throwable th)
+                            m_activeStartLevel = tuple.m_level;
+
+                            // When starting in parallel, take all bundles of the
+                            // current start level as one batch, so the level is
+                            // finished before the next one is begun.
+                            if (executor != null)
                             {
-                                fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
-                                m_logger.log(tuple.m_bundle,
-                                    Logger.LOG_ERROR,
-                                    "Error starting " + tuple.m_bundle._getLocation(), th);
+                                batch = new ArrayList<StartLevelTuple>();
+                                for (StartLevelTuple t : m_startLevelBundles)
+                                {
+                                    if (t.m_level != tuple.m_level)
+                                    {
+                                        break;
+                                    }
+                                    batch.add(t);
+                                }
                             }
                         }
-                        // Stop the bundle if necessary.
-                        else if (isLowering
-                            && (((tuple.m_bundle.getState() == Bundle.ACTIVE)
-                                || (tuple.m_bundle.getState() == Bundle.STARTING))
-                                && (tuple.m_level == m_activeStartLevel)))
+                    }
+
+                    if ((batch != null) && (batch.size() > 1))
+                    {
+                        List<StartLevelTuple> processed =
+                            processStartLevelBatch(executor, batch, isLowering);
+                        synchronized (m_startLevelBundles)
                         {
-                            try
-                            {
-                                stopBundle(tuple.m_bundle, false);
-                            }
-                            catch (Throwable th)
-                            {
-                                fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
-                                m_logger.log(tuple.m_bundle,
-                                    Logger.LOG_ERROR,
-                                    "Error stopping " + tuple.m_bundle._getLocation(), th);
-                            }
+                            m_startLevelBundles.removeAll(processed);
+                            bundlesRemaining = !m_startLevelBundles.isEmpty();
                         }
                     }
-                    finally
+                    else if (processStartLevelTuple(tuple, isLowering))
                     {
-                        // Always release bundle lock.
-                        releaseBundleLock(tuple.m_bundle);
+                        synchronized (m_startLevelBundles)
+                        {
+                            m_startLevelBundles.remove(tuple);
+                            bundlesRemaining = !m_startLevelBundles.isEmpty();
+                        }
                     }
                 }
-
-                synchronized (m_startLevelBundles)
+            }
+            finally
+            {
+                if (executor != null)
                 {
-                    m_startLevelBundles.remove(tuple);
-                    bundlesRemaining = !m_startLevelBundles.isEmpty();
+                    executor.shutdown();
                 }
             }
 
@@ -1439,6 +1444,211 @@ public class Felix extends BundleImpl implements Framework
         }
     }
 
+    /**
+     * Starts or stops the bundle of the given start level tuple while
+     * holding its bundle lock. Errors are logged and reported as framework
+     * events. This method is called by the start level thread or, when
+     * parallel activation is enabled, by one of its worker threads.
+     * @param tuple The start level tuple to process.
+     * @param isLowering Whether the start level is being lowered.
+     * @return <tt>true</tt> if the tuple was processed and can be removed
+     *         from the start level queue, <tt>false</tt> if the bundle lock
+     *         could not be acquired and the tuple must be retried.
+    **/
+    private boolean processStartLevelTuple(StartLevelTuple tuple, boolean isLowering)
+    {
+        // Ignore the system bundle, since its start() and
+        // stop() methods get called explicitly in Felix.start()
+        // and Felix.stop(), respectively.
+        if (tuple.m_bundle.getBundleId() == 0)
+        {
+            return true;
+        }
+
+        // Lock the current bundle.
+        try
+        {
+            acquireBundleLock(tuple.m_bundle,
+                Bundle.INSTALLED | Bundle.RESOLVED | Bundle.ACTIVE
+                | Bundle.STARTING | Bundle.STOPPING);
+        }
+        catch (IllegalStateException ex)
+        {
+            // Ignore if the bundle has been uninstalled.
+            if (tuple.m_bundle.getState() != Bundle.UNINSTALLED)
+            {
+                fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, ex);
+                m_logger.log(tuple.m_bundle,
+                    Logger.LOG_ERROR,
+                    "Error locking " + tuple.m_bundle._getLocation(), ex);
+                return false;
+            }
+            return true;
+        }
+
+        try
+        {
+            // Start the bundle if necessary.
+            // Note that we only attempt to start the bundle if
+            // its start level is equal to the active start level,
+            // which means we assume lower bundles are in the state
+            // they should be in (i.e., we won't attempt to restart
+            // them if they previously failed to start).
+            if (!isLowering
+                && (((tuple.m_bundle.getPersistentState() == Bundle.ACTIVE)
+                    || (tuple.m_bundle.getPersistentState() == Bundle.STARTING))
+                    && (tuple.m_level == m_activeStartLevel)))
+            {
+                try
+                {
+// TODO: LAZY - Not sure if this is the best way...
+                    int options = Bundle.START_TRANSIENT;
+                    options = (tuple.m_bundle.getPersistentState() == Bundle.STARTING)
+                        ? options | Bundle.START_ACTIVATION_POLICY
+                        : options;
+                    startBundle(tuple.m_bundle, options);
+                }
+                catch (Throwable th)
+                {
+                    fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
+                    m_logger.log(tuple.m_bundle,
+                        Logger.LOG_ERROR,
+                        "Error starting " + tuple.m_bundle._getLocation(), th);
+                }
+            }
+            // Stop the bundle if necessary.
+            else if (isLowering
+                && (((tuple.m_bundle.getState() == Bundle.ACTIVE)
+                    || (tuple.m_bundle.getState() == Bundle.STARTING))
+                    && (tuple.m_level == m_activeStartLevel)))
+            {
+                try
+                {
+                    stopBundle(tuple.m_bundle, false);
+                }
+                catch (Throwable th)
+                {
+                    fireFrameworkEvent(FrameworkEvent.ERROR, tuple.m_bundle, th);
+                    m_logger.log(tuple.m_bundle,
+                        Logger.LOG_ERROR,
+                        "Error stopping " + tuple.m_bundle._getLocation(), th);
+                }
+            }
+        }
+        finally
+        {
+            // Always release bundle lock.
+            releaseBundleLock(tuple.m_bundle);
+        }
+
+        return true;
+    }
+
+    /**
+     * Processes all tuples of one start level concurrently using the
+     * supplied executor and waits until all of them are done.
+     * @param executor The executor to run the tuples on.
+     * @param batch The tuples of a single start level.
+     * @param isLowering Whether the start level is being lowered.
+     * @return The tuples that were processed and can be removed from the
+     *         start level queue.
+    **/
+    private List<StartLevelTuple> processStartLevelBatch(
+        ExecutorService executor, List<StartLevelTuple> batch, final boolean isLowering)
+    {
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(batch.size());
+        for (final StartLevelTuple tuple : batch)
+        {
+            futures.add(executor.submit(new Callable<Boolean>()
+            {
+                public Boolean call()
+                {
+                    return processStartLevelTuple(tuple, isLowering);
+                }
+            }));
+        }
+
+        List<StartLevelTuple> processed = new ArrayList<StartLevelTuple>(batch.size());
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++)
+        {
+            while (true)
+            {
+                try
+                {
+                    if (futures.get(i).get().booleanValue())
+                    {
+                        processed.add(batch.get(i));
+                    }
+                    break;
+                }
+                catch (InterruptedException ex)
+                {
+                    // Do not leave the start level half processed; remember
+                    // the interrupt and restore it once all bundles are done.
+                    interrupted = true;
+                }
+                catch (ExecutionException ex)
+                {
+                    m_logger.log(batch.get(i).m_bundle,
+                        Logger.LOG_ERROR,
+                        "Error processing " + batch.get(i).m_bundle._getLocation(),
+                        ex.getCause());
+                    processed.add(batch.get(i));
+                    break;
+                }
+            }
+        }
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+        return processed;
+    }
+
+    /**
+     * Returns the number of threads used to deliver asynchronous events, as
+     * configured by the <tt>felix.eventdispatcher.shards</tt> property.
+     * @return The number of threads or zero if the thread shared by all
+     *         framework instances should be used.
+    **/
+    private int getEventDispatcherShards()
+    {
+        return Util.getThreadCount(
+            (String) m_configMap.get(FelixConstants.EVENT_DISPATCHER_SHARDS_PROP), 0);
+    }
+
+    /**
+     * Creates the executor used to start the bundles of a start level
+     * concurrently, as configured by the <tt>felix.startlevel.parallel</tt>
+     * property. The value may be <tt>true</tt> to use one thread per
+     * available processor or a positive number of threads.
+     * @return The executor or <tt>null</tt> if bundles should be started
+     *         sequentially.
+    **/
+    private ExecutorService createStartLevelExecutor()
+    {
+        int threads = Util.getThreadCount(
+            (String) m_configMap.get(FelixConstants.STARTLEVEL_PARALLEL_PROP), 1);
+        if (threads <= 1)
+        {
+            return null;
+        }
+
+        return Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            private final AtomicInteger m_count = new AtomicInteger();
+
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, FrameworkStartLevelImpl.THREAD_NAME
+                    + "-" + m_count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
     /**
      * Returns the start level into which newly installed bundles will
      * be placed by default; this method implements functionality for
@@ -2025,9 +2235,9 @@ public class Felix extends BundleImpl implements Framework
             // so queue this bundle to the start level bundle queue for the start
             // level thread and return, except for transient starts which are
             // queued but processed synchronously.
-            // Note: Don't queue starts from the start level thread, otherwise
-            // we'd never get anything started.
-            if (!Thread.currentThread().getName().equals(FrameworkStartLevelImpl.THREAD_NAME))
+            // Note: Don't queue starts from the start level thread or its
+            // workers, otherwise we'd never get anything started.
+            if (!Thread.currentThread().getName().startsWith(FrameworkStartLevelImpl.THREAD_NAME))
             {
                 synchronized (m_startLevelBundles)
                 {
@@ -4722,6 +4932,12 @@ public class Felix extends BundleImpl implements Framework
     // Private utility methods.
     //
 
+    private boolean isResolutionCacheEnabled()
+    {
+        return "true".equalsIgnoreCase(
+            (String) m_configMap.get(FelixConstants.RESOLUTION_CACHE_PROP));
+    }
+
     /**
      * Generated the next valid bundle identifier.
     **/
@@ -4918,6 +5134,23 @@ public class Felix extends BundleImpl implements Framework
                 }
             }
 
+            // Persist the resolution for the next run before the wirings
+            // are disposed.
+            if (isResolutionCacheEnabled())
+            {
+                try
+                {
+                    m_resolver.storeResolution(
+                        m_cache.getSystemBundleDataFile(ResolutionCache.FILE_NAME));
+                }
+                catch (Exception ex)
+                {
+                    m_logger.log(Logger.LOG_WARNING,
+                        "Unable to store resolution.", ex);
+                }
+            }
+            m_resolver.stop();
+
             // Dispose of the bundles to close their associated contents.
             bundles = getBundles();
             for (int i = 0; i < bundles.length; i++)
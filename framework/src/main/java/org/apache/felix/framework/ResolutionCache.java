@@ -0,0 +1,488 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+
+import org.apache.felix.framework.capabilityset.CapabilitySet;
+import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.Util;
+import org.apache.felix.framework.util.manifestparser.ManifestCache;
+import org.apache.felix.framework.wiring.BundleRequirementImpl;
+import org.apache.felix.framework.wiring.BundleWireImpl;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.resource.Resource;
+import org.osgi.resource.Wire;
+
+/**
+ * Persists the wirings of all resolved revisions when the framework stops
+ * and reinstates them on the next start, if the installed revisions and the
+ * framework configuration did not change in the meantime. The wirings are
+ * stored in the system bundle's data area; each wire is recorded as the
+ * index of its requirement and capability in the declared requirements and
+ * capabilities of the declaring revisions.
+**/
+class ResolutionCache
+{
+    static final String FILE_NAME = "resolution.cache";
+
+    private static final String REVISION_PREFIX = "R ";
+    private static final String WIRE_PREFIX = "W ";
+
+    private final Felix m_felix;
+    private final Logger m_logger;
+
+    // Maps revision identifiers to the encoded wires of the revision; null
+    // if there is no valid cached resolution.
+    private Map<String, List<String>> m_wires = null;
+    // Maps revision identifiers to the currently installed revisions.
+    private Map<String, BundleRevision> m_revisions = null;
+
+    ResolutionCache(Felix felix, Logger logger)
+    {
+        m_felix = felix;
+        m_logger = logger;
+    }
+
+    /**
+     * Discards the cached resolution, which is called whenever the set of
+     * installed revisions changes.
+    **/
+    synchronized void invalidate()
+    {
+        m_wires = null;
+        m_revisions = null;
+    }
+
+    /**
+     * Loads the cached resolution from the given file, if it was stored for
+     * the currently installed revisions. The file is deleted afterwards, so
+     * a stale resolution is never used if the framework is not stopped
+     * cleanly.
+     * @param file The file to load the cached resolution from.
+    **/
+    synchronized void load(File file)
+    {
+        invalidate();
+
+        InputStream is = null;
+        BufferedReader br = null;
+        try
+        {
+            is = Felix.m_secureAction.getFileInputStream(file);
+            br = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+
+            Map<String, BundleRevision> revisions = getRevisions();
+            String fingerprint = br.readLine();
+            if ((fingerprint == null) || !fingerprint.equals(fingerprint(revisions)))
+            {
+                m_logger.log(Logger.LOG_DEBUG,
+                    "Installed bundles changed, ignoring cached resolution.");
+                return;
+            }
+
+            Map<String, List<String>> wires = new HashMap<String, List<String>>();
+            List<String> current = null;
+            for (String line = br.readLine(); line != null; line = br.readLine())
+            {
+                if (line.startsWith(REVISION_PREFIX))
+                {
+                    current = new ArrayList<String>();
+                    wires.put(line.substring(REVISION_PREFIX.length()), current);
+                }
+                else if (line.startsWith(WIRE_PREFIX) && (current != null))
+                {
+                    current.add(line.substring(WIRE_PREFIX.length()));
+                }
+            }
+
+            m_wires = wires;
+            m_revisions = revisions;
+        }
+        catch (FileNotFoundException ex)
+        {
+            // Ignore this case because there is no cached resolution
+            // if the framework was not stopped before.
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(Logger.LOG_WARNING,
+                "Unable to load cached resolution from persistent storage.", ex);
+        }
+        finally
+        {
+            try
+            {
+                if (br != null) br.close();
+                if (is != null) is.close();
+            }
+            catch (Exception ex)
+            {
+                m_logger.log(Logger.LOG_WARNING,
+                    "Unable to close cached resolution file.", ex);
+            }
+            Felix.m_secureAction.deleteFile(file);
+        }
+    }
+
+    /**
+     * Stores the wirings of all resolved revisions to the given file. Nothing
+     * is stored if a wiring cannot be expressed in terms of the declared
+     * requirements and capabilities or if there are revisions pending removal.
+     * @param file The file to store the resolution to.
+    **/
+    synchronized void store(File file)
+    {
+        Map<String, BundleRevision> revisions = getRevisions();
+        StringBuilder sb = new StringBuilder();
+        try
+        {
+            sb.append(fingerprint(revisions)).append('\n');
+            for (BundleRevision revision : revisions.values())
+            {
+                BundleImpl bundle = (BundleImpl) revision.getBundle();
+                if ((bundle.getBundleId() == 0) || bundle.isExtension())
+                {
+                    continue;
+                }
+                if (bundle.isRemovalPending())
+                {
+                    return;
+                }
+                BundleWiring wiring = revision.getWiring();
+                if (wiring == null)
+                {
+                    continue;
+                }
+                sb.append(REVISION_PREFIX).append(getId(revision)).append('\n');
+                for (BundleWire wire : wiring.getRequiredWires(null))
+                {
+                    // Dynamically imported packages are not part of the
+                    // resolution; they are wired again on demand.
+                    if (FelixConstants.RESOLUTION_DYNAMIC.equals(
+                        wire.getRequirement().getDirectives()
+                            .get(Constants.RESOLUTION_DIRECTIVE)))
+                    {
+                        continue;
+                    }
+                    String encoded = encode(wire);
+                    if (encoded == null)
+                    {
+                        m_logger.log(Logger.LOG_DEBUG,
+                            "Unable to cache resolution, unknown wire " + wire);
+                        return;
+                    }
+                    sb.append(WIRE_PREFIX).append(encoded).append('\n');
+                }
+            }
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(Logger.LOG_WARNING, "Unable to cache resolution.", ex);
+            return;
+        }
+
+        OutputStream os = null;
+        BufferedWriter bw = null;
+        try
+        {
+            os = Felix.m_secureAction.getFileOutputStream(file);
+            bw = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"));
+            bw.write(sb.toString());
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(Logger.LOG_WARNING,
+                "Unable to save resolution to persistent storage.", ex);
+        }
+        finally
+        {
+            try
+            {
+                if (bw != null) bw.close();
+                if (os != null) os.close();
+            }
+            catch (Exception ex)
+            {
+                m_logger.log(Logger.LOG_WARNING,
+                    "Unable to close cached resolution file.", ex);
+            }
+        }
+    }
+
+    /**
+     * Returns the wire map for resolving the given revisions from the cached
+     * resolution. The wire map also contains all unresolved revisions the
+     * given revisions depend on and the fragments of resolved hosts.
+     * @param mandatory The revisions that must be resolved.
+     * @param optional The revisions that should be resolved.
+     * @return The wire map or <tt>null</tt> if the given revisions cannot be
+     *         resolved from the cached resolution.
+    **/
+    synchronized Map<Resource, List<Wire>> getWireMap(
+        Set<BundleRevision> mandatory, Set<BundleRevision> optional)
+    {
+        if (m_wires == null)
+        {
+            return null;
+        }
+
+        // Calculate the closure of unresolved revisions and their hosted
+        // fragments that need to be resolved together.
+        Map<Resource, List<Wire>> wireMap = new LinkedHashMap<Resource, List<Wire>>();
+        List<BundleRevision> pending = new ArrayList<BundleRevision>(mandatory);
+        pending.addAll(optional);
+        Set<BundleRevision> visited = new HashSet<BundleRevision>();
+        while (!pending.isEmpty())
+        {
+            BundleRevision revision = pending.remove(pending.size() - 1);
+            if (!visited.add(revision) || (revision.getWiring() != null))
+            {
+                continue;
+            }
+
+            List<String> encoded = m_wires.get(getId(revision));
+            if ((encoded == null) || (m_revisions.get(getId(revision)) != revision))
+            {
+                return null;
+            }
+
+            List<Wire> wires = new ArrayList<Wire>(encoded.size());
+            for (String s : encoded)
+            {
+                BundleWire wire = decode(revision, s);
+                if (wire == null)
+                {
+                    // The cached wires no longer match the installed
+                    // revisions, so none of them can be trusted.
+                    m_logger.log(Logger.LOG_DEBUG,
+                        "Cached wire does not match, discarding cached resolution.");
+                    invalidate();
+                    return null;
+                }
+                if (wire.getProvider().getWiring() == null)
+                {
+                    pending.add(wire.getProvider());
+                }
+                else if (Util.isFragment(revision))
+                {
+                    // Fragments cannot be attached to resolved hosts.
+                    return null;
+                }
+                wires.add(wire);
+            }
+            wireMap.put(revision, wires);
+
+            // Hosts must be resolved together with their fragments.
+            if (!Util.isFragment(revision))
+            {
+                for (BundleRevision fragment : getFragments(revision))
+                {
+                    pending.add(fragment);
+                }
+            }
+        }
+        return wireMap;
+    }
+
+    private List<BundleRevision> getFragments(BundleRevision host)
+    {
+        List<BundleRevision> fragments = new ArrayList<BundleRevision>();
+        for (Entry<String, List<String>> entry : m_wires.entrySet())
+        {
+            BundleRevision revision = m_revisions.get(entry.getKey());
+            if ((revision != null) && Util.isFragment(revision))
+            {
+                for (String s : entry.getValue())
+                {
+                    StringTokenizer st = new StringTokenizer(s, " ");
+                    st.nextToken();
+                    st.nextToken();
+                    if (st.nextToken().equals(getId(host)))
+                    {
+                        fragments.add(revision);
+                        break;
+                    }
+                }
+            }
+        }
+        return fragments;
+    }
+
+    // Encodes a wire as "<req revision> <req index> <provider>
+    // <cap revision> <cap index>".
+    private String encode(BundleWire wire)
+    {
+        BundleRequirement req = wire.getRequirement();
+        BundleCapability cap = wire.getCapability();
+        int reqIdx = indexOf(req.getRevision().getDeclaredRequirements(null), req);
+        int capIdx = indexOf(cap.getRevision().getDeclaredCapabilities(null), cap);
+        if ((reqIdx < 0) || (capIdx < 0))
+        {
+            return null;
+        }
+        return getId(req.getRevision()) + " " + reqIdx + " "
+            + getId(wire.getProvider()) + " "
+            + getId(cap.getRevision()) + " " + capIdx;
+    }
+
+    private BundleWire decode(BundleRevision requirer, String s)
+    {
+        try
+        {
+            StringTokenizer st = new StringTokenizer(s, " ");
+            BundleRevision reqRevision = m_revisions.get(st.nextToken());
+            int reqIdx = Integer.parseInt(st.nextToken());
+            BundleRevision provider = m_revisions.get(st.nextToken());
+            BundleRevision capRevision = m_revisions.get(st.nextToken());
+            int capIdx = Integer.parseInt(st.nextToken());
+            if ((reqRevision == null) || (provider == null) || (capRevision == null))
+            {
+                return null;
+            }
+            BundleRequirement req = reqRevision.getDeclaredRequirements(null).get(reqIdx);
+            BundleCapability cap = capRevision.getDeclaredCapabilities(null).get(capIdx);
+            if (!req.getNamespace().equals(cap.getNamespace())
+                || !CapabilitySet.matches(cap, ((BundleRequirementImpl) req).getFilter()))
+            {
+                return null;
+            }
+            return new BundleWireImpl(requirer, req, provider, cap);
+        }
+        catch (RuntimeException ex)
+        {
+            return null;
+        }
+    }
+
+    private static String getId(BundleRevision revision)
+    {
+        return ((BundleRevisionImpl) revision).getId();
+    }
+
+    private static int indexOf(List<?> list, Object o)
+    {
+        // Requirements and capabilities are compared by identity.
+        for (int i = 0; i < list.size(); i++)
+        {
+            if (list.get(i) == o)
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private Map<String, BundleRevision> getRevisions()
+    {
+        Map<String, BundleRevision> revisions = new TreeMap<String, BundleRevision>();
+        for (Bundle bundle : m_felix.getBundles())
+        {
+            BundleRevision revision = bundle.adapt(BundleRevision.class);
+            if (revision != null)
+            {
+                revisions.put(getId(revision), revision);
+            }
+        }
+        return revisions;
+    }
+
+    /**
+     * Calculates a fingerprint of the installed revisions and their manifest
+     * headers, the framework version and configuration and the capabilities
+     * of the system bundle, which all influence the outcome of a resolve.
+    **/
+    private String fingerprint(Map<String, BundleRevision> revisions) throws Exception
+    {
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        for (BundleRevision revision : revisions.values())
+        {
+            BundleImpl bundle = (BundleImpl) revision.getBundle();
+            String s = getId(revision) + ":" + bundle._getLocation() + ":"
+                + ((bundle.getBundleId() == 0) ? 0 : bundle.getLastModified()) + "\n";
+            digest.update(s.getBytes("UTF-8"));
+            // The headers may change without a new revision, for example
+            // when the bundle is replaced while the framework is stopped.
+            digest.update(ManifestCache.digest(m_felix.getConfig(),
+                ((BundleRevisionImpl) revision).getHeaders()));
+        }
+        digest.update((m_felix.getVersion() + "\n").getBytes("UTF-8"));
+        for (BundleCapability cap : m_felix.adapt(BundleRevision.class)
+            .getDeclaredCapabilities(null))
+        {
+            // Arrays are converted to lists, whose string form unlike that
+            // of arrays does not depend on the instance.
+            Map<String, Object> attrs = new TreeMap<String, Object>();
+            for (Entry<String, Object> entry : cap.getAttributes().entrySet())
+            {
+                attrs.put(entry.getKey(), (entry.getValue() instanceof Object[])
+                    ? Arrays.asList((Object[]) entry.getValue()) : entry.getValue());
+            }
+            String s = cap.getNamespace() + attrs
+                + new TreeMap<String, String>(cap.getDirectives()) + "\n";
+            digest.update(s.getBytes("UTF-8"));
+        }
+        Map<String, Object> config = new TreeMap<String, Object>();
+        for (Object o : m_felix.getConfig().entrySet())
+        {
+            Entry entry = (Entry) o;
+            config.put(entry.getKey().toString(), entry.getValue());
+        }
+        for (Entry<String, Object> entry : config.entrySet())
+        {
+            if ((entry.getValue() instanceof String)
+                && !entry.getKey().equals(Constants.FRAMEWORK_UUID))
+            {
+                String s = entry.getKey() + "=" + entry.getValue() + "\n";
+                digest.update(s.getBytes("UTF-8"));
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest())
+        {
+            sb.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+        }
+        return sb.toString();
+    }
+}
@@ -25,7 +25,9 @@ import java.util.Dictionary;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicLong;
@@ -55,8 +57,8 @@ public class ServiceRegistry
     // Capability set for all service registrations.
     private final CapabilitySet m_regCapSet = new CapabilitySet(Collections.singletonList(Constants.OBJECTCLASS), false);
 
-    // Maps bundle to an array of usage counts.
-    private final ConcurrentMap<Bundle, UsageCount[]> m_inUseMap = new ConcurrentHashMap<Bundle, UsageCount[]>();
+    // Maps bundle to its usage counts.
+    private final ConcurrentMap<Bundle, Usages> m_inUseMap = new ConcurrentHashMap<Bundle, Usages>();
 
     private final ServiceRegistryCallbacks m_callbacks;
 
@@ -188,12 +190,12 @@ public class ServiceRegistry
         final Bundle[] clients = getUsingBundles(ref);
         for (int i = 0; (clients != null) && (i < clients.length); i++)
         {
-            final UsageCount[] usages = m_inUseMap.get(clients[i]);
-            for (int x = 0; (usages != null) && (x < usages.length); x++)
+            final Usages usages = m_inUseMap.get(clients[i]);
+            if (usages != null)
             {
-                if (usages[x].m_ref.equals(ref))
+                for (final UsageCount usage : usages.get(ref))
                 {
-                    ungetService(clients[i], ref, (usages[x].m_prototype ? usages[x].getService() : null));
+                    ungetService(clients[i], ref, (usage.m_prototype ? usage.getService() : null));
                 }
             }
         }
@@ -270,13 +272,14 @@ public class ServiceRegistry
 
     public ServiceReference<?>[] getServicesInUse(final Bundle bundle)
     {
-        final UsageCount[] usages = m_inUseMap.get(bundle);
-        if (usages != null)
+        final Usages usages = m_inUseMap.get(bundle);
+        final UsageCount[] usageCounts = (usages != null) ? usages.toArray() : null;
+        if ((usageCounts != null) && (usageCounts.length > 0))
         {
-            final ServiceReference<?>[] refs = new ServiceReference[usages.length];
+            final ServiceReference<?>[] refs = new ServiceReference[usageCounts.length];
             for (int i = 0; i < refs.length; i++)
             {
-                refs[i] = usages[i].m_ref;
+                refs[i] = usageCounts[i].m_ref;
             }
             return refs;
         }
@@ -507,11 +510,12 @@ public class ServiceRegistry
     **/
     public void ungetServices(final Bundle bundle)
     {
-        UsageCount[] usages = m_inUseMap.get(bundle);
-        if (usages == null)
+        final Usages bundleUsages = m_inUseMap.get(bundle);
+        if (bundleUsages == null)
         {
             return;
         }
+        final UsageCount[] usages = bundleUsages.toArray();
 
         // Note, there is no race condition here with respect to the
         // bundle using more services, because its bundle context
@@ -535,32 +539,20 @@ public class ServiceRegistry
 
     public Bundle[] getUsingBundles(ServiceReference<?> ref)
     {
-        Bundle[] bundles = null;
-        for (Iterator<Map.Entry<Bundle, UsageCount[]>> iter = m_inUseMap.entrySet().iterator(); iter.hasNext(); )
+        List<Bundle> bundles = null;
+        for (Iterator<Map.Entry<Bundle, Usages>> iter = m_inUseMap.entrySet().iterator(); iter.hasNext(); )
         {
-            Map.Entry<Bundle, UsageCount[]> entry = iter.next();
-            Bundle bundle = entry.getKey();
-            UsageCount[] usages = entry.getValue();
-            for (int useIdx = 0; useIdx < usages.length; useIdx++)
+            Map.Entry<Bundle, Usages> entry = iter.next();
+            if (entry.getValue().uses(ref))
             {
-                if (usages[useIdx].m_ref.equals(ref))
+                if (bundles == null)
                 {
-                    // Add the bundle to the array to be returned.
-                    if (bundles == null)
-                    {
-                        bundles = new Bundle[] { bundle };
-                    }
-                    else
-                    {
-                        Bundle[] nbs = new Bundle[bundles.length + 1];
-                        System.arraycopy(bundles, 0, nbs, 0, bundles.length);
-                        nbs[bundles.length] = bundle;
-                        bundles = nbs;
-                    }
+                    bundles = new ArrayList<Bundle>();
                 }
+                bundles.add(entry.getKey());
             }
         }
-        return bundles;
+        return (bundles == null) ? null : bundles.toArray(new Bundle[bundles.size()]);
     }
 
     void servicePropertiesModified(ServiceRegistration<?> reg, Dictionary<?,?> oldProps)
@@ -593,26 +585,21 @@ public class ServiceRegistry
      */
     UsageCount obtainUsageCount(Bundle bundle, ServiceReference<?> ref, Object svcObj, Boolean isPrototype)
     {
-        UsageCount usage = null;
-
-        // This method uses an optimistic concurrency mechanism with a conditional put/replace
-        // on the m_inUseMap. If this fails (because another thread made changes) this thread
-        // retries the operation. This is the purpose of the while loop.
-        boolean success = false;
-        while (!success)
+        // Existing usage counts are looked up without locking. Only adding a usage count
+        // locks the usages of the bundle. If the usages were concurrently removed from the
+        // m_inUseMap because they became empty, this thread retries the operation. This is
+        // the purpose of the while loop.
+        while (true)
         {
-            UsageCount[] usages = m_inUseMap.get(bundle);
+            Usages usages = m_inUseMap.get(bundle);
 
             // If we know it's a prototype, then we always need to create a new usage count
-            if (!Boolean.TRUE.equals(isPrototype))
+            if (!Boolean.TRUE.equals(isPrototype) && (usages != null))
             {
-                for (int i = 0; (usages != null) && (i < usages.length); i++)
+                UsageCount usage = usages.find(ref, svcObj);
+                if (usage != null)
                 {
-                    if (usages[i].m_ref.equals(ref)
-                       && ((svcObj == null && !usages[i].m_prototype) || usages[i].getService() == svcObj))
-                    {
-                        return usages[i];
-                    }
+                    return usage;
                 }
             }
 
@@ -624,22 +611,24 @@ public class ServiceRegistry
                 return null;
             }
 
-            // Add a new Usage Count.
-            usage = new UsageCount(ref, isPrototype);
             if (usages == null)
             {
-                UsageCount[] newUsages = new UsageCount[] { usage };
-                success = m_inUseMap.putIfAbsent(bundle, newUsages) == null;
+                Usages newUsages = new Usages();
+                usages = m_inUseMap.putIfAbsent(bundle, newUsages);
+                if (usages == null)
+                {
+                    usages = newUsages;
+                }
             }
-            else
+
+            // Add a new Usage Count, unless another thread added the same
+            // non-prototype usage count concurrently.
+            UsageCount usage = usages.add(new UsageCount(ref, isPrototype));
+            if (usage != null)
             {
-                UsageCount[] newUsages = new UsageCount[usages.length + 1];
-                System.arraycopy(usages, 0, newUsages, 0, usages.length);
-                newUsages[usages.length] = usage;
-                success = m_inUseMap.replace(bundle, usages, newUsages);
+                return usage;
             }
         }
-        return usage;
     }
 
     /**
@@ -652,53 +641,17 @@ public class ServiceRegistry
      * usage counts after removing the usage count for the specified service
      * reference.
      * @param bundle The bundle whose usage count should be removed.
-     * @param ref The service reference whose usage count should be removed.
+     * @param ref The service reference whose usage count should be removed,
+     * if no usage count is specified.
+     * @param uc The usage count to remove or {@code null} to remove all usage
+     * counts of the service reference.
     **/
     void flushUsageCount(Bundle bundle, ServiceReference<?> ref, UsageCount uc)
     {
-        // This method uses an optimistic concurrency mechanism with conditional modifications
-        // on the m_inUseMap. If this fails (because another thread made changes) this thread
-        // retries the operation. This is the purpose of the while loop.
-        boolean success = false;
-        while (!success)
+        final Usages usages = m_inUseMap.get(bundle);
+        if ((usages != null) && usages.remove(ref, uc))
         {
-            UsageCount[] usages = m_inUseMap.get(bundle);
-            final UsageCount[] orgUsages = usages;
-            for (int i = 0; (usages != null) && (i < usages.length); i++)
-            {
-                if ((uc == null && usages[i].m_ref.equals(ref)) || (uc == usages[i]))
-                {
-                    // If this is the only usage, then point to empty list.
-                    if ((usages.length - 1) == 0)
-                    {
-                        usages = null;
-                    }
-                    // Otherwise, we need to do some array copying.
-                    else
-                    {
-                        UsageCount[] newUsages = new UsageCount[usages.length - 1];
-                        System.arraycopy(usages, 0, newUsages, 0, i);
-                        if (i < newUsages.length)
-                        {
-                            System.arraycopy(
-                                usages, i + 1, newUsages, i, newUsages.length - i);
-                        }
-                        usages = newUsages;
-                        i--;
-                    }
-                }
-            }
-
-            if (usages == orgUsages)
-                return; // no change in map
-
-            if (orgUsages != null)
-            {
-                if (usages != null)
-                    success = m_inUseMap.replace(bundle, orgUsages, usages);
-                else
-                    success = m_inUseMap.remove(bundle, orgUsages);
-            }
+            m_inUseMap.remove(bundle, usages);
         }
     }
 
@@ -729,6 +682,186 @@ public class ServiceRegistry
         }
     }
 
+    /**
+     * The usage counts of a single bundle. Usage counts are looked up without
+     * locking; non-prototype usage counts are kept in a concurrent map keyed by
+     * service reference, prototype usage counts in a non-blocking queue per
+     * service reference. Adding and removing usage counts locks this object,
+     * so only threads acting on behalf of the same bundle contend. Once the
+     * last usage count is removed, the usages are marked as removed and no
+     * usage counts can be added anymore, so they can safely be removed from
+     * the {@code m_inUseMap}.
+     */
+    static class Usages
+    {
+        private final ConcurrentMap<ServiceReference<?>, UsageCount> m_shared =
+            new ConcurrentHashMap<ServiceReference<?>, UsageCount>(4, 0.75f, 2);
+        private final ConcurrentMap<ServiceReference<?>, Queue<UsageCount>> m_prototypes =
+            new ConcurrentHashMap<ServiceReference<?>, Queue<UsageCount>>(4, 0.75f, 2);
+        // Guarded by this.
+        private int m_size = 0;
+        private boolean m_removed = false;
+
+        /**
+         * Finds a usage count for the specified service reference.
+         * @param ref The service reference.
+         * @param svcObj The service object of a prototype usage count, or
+         * {@code null} to find the non-prototype usage count.
+         * @return The usage count or {@code null}.
+         */
+        UsageCount find(ServiceReference<?> ref, Object svcObj)
+        {
+            final UsageCount shared = m_shared.get(ref);
+            if ((shared != null) && ((svcObj == null) || (shared.getService() == svcObj)))
+            {
+                return shared;
+            }
+            final Queue<UsageCount> prototypes = m_prototypes.get(ref);
+            if (prototypes != null)
+            {
+                for (final UsageCount usage : prototypes)
+                {
+                    if (usage.getService() == svcObj)
+                    {
+                        return usage;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Adds the specified usage count.
+         * @param uc The usage count to add.
+         * @return The added usage count, or the existing one if a non-prototype
+         * usage count already exists for the service reference, or {@code null}
+         * if these usages were removed.
+         */
+        synchronized UsageCount add(UsageCount uc)
+        {
+            if (m_removed)
+            {
+                return null;
+            }
+            if (uc.m_prototype)
+            {
+                Queue<UsageCount> prototypes = m_prototypes.get(uc.m_ref);
+                if (prototypes == null)
+                {
+                    prototypes = new ConcurrentLinkedQueue<UsageCount>();
+                    m_prototypes.put(uc.m_ref, prototypes);
+                }
+                prototypes.add(uc);
+            }
+            else
+            {
+                final UsageCount existing = m_shared.putIfAbsent(uc.m_ref, uc);
+                if (existing != null)
+                {
+                    return existing;
+                }
+            }
+            m_size++;
+            return uc;
+        }
+
+        /**
+         * Removes the specified usage count, or all usage counts of the
+         * specified service reference.
+         * @param ref The service reference, if no usage count is specified.
+         * @param uc The usage count or {@code null}.
+         * @return {@code true} if the last usage count was removed, in which
+         * case these usages must be removed from the {@code m_inUseMap}.
+         */
+        synchronized boolean remove(ServiceReference<?> ref, UsageCount uc)
+        {
+            if (m_removed)
+            {
+                return false;
+            }
+            final ServiceReference<?> key = (uc != null) ? uc.m_ref : ref;
+            if ((uc == null) || !uc.m_prototype)
+            {
+                final UsageCount shared = m_shared.get(key);
+                if ((shared != null) && ((uc == null) || (uc == shared)))
+                {
+                    m_shared.remove(key);
+                    m_size--;
+                }
+            }
+            if ((uc == null) || uc.m_prototype)
+            {
+                final Queue<UsageCount> prototypes = m_prototypes.get(key);
+                if (prototypes != null)
+                {
+                    if (uc == null)
+                    {
+                        m_size -= prototypes.size();
+                        prototypes.clear();
+                    }
+                    else if (prototypes.remove(uc))
+                    {
+                        m_size--;
+                    }
+                    if (prototypes.isEmpty())
+                    {
+                        m_prototypes.remove(key);
+                    }
+                }
+            }
+            if (m_size == 0)
+            {
+                m_removed = true;
+            }
+            return m_removed;
+        }
+
+        /**
+         * Determines whether there is a usage count for the service reference.
+         * @param ref The service reference.
+         * @return {@code true} if the service is used.
+         */
+        boolean uses(ServiceReference<?> ref)
+        {
+            return m_shared.containsKey(ref) || m_prototypes.containsKey(ref);
+        }
+
+        /**
+         * Returns all usage counts of the specified service reference.
+         * @param ref The service reference.
+         * @return The usage counts, which may be empty.
+         */
+        List<UsageCount> get(ServiceReference<?> ref)
+        {
+            final List<UsageCount> result = new ArrayList<UsageCount>(1);
+            final UsageCount shared = m_shared.get(ref);
+            if (shared != null)
+            {
+                result.add(shared);
+            }
+            final Queue<UsageCount> prototypes = m_prototypes.get(ref);
+            if (prototypes != null)
+            {
+                result.addAll(prototypes);
+            }
+            return result;
+        }
+
+        /**
+         * Returns a snapshot of all usage counts.
+         * @return The usage counts.
+         */
+        UsageCount[] toArray()
+        {
+            final List<UsageCount> result = new ArrayList<UsageCount>(m_shared.values());
+            for (final Queue<UsageCount> prototypes : m_prototypes.values())
+            {
+                result.addAll(prototypes);
+            }
+            return result.toArray(new UsageCount[result.size()]);
+        }
+    }
+
     static class ServiceHolder
     {
         final CountDownLatch m_latch = new CountDownLatch(1);
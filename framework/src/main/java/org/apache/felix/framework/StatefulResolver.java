@@ -18,6 +18,8 @@
  */
 package org.apache.felix.framework;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -31,17 +33,24 @@ import java.util.Map.Entry;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
 
 import org.apache.felix.framework.capabilityset.CapabilitySet;
 import org.apache.felix.framework.capabilityset.SimpleFilter;
 import org.apache.felix.framework.resolver.CandidateComparator;
 import org.apache.felix.framework.resolver.ResolveException;
+import org.apache.felix.framework.util.FelixConstants;
 import org.apache.felix.framework.util.ShrinkableCollection;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.util.manifestparser.NativeLibrary;
 import org.apache.felix.framework.wiring.BundleRequirementImpl;
 import org.apache.felix.framework.wiring.BundleWireImpl;
 import org.apache.felix.resolver.ResolverImpl;
+import org.apache.felix.resolver.ResolverMonitor;
+import org.apache.felix.resolver.ResolverMonitorMBean;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleException;
@@ -67,11 +76,31 @@ import org.osgi.service.resolver.Resolver;
 
 class StatefulResolver
 {
+    // Number of times a dynamic import is resolved without the global
+    // lock before falling back to a regular resolve.
+    private static final int MAX_OPTIMISTIC_DYNAMIC_ATTEMPTS = 3;
+
     private final Logger m_logger;
     private final Felix m_felix;
     private final ServiceRegistry m_registry;
     private final ResolverImpl m_resolver;
+    // Resolver registered as a service for other clients, which must not
+    // see the package spaces kept by the framework resolver.
+    private final ResolverImpl m_serviceResolver;
+    private final ResolutionCache m_resolutionCache;
+    // Resolver MBean and its name, if registered.
+    private ResolverMonitor m_monitor;
+    private ObjectName m_mbeanName;
     private boolean m_isResolving = false;
+    // Incremented whenever revisions are added, removed or resolved, so
+    // that cached lookup failures can be detected as stale. It is read by
+    // class loading and optimistic dynamic imports without holding the
+    // resolver lock, hence the atomic.
+    private final AtomicLong m_stateVersion = new AtomicLong();
+    // Maps package names without any provider to the state version in
+    // which the lookup failed, to avoid repeating dynamic import lookups.
+    private final Map<String, Long> m_missingPackages =
+        new ConcurrentHashMap<String, Long>();
 
     // Set of all revisions.
     private final Set<BundleRevision> m_revisions;
@@ -93,7 +122,10 @@ class StatefulResolver
         m_felix = felix;
         m_registry = registry;
         m_logger = m_felix.getLogger();
-        m_resolver = new ResolverImpl(m_logger);
+        m_resolver = createResolver();
+        m_resolver.setReuseResolvedPackages(true);
+        m_serviceResolver = createResolver();
+        m_resolutionCache = new ResolutionCache(felix, m_logger);
 
         m_revisions = new HashSet<BundleRevision>();
         m_fragments = new HashSet<BundleRevision>();
@@ -108,31 +140,175 @@ class StatefulResolver
 
         List<String> indices = new ArrayList<String>();
         indices.add(BundleRevision.BUNDLE_NAMESPACE);
-        m_capSets.put(BundleRevision.BUNDLE_NAMESPACE, new CapabilitySet(indices, true));
+        m_capSets.put(BundleRevision.BUNDLE_NAMESPACE, new CapabilitySet(indices, true, true));
 
         indices = new ArrayList<String>();
         indices.add(BundleRevision.PACKAGE_NAMESPACE);
-        m_capSets.put(BundleRevision.PACKAGE_NAMESPACE, new CapabilitySet(indices, true));
+        m_capSets.put(BundleRevision.PACKAGE_NAMESPACE, new CapabilitySet(indices, true, true));
 
         indices = new ArrayList<String>();
         indices.add(BundleRevision.HOST_NAMESPACE);
-        m_capSets.put(BundleRevision.HOST_NAMESPACE,  new CapabilitySet(indices, true));
+        m_capSets.put(BundleRevision.HOST_NAMESPACE,  new CapabilitySet(indices, true, true));
+    }
+
+    /**
+     * Returns the number of candidate permutations the resolver checks
+     * concurrently, as configured by the
+     * <tt>felix.resolver.permutations.parallel</tt> property. The value may
+     * be <tt>true</tt> to use one per available processor or a number.
+     * Permutations are checked one by one by default.
+    **/
+    private static int getParallelPermutations(String s)
+    {
+        return Math.max(1, Util.getThreadCount(s, 1));
+    }
+
+    /**
+     * Parses a resolver limit, such as the <tt>felix.resolver.timeout</tt>
+     * in milliseconds or the <tt>felix.resolver.permutations.max</tt>
+     * number of candidate permutations. Resolves are unlimited by default.
+    **/
+    private static long getResolverLimit(String s)
+    {
+        if (s == null)
+        {
+            return 0;
+        }
+        try
+        {
+            return Math.max(0, Long.parseLong(s.trim()));
+        }
+        catch (NumberFormatException ex)
+        {
+            return 0;
+        }
+    }
+
+    private ResolverImpl createResolver()
+    {
+        return new ResolverImpl(
+            m_logger, Runtime.getRuntime().availableProcessors(),
+            getParallelPermutations(
+                (String) m_felix.getConfig().get(
+                    FelixConstants.RESOLVER_PARALLEL_PERMUTATIONS_PROP)),
+            getResolverLimit(
+                (String) m_felix.getConfig().get(
+                    FelixConstants.RESOLVER_TIMEOUT_PROP)),
+            (int) Math.min(Integer.MAX_VALUE, getResolverLimit(
+                (String) m_felix.getConfig().get(
+                    FelixConstants.RESOLVER_MAX_PERMUTATIONS_PROP))));
     }
 
     void start()
     {
         m_registry.registerService(m_felix,
                 new String[] { Resolver.class.getName() },
-                m_resolver,
+                m_serviceResolver,
                 null);
+
+        if (Boolean.valueOf((String) m_felix.getConfig().get(
+            FelixConstants.RESOLVER_JMX_PROP)).booleanValue())
+        {
+            registerMBean();
+        }
+    }
+
+    void stop()
+    {
+        if (m_mbeanName != null)
+        {
+            try
+            {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(m_mbeanName);
+            }
+            catch (Exception ex)
+            {
+                m_logger.log(Logger.LOG_WARNING, "Unable to unregister resolver MBean.", ex);
+            }
+            m_resolver.removeListener(m_monitor);
+            m_serviceResolver.removeListener(m_monitor);
+            m_monitor = null;
+            m_mbeanName = null;
+        }
+    }
+
+    /**
+     * Registers a {@link ResolverMonitor} collecting the statistics of all
+     * resolves with the platform MBean server, qualified by the framework
+     * UUID so several frameworks can share a VM.
+    **/
+    private void registerMBean()
+    {
+        ResolverMonitor monitor = new ResolverMonitor();
+        try
+        {
+            ObjectName name = new ObjectName(ResolverMonitorMBean.OBJECT_NAME
+                + ",framework=" + m_felix.getProperty(FelixConstants.FRAMEWORK_UUID));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(monitor, name);
+            m_resolver.addListener(monitor);
+            m_serviceResolver.addListener(monitor);
+            m_monitor = monitor;
+            m_mbeanName = name;
+        }
+        catch (Exception ex)
+        {
+            m_logger.log(Logger.LOG_WARNING, "Unable to register resolver MBean.", ex);
+        }
+    }
+
+    /**
+     * Loads the resolution persisted by {@link #storeResolution(File)}, which
+     * is used for subsequent resolves as long as no revisions are added or
+     * removed.
+     * @param file The file to load the resolution from.
+    **/
+    void loadResolution(File file)
+    {
+        m_resolutionCache.load(file);
+    }
+
+    /**
+     * Persists the wirings of all resolved revisions.
+     * @param file The file to store the resolution to.
+    **/
+    void storeResolution(File file)
+    {
+        m_resolutionCache.store(file);
+    }
+
+    /**
+     * Returns the version of the resolver state, which changes whenever
+     * revisions are added, removed or resolved.
+     * @return The current resolver state version.
+    **/
+    long getStateVersion()
+    {
+        return m_stateVersion.get();
+    }
+
+    /**
+     * Changes the version of the resolver state and drops all cached
+     * lookup failures, which may no longer hold.
+    **/
+    private void stateChanged()
+    {
+        m_stateVersion.incrementAndGet();
+        m_missingPackages.clear();
     }
 
     synchronized void addRevision(BundleRevision br)
     {
+        stateChanged();
+        // A new revision invalidates any cached resolution.
+        if (br.getWiring() == null)
+        {
+            m_resolutionCache.invalidate();
+        }
+
         // Always attempt to remove the revision, since
         // this method can be used for re-indexing a revision
         // after it has been resolved.
-        removeRevision(br);
+        removeRevisionInternal(br);
 
         m_revisions.add(br);
 
@@ -159,6 +335,14 @@ class StatefulResolver
     }
 
     synchronized void removeRevision(BundleRevision br)
+    {
+        stateChanged();
+        m_resolutionCache.invalidate();
+        m_resolver.invalidateResolvedPackages(br);
+        removeRevisionInternal(br);
+    }
+
+    private void removeRevisionInternal(BundleRevision br)
     {
         if (m_revisions.remove(br))
         {
@@ -185,7 +369,7 @@ class StatefulResolver
         return ((effective == null) || effective.equals(Constants.EFFECTIVE_RESOLVE));
     }
 
-    synchronized List<BundleCapability> findProviders(
+    List<BundleCapability> findProviders(
         BundleRequirement req, boolean obeyMandatory)
     {
         ResolverHookRecord record = new ResolverHookRecord(
@@ -193,7 +377,7 @@ class StatefulResolver
         return findProvidersInternal(record, req, obeyMandatory, true);
     }
 
-    synchronized List<BundleCapability> findProvidersInternal(
+    List<BundleCapability> findProvidersInternal(
         final ResolverHookRecord record,
         final Requirement req,
         final boolean obeyMandatory,
@@ -201,32 +385,12 @@ class StatefulResolver
     {
         List<BundleCapability> result = new ArrayList<BundleCapability>();
 
-        CapabilitySet capSet = m_capSets.get(req.getNamespace());
-        if (capSet != null)
+        // Only the capability lookup needs to hold the resolver lock, the
+        // matches are a copy, so security checks and resolver hooks are
+        // run without blocking other threads.
+        Set<Capability> matches = findCapabilities(req, obeyMandatory);
+        if (matches != null)
         {
-            // Get the requirement's filter; if this is our own impl we
-            // have a shortcut to get the already parsed filter, otherwise
-            // we must parse it from the directive.
-            SimpleFilter sf;
-            if (req instanceof BundleRequirementImpl)
-            {
-                sf = ((BundleRequirementImpl) req).getFilter();
-            }
-            else
-            {
-                String filter = req.getDirectives().get(Constants.FILTER_DIRECTIVE);
-                if (filter == null)
-                {
-                    sf = new SimpleFilter(null, null, SimpleFilter.MATCH_ALL);
-                }
-                else
-                {
-                    sf = SimpleFilter.parse(filter);
-                }
-            }
-
-            // Find the matching candidates.
-            Set<Capability> matches = capSet.match(sf, obeyMandatory);
             // Filter matching candidates.
             for (Capability cap : matches)
             {
@@ -294,6 +458,40 @@ class StatefulResolver
         return result;
     }
 
+    private synchronized Set<Capability> findCapabilities(
+        Requirement req, boolean obeyMandatory)
+    {
+        CapabilitySet capSet = m_capSets.get(req.getNamespace());
+        if (capSet == null)
+        {
+            return null;
+        }
+
+        // Get the requirement's filter; if this is our own impl we
+        // have a shortcut to get the already parsed filter, otherwise
+        // we must parse it from the directive.
+        SimpleFilter sf;
+        if (req instanceof BundleRequirementImpl)
+        {
+            sf = ((BundleRequirementImpl) req).getFilter();
+        }
+        else
+        {
+            String filter = req.getDirectives().get(Constants.FILTER_DIRECTIVE);
+            if (filter == null)
+            {
+                sf = new SimpleFilter(null, null, SimpleFilter.MATCH_ALL);
+            }
+            else
+            {
+                sf = SimpleFilter.parse(filter);
+            }
+        }
+
+        // Find the matching candidates.
+        return capSet.match(sf, obeyMandatory);
+    }
+
     private boolean filteredBySecurity(BundleRequirement req, BundleCapability cap)
     {
         if (System.getSecurityManager() != null)
@@ -422,20 +620,31 @@ class StatefulResolver
                 }
             }
 
+            // Reinstate the resolution from the previous framework run if
+            // possible; resolver hooks could veto it, so it is not used if
+            // there are any.
+            if (record.getResolverHookRefs().isEmpty())
+            {
+                wireMap = m_resolutionCache.getWireMap(mandatory, optional);
+            }
+
             // Catch any resolve exception to rethrow later because
             // we may need to call end() on resolver hooks.
             ResolutionException rethrow = null;
             try
             {
                 // Resolve the revision.
-                wireMap = m_resolver.resolve(
-                    new ResolveContextImpl(
-                        this,
-                        getWirings(),
-                        record,
-                        mandatory,
-                        optional,
-                        getFragments()));
+                if (wireMap == null)
+                {
+                    wireMap = m_resolver.resolve(
+                        new ResolveContextImpl(
+                            this,
+                            getWirings(),
+                            record,
+                            mandatory,
+                            optional,
+                            getFragments()));
+                }
             }
             catch (ResolutionException ex)
             {
@@ -477,6 +686,14 @@ class StatefulResolver
         // acquired the global lock below.
         if ((revision.getWiring() != null) && isAllowedDynamicImport(revision, pkgName))
         {
+            // Most dynamic imports wire to an already resolved provider, so
+            // first try to resolve without holding the global lock.
+            provider = resolveDynamicOptimistically(revision, pkgName);
+            if (provider != null)
+            {
+                return provider;
+            }
+
             // Acquire global lock.
             boolean locked = m_felix.acquireGlobalLock();
             if (!locked)
@@ -518,59 +735,10 @@ class StatefulResolver
                     ResolutionException rethrow = null;
                     try
                     {
-                        List<BundleRequirement> dynamics =
-                                Util.getDynamicRequirements(revision.getWiring().getRequirements(null));
-
-                        // Loop through the importer's dynamic requirements to determine if
-                        // there is a matching one for the package from which we want to
-                        // load a class.
-                        Map<String, Object> attrs = Collections.singletonMap(
-                                BundleRevision.PACKAGE_NAMESPACE, (Object) pkgName);
-                        BundleRequirementImpl req = new BundleRequirementImpl(
-                                revision,
-                                BundleRevision.PACKAGE_NAMESPACE,
-                                Collections.EMPTY_MAP,
-                                attrs);
-                        List<BundleCapability> candidates = findProvidersInternal(record, req, false, true);
-
-                        // Try to find a dynamic requirement that matches the capabilities.
-                        BundleRequirementImpl dynReq = null;
-                        for (int dynIdx = 0;
-                             (candidates.size() > 0) && (dynReq == null) && (dynIdx < dynamics.size());
-                             dynIdx++)
-                        {
-                            for (Iterator<BundleCapability> itCand = candidates.iterator();
-                                 (dynReq == null) && itCand.hasNext(); )
-                            {
-                                Capability cap = itCand.next();
-                                if (CapabilitySet.matches(
-                                        cap,
-                                        ((BundleRequirementImpl) dynamics.get(dynIdx)).getFilter()))
-                                {
-                                    dynReq = (BundleRequirementImpl) dynamics.get(dynIdx);
-                                }
-                            }
-                        }
-
-                        // If we found a matching dynamic requirement, then filter out
-                        // any candidates that do not match it.
-                        if (dynReq != null)
-                        {
-                            for (Iterator<BundleCapability> itCand = candidates.iterator();
-                                 itCand.hasNext(); )
-                            {
-                                Capability cap = itCand.next();
-                                if (!CapabilitySet.matches(
-                                        cap, dynReq.getFilter()))
-                                {
-                                    itCand.remove();
-                                }
-                            }
-                        }
-                        else
-                        {
-                            candidates.clear();
-                        }
+                        List<BundleCapability> candidates =
+                            new ArrayList<BundleCapability>();
+                        BundleRequirementImpl dynReq = findDynamicCandidates(
+                            record, revision, pkgName, candidates);
 
                         wireMap = m_resolver.resolve(
                             new ResolveContextImpl(
@@ -607,35 +775,7 @@ class StatefulResolver
                         // Dynamically add new wire to importing revision.
                         if (dynamicWire != null)
                         {
-                            // TODO is a rw already a BundleWire?
-                            // TODO can we optimize this?
-                            if (dynamicWire.getRequirer() instanceof BundleRevision &&
-                                dynamicWire.getRequirement() instanceof BundleRequirement &&
-                                dynamicWire.getProvider() instanceof BundleRevision &&
-                                dynamicWire.getCapability() instanceof BundleCapability)
-                            {
-                                BundleRevision dwRequirer = (BundleRevision) dynamicWire.getRequirer();
-                                BundleRequirement dwRequirement = (BundleRequirement) dynamicWire.getRequirement();
-                                BundleRevision dwProvider = (BundleRevision) dynamicWire.getProvider();
-                                BundleCapability dwCapability = (BundleCapability) dynamicWire.getCapability();
-
-                                BundleWire bw = new BundleWireImpl(
-                                    dwRequirer,
-                                    dwRequirement,
-                                    dwProvider,
-                                    dwCapability);
-
-                                m_felix.getDependencies().addDependent(bw);
-
-                                ((BundleWiringImpl) revision.getWiring()).addDynamicWire(bw);
-
-                                m_felix.getLogger().log(
-                                    Logger.LOG_DEBUG,
-                                    "DYNAMIC WIRE: " + dynamicWire);
-
-                                provider = ((BundleWiringImpl) revision.getWiring())
-                                    .getImportedPackageSource(pkgName);
-                            }
+                            provider = addDynamicWire(revision, pkgName, dynamicWire);
                         }
                     }
                 }
@@ -650,10 +790,253 @@ class StatefulResolver
 
             fireResolvedEvents(wireMap);
         }
+        else if (revision.getWiring() != null)
+        {
+            // Another thread may have just added a dynamic wire for the
+            // package, in which case the import is not allowed anymore.
+            provider = ((BundleWiringImpl) revision.getWiring())
+                .getImportedPackageSource(pkgName);
+        }
 
         return provider;
     }
 
+    /**
+     * Resolves a dynamic import against a snapshot of the current wirings
+     * without holding the global lock, which is only acquired to commit the
+     * resulting wire. The commit is retried if the resolver state changed
+     * in the meantime. Only wires to already resolved providers are
+     * committed and resolver hooks are not supported here, the caller must
+     * fall back to a regular resolve if this returns <tt>null</tt>.
+     * @param revision The resolved revision doing the dynamic import.
+     * @param pkgName The name of the package to import.
+     * @return The provider of the package or <tt>null</tt>.
+    **/
+    private BundleRevision resolveDynamicOptimistically(
+        BundleRevision revision, String pkgName)
+    {
+        for (int attempt = 0; attempt < MAX_OPTIMISTIC_DYNAMIC_ATTEMPTS; attempt++)
+        {
+            if (!m_felix.getHookRegistry().getHooks(ResolverHookFactory.class).isEmpty())
+            {
+                return null;
+            }
+
+            // Take the snapshot.
+            long version = m_stateVersion.get();
+            BundleWiring wiring = revision.getWiring();
+            if (wiring == null)
+            {
+                return null;
+            }
+            int dynamicWires = ((BundleWiringImpl) wiring).getDynamicWireCount();
+
+            Map<Resource, List<Wire>> wireMap;
+            try
+            {
+                ResolverHookRecord record = new ResolverHookRecord(
+                    Collections.<ServiceReference<ResolverHookFactory>, ResolverHook>emptyMap(),
+                    null);
+                List<BundleCapability> candidates = new ArrayList<BundleCapability>();
+                BundleRequirementImpl dynReq = findDynamicCandidates(
+                    record, revision, pkgName, candidates);
+                if (dynReq == null)
+                {
+                    return null;
+                }
+
+                wireMap = m_resolver.resolve(
+                    new ResolveContextImpl(
+                        this,
+                        getWirings(),
+                        record,
+                        Collections.<BundleRevision>emptyList(),
+                        Collections.<BundleRevision>emptyList(),
+                        getFragments()),
+                    revision, dynReq, new ArrayList<Capability>(candidates));
+            }
+            catch (ResolutionException ex)
+            {
+                // Let the regular resolve report the failure.
+                return null;
+            }
+
+            // If other revisions need to be resolved for the import, then
+            // leave it to the regular resolve.
+            if ((wireMap == null) || (wireMap.size() != 1)
+                || (wireMap.get(revision) == null)
+                || wireMap.get(revision).isEmpty())
+            {
+                return null;
+            }
+            Wire dynamicWire = wireMap.get(revision).get(0);
+
+            boolean locked = m_felix.acquireGlobalLock();
+            if (!locked)
+            {
+                return null;
+            }
+            try
+            {
+                // A resolver hook registered in the meantime must see the
+                // import, so leave it to the regular resolve.
+                if (m_isResolving
+                    || !m_felix.getHookRegistry().getHooks(ResolverHookFactory.class).isEmpty())
+                {
+                    return null;
+                }
+                // Someone else may have imported the package already.
+                BundleRevision provider = ((BundleWiringImpl) wiring)
+                    .getImportedPackageSource(pkgName);
+                if (provider != null)
+                {
+                    return provider;
+                }
+                // Only commit if the snapshot is still current, otherwise
+                // try again against the new state. Dynamic wires of other
+                // revisions do not add providers, so only the importer's
+                // own dynamic wires are checked.
+                if ((version == m_stateVersion.get()) && (wiring == revision.getWiring())
+                    && (dynamicWires == ((BundleWiringImpl) wiring).getDynamicWireCount()))
+                {
+                    return addDynamicWire(revision, pkgName, dynamicWire);
+                }
+            }
+            finally
+            {
+                m_felix.releaseGlobalLock();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the candidates for a dynamic import of the given package and
+     * the dynamic requirement of the revision they match.
+     * @param record The resolver hooks to apply.
+     * @param revision The revision doing the dynamic import.
+     * @param pkgName The name of the package to import.
+     * @param candidates The list to add the matching candidates to.
+     * @return The matching dynamic requirement or <tt>null</tt> if there
+     *         is none, in which case no candidates are added.
+    **/
+    private BundleRequirementImpl findDynamicCandidates(
+        ResolverHookRecord record, BundleRevision revision, String pkgName,
+        List<BundleCapability> candidates)
+    {
+        List<BundleRequirement> dynamics =
+                Util.getDynamicRequirements(revision.getWiring().getRequirements(null));
+
+        // Loop through the importer's dynamic requirements to determine if
+        // there is a matching one for the package from which we want to
+        // load a class.
+        Map<String, Object> attrs = Collections.singletonMap(
+                BundleRevision.PACKAGE_NAMESPACE, (Object) pkgName);
+        BundleRequirementImpl req = new BundleRequirementImpl(
+                revision,
+                BundleRevision.PACKAGE_NAMESPACE,
+                Collections.EMPTY_MAP,
+                attrs);
+        candidates.addAll(findProvidersInternal(record, req, false, true));
+
+        return matchDynamicRequirement(dynamics, candidates);
+    }
+
+    /**
+     * Finds the first dynamic requirement matching any of the candidates
+     * and removes the candidates not matching it.
+     * @param dynamics The dynamic requirements of the importing revision.
+     * @param candidates The candidates, which are filtered in place.
+     * @return The matching dynamic requirement or <tt>null</tt> if there
+     *         is none, in which case all candidates are removed.
+    **/
+    private static BundleRequirementImpl matchDynamicRequirement(
+        List<BundleRequirement> dynamics, List<BundleCapability> candidates)
+    {
+        // Try to find a dynamic requirement that matches the capabilities.
+        BundleRequirementImpl dynReq = null;
+        for (int dynIdx = 0;
+             (candidates.size() > 0) && (dynReq == null) && (dynIdx < dynamics.size());
+             dynIdx++)
+        {
+            for (Iterator<BundleCapability> itCand = candidates.iterator();
+                 (dynReq == null) && itCand.hasNext(); )
+            {
+                Capability cap = itCand.next();
+                if (CapabilitySet.matches(
+                        cap,
+                        ((BundleRequirementImpl) dynamics.get(dynIdx)).getFilter()))
+                {
+                    dynReq = (BundleRequirementImpl) dynamics.get(dynIdx);
+                }
+            }
+        }
+
+        // If we found a matching dynamic requirement, then filter out
+        // any candidates that do not match it.
+        if (dynReq != null)
+        {
+            for (Iterator<BundleCapability> itCand = candidates.iterator();
+                 itCand.hasNext(); )
+            {
+                Capability cap = itCand.next();
+                if (!CapabilitySet.matches(
+                        cap, dynReq.getFilter()))
+                {
+                    itCand.remove();
+                }
+            }
+        }
+        else
+        {
+            candidates.clear();
+        }
+        return dynReq;
+    }
+
+    /**
+     * Adds the resolved dynamic wire to the wiring of the importing
+     * revision. Must be called while holding the global lock.
+     * @return The provider of the imported package.
+    **/
+    private BundleRevision addDynamicWire(
+        BundleRevision revision, String pkgName, Wire dynamicWire)
+    {
+        // TODO is a rw already a BundleWire?
+        // TODO can we optimize this?
+        if (dynamicWire.getRequirer() instanceof BundleRevision &&
+            dynamicWire.getRequirement() instanceof BundleRequirement &&
+            dynamicWire.getProvider() instanceof BundleRevision &&
+            dynamicWire.getCapability() instanceof BundleCapability)
+        {
+            BundleRevision dwRequirer = (BundleRevision) dynamicWire.getRequirer();
+            BundleRequirement dwRequirement = (BundleRequirement) dynamicWire.getRequirement();
+            BundleRevision dwProvider = (BundleRevision) dynamicWire.getProvider();
+            BundleCapability dwCapability = (BundleCapability) dynamicWire.getCapability();
+
+            BundleWire bw = new BundleWireImpl(
+                dwRequirer,
+                dwRequirement,
+                dwProvider,
+                dwCapability);
+
+            m_felix.getDependencies().addDependent(bw);
+
+            // The new wire only changes the package space of the importer,
+            // so it invalidates nothing but the importer's own state.
+            ((BundleWiringImpl) revision.getWiring()).addDynamicWire(bw);
+            m_resolver.invalidateResolvedPackages(revision);
+
+            m_felix.getLogger().log(
+                Logger.LOG_DEBUG,
+                "DYNAMIC WIRE: " + dynamicWire);
+
+            return ((BundleWiringImpl) revision.getWiring())
+                .getImportedPackageSource(pkgName);
+        }
+        return null;
+    }
+
     private ResolverHookRecord prepareResolverHooks(
         Set<BundleRevision> mandatory, Set<BundleRevision> optional)
         throws BundleException, ResolutionException
@@ -894,6 +1277,19 @@ class StatefulResolver
             return false;
         }
 
+        // Skip the lookup if the package had no provider in the current
+        // resolver state.
+        long version = m_stateVersion.get();
+        Long missing = m_missingPackages.get(pkgName);
+        if (missing != null)
+        {
+            if (missing.longValue() == version)
+            {
+                return false;
+            }
+            m_missingPackages.remove(pkgName, missing);
+        }
+
         // Loop through the importer's dynamic requirements to determine if
         // there is a matching one for the package from which we want to
         // load a class.
@@ -906,44 +1302,18 @@ class StatefulResolver
             attrs);
         List<BundleCapability> candidates = findProviders(req, false);
 
-        // Try to find a dynamic requirement that matches the capabilities.
-        BundleRequirementImpl dynReq = null;
-        for (int dynIdx = 0;
-            (candidates.size() > 0) && (dynReq == null) && (dynIdx < dynamics.size());
-            dynIdx++)
+        // Without a security manager the providers do not depend on the
+        // importer, so remember that there are none.
+        if (candidates.isEmpty())
         {
-            for (Iterator<BundleCapability> itCand = candidates.iterator();
-                (dynReq == null) && itCand.hasNext(); )
+            if ((System.getSecurityManager() == null) && (version == m_stateVersion.get()))
             {
-                Capability cap = itCand.next();
-                if (CapabilitySet.matches(
-                    cap,
-                    ((BundleRequirementImpl) dynamics.get(dynIdx)).getFilter()))
-                {
-                    dynReq = (BundleRequirementImpl) dynamics.get(dynIdx);
-                }
+                m_missingPackages.put(pkgName, Long.valueOf(version));
             }
+            return false;
         }
 
-        // If we found a matching dynamic requirement, then filter out
-        // any candidates that do not match it.
-        if (dynReq != null)
-        {
-            for (Iterator<BundleCapability> itCand = candidates.iterator();
-                itCand.hasNext(); )
-            {
-                Capability cap = itCand.next();
-                if (!CapabilitySet.matches(
-                    cap, dynReq.getFilter()))
-                {
-                    itCand.remove();
-                }
-            }
-        }
-        else
-        {
-            candidates.clear();
-        }
+        matchDynamicRequirement(dynamics, candidates);
 
         return !candidates.isEmpty();
     }
@@ -1148,6 +1518,10 @@ class StatefulResolver
                 }
             }
 
+            // Newly resolved revisions may provide previously missing
+            // dynamic imports, so invalidate cached lookup failures.
+            stateChanged();
+
             // Third pass: Loop through the wire map to mark revision as resolved
             // and update the resolver state.
             for (Entry<BundleRevision, BundleWiringImpl> entry : wirings.entrySet())
@@ -1334,7 +1708,7 @@ class StatefulResolver
                     CapabilitySet capSet = m_capSets.get(cap.getNamespace());
                     if (capSet == null)
                     {
-                        capSet = new CapabilitySet(null, true);
+                        capSet = new CapabilitySet(null, true, true);
                         m_capSets.put(cap.getNamespace(), capSet);
                     }
                     capSet.addCapability(cap);
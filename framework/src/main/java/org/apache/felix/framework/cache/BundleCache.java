@@ -24,6 +24,7 @@ import java.nio.channels.FileLock;
 import java.util.*;
 
 import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.MappedZipFile;
 import org.apache.felix.framework.util.SecureAction;
 import org.apache.felix.framework.util.WeakZipFileFactory;
 import org.osgi.framework.Constants;
@@ -43,6 +44,13 @@ import org.osgi.framework.Constants;
  *       sets an upper limit on how many files the cache will open. The default
  *       value is zero, which means there is no limit.
  *   </li>
+ *   <li><tt>felix.cache.mmap</tt> - Enables or disables memory-mapping of
+ *       bundle JAR files. If enabled, each bundle JAR file is mapped once and
+ *       its entries are served from the mapping, so it does not hold an open
+ *       file or count against <tt>felix.cache.filelimit</tt>. The default
+ *       value is <tt>false</tt>, since on some platforms mapped files cannot
+ *       be deleted until the mapping is garbage collected.
+ *   </li>
  *   <li><tt>org.osgi.framework.storage</tt> - Sets the directory to use as
  *       the bundle cache; by default bundle cache directory is
  *       <tt>felix-cache</tt> in the current working directory. The value
@@ -80,6 +88,7 @@ public class BundleCache
     public static final String CACHE_ROOTDIR_PROP = "felix.cache.rootdir";
     public static final String CACHE_LOCKING_PROP = "felix.cache.locking";
     public static final String CACHE_FILELIMIT_PROP = "felix.cache.filelimit";
+    public static final String CACHE_MMAP_PROP = "felix.cache.mmap";
     // TODO: CACHE - This should eventually be removed along with the code
     //       supporting the old multi-file bundle cache format.
     public static final String CACHE_SINGLEBUNDLEFILE_PROP = "felix.cache.singlebundlefile";
@@ -338,6 +347,38 @@ public class BundleCache
     // Static file-related utility methods.
     //
 
+    /**
+     * Determines whether bundle JAR files should be memory-mapped.
+     * @param configMap the framework configuration.
+     * @return <tt>true</tt> if <tt>felix.cache.mmap</tt> is enabled.
+    **/
+    static boolean isMemoryMapped(Map configMap)
+    {
+        return Boolean.valueOf((String) configMap.get(CACHE_MMAP_PROP)).booleanValue();
+    }
+
+    /**
+     * This method memory-maps the specified JAR file.
+     * @param logger the logger used to report unsupported files.
+     * @param file the JAR file to map.
+     * @return the mapped JAR file or <tt>null</tt> if the file could not be
+     *         mapped, in which case it should be opened as a regular zip file.
+    **/
+    static MappedZipFile openMappedZipFile(Logger logger, File file)
+    {
+        try
+        {
+            return new MappedZipFile(file);
+        }
+        catch (IOException ex)
+        {
+            logger.log(
+                Logger.LOG_DEBUG,
+                "Unable to memory-map JAR file " + file + ": " + ex.getMessage());
+            return null;
+        }
+    }
+
     /**
      * This method copies an input stream to the specified file.
      * @param is the input stream to copy.
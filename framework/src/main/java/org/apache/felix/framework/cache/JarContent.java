@@ -32,6 +32,7 @@ import java.util.Properties;
 import java.util.zip.ZipEntry;
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.MappedZipFile;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.util.WeakZipFileFactory;
 import org.apache.felix.framework.util.WeakZipFileFactory.WeakZipFile;
@@ -50,11 +51,25 @@ public class JarContent implements Content
     private final File m_rootDir;
     private final File m_file;
     private final WeakZipFile m_zipFile;
+    private final MappedZipFile m_mappedFile;
     private final boolean m_isZipFileOwner;
     private Map m_nativeLibMap;
 
     public JarContent(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
         Object revisionLock, File rootDir, File file, WeakZipFile zipFile)
+    {
+        this(logger, configMap, zipFactory, revisionLock, rootDir, file, zipFile, null);
+    }
+
+    /**
+     * Creates a JAR content that reads entries either from the given weak
+     * zip file or from the given memory-mapped zip file. If neither is
+     * given, the content opens and owns its own zip file, which is
+     * memory-mapped if <tt>felix.cache.mmap</tt> is enabled.
+    **/
+    public JarContent(Logger logger, Map configMap, WeakZipFileFactory zipFactory,
+        Object revisionLock, File rootDir, File file, WeakZipFile zipFile,
+        MappedZipFile mappedFile)
     {
         m_logger = logger;
         m_configMap = configMap;
@@ -62,11 +77,16 @@ public class JarContent implements Content
         m_revisionLock = revisionLock;
         m_rootDir = rootDir;
         m_file = file;
-        if (zipFile == null)
+        m_isZipFileOwner = (zipFile == null) && (mappedFile == null);
+        if (m_isZipFileOwner && BundleCache.isMemoryMapped(m_configMap))
+        {
+            mappedFile = BundleCache.openMappedZipFile(m_logger, m_file);
+        }
+        if ((zipFile == null) && (mappedFile == null))
         {
             try
             {
-                m_zipFile = m_zipFactory.create(m_file);
+                zipFile = m_zipFactory.create(m_file);
             }
             catch (IOException ex)
             {
@@ -74,11 +94,8 @@ public class JarContent implements Content
                     "Unable to open JAR file, probably deleted: " + ex.getMessage());
             }
         }
-        else
-        {
-            m_zipFile = zipFile;
-        }
-        m_isZipFileOwner = (zipFile == null);
+        m_zipFile = (mappedFile == null) ? zipFile : null;
+        m_mappedFile = mappedFile;
     }
 
     protected void finalize()
@@ -92,7 +109,14 @@ public class JarContent implements Content
         {
             if (m_isZipFileOwner)
             {
-                m_zipFile.close();
+                if (m_mappedFile != null)
+                {
+                    m_mappedFile.close();
+                }
+                else
+                {
+                    m_zipFile.close();
+                }
             }
         }
         catch (Exception ex)
@@ -107,7 +131,7 @@ public class JarContent implements Content
     {
         try
         {
-            ZipEntry ze = m_zipFile.getEntry(name);
+            ZipEntry ze = getEntry(name);
             return ze != null;
         }
         catch (Exception ex)
@@ -122,7 +146,7 @@ public class JarContent implements Content
     public Enumeration<String> getEntries()
     {
         // Wrap entries enumeration to filter non-matching entries.
-        Enumeration<String> e = new EntriesEnumeration(m_zipFile.entries());
+        Enumeration<String> e = new EntriesEnumeration(entries());
 
         // Spec says to return null if there are no entries.
         return (e.hasMoreElements()) ? e : null;
@@ -136,12 +160,17 @@ public class JarContent implements Content
 
         try
         {
-            ZipEntry ze = m_zipFile.getEntry(name);
+            ZipEntry ze = getEntry(name);
             if (ze == null)
             {
                 return null;
             }
-            is = m_zipFile.getInputStream(ze);
+            // The size of mapped entries is known, so read them directly.
+            if (m_mappedFile != null)
+            {
+                return m_mappedFile.getBytes(ze);
+            }
+            is = getInputStream(ze);
             if (is == null)
             {
                 return null;
@@ -190,12 +219,12 @@ public class JarContent implements Content
 
         try
         {
-            ZipEntry ze = m_zipFile.getEntry(name);
+            ZipEntry ze = getEntry(name);
             if (ze == null)
             {
                 return null;
             }
-            is = m_zipFile.getInputStream(ze);
+            is = getInputStream(ze);
             if (is == null)
             {
                 return null;
@@ -228,7 +257,7 @@ public class JarContent implements Content
         if (entryName.equals(FelixConstants.CLASS_PATH_DOT))
         {
             return new JarContent(m_logger, m_configMap, m_zipFactory, m_revisionLock,
-                m_rootDir, m_file, m_zipFile);
+                m_rootDir, m_file, m_zipFile, m_mappedFile);
         }
 
         // Remove any leading slash.
@@ -245,7 +274,7 @@ public class JarContent implements Content
         // Determine if the entry is an emdedded JAR file or
         // directory in the bundle JAR file. Ignore any entries
         // that do not exist per the spec.
-        ZipEntry ze = m_zipFile.getEntry(entryName);
+        ZipEntry ze = getEntry(entryName);
         if ((ze != null) && ze.isDirectory())
         {
             File extractDir = new File(embedDir, entryName);
@@ -314,7 +343,7 @@ public class JarContent implements Content
 
         // The entry name must refer to a file type, since it is
         // a native library, not a directory.
-        ZipEntry ze = m_zipFile.getEntry(entryName);
+        ZipEntry ze = getEntry(entryName);
         if ((ze != null) && !ze.isDirectory())
         {
             // Extracting the embedded native library file impacts all other
@@ -353,7 +382,7 @@ public class JarContent implements Content
                         try
                         {
                             is = new BufferedInputStream(
-                                m_zipFile.getInputStream(ze),
+                                getInputStream(ze),
                                 BundleCache.BUFSIZE);
                             if (is == null)
                             {
@@ -457,7 +486,7 @@ public class JarContent implements Content
             try
             {
                 // Make sure class path entry is a JAR file.
-                ZipEntry ze = m_zipFile.getEntry(jarPath);
+                ZipEntry ze = getEntry(jarPath);
                 if (ze == null)
                 {
                     return;
@@ -479,7 +508,7 @@ public class JarContent implements Content
                     }
 
                     // Extract embedded JAR into its directory.
-                    is = new BufferedInputStream(m_zipFile.getInputStream(ze), BundleCache.BUFSIZE);
+                    is = new BufferedInputStream(getInputStream(ze), BundleCache.BUFSIZE);
                     if (is == null)
                     {
                         throw new IOException("No input stream: " + jarPath);
@@ -495,6 +524,24 @@ public class JarContent implements Content
         }
     }
 
+    private ZipEntry getEntry(String name)
+    {
+        return (m_mappedFile != null)
+            ? m_mappedFile.getEntry(name) : m_zipFile.getEntry(name);
+    }
+
+    private Enumeration<ZipEntry> entries()
+    {
+        return (m_mappedFile != null)
+            ? m_mappedFile.entries() : m_zipFile.entries();
+    }
+
+    private InputStream getInputStream(ZipEntry ze) throws IOException
+    {
+        return (m_mappedFile != null)
+            ? m_mappedFile.getInputStream(ze) : m_zipFile.getInputStream(ze);
+    }
+
     private static class EntriesEnumeration implements Enumeration<String>
     {
         private final Enumeration m_enumeration;
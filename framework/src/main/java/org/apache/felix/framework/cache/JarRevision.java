@@ -29,6 +29,7 @@ import java.util.Map;
 import java.util.zip.ZipEntry;
 
 import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.util.MappedZipFile;
 import org.apache.felix.framework.util.StringMap;
 import org.apache.felix.framework.util.Util;
 import org.apache.felix.framework.util.WeakZipFileFactory;
@@ -52,6 +53,10 @@ class JarRevision extends BundleArchiveRevision
     private final WeakZipFileFactory m_zipFactory;
     private final File m_bundleFile;
     private final WeakZipFile m_zipFile;
+    // Memory-mapped JAR file shared by all contents of this revision; only
+    // used if memory-mapping is enabled.
+    private MappedZipFile m_mappedFile;
+    private boolean m_isMappingAttempted = false;
 
     public JarRevision(
         Logger logger, Map configMap, WeakZipFileFactory zipFactory,
@@ -107,12 +112,24 @@ class JarRevision extends BundleArchiveRevision
 
     public synchronized Content getContent() throws Exception
     {
+        if (!m_isMappingAttempted && BundleCache.isMemoryMapped(getConfig()))
+        {
+            m_isMappingAttempted = true;
+            m_mappedFile = BundleCache.openMappedZipFile(getLogger(), m_bundleFile);
+        }
         return new JarContent(getLogger(), getConfig(), m_zipFactory,
-            this, getRevisionRootDir(), m_bundleFile, m_zipFile);
+            this, getRevisionRootDir(), m_bundleFile, m_zipFile, m_mappedFile);
     }
 
     protected void close() throws Exception
     {
+        synchronized (this)
+        {
+            if (m_mappedFile != null)
+            {
+                m_mappedFile.close();
+            }
+        }
         m_zipFile.close();
     }
 
@@ -33,7 +33,9 @@ import java.util.Set;
 import java.util.SortedMap;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.felix.framework.util.SecureAction;
 import org.apache.felix.framework.util.StringComparator;
@@ -45,16 +47,26 @@ import org.osgi.resource.Capability;
 
 public class CapabilitySet
 {
-    private final SortedMap<String, Map<Object, Set<BundleCapability>>> m_indices; // Should also be concurrent!
+    // Number of full scans on an attribute after which an index is created
+    // for it, and the maximum number of indices that are created this way.
+    private static final int AUTO_INDEX_THRESHOLD = 32;
+    private static final int AUTO_INDEX_MAX = 8;
+
+    private final SortedMap<String, Index> m_indices;
     private final Set<Capability> m_capSet = Collections.newSetFromMap(new ConcurrentHashMap<Capability, Boolean>());
+    // Counts full scans per attribute name; null if auto-indexing is disabled.
+    private final SortedMap<String, AtomicInteger> m_scanCounts;
+    private int m_autoIndexCount = 0;
+    // Serializes index updates; lookups do not lock.
+    private final Object m_indexLock = new Object();
     private final static SecureAction m_secureAction = new SecureAction();
 
     public void dump()
     {
-        for (Entry<String, Map<Object, Set<BundleCapability>>> entry : m_indices.entrySet())
+        for (Entry<String, Index> entry : m_indices.entrySet())
         {
             boolean header1 = false;
-            for (Entry<Object, Set<BundleCapability>> entry2 : entry.getValue().entrySet())
+            for (Entry<Object, Set<BundleCapability>> entry2 : entry.getValue().entries())
             {
                 boolean header2 = false;
                 for (BundleCapability cap : entry2.getValue())
@@ -79,109 +91,118 @@ public class CapabilitySet
     }
 
     public CapabilitySet(final List<String> indexProps, final boolean caseSensitive)
+    {
+        this(indexProps, caseSensitive, false);
+    }
+
+    /**
+     * Creates a capability set with indices for the given attribute names.
+     * If auto-indexing is enabled, an index is also created for attributes
+     * which are repeatedly queried without an index; this must only be
+     * enabled if the attributes of the added capabilities do not change
+     * while they are part of the set.
+     * @param indexProps The attribute names to index, may be <tt>null</tt>.
+     * @param caseSensitive Whether attribute names are case sensitive.
+     * @param autoIndex Whether frequently queried attributes are indexed.
+    **/
+    public CapabilitySet(
+        final List<String> indexProps, final boolean caseSensitive, final boolean autoIndex)
     {
         m_indices = (caseSensitive)
-            ? new ConcurrentSkipListMap<String, Map<Object, Set<BundleCapability>>>()
-            : new ConcurrentSkipListMap<String, Map<Object, Set<BundleCapability>>>(
-                StringComparator.COMPARATOR);
+            ? new ConcurrentSkipListMap<String, Index>()
+            : new ConcurrentSkipListMap<String, Index>(StringComparator.COMPARATOR);
         for (int i = 0; (indexProps != null) && (i < indexProps.size()); i++)
         {
-            m_indices.put(
-                indexProps.get(i), new ConcurrentHashMap<Object, Set<BundleCapability>>());
+            m_indices.put(indexProps.get(i), new Index());
+        }
+        if (!autoIndex)
+        {
+            m_scanCounts = null;
+        }
+        else
+        {
+            m_scanCounts = (caseSensitive)
+                ? new ConcurrentSkipListMap<String, AtomicInteger>()
+                : new ConcurrentSkipListMap<String, AtomicInteger>(
+                    StringComparator.COMPARATOR);
         }
     }
 
     public void addCapability(final BundleCapability cap)
     {
-        m_capSet.add(cap);
-
-        // Index capability.
-        for (Entry<String, Map<Object, Set<BundleCapability>>> entry : m_indices.entrySet())
+        synchronized (m_indexLock)
         {
-            Object value = cap.getAttributes().get(entry.getKey());
-            if (value != null)
+            m_capSet.add(cap);
+
+            // Index capability.
+            for (Entry<String, Index> entry : m_indices.entrySet())
             {
-                if (value.getClass().isArray())
-                {
-                    value = convertArrayToList(value);
-                }
+                indexCapability(entry.getValue(), cap, entry.getKey());
+            }
+        }
+    }
 
-                ConcurrentMap<Object, Set<BundleCapability>> index =
-                        (ConcurrentMap<Object, Set<BundleCapability>>) entry.getValue();
+    private void indexCapability(Index index, BundleCapability cap, String name)
+    {
+        Object value = cap.getAttributes().get(name);
+        if (value != null)
+        {
+            if (value.getClass().isArray())
+            {
+                value = convertArrayToList(value);
+            }
 
-                if (value instanceof Collection)
-                {
-                    Collection c = (Collection) value;
-                    for (Object o : c)
-                    {
-                        indexCapability(index, cap, o);
-                    }
-                }
-                else
+            if (value instanceof Collection)
+            {
+                Collection c = (Collection) value;
+                for (Object o : c)
                 {
-                    indexCapability(index, cap, value);
+                    index.add(cap, o);
                 }
             }
+            else
+            {
+                index.add(cap, value);
+            }
         }
     }
 
-    private void indexCapability(
-        ConcurrentMap<Object, Set<BundleCapability>> index, BundleCapability cap, Object capValue)
-    {
-        Set<BundleCapability> caps = Collections.newSetFromMap(new ConcurrentHashMap<BundleCapability, Boolean>());
-        Set<BundleCapability> prevval = index.putIfAbsent(capValue, caps);
-        if (prevval != null)
-            caps = prevval;
-        caps.add(cap);
-    }
-
     public void removeCapability(final BundleCapability cap)
     {
-        if (m_capSet.remove(cap))
+        synchronized (m_indexLock)
         {
-            for (Entry<String, Map<Object, Set<BundleCapability>>> entry : m_indices.entrySet())
+            if (m_capSet.remove(cap))
             {
-                Object value = cap.getAttributes().get(entry.getKey());
-                if (value != null)
+                for (Entry<String, Index> entry : m_indices.entrySet())
                 {
-                    if (value.getClass().isArray())
+                    Object value = cap.getAttributes().get(entry.getKey());
+                    if (value != null)
                     {
-                        value = convertArrayToList(value);
-                    }
+                        if (value.getClass().isArray())
+                        {
+                            value = convertArrayToList(value);
+                        }
 
-                    Map<Object, Set<BundleCapability>> index = entry.getValue();
+                        Index index = entry.getValue();
 
-                    if (value instanceof Collection)
-                    {
-                        Collection c = (Collection) value;
-                        for (Object o : c)
+                        if (value instanceof Collection)
                         {
-                            deindexCapability(index, cap, o);
+                            Collection c = (Collection) value;
+                            for (Object o : c)
+                            {
+                                index.remove(cap, o);
+                            }
+                        }
+                        else
+                        {
+                            index.remove(cap, value);
                         }
-                    }
-                    else
-                    {
-                        deindexCapability(index, cap, value);
                     }
                 }
             }
         }
     }
 
-    private void deindexCapability(
-        Map<Object, Set<BundleCapability>> index, BundleCapability cap, Object value)
-    {
-        Set<BundleCapability> caps = index.get(value);
-        if (caps != null)
-        {
-            caps.remove(cap);
-            if (caps.isEmpty())
-            {
-                index.remove(value);
-            }
-        }
-    }
-
     public Set<Capability> match(final SimpleFilter sf, final boolean obeyMandatory)
     {
         final Set<Capability> matches = match(m_capSet, sf);
@@ -200,11 +221,23 @@ public class CapabilitySet
         }
         else if (sf.getOperation() == SimpleFilter.AND)
         {
+            final List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
+
+            // If one of the subfilters can be answered by an index, then use
+            // the smallest such candidate list and evaluate the whole filter
+            // against each candidate, which avoids calculating intermediate
+            // sets for each subfilter.
+            SimpleFilter driver = selectIndexedFilter(sfs);
+            if (driver != null)
+            {
+                m_indices.get(driver.getName()).collect(driver, sf, caps, m_capSet, matches);
+                return matches;
+            }
+
             // Evaluate each subfilter against the remaining capabilities.
             // For AND we calculate the intersection of each subfilter.
             // We can short-circuit the AND operation if there are no
             // remaining capabilities.
-            final List<SimpleFilter> sfs = (List<SimpleFilter>) sf.getValue();
             for (int i = 0; (caps.size() > 0) && (i < sfs.size()); i++)
             {
                 matches = match(caps, sfs.get(i));
@@ -234,21 +267,17 @@ public class CapabilitySet
         }
         else
         {
-            Map<Object, Set<BundleCapability>> index = m_indices.get(sf.getName());
-            if ((sf.getOperation() == SimpleFilter.EQ) && (index != null))
+            Index index = m_indices.get(sf.getName());
+            if ((index != null) && Index.supports(sf.getOperation()))
             {
-                Set<BundleCapability> existingCaps = index.get(sf.getValue());
-                if (existingCaps != null)
-                {
-                    matches.addAll(existingCaps);
-                    if (caps != m_capSet)
-                    {
-                        matches.retainAll(caps);
-                    }
-                }
+                index.collect(sf, sf, caps, m_capSet, matches);
             }
             else
             {
+                if (caps == m_capSet)
+                {
+                    recordScan(sf);
+                }
                 for (Iterator<Capability> it = caps.iterator(); it.hasNext(); )
                 {
                     Capability cap = it.next();
@@ -267,6 +296,284 @@ public class CapabilitySet
         return matches;
     }
 
+    /**
+     * Selects the subfilter of an AND filter with the smallest estimated
+     * number of candidates among those that can be answered by an index.
+     * @param sfs The subfilters of an AND filter.
+     * @return The selected subfilter or <tt>null</tt> if no subfilter
+     *         can be answered by an index.
+    **/
+    private SimpleFilter selectIndexedFilter(List<SimpleFilter> sfs)
+    {
+        SimpleFilter result = null;
+        int resultSize = Integer.MAX_VALUE;
+        SimpleFilter unindexed = null;
+        for (int i = 0; i < sfs.size(); i++)
+        {
+            SimpleFilter sf = sfs.get(i);
+            if ((sf.getName() != null) && Index.supports(sf.getOperation()))
+            {
+                Index index = m_indices.get(sf.getName());
+                if (index != null)
+                {
+                    int size = index.estimate(sf);
+                    if (size < resultSize)
+                    {
+                        result = sf;
+                        resultSize = size;
+                    }
+                }
+                else if (unindexed == null)
+                {
+                    unindexed = sf;
+                }
+            }
+        }
+        if ((result == null) && (unindexed != null))
+        {
+            recordScan(unindexed);
+        }
+        return result;
+    }
+
+    /**
+     * Records that the capabilities were scanned for the attribute of the
+     * given filter and creates an index for the attribute once it has been
+     * scanned often enough, if auto-indexing is enabled.
+     * @param sf The filter whose attribute was scanned.
+    **/
+    private void recordScan(SimpleFilter sf)
+    {
+        if ((m_scanCounts == null) || !Index.supports(sf.getOperation())
+            || (m_autoIndexCount >= AUTO_INDEX_MAX))
+        {
+            return;
+        }
+
+        AtomicInteger count = m_scanCounts.get(sf.getName());
+        if (count == null)
+        {
+            count = new AtomicInteger();
+            AtomicInteger prev =
+                ((ConcurrentMap<String, AtomicInteger>) m_scanCounts).putIfAbsent(
+                    sf.getName(), count);
+            count = (prev != null) ? prev : count;
+        }
+
+        if (count.incrementAndGet() == AUTO_INDEX_THRESHOLD)
+        {
+            synchronized (m_indexLock)
+            {
+                if ((m_autoIndexCount < AUTO_INDEX_MAX)
+                    && !m_indices.containsKey(sf.getName()))
+                {
+                    Index index = new Index();
+                    for (Capability cap : m_capSet)
+                    {
+                        indexCapability(index, (BundleCapability) cap, sf.getName());
+                    }
+                    m_indices.put(sf.getName(), index);
+                    m_autoIndexCount++;
+                }
+            }
+        }
+    }
+
+    /**
+     * An index of the capabilities for a single attribute. String values
+     * are kept in a hash map for equality lookups, version values in a
+     * sorted map so that ranges can be looked up as well, and capabilities
+     * with other values are kept aside and matched by comparison.
+    **/
+    private static final class Index
+    {
+        private final ConcurrentMap<Object, Set<BundleCapability>> m_values =
+            new ConcurrentHashMap<Object, Set<BundleCapability>>();
+        private final ConcurrentNavigableMap<Version, Set<BundleCapability>> m_versions =
+            new ConcurrentSkipListMap<Version, Set<BundleCapability>>();
+        private final ConcurrentMap<Object, Set<BundleCapability>> m_others =
+            new ConcurrentHashMap<Object, Set<BundleCapability>>();
+
+        static boolean supports(int op)
+        {
+            return (op == SimpleFilter.EQ)
+                || (op == SimpleFilter.GTE)
+                || (op == SimpleFilter.LTE);
+        }
+
+        void add(BundleCapability cap, Object value)
+        {
+            add(mapFor(value), cap, value);
+        }
+
+        void remove(BundleCapability cap, Object value)
+        {
+            Map<Object, Set<BundleCapability>> map = mapFor(value);
+            Set<BundleCapability> caps = map.get(value);
+            if (caps != null)
+            {
+                caps.remove(cap);
+                if (caps.isEmpty())
+                {
+                    map.remove(value);
+                }
+            }
+        }
+
+        Iterable<Entry<Object, Set<BundleCapability>>> entries()
+        {
+            List<Entry<Object, Set<BundleCapability>>> entries =
+                new ArrayList<Entry<Object, Set<BundleCapability>>>(m_values.entrySet());
+            entries.addAll((Collection) m_versions.entrySet());
+            entries.addAll(m_others.entrySet());
+            return entries;
+        }
+
+        /**
+         * Returns an upper bound of the number of distinct posting lists
+         * that must be visited to answer the given filter, weighted by
+         * their size for equality lookups.
+        **/
+        int estimate(SimpleFilter sf)
+        {
+            int size = m_others.size();
+            if (sf.getOperation() == SimpleFilter.EQ)
+            {
+                Set<BundleCapability> caps = m_values.get(sf.getValue());
+                size += (caps == null) ? 0 : caps.size();
+                // Version equality is resolved in the sorted map; usually
+                // it is a single entry, unless the value is a range.
+                size += m_versions.isEmpty() ? 0 : 1;
+                return size;
+            }
+            // Ranges may visit every version; prefer equality lookups.
+            return size + m_values.size() + m_versions.size() + 1;
+        }
+
+        /**
+         * Adds all capabilities of this index that match the filter
+         * <tt>check</tt> and are contained in <tt>caps</tt> to <tt>matches</tt>.
+         * Only the posting lists that can match <tt>sf</tt>, which must be
+         * <tt>check</tt> itself or one of its AND subfilters, are visited.
+        **/
+        void collect(SimpleFilter sf, SimpleFilter check,
+            Set<Capability> caps, Set<Capability> all, Set<Capability> matches)
+        {
+            boolean exact = (sf == check);
+            Object rhs = sf.getValue();
+            int op = sf.getOperation();
+
+            if (op == SimpleFilter.EQ)
+            {
+                collect(m_values.get(rhs), exact ? null : check, caps, all, matches);
+            }
+            else
+            {
+                // String values are compared lexicographically.
+                for (Set<BundleCapability> c : m_values.values())
+                {
+                    collect(c, check, caps, all, matches);
+                }
+            }
+
+            if (!m_versions.isEmpty())
+            {
+                Map<Version, Set<BundleCapability>> range = null;
+                try
+                {
+                    String s = ((String) rhs).trim();
+                    if (op == SimpleFilter.EQ)
+                    {
+                        if (s.indexOf(',') >= 0)
+                        {
+                            VersionRange vr = VersionRange.parse(s);
+                            range = (vr.getCeiling() == null)
+                                ? m_versions.tailMap(vr.getFloor(), vr.isFloorInclusive())
+                                : m_versions.subMap(
+                                    vr.getFloor(), vr.isFloorInclusive(),
+                                    vr.getCeiling(), vr.isCeilingInclusive());
+                        }
+                        else
+                        {
+                            Version v = Version.parseVersion(s);
+                            Set<BundleCapability> c = m_versions.get(v);
+                            range = (c == null)
+                                ? Collections.<Version, Set<BundleCapability>>emptyMap()
+                                : Collections.singletonMap(v, c);
+                        }
+                    }
+                    else if (op == SimpleFilter.GTE)
+                    {
+                        range = m_versions.tailMap(Version.parseVersion(s), true);
+                    }
+                    else
+                    {
+                        range = m_versions.headMap(Version.parseVersion(s), true);
+                    }
+                }
+                catch (Exception ex)
+                {
+                    // The value cannot be converted to a version, so no
+                    // version valued capability can match.
+                }
+                if (range != null)
+                {
+                    for (Set<BundleCapability> c : range.values())
+                    {
+                        collect(c, exact ? null : check, caps, all, matches);
+                    }
+                }
+            }
+
+            for (Set<BundleCapability> c : m_others.values())
+            {
+                collect(c, check, caps, all, matches);
+            }
+        }
+
+        private static void collect(Set<BundleCapability> candidates, SimpleFilter check,
+            Set<Capability> caps, Set<Capability> all, Set<Capability> matches)
+        {
+            if (candidates == null)
+            {
+                return;
+            }
+            for (BundleCapability cap : candidates)
+            {
+                if (((caps == all) || caps.contains(cap))
+                    && ((check == null) || matchesInternal(cap, check)))
+                {
+                    matches.add(cap);
+                }
+            }
+        }
+
+        private Map<Object, Set<BundleCapability>> mapFor(Object value)
+        {
+            if (value instanceof String)
+            {
+                return m_values;
+            }
+            else if (value instanceof Version)
+            {
+                return (Map) m_versions;
+            }
+            return m_others;
+        }
+
+        private static void add(
+            Map<Object, Set<BundleCapability>> map, BundleCapability cap, Object value)
+        {
+            ConcurrentMap<Object, Set<BundleCapability>> index =
+                (ConcurrentMap<Object, Set<BundleCapability>>) map;
+            Set<BundleCapability> caps = Collections.newSetFromMap(new ConcurrentHashMap<BundleCapability, Boolean>());
+            Set<BundleCapability> prevval = index.putIfAbsent(value, caps);
+            if (prevval != null)
+                caps = prevval;
+            caps.add(cap);
+        }
+    }
+
     public static boolean matches(Capability cap, SimpleFilter sf)
     {
         return matchesInternal(cap, sf) && matchMandatory(cap, sf);
@@ -340,8 +647,12 @@ public class CapabilitySet
         return caps;
     }
 
-    private static boolean matchMandatory(Capability cap, SimpleFilter sf)
+    static boolean matchMandatory(Capability cap, SimpleFilter sf)
     {
+        if (!((BundleCapabilityImpl) cap).hasMandatoryAttributes())
+        {
+            return true;
+        }
         Map<String, Object> attrs = cap.getAttributes();
         for (Entry<String, Object> entry : attrs.entrySet())
         {
@@ -545,7 +856,7 @@ public class CapabilitySet
         }
     }
 
-    private static boolean compareApproximate(Object lhs, Object rhs)
+    static boolean compareApproximate(Object lhs, Object rhs)
     {
         if (rhs instanceof String)
         {
@@ -560,7 +871,7 @@ public class CapabilitySet
         return lhs.equals(rhs);
     }
 
-    private static String removeWhitespace(String s)
+    static String removeWhitespace(String s)
     {
         StringBuffer sb = new StringBuffer(s.length());
         for (int i = 0; i < s.length(); i++)
@@ -573,7 +884,7 @@ public class CapabilitySet
         return sb.toString();
     }
 
-    private static Object coerceType(Object lhs, String rhsString) throws Exception
+    static Object coerceType(Object lhs, String rhsString) throws Exception
     {
         // If the LHS expects a string, then we can just return
         // the RHS since it is a string.
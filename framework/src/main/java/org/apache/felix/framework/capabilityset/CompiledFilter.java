@@ -0,0 +1,508 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.capabilityset;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.apache.felix.framework.util.VersionRange;
+import org.osgi.framework.Version;
+import org.osgi.resource.Capability;
+
+/**
+ * A {@link SimpleFilter} compiled into a tree of evaluators. It matches
+ * exactly like {@link CapabilitySet#matches(Capability, SimpleFilter)}, but
+ * each comparison caches the right-hand side coerced to the type of the
+ * attribute it was last compared against, and the operands of AND and OR
+ * are evaluated cheapest first.
+**/
+public class CompiledFilter
+{
+    private final SimpleFilter m_filter;
+    private final Node m_root;
+
+    public CompiledFilter(SimpleFilter filter)
+    {
+        m_filter = filter;
+        m_root = compile(filter);
+    }
+
+    public SimpleFilter getFilter()
+    {
+        return m_filter;
+    }
+
+    public boolean matches(Capability cap)
+    {
+        return m_root.matches(cap.getAttributes())
+            && CapabilitySet.matchMandatory(cap, m_filter);
+    }
+
+    private static Node compile(SimpleFilter sf)
+    {
+        switch (sf.getOperation())
+        {
+            case SimpleFilter.MATCH_ALL:
+                return MatchAll.INSTANCE;
+            case SimpleFilter.AND:
+                return new And(compile((List<SimpleFilter>) sf.getValue()));
+            case SimpleFilter.OR:
+                return new Or(compile((List<SimpleFilter>) sf.getValue()));
+            case SimpleFilter.NOT:
+                return new Not(compile((List<SimpleFilter>) sf.getValue()));
+            default:
+                return new Compare(sf);
+        }
+    }
+
+    private static Node[] compile(List<SimpleFilter> sfs)
+    {
+        List<Node> nodes = new ArrayList<Node>(sfs.size());
+        for (SimpleFilter sf : sfs)
+        {
+            nodes.add(compile(sf));
+        }
+        return nodes.toArray(new Node[nodes.size()]);
+    }
+
+    private static abstract class Node
+    {
+        abstract boolean matches(Map<String, Object> attrs);
+
+        // Relative evaluation cost, used to order the operands of AND and OR.
+        abstract int cost();
+    }
+
+    private static final Comparator<Node> COST_ORDER = new Comparator<Node>()
+    {
+        public int compare(Node n1, Node n2)
+        {
+            int c1 = n1.cost();
+            int c2 = n2.cost();
+            return (c1 < c2) ? -1 : ((c1 == c2) ? 0 : 1);
+        }
+    };
+
+    private static int sumCost(Node[] nodes)
+    {
+        int cost = 1;
+        for (Node node : nodes)
+        {
+            cost += node.cost();
+        }
+        return cost;
+    }
+
+    private static class MatchAll extends Node
+    {
+        static final MatchAll INSTANCE = new MatchAll();
+
+        boolean matches(Map<String, Object> attrs)
+        {
+            return true;
+        }
+
+        int cost()
+        {
+            return 0;
+        }
+    }
+
+    private static class And extends Node
+    {
+        private final Node[] m_nodes;
+        private final int m_cost;
+
+        And(Node[] nodes)
+        {
+            // The sort is stable, so operands of equal cost keep their order.
+            Arrays.sort(nodes, COST_ORDER);
+            m_nodes = nodes;
+            m_cost = sumCost(nodes);
+        }
+
+        boolean matches(Map<String, Object> attrs)
+        {
+            for (Node node : m_nodes)
+            {
+                if (!node.matches(attrs))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int cost()
+        {
+            return m_cost;
+        }
+    }
+
+    private static class Or extends Node
+    {
+        private final Node[] m_nodes;
+        private final int m_cost;
+
+        Or(Node[] nodes)
+        {
+            Arrays.sort(nodes, COST_ORDER);
+            m_nodes = nodes;
+            m_cost = sumCost(nodes);
+        }
+
+        boolean matches(Map<String, Object> attrs)
+        {
+            for (Node node : m_nodes)
+            {
+                if (node.matches(attrs))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        int cost()
+        {
+            return m_cost;
+        }
+    }
+
+    private static class Not extends Node
+    {
+        private final Node[] m_nodes;
+        private final int m_cost;
+
+        Not(Node[] nodes)
+        {
+            m_nodes = nodes;
+            m_cost = sumCost(nodes);
+        }
+
+        boolean matches(Map<String, Object> attrs)
+        {
+            // Like CapabilitySet, the result is the negation of the
+            // last operand.
+            boolean matched = true;
+            for (Node node : m_nodes)
+            {
+                matched = !node.matches(attrs);
+            }
+            return matched;
+        }
+
+        int cost()
+        {
+            return m_cost;
+        }
+    }
+
+    /**
+     * A single attribute comparison. This mirrors the comparison done by
+     * CapabilitySet, except that coercing the filter value to the type of
+     * the attribute is only done when the attribute type changes.
+    **/
+    private static class Compare extends Node
+    {
+        // Marks a filter value that cannot be coerced to the attribute type.
+        private static final Object FAILED = new Object();
+
+        private final String m_name;
+        private final int m_op;
+        private final String m_value;
+        private final List<String> m_substrings;
+        private final String m_approx;
+        private volatile Coercion m_coercion;
+
+        Compare(SimpleFilter sf)
+        {
+            m_name = sf.getName();
+            m_op = sf.getOperation();
+            if (m_op == SimpleFilter.SUBSTRING)
+            {
+                m_value = null;
+                m_substrings = (List<String>) sf.getValue();
+                m_approx = null;
+            }
+            else
+            {
+                m_value = (String) sf.getValue();
+                m_substrings = null;
+                m_approx = ((m_op == SimpleFilter.APPROX) && (m_value != null))
+                    ? CapabilitySet.removeWhitespace(m_value) : null;
+            }
+        }
+
+        boolean matches(Map<String, Object> attrs)
+        {
+            Object lhs = attrs.get(m_name);
+            return (lhs != null) && compare(lhs);
+        }
+
+        int cost()
+        {
+            switch (m_op)
+            {
+                case SimpleFilter.PRESENT:
+                    return 1;
+                case SimpleFilter.EQ:
+                    return 2;
+                case SimpleFilter.LTE:
+                case SimpleFilter.GTE:
+                    return 3;
+                case SimpleFilter.APPROX:
+                    return 4;
+                default:
+                    return 5;
+            }
+        }
+
+        private boolean compare(Object lhs)
+        {
+            if (lhs == null)
+            {
+                return false;
+            }
+
+            // If this is a PRESENT operation, then just return true immediately
+            // since we wouldn't be here if the attribute wasn't present.
+            if (m_op == SimpleFilter.PRESENT)
+            {
+                return true;
+            }
+
+            // Strings are by far the most common attribute type and need
+            // no coercion at all.
+            if (lhs instanceof String)
+            {
+                String s = (String) lhs;
+                switch (m_op)
+                {
+                    case SimpleFilter.EQ :
+                        return s.equals(m_value);
+                    case SimpleFilter.GTE :
+                        return s.compareTo(m_value) >= 0;
+                    case SimpleFilter.LTE :
+                        return s.compareTo(m_value) <= 0;
+                    case SimpleFilter.APPROX :
+                        return equalsApproximate(s, m_approx);
+                    case SimpleFilter.SUBSTRING :
+                        return SimpleFilter.compareSubstring(m_substrings, s);
+                    default:
+                        throw new RuntimeException(
+                            "Unknown comparison operator: " + m_op);
+                }
+            }
+
+            if ((lhs instanceof Version) && (m_op == SimpleFilter.EQ))
+            {
+                Object rhs = coerce(lhs);
+                if (rhs instanceof VersionRange)
+                {
+                    return ((VersionRange) rhs).isInRange((Version) lhs);
+                }
+            }
+
+            if (lhs instanceof Comparable)
+            {
+                // Spec says SUBSTRING is false for all types other than string.
+                if (m_op == SimpleFilter.SUBSTRING)
+                {
+                    return false;
+                }
+
+                Object rhs = coerce(lhs);
+                if (rhs == FAILED)
+                {
+                    return false;
+                }
+
+                try
+                {
+                    switch (m_op)
+                    {
+                        case SimpleFilter.EQ :
+                            return (((Comparable) lhs).compareTo(rhs) == 0);
+                        case SimpleFilter.GTE :
+                            return (((Comparable) lhs).compareTo(rhs) >= 0);
+                        case SimpleFilter.LTE :
+                            return (((Comparable) lhs).compareTo(rhs) <= 0);
+                        case SimpleFilter.APPROX :
+                            return CapabilitySet.compareApproximate(lhs, rhs);
+                    }
+                }
+                catch (Exception ex)
+                {
+                    return false;
+                }
+                throw new RuntimeException(
+                    "Unknown comparison operator: " + m_op);
+            }
+            // Booleans do not implement comparable, so special case them.
+            else if (lhs instanceof Boolean)
+            {
+                Object rhs = coerce(lhs);
+                if (rhs == FAILED)
+                {
+                    return false;
+                }
+
+                switch (m_op)
+                {
+                    case SimpleFilter.EQ :
+                    case SimpleFilter.GTE :
+                    case SimpleFilter.LTE :
+                    case SimpleFilter.APPROX :
+                        return (lhs.equals(rhs));
+                    default:
+                        throw new RuntimeException(
+                            "Unknown comparison operator: " + m_op);
+                }
+            }
+
+            // If the LHS is an array or a collection, then compare each
+            // element until a match is found.
+            if (lhs instanceof Object[])
+            {
+                for (Object o : (Object[]) lhs)
+                {
+                    if (compare(o))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            else if (lhs.getClass().isArray())
+            {
+                for (int i = 0, len = Array.getLength(lhs); i < len; i++)
+                {
+                    if (compare(Array.get(lhs, i)))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            else if (lhs instanceof Collection)
+            {
+                for (Iterator iter = ((Collection) lhs).iterator(); iter.hasNext(); )
+                {
+                    if (compare(iter.next()))
+                    {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            // Spec says SUBSTRING is false for all types other than string.
+            if (m_op == SimpleFilter.SUBSTRING)
+            {
+                return false;
+            }
+
+            // Since we cannot identify the LHS type, then we can only perform
+            // equality comparison.
+            Object rhs = coerce(lhs);
+            return (rhs != FAILED) && lhs.equals(rhs);
+        }
+
+        /**
+         * Returns the filter value coerced to the type of the given
+         * attribute value, or FAILED if it cannot be coerced. The result
+         * for the last attribute type is cached, since the type of an
+         * attribute rarely changes between evaluations.
+        **/
+        private Object coerce(Object lhs)
+        {
+            Class<?> clazz = lhs.getClass();
+            Coercion coercion = m_coercion;
+            if ((coercion == null) || (coercion.m_class != clazz))
+            {
+                Object rhs;
+                try
+                {
+                    rhs = CapabilitySet.coerceType(lhs, m_value);
+                }
+                catch (Exception ex)
+                {
+                    rhs = FAILED;
+                }
+                coercion = new Coercion(clazz, rhs);
+                m_coercion = coercion;
+            }
+            return coercion.m_value;
+        }
+    }
+
+    private static class Coercion
+    {
+        final Class<?> m_class;
+        final Object m_value;
+
+        Coercion(Class<?> clazz, Object value)
+        {
+            m_class = clazz;
+            m_value = value;
+        }
+    }
+
+    /**
+     * Compares the given string, ignoring case and whitespace, to a value
+     * from which whitespace has already been removed. Equivalent to
+     * removing the whitespace of both and using String.equalsIgnoreCase(),
+     * without creating intermediate strings.
+    **/
+    static boolean equalsApproximate(String s, String stripped)
+    {
+        int j = 0;
+        int len = stripped.length();
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c1 = s.charAt(i);
+            if (Character.isWhitespace(c1))
+            {
+                continue;
+            }
+            if (j == len)
+            {
+                return false;
+            }
+            char c2 = stripped.charAt(j++);
+            if (c1 != c2)
+            {
+                char u1 = Character.toUpperCase(c1);
+                char u2 = Character.toUpperCase(c2);
+                if ((u1 != u2)
+                    && (Character.toLowerCase(u1) != Character.toLowerCase(u2)))
+                {
+                    return false;
+                }
+            }
+        }
+        return j == len;
+    }
+}
@@ -31,7 +31,14 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.felix.framework.Logger;
 import org.apache.felix.framework.ServiceRegistry;
@@ -65,6 +72,9 @@ public class EventDispatcher
         m_syncBndlListeners = Collections.EMPTY_MAP;
     private Map<BundleContext, List<ListenerInfo>>
         m_svcListeners = Collections.EMPTY_MAP;
+    // Index of the current service listeners by objectClass; it is
+    // rebuilt on demand whenever the service listeners change.
+    private volatile ServiceListenerIndex m_svcListenerIndex = null;
 
     // A single thread is used to deliver events for all dispatchers.
     private static Thread m_thread = null;
@@ -79,14 +89,54 @@ public class EventDispatcher
 
     private static final SecureAction m_secureAction = new SecureAction();
 
+    // Alternatively, each dispatcher may use its own threads, where the
+    // asynchronous listeners of a bundle are always served by the same
+    // shard to preserve the event order per listener.
+    private final int m_shardCount;
+    private volatile Shard[] m_shards = null;
+    private final ConcurrentMap<BundleContext, DeliveryStatistics> m_statistics =
+        new ConcurrentHashMap<BundleContext, DeliveryStatistics>();
+
     public EventDispatcher(Logger logger, ServiceRegistry registry)
+    {
+        this(logger, registry, 0);
+    }
+
+    /**
+     * Creates an event dispatcher that delivers asynchronous events using
+     * the specified number of threads, which are owned by this dispatcher.
+     * If the number of shards is zero, then the thread shared by all
+     * dispatchers is used instead.
+     * @param logger the logger used to report listener errors.
+     * @param registry the service registry.
+     * @param shards the number of asynchronous delivery threads.
+    **/
+    public EventDispatcher(Logger logger, ServiceRegistry registry, int shards)
     {
         m_logger = logger;
         m_registry = registry;
+        m_shardCount = Math.max(0, shards);
     }
 
     public void startDispatching()
     {
+        if (m_shardCount > 0)
+        {
+            synchronized (m_statistics)
+            {
+                if (m_shards == null)
+                {
+                    Shard[] shards = new Shard[m_shardCount];
+                    for (int i = 0; i < shards.length; i++)
+                    {
+                        shards[i] = new Shard("FelixDispatchQueue-" + (i + 1));
+                    }
+                    m_shards = shards;
+                }
+            }
+            return;
+        }
+
         synchronized (m_threadLock)
         {
             // Start event dispatching thread if necessary.
@@ -126,6 +176,29 @@ public class EventDispatcher
 
     public void stopDispatching()
     {
+        if (m_shardCount > 0)
+        {
+            Shard[] shards;
+            synchronized (m_statistics)
+            {
+                shards = m_shards;
+                m_shards = null;
+            }
+            if (shards != null)
+            {
+                // Pending events are still delivered before the threads exit.
+                for (Shard shard : shards)
+                {
+                    shard.stop();
+                }
+                for (Shard shard : shards)
+                {
+                    shard.join();
+                }
+            }
+            return;
+        }
+
         synchronized (m_threadLock)
         {
             // Return if already dead or stopping.
@@ -360,6 +433,12 @@ public class EventDispatcher
             {
                 m_svcListeners = listeners;
             }
+
+            // Drop the statistics with the last listener of the bundle.
+            if (!hasListeners(bc))
+            {
+                m_statistics.remove(bc);
+            }
         }
 
         // Return information about the listener; this is null
@@ -388,9 +467,61 @@ public class EventDispatcher
 
             // Remove all service listeners associated with the specified bundle.
             m_svcListeners = removeListenerInfos(m_svcListeners, bc);
+
+            m_statistics.remove(bc);
         }
     }
 
+    /**
+     * Returns whether the given bundle context has any listener registered.
+     * The caller must hold the lock of this dispatcher.
+    **/
+    private boolean hasListeners(BundleContext bc)
+    {
+        return m_fwkListeners.containsKey(bc)
+            || m_bndlListeners.containsKey(bc)
+            || m_syncBndlListeners.containsKey(bc)
+            || m_svcListeners.containsKey(bc);
+    }
+
+    /**
+     * Returns the number of asynchronous events that are waiting to be
+     * delivered. Unless this dispatcher uses its own shards, this includes
+     * the events of all dispatchers sharing the dispatch thread.
+     * @return the number of queued asynchronous events.
+    **/
+    public int getQueueDepth()
+    {
+        if (m_shardCount > 0)
+        {
+            int depth = 0;
+            Shard[] shards = m_shards;
+            if (shards != null)
+            {
+                for (Shard shard : shards)
+                {
+                    depth += shard.m_depth.get();
+                }
+            }
+            return depth;
+        }
+        synchronized (m_requestList)
+        {
+            return m_requestList.size();
+        }
+    }
+
+    /**
+     * Returns the asynchronous delivery statistics of the listening
+     * bundles. Statistics are only collected if this dispatcher uses its
+     * own shards.
+     * @return the delivery statistics per listening bundle.
+    **/
+    public Collection<DeliveryStatistics> getDeliveryStatistics()
+    {
+        return Collections.unmodifiableCollection(m_statistics.values());
+    }
+
     public Filter updateListener(BundleContext bc, Class clazz, EventListener l, Filter filter)
     {
         if (clazz == ServiceListener.class)
@@ -539,6 +670,16 @@ public class EventDispatcher
             listeners = m_svcListeners;
         }
 
+        // Only consider listeners whose filters may match the service's
+        // objectClass.
+        ServiceListenerIndex index = m_svcListenerIndex;
+        if ((index == null) || !index.isIndexOf(listeners))
+        {
+            index = new ServiceListenerIndex(listeners, index);
+            m_svcListenerIndex = index;
+        }
+        listeners = index.select(event.getServiceReference());
+
         // Use service registry hooks to filter target listeners.
         listeners = filterListenersUsingHooks(event, felix, listeners);
 
@@ -770,6 +911,12 @@ public class EventDispatcher
         Map<BundleContext, List<ListenerInfo>> listeners,
         EventObject event)
     {
+        if (dispatcher.m_shardCount > 0)
+        {
+            dispatcher.fireEventToShards(type, listeners, event);
+            return;
+        }
+
         //TODO: should possibly check this within thread lock, seems to be ok though without
         // If dispatch thread is stopped, then ignore dispatch request.
         if (m_stopping || m_thread == null)
@@ -807,6 +954,69 @@ public class EventDispatcher
         }
     }
 
+    private void fireEventToShards(
+        int type, Map<BundleContext, List<ListenerInfo>> listeners,
+        EventObject event)
+    {
+        // If the shards are stopped, then ignore dispatch request.
+        Shard[] shards = m_shards;
+        if ((shards == null) || listeners.isEmpty())
+        {
+            return;
+        }
+
+        // Queue the listeners of each bundle separately, so that a slow
+        // listener only delays the listeners sharing its shard.
+        long now = System.nanoTime();
+        for (Entry<BundleContext, List<ListenerInfo>> entry : listeners.entrySet())
+        {
+            if (entry.getValue().isEmpty())
+            {
+                continue;
+            }
+            Request req = new Request();
+            req.m_dispatcher = this;
+            req.m_type = type;
+            req.m_listeners = Collections.singletonMap(entry.getKey(), entry.getValue());
+            req.m_event = event;
+            req.m_timestamp = now;
+            long id = entry.getValue().get(0).getBundle().getBundleId();
+            int idx = (int) (id % shards.length);
+            shards[idx].enqueue(req);
+        }
+    }
+
+    private void deliverFromShard(Request req)
+    {
+        long start = System.nanoTime();
+        fireEventImmediately(
+            req.m_dispatcher, req.m_type, req.m_listeners, req.m_event, null);
+        long end = System.nanoTime();
+
+        Entry<BundleContext, List<ListenerInfo>> entry =
+            req.m_listeners.entrySet().iterator().next();
+        DeliveryStatistics stats = m_statistics.get(entry.getKey());
+        if (stats == null)
+        {
+            // Only keep statistics for bundles which still have listeners,
+            // since they are removed together with the last listener.
+            synchronized (this)
+            {
+                if (!hasListeners(entry.getKey()))
+                {
+                    return;
+                }
+                stats = m_statistics.get(entry.getKey());
+                if (stats == null)
+                {
+                    stats = new DeliveryStatistics(entry.getValue().get(0).getBundle());
+                    m_statistics.put(entry.getKey(), stats);
+                }
+            }
+        }
+        stats.record(start - req.m_timestamp, end - start);
+    }
+
     private static void fireEventImmediately(
         EventDispatcher dispatcher, int type,
         Map<BundleContext, List<ListenerInfo>> listeners,
@@ -1171,5 +1381,170 @@ public class EventDispatcher
         public int m_type = -1;
         public Map<BundleContext, List<ListenerInfo>> m_listeners = null;
         public EventObject m_event = null;
+        public long m_timestamp = 0;
+    }
+
+    /**
+     * A single asynchronous delivery thread of a sharded dispatcher. Events
+     * are queued on a non-blocking queue and the thread is parked while
+     * the queue is empty.
+    **/
+    private class Shard implements Runnable
+    {
+        private final Queue<Request> m_queue = new ConcurrentLinkedQueue<Request>();
+        private final AtomicInteger m_depth = new AtomicInteger();
+        private final Thread m_thread;
+        private volatile boolean m_stopping = false;
+
+        Shard(String name)
+        {
+            m_thread = new Thread(this, name);
+            m_thread.setDaemon(true);
+            m_thread.start();
+        }
+
+        void enqueue(Request req)
+        {
+            m_depth.incrementAndGet();
+            m_queue.offer(req);
+            LockSupport.unpark(m_thread);
+        }
+
+        void stop()
+        {
+            m_stopping = true;
+            LockSupport.unpark(m_thread);
+        }
+
+        void join()
+        {
+            // Do not wait for ourselves if stopped from a listener.
+            if (Thread.currentThread() == m_thread)
+            {
+                return;
+            }
+            boolean interrupted = false;
+            while (m_thread.isAlive())
+            {
+                try
+                {
+                    m_thread.join();
+                }
+                catch (InterruptedException ex)
+                {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        public void run()
+        {
+            while (true)
+            {
+                Request req = m_queue.poll();
+                if (req == null)
+                {
+                    // Exit once all pending events are delivered.
+                    if (m_stopping)
+                    {
+                        return;
+                    }
+                    LockSupport.park(this);
+                    continue;
+                }
+                m_depth.decrementAndGet();
+                // NOTE: We don't catch any exceptions here, because
+                // the invoked method shields us from exceptions by
+                // catching Throwables when it invokes callbacks.
+                deliverFromShard(req);
+            }
+        }
+    }
+
+    /**
+     * Asynchronous delivery statistics of the listeners of a bundle.
+    **/
+    public static class DeliveryStatistics
+    {
+        private final Bundle m_bundle;
+        private final AtomicLong m_count = new AtomicLong();
+        private final AtomicLong m_queueTime = new AtomicLong();
+        private final AtomicLong m_deliveryTime = new AtomicLong();
+        private final AtomicLong m_maxDeliveryTime = new AtomicLong();
+
+        DeliveryStatistics(Bundle bundle)
+        {
+            m_bundle = bundle;
+        }
+
+        void record(long queueTime, long deliveryTime)
+        {
+            m_count.incrementAndGet();
+            m_queueTime.addAndGet(queueTime);
+            m_deliveryTime.addAndGet(deliveryTime);
+            long max = m_maxDeliveryTime.get();
+            while ((deliveryTime > max)
+                && !m_maxDeliveryTime.compareAndSet(max, deliveryTime))
+            {
+                max = m_maxDeliveryTime.get();
+            }
+        }
+
+        /**
+         * Returns the bundle owning the listeners.
+         * @return the listening bundle.
+        **/
+        public Bundle getBundle()
+        {
+            return m_bundle;
+        }
+
+        /**
+         * Returns the number of events delivered to the listeners.
+         * @return the number of delivered events.
+        **/
+        public long getCount()
+        {
+            return m_count.get();
+        }
+
+        /**
+         * Returns the total time events waited in the queue.
+         * @return the total queue time in nanoseconds.
+        **/
+        public long getQueueTime()
+        {
+            return m_queueTime.get();
+        }
+
+        /**
+         * Returns the total time spent in the listeners.
+         * @return the total delivery time in nanoseconds.
+        **/
+        public long getDeliveryTime()
+        {
+            return m_deliveryTime.get();
+        }
+
+        /**
+         * Returns the longest time spent delivering a single event.
+         * @return the maximum delivery time in nanoseconds.
+        **/
+        public long getMaxDeliveryTime()
+        {
+            return m_maxDeliveryTime.get();
+        }
+
+        public String toString()
+        {
+            return m_bundle + ": count=" + getCount()
+                + ", queueTime=" + getQueueTime() + "ns"
+                + ", deliveryTime=" + getDeliveryTime() + "ns"
+                + ", maxDeliveryTime=" + getMaxDeliveryTime() + "ns";
+        }
     }
 }
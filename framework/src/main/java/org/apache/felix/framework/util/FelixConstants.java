@@ -43,10 +43,18 @@ public interface FelixConstants extends org.osgi.framework.Constants
 
     // Miscellaneous framework configuration property names.
     String FRAMEWORK_BUNDLECACHE_IMPL = "felix.bundlecache.impl";
+    String RESOLUTION_CACHE_PROP = "felix.cache.resolution";
+    String MANIFEST_CACHE_PROP = "felix.cache.manifest";
+    String RESOLVER_PARALLEL_PERMUTATIONS_PROP = "felix.resolver.permutations.parallel";
+    String RESOLVER_TIMEOUT_PROP = "felix.resolver.timeout";
+    String RESOLVER_MAX_PERMUTATIONS_PROP = "felix.resolver.permutations.max";
+    String RESOLVER_JMX_PROP = "felix.resolver.jmx";
     String LOG_LEVEL_PROP = "felix.log.level";
     String LOG_LOGGER_PROP = "felix.log.logger";
     String SYSTEMBUNDLE_ACTIVATORS_PROP = "felix.systembundle.activators";
     String BUNDLE_STARTLEVEL_PROP = "felix.startlevel.bundle";
+    String STARTLEVEL_PARALLEL_PROP = "felix.startlevel.parallel";
+    String EVENT_DISPATCHER_SHARDS_PROP = "felix.eventdispatcher.shards";
     String SERVICE_URLHANDLERS_PROP = "felix.service.urlhandlers";
     String IMPLICIT_BOOT_DELEGATION_PROP = "felix.bootdelegation.implicit";
     String BOOT_CLASSLOADERS_PROP = "felix.bootdelegation.classloaders";
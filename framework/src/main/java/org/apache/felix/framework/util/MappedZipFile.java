@@ -0,0 +1,552 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.NoSuchElementException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * This class provides read access to a zip file by memory-mapping it once
+ * and parsing its central directory into a compact index. Entry names and
+ * other meta-data are only kept in the mapped file; the index itself only
+ * holds the hash code and central directory offset of each entry. Stored
+ * entries are served directly from the mapping and deflated entries are
+ * inflated from it, so the file handle can be closed as soon as the file
+ * is mapped and no longer counts against any open file limit.
+ * <p>
+ * The API mirrors the subset of <tt>ZipFile</tt> that is used by the
+ * bundle cache. Zip64 archives, encrypted entries, and files larger
+ * than 2GB are not supported and result in an <tt>IOException</tt>
+ * when the file is opened, so callers can fall back to <tt>ZipFile</tt>.
+ * </p>
+ */
+public class MappedZipFile
+{
+    private static final SecureAction m_secureAction = new SecureAction();
+
+    private static final int LOCSIG = 0x04034b50;
+    private static final int CENSIG = 0x02014b50;
+    private static final int ENDSIG = 0x06054b50;
+    private static final int LOCHDR = 30;
+    private static final int CENHDR = 46;
+    private static final int ENDHDR = 22;
+    private static final int MAX_COMMENT = 0xFFFF;
+    private static final int ZIP64_MAGIC = 0xFFFFFFFF;
+    private static final int BUFSIZE = 8192;
+
+    private final File m_file;
+    // Sorted hash codes of the entry names and the central directory
+    // offsets of the corresponding entries.
+    private final int[] m_hashes;
+    private final int[] m_offsets;
+    private final int m_cenStart;
+    private final int m_cenEnd;
+    private volatile ByteBuffer m_buffer;
+
+    /**
+     * Maps the specified zip file and parses its central directory.
+     * @param file the target zip file.
+     * @throws IOException if the file could not be mapped or is not a
+     *         supported zip file.
+     */
+    public MappedZipFile(File file) throws IOException
+    {
+        m_file = file;
+
+        FileInputStream fis = m_secureAction.getFileInputStream(file);
+        ByteBuffer buffer;
+        try
+        {
+            FileChannel channel = fis.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+            {
+                throw new ZipException("File too large to map: " + file);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        finally
+        {
+            fis.close();
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+        int end = findEnd(buffer);
+        m_cenStart = buffer.getInt(end + 16);
+        int cenSize = buffer.getInt(end + 12);
+        if ((m_cenStart == ZIP64_MAGIC) || (cenSize == ZIP64_MAGIC)
+            || (m_cenStart < 0) || (cenSize < 0) || (m_cenStart + cenSize > end))
+        {
+            throw new ZipException("Unsupported central directory: " + file);
+        }
+        m_cenEnd = m_cenStart + cenSize;
+
+        // Index the central directory by packing the hash code of each
+        // entry name with the offset of its header, so a single sort
+        // orders both.
+        long[] index = new long[64];
+        int count = 0;
+        int pos = m_cenStart;
+        while (pos < m_cenEnd)
+        {
+            if ((pos + CENHDR > m_cenEnd) || (buffer.getInt(pos) != CENSIG))
+            {
+                throw new ZipException("Invalid central directory header: " + file);
+            }
+            if (((buffer.getShort(pos + 8) & 1) != 0)
+                || (buffer.getInt(pos + 20) == ZIP64_MAGIC)
+                || (buffer.getInt(pos + 24) == ZIP64_MAGIC)
+                || (buffer.getInt(pos + 42) == ZIP64_MAGIC))
+            {
+                throw new ZipException("Unsupported zip entry: " + file);
+            }
+            if (count == index.length)
+            {
+                long[] tmp = new long[count * 2];
+                System.arraycopy(index, 0, tmp, 0, count);
+                index = tmp;
+            }
+            index[count++] = ((long) getName(buffer, pos).hashCode() << 32) | pos;
+            pos += CENHDR + (buffer.getShort(pos + 28) & 0xFFFF)
+                + (buffer.getShort(pos + 30) & 0xFFFF)
+                + (buffer.getShort(pos + 32) & 0xFFFF);
+        }
+        Arrays.sort(index, 0, count);
+        m_hashes = new int[count];
+        m_offsets = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            m_hashes[i] = (int) (index[i] >> 32);
+            m_offsets[i] = (int) index[i];
+        }
+
+        m_buffer = buffer;
+    }
+
+    /**
+     * Returns the specified entry from the zip file. Like <tt>ZipFile</tt>,
+     * a directory entry is also found if the name lacks the trailing slash.
+     * @param name the name of the entry to return.
+     * @return the zip entry associated with the specified name or null
+     *         if it does not exist.
+     */
+    public ZipEntry getEntry(String name)
+    {
+        ByteBuffer buffer = getBuffer();
+        int pos = findEntry(buffer, name);
+        if ((pos < 0) && !name.endsWith("/"))
+        {
+            pos = findEntry(buffer, name + '/');
+        }
+        return (pos < 0) ? null : createEntry(buffer, pos);
+    }
+
+    /**
+     * Returns an enumeration of zip entries from the zip file in central
+     * directory order.
+     * @return an enumeration of zip entries.
+     */
+    public Enumeration<ZipEntry> entries()
+    {
+        final ByteBuffer buffer = getBuffer();
+        return new Enumeration<ZipEntry>()
+        {
+            private int m_pos = m_cenStart;
+
+            public boolean hasMoreElements()
+            {
+                return m_pos < m_cenEnd;
+            }
+
+            public ZipEntry nextElement()
+            {
+                if (m_pos >= m_cenEnd)
+                {
+                    throw new NoSuchElementException();
+                }
+                MappedEntry entry = createEntry(buffer, m_pos);
+                m_pos += CENHDR + (buffer.getShort(m_pos + 28) & 0xFFFF)
+                    + (buffer.getShort(m_pos + 30) & 0xFFFF)
+                    + (buffer.getShort(m_pos + 32) & 0xFFFF);
+                return entry;
+            }
+        };
+    }
+
+    /**
+     * Returns an input stream for the specified zip entry. Stored entries
+     * are read directly from the mapping.
+     * @param ze the zip entry for which to get an input stream.
+     * @return an input stream for the entry.
+     * @throws IOException if the entry is corrupt or was not created by
+     *         this zip file.
+     */
+    public InputStream getInputStream(ZipEntry ze) throws IOException
+    {
+        ByteBuffer data = getData(ze);
+        if (ze.getMethod() == ZipEntry.STORED)
+        {
+            return new ByteBufferInputStream(data);
+        }
+        return new MappedInflaterInputStream(
+            new ByteBufferInputStream(data),
+            Math.max(1, Math.min(BUFSIZE, data.remaining())));
+    }
+
+    /**
+     * Returns the uncompressed content of the specified zip entry. Since
+     * the size is known from the central directory, the returned array is
+     * allocated once with the exact size.
+     * @param ze the zip entry to read.
+     * @return the content of the entry.
+     * @throws IOException if the entry is corrupt or was not created by
+     *         this zip file.
+     */
+    public byte[] getBytes(ZipEntry ze) throws IOException
+    {
+        ByteBuffer data = getData(ze);
+        byte[] bytes = new byte[(int) ze.getSize()];
+        if (ze.getMethod() == ZipEntry.STORED)
+        {
+            if (data.remaining() != bytes.length)
+            {
+                throw new ZipException("Invalid stored entry size: " + ze.getName());
+            }
+            data.get(bytes);
+            return bytes;
+        }
+
+        // The inflater needs an extra dummy byte when there is no zlib
+        // header, so allocate it together with the compressed data.
+        byte[] input = new byte[data.remaining() + 1];
+        data.get(input, 0, input.length - 1);
+        Inflater inf = new Inflater(true);
+        try
+        {
+            inf.setInput(input);
+            int off = 0;
+            while ((off < bytes.length) && !inf.finished())
+            {
+                int n = inf.inflate(bytes, off, bytes.length - off);
+                if ((n == 0) && (inf.needsInput() || inf.needsDictionary()))
+                {
+                    break;
+                }
+                off += n;
+            }
+            if (off != bytes.length)
+            {
+                throw new ZipException("Invalid deflated entry size: " + ze.getName());
+            }
+            return bytes;
+        }
+        catch (DataFormatException ex)
+        {
+            throw new ZipException("Invalid deflated entry: " + ze.getName());
+        }
+        finally
+        {
+            inf.end();
+        }
+    }
+
+    /**
+     * Returns the mapped file.
+     * @return the mapped file.
+     */
+    public File getFile()
+    {
+        return m_file;
+    }
+
+    /**
+     * Closes the zip file. The mapping itself is released by the garbage
+     * collector once it is no longer referenced, including by any streams
+     * that are still open.
+     */
+    public void close()
+    {
+        m_buffer = null;
+    }
+
+    private ByteBuffer getBuffer()
+    {
+        ByteBuffer buffer = m_buffer;
+        if (buffer == null)
+        {
+            throw new IllegalStateException("Zip file is closed: " + m_file);
+        }
+        return buffer;
+    }
+
+    private int findEntry(ByteBuffer buffer, String name)
+    {
+        int hash = name.hashCode();
+        int i = Arrays.binarySearch(m_hashes, hash);
+        if (i < 0)
+        {
+            return -1;
+        }
+        // Multiple names may share a hash code, so check all of them.
+        while ((i > 0) && (m_hashes[i - 1] == hash))
+        {
+            i--;
+        }
+        byte[] bytes = null;
+        for (; (i < m_hashes.length) && (m_hashes[i] == hash); i++)
+        {
+            if (bytes == null)
+            {
+                bytes = toUtf8(name);
+            }
+            int pos = m_offsets[i];
+            int len = buffer.getShort(pos + 28) & 0xFFFF;
+            if (len == bytes.length)
+            {
+                int j = 0;
+                while ((j < len) && (buffer.get(pos + CENHDR + j) == bytes[j]))
+                {
+                    j++;
+                }
+                if (j == len)
+                {
+                    return pos;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private ByteBuffer getData(ZipEntry ze) throws IOException
+    {
+        if (!(ze instanceof MappedEntry) || (((MappedEntry) ze).m_owner != this))
+        {
+            throw new IllegalArgumentException("Entry not from this zip file: " + ze);
+        }
+        ByteBuffer buffer = getBuffer();
+        int loc = ((MappedEntry) ze).m_locOffset;
+        if ((loc < 0) || (loc + LOCHDR > buffer.limit()) || (buffer.getInt(loc) != LOCSIG))
+        {
+            throw new ZipException("Invalid local header: " + ze.getName());
+        }
+        // The local extra field may differ from the central directory one.
+        int start = loc + LOCHDR + (buffer.getShort(loc + 26) & 0xFFFF)
+            + (buffer.getShort(loc + 28) & 0xFFFF);
+        long len = (ze.getMethod() == ZipEntry.STORED)
+            ? ze.getSize() : ze.getCompressedSize();
+        if ((len < 0) || (start + len > buffer.limit()))
+        {
+            throw new ZipException("Invalid entry size: " + ze.getName());
+        }
+        if ((ze.getMethod() != ZipEntry.STORED) && (ze.getMethod() != ZipEntry.DEFLATED))
+        {
+            throw new ZipException("Unsupported compression method: " + ze.getName());
+        }
+        ByteBuffer data = buffer.duplicate();
+        data.limit(start + (int) len);
+        data.position(start);
+        return data;
+    }
+
+    private MappedEntry createEntry(ByteBuffer buffer, int pos)
+    {
+        MappedEntry entry = new MappedEntry(this, getName(buffer, pos),
+            buffer.getInt(pos + 42));
+        entry.setMethod(buffer.getShort(pos + 10) & 0xFFFF);
+        entry.setCrc(buffer.getInt(pos + 16) & 0xFFFFFFFFL);
+        entry.setCompressedSize(buffer.getInt(pos + 20) & 0xFFFFFFFFL);
+        entry.setSize(buffer.getInt(pos + 24) & 0xFFFFFFFFL);
+        return entry;
+    }
+
+    private static String getName(ByteBuffer buffer, int pos)
+    {
+        byte[] name = new byte[buffer.getShort(pos + 28) & 0xFFFF];
+        for (int i = 0; i < name.length; i++)
+        {
+            name[i] = buffer.get(pos + CENHDR + i);
+        }
+        try
+        {
+            return new String(name, "UTF-8");
+        }
+        catch (IOException ex)
+        {
+            // UTF-8 is always supported.
+            throw new IllegalStateException(ex.getMessage());
+        }
+    }
+
+    private static byte[] toUtf8(String name)
+    {
+        try
+        {
+            return name.getBytes("UTF-8");
+        }
+        catch (IOException ex)
+        {
+            // UTF-8 is always supported.
+            throw new IllegalStateException(ex.getMessage());
+        }
+    }
+
+    private static int findEnd(ByteBuffer buffer) throws ZipException
+    {
+        // The end of central directory record is at the end of the file,
+        // but may be followed by a variable length comment.
+        int min = Math.max(0, buffer.limit() - ENDHDR - MAX_COMMENT);
+        for (int pos = buffer.limit() - ENDHDR; pos >= min; pos--)
+        {
+            if (buffer.getInt(pos) == ENDSIG)
+            {
+                return pos;
+            }
+        }
+        throw new ZipException("No end of central directory found.");
+    }
+
+    private static class MappedEntry extends ZipEntry
+    {
+        private final MappedZipFile m_owner;
+        private final int m_locOffset;
+
+        MappedEntry(MappedZipFile owner, String name, int locOffset)
+        {
+            super(name);
+            m_owner = owner;
+            m_locOffset = locOffset;
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream
+    {
+        private final ByteBuffer m_data;
+        private int m_mark;
+
+        ByteBufferInputStream(ByteBuffer data)
+        {
+            m_data = data;
+            m_mark = data.position();
+        }
+
+        public int available()
+        {
+            return m_data.remaining();
+        }
+
+        public int read()
+        {
+            return m_data.hasRemaining() ? (m_data.get() & 0xFF) : -1;
+        }
+
+        public int read(byte[] bytes, int off, int len)
+        {
+            if (len == 0)
+            {
+                return 0;
+            }
+            if (!m_data.hasRemaining())
+            {
+                return -1;
+            }
+            len = Math.min(len, m_data.remaining());
+            m_data.get(bytes, off, len);
+            return len;
+        }
+
+        public long skip(long n)
+        {
+            int skipped = (int) Math.max(0, Math.min(n, m_data.remaining()));
+            m_data.position(m_data.position() + skipped);
+            return skipped;
+        }
+
+        public boolean markSupported()
+        {
+            return true;
+        }
+
+        public void mark(int readLimit)
+        {
+            m_mark = m_data.position();
+        }
+
+        public void reset()
+        {
+            m_data.position(m_mark);
+        }
+    }
+
+    private static class MappedInflaterInputStream extends InflaterInputStream
+    {
+        private boolean m_eof = false;
+        private boolean m_closed = false;
+
+        MappedInflaterInputStream(InputStream in, int size)
+        {
+            super(in, new Inflater(true), size);
+        }
+
+        protected void fill() throws IOException
+        {
+            if (m_eof)
+            {
+                throw new ZipException("Unexpected end of deflated entry.");
+            }
+            len = in.read(buf, 0, buf.length);
+            if (len == -1)
+            {
+                // Supply the dummy byte the inflater needs without a
+                // zlib header.
+                buf[0] = 0;
+                len = 1;
+                m_eof = true;
+            }
+            inf.setInput(buf, 0, len);
+        }
+
+        public int available() throws IOException
+        {
+            return (m_closed || inf.finished()) ? 0 : super.available();
+        }
+
+        public void close() throws IOException
+        {
+            if (!m_closed)
+            {
+                m_closed = true;
+                inf.end();
+                super.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.UnfilteredServiceListener;
+
+/**
+ * An immutable index of a snapshot of service listeners by the
+ * <tt>objectClass</tt> values their filters require. It is used to select
+ * the listeners whose filters can possibly match a service event without
+ * evaluating every filter. Listeners whose filters do not restrict the
+ * <tt>objectClass</tt>, as well as unfiltered service listeners, are kept
+ * in a residual list and are always selected. Since the <tt>objectClass</tt>
+ * of a service never changes, this is also safe for modified events.
+ */
+class ServiceListenerIndex
+{
+    // Marks listeners that cannot be indexed.
+    private static final String[] RESIDUAL = new String[0];
+
+    private final Map<BundleContext, List<ListenerInfo>> m_source;
+    // All listeners and their bundle contexts in the order of the snapshot.
+    private final ListenerInfo[] m_infos;
+    private final BundleContext[] m_contexts;
+    // The listener positions per required objectClass value.
+    private final Map<String, int[]> m_byClass;
+    private final int[] m_residual;
+    // The objectClass values extracted per listener, which are reused
+    // when the index is rebuilt for a new snapshot.
+    private final Map<ListenerInfo, String[]> m_classes;
+
+    /**
+     * Creates an index for the specified listener snapshot.
+     * @param listeners the service listeners to index.
+     * @param previous the index of a previous snapshot whose extracted
+     *        <tt>objectClass</tt> values may be reused, or <tt>null</tt>.
+    **/
+    ServiceListenerIndex(
+        Map<BundleContext, List<ListenerInfo>> listeners, ServiceListenerIndex previous)
+    {
+        m_source = listeners;
+        m_classes = new IdentityHashMap<ListenerInfo, String[]>();
+
+        List<ListenerInfo> infos = new ArrayList<ListenerInfo>();
+        List<BundleContext> contexts = new ArrayList<BundleContext>();
+        Map<String, List<Integer>> byClass = new HashMap<String, List<Integer>>();
+        List<Integer> residual = new ArrayList<Integer>();
+        for (Entry<BundleContext, List<ListenerInfo>> entry : listeners.entrySet())
+        {
+            for (ListenerInfo info : entry.getValue())
+            {
+                String[] classes = (previous != null) ? previous.m_classes.get(info) : null;
+                if (classes == null)
+                {
+                    classes = extractObjectClasses(info);
+                }
+                m_classes.put(info, classes);
+
+                Integer pos = Integer.valueOf(infos.size());
+                infos.add(info);
+                contexts.add(entry.getKey());
+                if (classes == RESIDUAL)
+                {
+                    residual.add(pos);
+                }
+                else
+                {
+                    for (String cls : classes)
+                    {
+                        List<Integer> positions = byClass.get(cls);
+                        if (positions == null)
+                        {
+                            positions = new ArrayList<Integer>();
+                            byClass.put(cls, positions);
+                        }
+                        positions.add(pos);
+                    }
+                }
+            }
+        }
+
+        m_infos = infos.toArray(new ListenerInfo[infos.size()]);
+        m_contexts = contexts.toArray(new BundleContext[contexts.size()]);
+        m_byClass = new HashMap<String, int[]>(byClass.size() * 4 / 3 + 1);
+        for (Entry<String, List<Integer>> entry : byClass.entrySet())
+        {
+            m_byClass.put(entry.getKey(), toArray(entry.getValue()));
+        }
+        m_residual = toArray(residual);
+    }
+
+    /**
+     * Determines whether this index was created for the specified snapshot.
+     * @param listeners a listener snapshot.
+     * @return <tt>true</tt> if the index is for the snapshot.
+    **/
+    boolean isIndexOf(Map<BundleContext, List<ListenerInfo>> listeners)
+    {
+        return m_source == listeners;
+    }
+
+    /**
+     * Selects the listeners whose filters may match the specified service,
+     * grouped by bundle context in snapshot order.
+     * @param ref the service reference of the event.
+     * @return the candidate listeners.
+    **/
+    Map<BundleContext, List<ListenerInfo>> select(ServiceReference ref)
+    {
+        Object value = ref.getProperty(Constants.OBJECTCLASS);
+        if (!(value instanceof String[]) || (m_residual.length == m_infos.length))
+        {
+            return m_source;
+        }
+
+        // Collect the positions of the candidates; a listener may be
+        // indexed by several of the service's classes.
+        String[] classes = (String[]) value;
+        int[] selected = m_residual;
+        int count = m_residual.length;
+        boolean copied = false;
+        for (String cls : classes)
+        {
+            int[] positions = m_byClass.get(cls);
+            if (positions != null)
+            {
+                if (!copied)
+                {
+                    selected = Arrays.copyOf(selected, count + positions.length);
+                    copied = true;
+                }
+                else if (count + positions.length > selected.length)
+                {
+                    selected = Arrays.copyOf(
+                        selected, Math.max(selected.length * 2, count + positions.length));
+                }
+                System.arraycopy(positions, 0, selected, count, positions.length);
+                count += positions.length;
+            }
+        }
+        if (count == 0)
+        {
+            return Collections.emptyMap();
+        }
+        if (copied)
+        {
+            Arrays.sort(selected, 0, count);
+        }
+
+        Map<BundleContext, List<ListenerInfo>> result =
+            new LinkedHashMap<BundleContext, List<ListenerInfo>>();
+        int last = -1;
+        for (int i = 0; i < count; i++)
+        {
+            int pos = selected[i];
+            if (pos == last)
+            {
+                continue;
+            }
+            last = pos;
+            List<ListenerInfo> list = result.get(m_contexts[pos]);
+            if (list == null)
+            {
+                list = new ArrayList<ListenerInfo>(1);
+                result.put(m_contexts[pos], list);
+            }
+            list.add(m_infos[pos]);
+        }
+        return result;
+    }
+
+    private static String[] extractObjectClasses(ListenerInfo info)
+    {
+        if ((info.getParsedFilter() == null)
+            || (info.getListener() instanceof UnfilteredServiceListener))
+        {
+            return RESIDUAL;
+        }
+        try
+        {
+            Set<String> classes =
+                extractObjectClasses(SimpleFilter.parse(info.getFilter()));
+            return (classes == null) ? RESIDUAL : classes.toArray(new String[classes.size()]);
+        }
+        catch (Exception ex)
+        {
+            return RESIDUAL;
+        }
+    }
+
+    /**
+     * Returns the <tt>objectClass</tt> values of which a service must have
+     * at least one to match the filter, or <tt>null</tt> if the filter does
+     * not restrict the <tt>objectClass</tt>.
+    **/
+    private static Set<String> extractObjectClasses(SimpleFilter sf)
+    {
+        switch (sf.getOperation())
+        {
+            case SimpleFilter.EQ:
+                if (Constants.OBJECTCLASS.equalsIgnoreCase(sf.getName())
+                    && (sf.getValue() instanceof String))
+                {
+                    return Collections.singleton((String) sf.getValue());
+                }
+                return null;
+            case SimpleFilter.AND:
+                // Any restricting operand restricts the whole filter, so use
+                // the most selective one.
+                Set<String> result = null;
+                for (Object o : (List) sf.getValue())
+                {
+                    Set<String> classes = extractObjectClasses((SimpleFilter) o);
+                    if ((classes != null) && ((result == null) || (classes.size() < result.size())))
+                    {
+                        result = classes;
+                    }
+                }
+                return result;
+            case SimpleFilter.OR:
+                // All operands must be restricted.
+                Set<String> union = new HashSet<String>();
+                for (Object o : (List) sf.getValue())
+                {
+                    Set<String> classes = extractObjectClasses((SimpleFilter) o);
+                    if (classes == null)
+                    {
+                        return null;
+                    }
+                    union.addAll(classes);
+                }
+                return union;
+            default:
+                return null;
+        }
+    }
+
+    private static int[] toArray(List<Integer> list)
+    {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++)
+        {
+            array[i] = list.get(i).intValue();
+        }
+        return array;
+    }
+}
@@ -18,32 +18,359 @@
  */
 package org.apache.felix.framework.util;
 
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
- * Simple utility class that creates a map for string-based keys.
- * This map can be set to use case-sensitive or case-insensitive
- * comparison when searching for the key.  Any keys put into this
- * map will be converted to a <tt>String</tt> using the
- * <tt>toString()</tt> method, since it is only intended to
- * compare strings.
+ * Simple utility class that creates a map for string-based keys, which
+ * are compared case-insensitively using the same rules as
+ * {@link StringComparator}. Any keys put into this map will be converted
+ * to a <tt>String</tt> using the <tt>toString()</tt> method, since it is
+ * only intended to compare strings.
+ * <p>
+ * Entries are kept in insertion order in parallel arrays together with
+ * the hash of their case-folded key, which are indexed by an open
+ * addressing hash table. This keeps the many small header and attribute
+ * maps of the framework compact and makes lookups constant time. Removing
+ * an entry compacts the arrays, which is linear in the size of the map.
  **/
-public class StringMap extends TreeMap<String, Object>
+public class StringMap extends AbstractMap<String, Object>
 {
+    private static final int MIN_CAPACITY = 4;
+
+    private String[] m_keys;
+    private Object[] m_values;
+    private int[] m_hashes;
+    // Index of each entry plus one by folded key hash, zero for free slots.
+    private int[] m_table;
+    private int m_size;
+    private int m_modCount;
+    private Set<Map.Entry<String, Object>> m_entrySet;
 
     public StringMap()
     {
-        super(StringComparator.COMPARATOR);
+        this(MIN_CAPACITY);
     }
 
     public StringMap(Map<?, ?> map)
     {
-        this();
+        this(map.size());
         for (Map.Entry<?, ?> e : map.entrySet())
         {
             put(e.getKey().toString(), e.getValue());
         }
     }
 
+    private StringMap(int capacity)
+    {
+        allocate(Math.max(MIN_CAPACITY, capacity));
+    }
+
+    @Override
+    public int size()
+    {
+        return m_size;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return m_size == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key)
+    {
+        int idx = indexOf(key);
+        return (idx >= 0) ? m_values[idx] : null;
+    }
+
+    @Override
+    public Object put(String key, Object value)
+    {
+        int hash = hash(key);
+        int idx = indexOf(key, hash);
+        if (idx >= 0)
+        {
+            Object old = m_values[idx];
+            m_values[idx] = value;
+            return old;
+        }
+        if (m_size == m_keys.length)
+        {
+            resize(m_size * 2);
+        }
+        m_keys[m_size] = key;
+        m_values[m_size] = value;
+        m_hashes[m_size] = hash;
+        insert(hash, m_size);
+        m_size++;
+        m_modCount++;
+        return null;
+    }
+
+    @Override
+    public Object remove(Object key)
+    {
+        int idx = indexOf(key);
+        if (idx < 0)
+        {
+            return null;
+        }
+        Object old = m_values[idx];
+        removeAt(idx);
+        return old;
+    }
+
+    @Override
+    public void clear()
+    {
+        if (m_size > 0)
+        {
+            allocate(MIN_CAPACITY);
+            m_modCount++;
+        }
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet()
+    {
+        if (m_entrySet == null)
+        {
+            m_entrySet = new EntrySet();
+        }
+        return m_entrySet;
+    }
+
+    private void allocate(int capacity)
+    {
+        m_keys = new String[capacity];
+        m_values = new Object[capacity];
+        m_hashes = new int[capacity];
+        m_table = new int[tableSize(capacity)];
+        m_size = 0;
+    }
+
+    private void resize(int capacity)
+    {
+        String[] keys = new String[capacity];
+        Object[] values = new Object[capacity];
+        int[] hashes = new int[capacity];
+        System.arraycopy(m_keys, 0, keys, 0, m_size);
+        System.arraycopy(m_values, 0, values, 0, m_size);
+        System.arraycopy(m_hashes, 0, hashes, 0, m_size);
+        m_keys = keys;
+        m_values = values;
+        m_hashes = hashes;
+        rebuildTable();
+    }
+
+    private void rebuildTable()
+    {
+        int size = tableSize(m_keys.length);
+        if ((m_table == null) || (m_table.length != size))
+        {
+            m_table = new int[size];
+        }
+        else
+        {
+            Arrays.fill(m_table, 0);
+        }
+        for (int i = 0; i < m_size; i++)
+        {
+            insert(m_hashes[i], i);
+        }
+    }
+
+    // Keeps the load factor of the table at or below one half.
+    private static int tableSize(int capacity)
+    {
+        int size = MIN_CAPACITY * 2;
+        while (size < capacity * 2)
+        {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    private void insert(int hash, int idx)
+    {
+        int mask = m_table.length - 1;
+        int slot = hash & mask;
+        while (m_table[slot] != 0)
+        {
+            slot = (slot + 1) & mask;
+        }
+        m_table[slot] = idx + 1;
+    }
+
+    private int indexOf(Object key)
+    {
+        if (!(key instanceof String))
+        {
+            return -1;
+        }
+        return indexOf((String) key, hash((String) key));
+    }
+
+    private int indexOf(String key, int hash)
+    {
+        int mask = m_table.length - 1;
+        int slot = hash & mask;
+        int entry;
+        while ((entry = m_table[slot]) != 0)
+        {
+            int idx = entry - 1;
+            if ((m_hashes[idx] == hash) && equalsIgnoreCase(m_keys[idx], key))
+            {
+                return idx;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void removeAt(int idx)
+    {
+        int moved = m_size - idx - 1;
+        if (moved > 0)
+        {
+            System.arraycopy(m_keys, idx + 1, m_keys, idx, moved);
+            System.arraycopy(m_values, idx + 1, m_values, idx, moved);
+            System.arraycopy(m_hashes, idx + 1, m_hashes, idx, moved);
+        }
+        m_size--;
+        m_keys[m_size] = null;
+        m_values[m_size] = null;
+        rebuildTable();
+        m_modCount++;
+    }
+
+    /**
+     * Returns the hash of the key folded to lower case, which is the same
+     * for all keys that are equal according to {@link StringComparator}.
+     */
+    private static int hash(String key)
+    {
+        int h = 0;
+        for (int i = 0, n = key.length(); i < n; i++)
+        {
+            h = 31 * h + fold(key.charAt(i));
+        }
+        // Spread the higher bits, since the table is indexed by the lower.
+        return h ^ (h >>> 16);
+    }
+
+    private static char fold(char c)
+    {
+        if (c <= 128)
+        {
+            return ((c >= 'A') && (c <= 'Z')) ? (char) (c + 'a' - 'A') : c;
+        }
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    private static boolean equalsIgnoreCase(String s1, String s2)
+    {
+        return s1.equals(s2) || ((s1.length() == s2.length())
+            && (StringComparator.COMPARATOR.compare(s1, s2) == 0));
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<String, Object>>
+    {
+        @Override
+        public int size()
+        {
+            return m_size;
+        }
+
+        @Override
+        public void clear()
+        {
+            StringMap.this.clear();
+        }
+
+        @Override
+        public Iterator<Map.Entry<String, Object>> iterator()
+        {
+            return new EntryIterator();
+        }
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, Object>>
+    {
+        private int m_next = 0;
+        private int m_last = -1;
+        private int m_expectedModCount = m_modCount;
+
+        public boolean hasNext()
+        {
+            return m_next < m_size;
+        }
+
+        public Map.Entry<String, Object> next()
+        {
+            if (m_expectedModCount != m_modCount)
+            {
+                throw new ConcurrentModificationException();
+            }
+            if (m_next >= m_size)
+            {
+                throw new NoSuchElementException();
+            }
+            m_last = m_next++;
+            return new Entry(m_last);
+        }
+
+        public void remove()
+        {
+            if (m_last < 0)
+            {
+                throw new IllegalStateException();
+            }
+            if (m_expectedModCount != m_modCount)
+            {
+                throw new ConcurrentModificationException();
+            }
+            removeAt(m_last);
+            m_next = m_last;
+            m_last = -1;
+            m_expectedModCount = m_modCount;
+        }
+    }
+
+    private class Entry extends AbstractMap.SimpleEntry<String, Object>
+    {
+        private final int m_idx;
+        private final int m_expectedModCount = m_modCount;
+
+        Entry(int idx)
+        {
+            super(m_keys[idx], m_values[idx]);
+            m_idx = idx;
+        }
+
+        @Override
+        public Object setValue(Object value)
+        {
+            if (m_expectedModCount != m_modCount)
+            {
+                throw new ConcurrentModificationException();
+            }
+            m_values[m_idx] = value;
+            return super.setValue(value);
+        }
+    }
 }
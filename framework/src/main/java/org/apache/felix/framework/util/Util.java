@@ -648,6 +648,36 @@ public class Util
         return val;
     }
 
+    /**
+     * Parses the number of threads to use for a task, as configured by a
+     * property whose value is either <tt>true</tt> for one thread per
+     * available processor or a number of threads.
+     * @param value the property value or <tt>null</tt>.
+     * @param defaultValue the number of threads if the value is missing or
+     *        not a number.
+     * @return the number of threads, which is not negative.
+    **/
+    public static int getThreadCount(String value, int defaultValue)
+    {
+        if (value == null)
+        {
+            return defaultValue;
+        }
+        value = value.trim();
+        if (Boolean.valueOf(value).booleanValue())
+        {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        try
+        {
+            return Math.max(0, Integer.parseInt(value));
+        }
+        catch (NumberFormatException ex)
+        {
+            return defaultValue;
+        }
+    }
+
     /**
      * Returns true if the specified bundle revision is a singleton
      * (i.e., directive singleton:=true in Bundle-SymbolicName).
@@ -0,0 +1,417 @@
+/* 
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util.manifestparser;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+import org.apache.felix.framework.Logger;
+import org.apache.felix.framework.capabilityset.SimpleFilter;
+import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.util.VersionRange;
+import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.apache.felix.framework.wiring.BundleRequirementImpl;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+import org.osgi.framework.wiring.BundleRevision;
+
+/**
+ * Stores the capabilities and requirements parsed from a bundle manifest in
+ * a compact binary form, so they do not need to be parsed again when the
+ * revision is created on the next framework start. The cached metadata is
+ * only used if it was stored for exactly the same manifest headers, which
+ * are identified by a digest together with the framework version, since a
+ * different framework may parse the same headers differently. Strings are
+ * written once and referenced by index afterwards, since package names and
+ * directives repeat a lot in the uses directives and filters.
+**/
+public class ManifestCache
+{
+    public static final String FILE_NAME = "manifest.cache";
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte LONG = 2;
+    private static final byte DOUBLE = 3;
+    private static final byte VERSION = 4;
+    private static final byte VERSION_RANGE = 5;
+    private static final byte LIST = 6;
+    private static final byte FILTER = 7;
+
+    private ManifestCache()
+    {
+    }
+
+    /**
+     * Reads the parsed manifest of the given revision from the given stream.
+     * @param logger The logger of the framework.
+     * @param configMap The framework configuration.
+     * @param owner The revision the capabilities and requirements belong to.
+     * @param headerMap The manifest headers of the revision.
+     * @param is The stream to read the cached metadata from.
+     * @return The parsed manifest or <tt>null</tt> if the cached metadata
+     *         was stored for different manifest headers or by a different
+     *         framework version.
+     * @throws IOException If the cached metadata cannot be read.
+     * @throws BundleException If the manifest headers are invalid.
+    **/
+    public static ManifestParser read(Logger logger, Map configMap,
+        BundleRevision owner, Map headerMap, InputStream is)
+        throws IOException, BundleException
+    {
+        DataInputStream in = new DataInputStream(is);
+        if (in.readInt() != FORMAT_VERSION)
+        {
+            return null;
+        }
+        byte[] digest = new byte[in.readUnsignedByte()];
+        in.readFully(digest);
+        if (!Arrays.equals(digest, digest(configMap, headerMap)))
+        {
+            return null;
+        }
+
+        Reader reader = new Reader(in);
+        String symbolicName = reader.readString();
+        Version version = (Version) reader.readValue();
+
+        int count = in.readInt();
+        List<BundleCapability> caps = new ArrayList<BundleCapability>(count);
+        for (int i = 0; i < count; i++)
+        {
+            String namespace = reader.readString();
+            Map<String, String> dirs = reader.readDirectives();
+            Map<String, Object> attrs = reader.readAttributes();
+            caps.add(new BundleCapabilityImpl(owner, namespace, dirs, attrs));
+        }
+
+        count = in.readInt();
+        List<BundleRequirement> reqs = new ArrayList<BundleRequirement>(count);
+        for (int i = 0; i < count; i++)
+        {
+            String namespace = reader.readString();
+            Map<String, String> dirs = reader.readDirectives();
+            Map<String, Object> attrs = reader.readAttributes();
+            SimpleFilter filter = (SimpleFilter) reader.readValue();
+            reqs.add(new BundleRequirementImpl(owner, namespace, dirs, attrs, filter));
+        }
+
+        return new ManifestParser(
+            logger, configMap, headerMap, symbolicName, version, caps, reqs);
+    }
+
+    /**
+     * Writes the parsed manifest to the given stream.
+     * @param mp The parsed manifest.
+     * @param configMap The framework configuration.
+     * @param headerMap The manifest headers that were parsed.
+     * @param os The stream to write the metadata to.
+     * @throws IOException If the metadata cannot be written or contains
+     *         values that cannot be cached.
+    **/
+    public static void write(
+        ManifestParser mp, Map configMap, Map headerMap, OutputStream os)
+        throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(os);
+        out.writeInt(FORMAT_VERSION);
+        byte[] digest = digest(configMap, headerMap);
+        out.writeByte(digest.length);
+        out.write(digest);
+
+        Writer writer = new Writer(out);
+        writer.writeString(mp.getSymbolicName());
+        writer.writeValue(mp.getBundleVersion());
+
+        List<BundleCapability> caps = mp.getCapabilities();
+        out.writeInt(caps.size());
+        for (BundleCapability cap : caps)
+        {
+            writer.writeString(cap.getNamespace());
+            writer.writeMap(cap.getDirectives());
+            writer.writeMap(cap.getAttributes());
+        }
+
+        List<BundleRequirement> reqs = mp.getRequirements();
+        out.writeInt(reqs.size());
+        for (BundleRequirement req : reqs)
+        {
+            writer.writeString(req.getNamespace());
+            writer.writeMap(req.getDirectives());
+            writer.writeMap(req.getAttributes());
+            writer.writeValue(((BundleRequirementImpl) req).getFilter());
+        }
+        out.flush();
+    }
+
+    /**
+     * Calculates the digest identifying the given manifest headers as parsed
+     * by the framework version of the given configuration.
+     * @param configMap The framework configuration.
+     * @param headerMap The manifest headers.
+     * @return The digest of the headers.
+     * @throws IOException If the digest cannot be calculated.
+    **/
+    public static byte[] digest(Map configMap, Map headerMap) throws IOException
+    {
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            Object version = (configMap != null)
+                ? configMap.get(FelixConstants.FELIX_VERSION_PROPERTY) : null;
+            md.update(String.valueOf(version).getBytes("UTF-8"));
+            md.update((byte) 0);
+            // Sort the headers, since the order of the header map is not
+            // necessarily the order of the manifest.
+            Map<String, Object> sorted = new TreeMap<String, Object>();
+            for (Object o : headerMap.entrySet())
+            {
+                Entry entry = (Entry) o;
+                sorted.put(entry.getKey().toString().toLowerCase(Locale.ENGLISH), entry.getValue());
+            }
+            for (Entry<String, Object> entry : sorted.entrySet())
+            {
+                md.update(entry.getKey().getBytes("UTF-8"));
+                md.update((byte) 0);
+                md.update(String.valueOf(entry.getValue()).getBytes("UTF-8"));
+                md.update((byte) 0);
+            }
+            return md.digest();
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IOException(ex.getMessage());
+        }
+    }
+
+    private static class Writer
+    {
+        private final DataOutputStream m_out;
+        private final Map<String, Integer> m_strings = new HashMap<String, Integer>();
+
+        Writer(DataOutputStream out)
+        {
+            m_out = out;
+        }
+
+        void writeString(String s) throws IOException
+        {
+            if (s == null)
+            {
+                m_out.writeInt(-1);
+                return;
+            }
+            Integer index = m_strings.get(s);
+            if (index != null)
+            {
+                m_out.writeInt(index.intValue());
+                return;
+            }
+            m_strings.put(s, m_strings.size());
+            // Directives such as uses can be longer than writeUTF() allows.
+            byte[] bytes = s.getBytes("UTF-8");
+            m_out.writeInt(-2);
+            m_out.writeInt(bytes.length);
+            m_out.write(bytes);
+        }
+
+        void writeMap(Map<String, ?> map) throws IOException
+        {
+            m_out.writeInt(map.size());
+            for (Entry<String, ?> entry : map.entrySet())
+            {
+                writeString(entry.getKey());
+                writeValue(entry.getValue());
+            }
+        }
+
+        void writeValue(Object value) throws IOException
+        {
+            if (value == null)
+            {
+                m_out.writeByte(NULL);
+            }
+            else if (value instanceof String)
+            {
+                m_out.writeByte(STRING);
+                writeString((String) value);
+            }
+            else if (value instanceof Long)
+            {
+                m_out.writeByte(LONG);
+                m_out.writeLong(((Long) value).longValue());
+            }
+            else if (value instanceof Double)
+            {
+                m_out.writeByte(DOUBLE);
+                m_out.writeDouble(((Double) value).doubleValue());
+            }
+            else if (value instanceof Version)
+            {
+                m_out.writeByte(VERSION);
+                writeString(value.toString());
+            }
+            else if (value instanceof VersionRange)
+            {
+                VersionRange vr = (VersionRange) value;
+                m_out.writeByte(VERSION_RANGE);
+                writeValue(vr.getFloor());
+                m_out.writeBoolean(vr.isFloorInclusive());
+                writeValue(vr.getCeiling());
+                m_out.writeBoolean(vr.isCeilingInclusive());
+            }
+            else if (value instanceof List)
+            {
+                List list = (List) value;
+                m_out.writeByte(LIST);
+                m_out.writeInt(list.size());
+                for (Object o : list)
+                {
+                    writeValue(o);
+                }
+            }
+            else if (value instanceof SimpleFilter)
+            {
+                SimpleFilter sf = (SimpleFilter) value;
+                m_out.writeByte(FILTER);
+                writeString(sf.getName());
+                m_out.writeByte(sf.getOperation());
+                writeValue(sf.getValue());
+            }
+            else
+            {
+                throw new IOException(
+                    "Unable to cache value of type " + value.getClass().getName());
+            }
+        }
+    }
+
+    private static class Reader
+    {
+        private final DataInputStream m_in;
+        private final List<String> m_strings = new ArrayList<String>();
+
+        Reader(DataInputStream in)
+        {
+            m_in = in;
+        }
+
+        String readString() throws IOException
+        {
+            int index = m_in.readInt();
+            if (index == -1)
+            {
+                return null;
+            }
+            else if (index == -2)
+            {
+                byte[] bytes = new byte[m_in.readInt()];
+                m_in.readFully(bytes);
+                String s = new String(bytes, "UTF-8");
+                m_strings.add(s);
+                return s;
+            }
+            else if ((index < 0) || (index >= m_strings.size()))
+            {
+                throw new IOException("Invalid string reference " + index);
+            }
+            return m_strings.get(index);
+        }
+
+        Map<String, String> readDirectives() throws IOException
+        {
+            int size = m_in.readInt();
+            Map<String, String> dirs = new LinkedHashMap<String, String>();
+            for (int i = 0; i < size; i++)
+            {
+                String key = readString();
+                dirs.put(key, (String) readValue());
+            }
+            return dirs;
+        }
+
+        Map<String, Object> readAttributes() throws IOException
+        {
+            int size = m_in.readInt();
+            Map<String, Object> attrs = new LinkedHashMap<String, Object>();
+            for (int i = 0; i < size; i++)
+            {
+                String key = readString();
+                attrs.put(key, readValue());
+            }
+            return attrs;
+        }
+
+        Object readValue() throws IOException
+        {
+            byte type = m_in.readByte();
+            switch (type)
+            {
+                case NULL:
+                    return null;
+                case STRING:
+                    return readString();
+                case LONG:
+                    return Long.valueOf(m_in.readLong());
+                case DOUBLE:
+                    return Double.valueOf(m_in.readDouble());
+                case VERSION:
+                    return Version.parseVersion(readString());
+                case VERSION_RANGE:
+                    Version floor = (Version) readValue();
+                    boolean floorInclusive = m_in.readBoolean();
+                    Version ceiling = (Version) readValue();
+                    return new VersionRange(
+                        floor, floorInclusive, ceiling, m_in.readBoolean());
+                case LIST:
+                    int size = m_in.readInt();
+                    List<Object> list = new ArrayList<Object>(size);
+                    for (int i = 0; i < size; i++)
+                    {
+                        list.add(readValue());
+                    }
+                    return list;
+                case FILTER:
+                    String name = readString();
+                    int op = m_in.readByte();
+                    return new SimpleFilter(name, readValue(), op);
+                default:
+                    throw new IOException("Invalid value type " + type);
+            }
+        }
+    }
+}
@@ -249,21 +249,8 @@ public class ManifestParser
         // Parse Bundle-NativeCode.
         //
 
-        // Parse native library clauses.
-        m_libraryClauses =
-            parseLibraryStrings(
-                m_logger,
-                parseDelimitedString((String) m_headerMap.get(Constants.BUNDLE_NATIVECODE), ","));
+        parseNativeCode(headerMap);
 
-        // Check to see if there was an optional native library clause, which is
-        // represented by a null library header; if so, record it and remove it.
-        if (!m_libraryClauses.isEmpty() &&
-            (m_libraryClauses.get(m_libraryClauses.size() - 1).getLibraryEntries() == null))
-        {
-            m_libraryHeadersOptional = true;
-            m_libraryClauses.remove(m_libraryClauses.size() - 1);
-        }
-        
         List<BundleRequirement> nativeCodeReqs = convertNativeCode(owner, m_libraryClauses, m_libraryHeadersOptional);
         
         // Combine all requirements.
@@ -296,6 +283,46 @@ public class ManifestParser
         m_isExtension = checkExtensionBundle(headerMap);
     }
 
+    /**
+     * Recreates the result of parsing the given headers from capabilities
+     * and requirements that were parsed before. The remaining metadata is
+     * cheap to derive and is parsed from the headers again.
+    **/
+    ManifestParser(Logger logger, Map configMap, Map headerMap,
+        String symbolicName, Version version,
+        List<BundleCapability> capabilities, List<BundleRequirement> requirements)
+        throws BundleException
+    {
+        m_logger = logger;
+        m_configMap = configMap;
+        m_headerMap = headerMap;
+        m_bundleSymbolicName = symbolicName;
+        m_bundleVersion = version;
+        m_capabilities = capabilities;
+        m_requirements = requirements;
+        parseNativeCode(headerMap);
+        parseActivationPolicy(headerMap);
+        m_isExtension = checkExtensionBundle(headerMap);
+    }
+
+    private void parseNativeCode(Map headerMap)
+    {
+        // Parse native library clauses.
+        m_libraryClauses =
+            parseLibraryStrings(
+                m_logger,
+                parseDelimitedString((String) headerMap.get(Constants.BUNDLE_NATIVECODE), ","));
+
+        // Check to see if there was an optional native library clause, which is
+        // represented by a null library header; if so, record it and remove it.
+        if (!m_libraryClauses.isEmpty() &&
+            (m_libraryClauses.get(m_libraryClauses.size() - 1).getLibraryEntries() == null))
+        {
+            m_libraryHeadersOptional = true;
+            m_libraryClauses.remove(m_libraryClauses.size() - 1);
+        }
+    }
+
     private static List<ParsedHeaderClause> normalizeImportClauses(
         Logger logger, List<ParsedHeaderClause> clauses, String mv)
         throws BundleException
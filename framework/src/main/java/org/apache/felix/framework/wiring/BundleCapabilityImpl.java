@@ -152,6 +152,11 @@ public class BundleCapabilityImpl implements BundleCapability
         return m_attrs;
     }
 
+    public boolean hasMandatoryAttributes()
+    {
+        return !m_mandatory.isEmpty();
+    }
+
     public boolean isAttributeMandatory(String name)
     {
         return !m_mandatory.isEmpty() && m_mandatory.contains(name);
@@ -0,0 +1,198 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+public class DynamicImportTest extends TestCase
+{
+    private File m_cacheDir;
+    private Framework m_felix;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        m_felix = new Felix(params);
+        m_felix.init();
+        m_felix.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(5000);
+        deleteDir(m_cacheDir);
+    }
+
+    public void testMissingPackageFoundAfterInstall() throws Exception
+    {
+        Bundle importer = installBundle(
+            "Bundle-SymbolicName: importer\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "DynamicImport-Package: *\n");
+
+        assertNull(importer.getResource("test/pkg/resource.txt"));
+        // The lookup failure is remembered, so ask twice.
+        assertNull(importer.getResource("test/pkg/resource.txt"));
+
+        Bundle exporter = installBundle(
+            "Bundle-SymbolicName: exporter\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Export-Package: test.pkg\n",
+            "test/pkg/resource.txt");
+        assertTrue(m_felix.adapt(FrameworkWiring.class).resolveBundles(
+            Collections.singleton(exporter)));
+
+        assertNotNull(importer.getResource("test/pkg/resource.txt"));
+        assertWiredTo(importer, "test.pkg", exporter);
+    }
+
+    public void testConcurrentDynamicImports() throws Exception
+    {
+        final int count = 8;
+        List<Bundle> exporters = new ArrayList<Bundle>();
+        for (int i = 0; i < count; i++)
+        {
+            exporters.add(installBundle(
+                "Bundle-SymbolicName: exporter" + i + "\n"
+                + "Bundle-ManifestVersion: 2\n"
+                + "Export-Package: test.pkg" + i + "\n",
+                "test/pkg" + i + "/resource.txt"));
+        }
+        final Bundle importer = installBundle(
+            "Bundle-SymbolicName: importer\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "DynamicImport-Package: test.*\n");
+        assertTrue(m_felix.adapt(FrameworkWiring.class).resolveBundles(null));
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> errors =
+            Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < count * 2; i++)
+        {
+            final String name = "test/pkg" + (i % count) + "/resource.txt";
+            Thread t = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        assertNotNull(importer.getResource(name));
+                    }
+                    catch (Throwable th)
+                    {
+                        errors.add(th);
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        start.countDown();
+        for (Thread t : threads)
+        {
+            t.join(10000);
+        }
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        for (int i = 0; i < count; i++)
+        {
+            assertWiredTo(importer, "test.pkg" + i, exporters.get(i));
+        }
+    }
+
+    private static void assertWiredTo(Bundle requirer, String pkgName, Bundle provider)
+    {
+        BundleWiring wiring = requirer.adapt(BundleWiring.class);
+        int found = 0;
+        for (BundleWire wire : wiring.getRequiredWires(BundleRevision.PACKAGE_NAMESPACE))
+        {
+            if (pkgName.equals(wire.getCapability().getAttributes()
+                .get(BundleRevision.PACKAGE_NAMESPACE)))
+            {
+                assertEquals(provider, wire.getProvider().getBundle());
+                found++;
+            }
+        }
+        assertEquals(1, found);
+    }
+
+    private Bundle installBundle(String manifest, String... entries) throws Exception
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", m_cacheDir);
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        for (String entry : entries)
+        {
+            os.putNextEntry(new JarEntry(entry));
+            os.write(entry.getBytes("utf-8"));
+            os.closeEntry();
+        }
+        os.close();
+        return m_felix.getBundleContext().installBundle(f.toURI().toString());
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        root.delete();
+    }
+}
@@ -18,11 +18,13 @@
  */
 package org.apache.felix.framework;
 
+import java.util.Arrays;
 import java.util.Dictionary;
 import java.util.Hashtable;
 import junit.framework.TestCase;
 import org.osgi.framework.Filter;
 import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.Version;
 
 public class FilterTest extends TestCase
 {
@@ -43,4 +45,81 @@ public class FilterTest extends TestCase
         }
         assertFalse("Filter should not match: " + filter, filter.match(dict));
     }
+
+    public void testTypedAttributes() throws Exception
+    {
+        Dictionary dict = new Hashtable();
+        dict.put("string", "Hello World");
+        dict.put("int", Integer.valueOf(42));
+        dict.put("long", Long.valueOf(7));
+        dict.put("bool", Boolean.TRUE);
+        dict.put("char", Character.valueOf('x'));
+        dict.put("version", new Version(1, 2, 3));
+        dict.put("ints", new int[] { 1, 2, 3 });
+        dict.put("strings", Arrays.asList("a", "b"));
+
+        assertMatch(dict, "(string=Hello World)", true);
+        assertMatch(dict, "(string=hello world)", false);
+        assertMatch(dict, "(string~=helloworld)", true);
+        assertMatch(dict, "(string~= HELLO   WORLD )", true);
+        assertMatch(dict, "(string~=hello)", false);
+        assertMatch(dict, "(string=Hello*)", true);
+        assertMatch(dict, "(string>=Hello)", true);
+        assertMatch(dict, "(string<=Hello)", false);
+        assertMatch(dict, "(int=42)", true);
+        assertMatch(dict, "(int= 42 )", true);
+        assertMatch(dict, "(int>=43)", false);
+        assertMatch(dict, "(int<=42)", true);
+        assertMatch(dict, "(int=4*)", false);
+        assertMatch(dict, "(int=abc)", false);
+        assertMatch(dict, "(long>=7)", true);
+        assertMatch(dict, "(bool=true)", true);
+        assertMatch(dict, "(bool=false)", false);
+        assertMatch(dict, "(bool=tr*)", false);
+        assertMatch(dict, "(char~=X)", true);
+        assertMatch(dict, "(version=1.2.3)", true);
+        assertMatch(dict, "(version>=1.2)", true);
+        // Version ranges are a Felix extension.
+        assertTrue(new FilterImpl("(version=[1.0,2.0])").match(dict));
+        assertFalse(new FilterImpl("(version=[2.0,3.0])").match(dict));
+        assertMatch(dict, "(ints=2)", true);
+        assertMatch(dict, "(ints=4)", false);
+        assertMatch(dict, "(strings=b)", true);
+        assertMatch(dict, "(strings=c)", false);
+        assertMatch(dict, "(&(int=42)(string=Hello*)(bool=*))", true);
+        assertMatch(dict, "(&(string=Hello*)(missing=*))", false);
+        assertMatch(dict, "(|(missing=1)(int>=40))", true);
+        assertMatch(dict, "(!(int=42))", false);
+        assertMatch(dict, "(!(missing=42))", true);
+    }
+
+    public void testCoercionFollowsAttributeType() throws Exception
+    {
+        // The compiled filter caches the coerced filter value per attribute
+        // type, so matching must stay correct when the type changes.
+        Filter filter = FrameworkUtil.createFilter("(value=10)");
+        Dictionary dict = new Hashtable();
+
+        dict.put("value", Integer.valueOf(10));
+        assertTrue(filter.match(dict));
+        dict.put("value", "10");
+        assertTrue(filter.match(dict));
+        dict.put("value", Long.valueOf(11));
+        assertFalse(filter.match(dict));
+        dict.put("value", Long.valueOf(10));
+        assertTrue(filter.match(dict));
+        dict.put("value", Integer.valueOf(10));
+        assertTrue(filter.match(dict));
+    }
+
+    private static void assertMatch(Dictionary dict, String filterStr, boolean expected)
+        throws Exception
+    {
+        Filter osgi = FrameworkUtil.createFilter(filterStr);
+        Filter felix = new FilterImpl(filterStr);
+        assertEquals("Reference filter: " + filterStr, expected, osgi.match(dict));
+        assertEquals("Felix filter: " + filterStr, expected, felix.match(dict));
+        // Evaluate twice so that cached coercions are used as well.
+        assertEquals("Felix filter: " + filterStr, expected, felix.match(dict));
+    }
 }
@@ -0,0 +1,199 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleActivator;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.startlevel.BundleStartLevel;
+import org.osgi.framework.startlevel.FrameworkStartLevel;
+
+public class ParallelStartLevelTest extends TestCase
+{
+    public static final int TIMEOUT = 5000;
+    private static final int BUNDLES = 4;
+
+    private File m_cacheDir;
+    private Framework m_felix;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map params = new HashMap();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0,"
+            + "org.osgi.service.packageadmin; version=1.2.0,"
+            + "org.osgi.service.startlevel; version=1.1.0,"
+            + "org.osgi.util.tracker; version=1.3.3,"
+            + "org.osgi.service.url; version=1.0.0");
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put(FelixConstants.STARTLEVEL_PARALLEL_PROP, Integer.toString(BUNDLES));
+
+        m_felix = new Felix(params);
+        m_felix.init();
+        m_felix.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(TIMEOUT);
+        deleteDir(m_cacheDir);
+    }
+
+    public void testParallelStartWithinStartLevel() throws Exception
+    {
+        Bundle[] level2 = new Bundle[BUNDLES];
+        for (int i = 0; i < BUNDLES; i++)
+        {
+            level2[i] = installAndStart("level2.test." + i, 2);
+        }
+        Bundle level3 = installAndStart("level3.test", 3);
+
+        // Each activator waits until all bundles of the start level are
+        // being started, which only succeeds if they are started concurrently.
+        CountDownLatch starting = new CountDownLatch(BUNDLES);
+        m_felix.getBundleContext().registerService(
+            CountDownLatch.class.getName(), starting, null);
+
+        setStartLevelAndWait(2);
+
+        assertEquals(0, starting.getCount());
+        for (Bundle b : level2)
+        {
+            assertEquals(Bundle.ACTIVE, b.getState());
+        }
+        assertTrue(level3.getState() != Bundle.ACTIVE);
+
+        setStartLevelAndWait(3);
+        assertEquals(Bundle.ACTIVE, level3.getState());
+
+        setStartLevelAndWait(1);
+        for (Bundle b : level2)
+        {
+            assertEquals(Bundle.RESOLVED, b.getState());
+        }
+        assertEquals(Bundle.RESOLVED, level3.getState());
+    }
+
+    private Bundle installAndStart(String bsn, int level) throws Exception
+    {
+        String mf = "Bundle-SymbolicName: " + bsn + "\n"
+            + "Bundle-Version: 1.0.0\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: org.osgi.framework\n";
+        Bundle b = m_felix.getBundleContext().installBundle(
+            createBundle(mf, m_cacheDir).toURI().toString());
+        b.adapt(BundleStartLevel.class).setStartLevel(level);
+        b.start();
+        return b;
+    }
+
+    private void setStartLevelAndWait(int level) throws Exception
+    {
+        final CountDownLatch latch = new CountDownLatch(1);
+        m_felix.adapt(FrameworkStartLevel.class).setStartLevel(level,
+            new FrameworkListener()
+            {
+                public void frameworkEvent(FrameworkEvent event)
+                {
+                    latch.countDown();
+                }
+            });
+        assertTrue(latch.await(TIMEOUT * 2, TimeUnit.MILLISECONDS));
+    }
+
+    private static File createBundle(String manifest, File tempDir) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", tempDir);
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        mf.getMainAttributes().putValue(Constants.BUNDLE_ACTIVATOR, TestBundleActivator.class.getName());
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+
+        String path = TestBundleActivator.class.getName().replace('.', '/') + ".class";
+        os.putNextEntry(new ZipEntry(path));
+
+        InputStream is = TestBundleActivator.class.getClassLoader().getResourceAsStream(path);
+        byte[] b = new byte[is.available()];
+        is.read(b);
+        is.close();
+        os.write(b);
+
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        root.delete();
+    }
+
+    public static class TestBundleActivator implements BundleActivator
+    {
+        public void start(BundleContext context) throws Exception
+        {
+            ServiceReference ref = context.getServiceReference(CountDownLatch.class.getName());
+            CountDownLatch starting = (CountDownLatch) context.getService(ref);
+            starting.countDown();
+            if (!starting.await(TIMEOUT, TimeUnit.MILLISECONDS))
+            {
+                throw new IllegalStateException("Bundles were not started concurrently.");
+            }
+        }
+
+        public void stop(BundleContext context) throws Exception
+        {
+        }
+    }
+}
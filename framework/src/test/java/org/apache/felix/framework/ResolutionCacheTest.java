@@ -0,0 +1,255 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+public class ResolutionCacheTest extends TestCase
+{
+    private File m_cacheDir;
+    private Map<String, Object> m_params;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        m_params = new HashMap<String, Object>();
+        m_params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        m_params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        m_params.put(FelixConstants.RESOLUTION_CACHE_PROP, "true");
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        deleteDir(m_cacheDir);
+    }
+
+    public void testResolutionReinstatedOnRestart() throws Exception
+    {
+        File cacheFile = new File(m_cacheDir, "bundle0/" + ResolutionCache.FILE_NAME);
+
+        Framework f = startFramework();
+        Bundle exporter = f.getBundleContext().installBundle(createBundle(
+            "Bundle-SymbolicName: exporter\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Export-Package: test.pkg; version=1.0.0\n").toURI().toString());
+        Bundle importer = f.getBundleContext().installBundle(createBundle(
+            "Bundle-SymbolicName: importer\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: test.pkg, org.osgi.framework\n").toURI().toString());
+        importer.start();
+        assertWiredTo(importer, exporter);
+        stopFramework(f);
+        assertTrue(cacheFile.exists());
+
+        f = startFramework();
+        assertFalse("Cached resolution must only be used once", cacheFile.exists());
+        importer = f.getBundleContext().getBundle(importer.getBundleId());
+        exporter = f.getBundleContext().getBundle(exporter.getBundleId());
+        assertEquals(Bundle.ACTIVE, importer.getState());
+        assertWiredTo(importer, exporter);
+
+        // Installing a bundle invalidates the cached resolution.
+        Bundle other = f.getBundleContext().installBundle(createBundle(
+            "Bundle-SymbolicName: other\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: test.pkg\n").toURI().toString());
+        other.start();
+        assertWiredTo(other, exporter);
+        stopFramework(f);
+
+        f = startFramework();
+        other = f.getBundleContext().getBundle(other.getBundleId());
+        assertEquals(Bundle.ACTIVE, other.getState());
+        assertWiredTo(other, f.getBundleContext().getBundle(exporter.getBundleId()));
+        stopFramework(f);
+    }
+
+    public void testMismatchingCachedWireIsDiscarded() throws Exception
+    {
+        File cacheFile = new File(m_cacheDir, "bundle0/" + ResolutionCache.FILE_NAME);
+
+        Framework f = startFramework();
+        Bundle exporter = f.getBundleContext().installBundle(createBundle(
+            "Bundle-SymbolicName: exporter\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Export-Package: test.pkg; version=1.0.0\n").toURI().toString());
+        Bundle importer = f.getBundleContext().installBundle(createBundle(
+            "Bundle-SymbolicName: importer\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: test.pkg\n").toURI().toString());
+        importer.start();
+        assertWiredTo(importer, exporter);
+        stopFramework(f);
+
+        // Point the cached wire at the first capability of the exporter,
+        // which is not the exported package.
+        String exporterId = exporter.getBundleId() + ".0";
+        StringBuilder sb = new StringBuilder();
+        BufferedReader br = new BufferedReader(new FileReader(cacheFile));
+        for (String line = br.readLine(); line != null; line = br.readLine())
+        {
+            String[] tokens = line.split(" ");
+            if (line.startsWith("W ") && tokens[4].equals(exporterId))
+            {
+                tokens[5] = "0";
+                line = join(tokens);
+            }
+            sb.append(line).append('\n');
+        }
+        br.close();
+        Writer w = new FileWriter(cacheFile);
+        w.write(sb.toString());
+        w.close();
+
+        f = startFramework();
+        importer = f.getBundleContext().getBundle(importer.getBundleId());
+        assertEquals(Bundle.ACTIVE, importer.getState());
+        assertWiredTo(importer, f.getBundleContext().getBundle(exporter.getBundleId()));
+        stopFramework(f);
+    }
+
+    public void testChangedManifestInvalidatesResolution() throws Exception
+    {
+        Framework f = startFramework();
+        Bundle exporter = f.getBundleContext().installBundle(createBundle(
+            "Bundle-SymbolicName: exporter\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Export-Package: test.pkg, test.pkg2\n").toURI().toString());
+        Bundle importer = f.getBundleContext().installBundle(createBundle(
+            "Bundle-SymbolicName: importer\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: test.pkg\n").toURI().toString());
+        importer.start();
+        assertWiredTo(importer, exporter);
+        stopFramework(f);
+
+        // Replace the cached content of the importer, which leaves the
+        // last modification time of the bundle unchanged.
+        File content = new File(m_cacheDir,
+            "bundle" + importer.getBundleId() + "/version0.0/bundle.jar");
+        assertTrue(content.exists());
+        writeBundle(content,
+            "Bundle-SymbolicName: importer\n"
+            + "Bundle-ManifestVersion: 2\n"
+            + "Import-Package: test.pkg, test.pkg2; resolution:=optional\n");
+
+        f = startFramework();
+        importer = f.getBundleContext().getBundle(importer.getBundleId());
+        assertEquals(Bundle.ACTIVE, importer.getState());
+        assertEquals(2, importer.adapt(BundleWiring.class)
+            .getRequiredWires(BundleRevision.PACKAGE_NAMESPACE).size());
+        stopFramework(f);
+    }
+
+    private static String join(String[] tokens)
+    {
+        StringBuilder sb = new StringBuilder(tokens[0]);
+        for (int i = 1; i < tokens.length; i++)
+        {
+            sb.append(' ').append(tokens[i]);
+        }
+        return sb.toString();
+    }
+
+    private static void assertWiredTo(Bundle requirer, Bundle provider)
+    {
+        BundleWiring wiring = requirer.adapt(BundleWiring.class);
+        List<BundleWire> wires = wiring.getRequiredWires(BundleRevision.PACKAGE_NAMESPACE);
+        boolean found = false;
+        for (BundleWire wire : wires)
+        {
+            if ("test.pkg".equals(wire.getCapability().getAttributes()
+                .get(BundleRevision.PACKAGE_NAMESPACE)))
+            {
+                assertEquals(provider, wire.getProvider().getBundle());
+                found = true;
+            }
+        }
+        assertTrue(found);
+    }
+
+    private Framework startFramework() throws Exception
+    {
+        Framework f = new Felix(m_params);
+        f.init();
+        f.start();
+        return f;
+    }
+
+    private static void stopFramework(Framework f) throws Exception
+    {
+        f.stop();
+        f.waitForStop(5000);
+    }
+
+    private File createBundle(String manifest) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", m_cacheDir);
+        writeBundle(f, manifest);
+        return f;
+    }
+
+    private static void writeBundle(File f, String manifest) throws IOException
+    {
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.close();
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        root.delete();
+    }
+}
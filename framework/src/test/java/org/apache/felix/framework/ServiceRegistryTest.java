@@ -37,6 +37,7 @@ import junit.framework.TestCase;
 import org.apache.felix.framework.ServiceRegistrationImpl.ServiceReferenceImpl;
 import org.apache.felix.framework.ServiceRegistry.ServiceHolder;
 import org.apache.felix.framework.ServiceRegistry.UsageCount;
+import org.apache.felix.framework.ServiceRegistry.Usages;
 import org.easymock.MockControl;
 import org.mockito.AdditionalAnswers;
 import org.mockito.InOrder;
@@ -445,9 +446,9 @@ public class ServiceRegistryTest extends TestCase
 
         assertSame(svc, sr.getService(b, ref, true));
 
-        final ConcurrentMap<Bundle, UsageCount[]> inUseMap =
-                (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
-        UsageCount[] uca = inUseMap.get(b);
+        final ConcurrentMap<Bundle, Usages> inUseMap =
+                (ConcurrentMap<Bundle, Usages>) getPrivateField(sr, "m_inUseMap");
+        UsageCount[] uca = inUseMap.get(b).toArray();
         assertEquals(1, uca.length);
         assertEquals(1, uca[0].m_serviceObjectsCount.get());
 
@@ -512,13 +513,13 @@ public class ServiceRegistryTest extends TestCase
         ServiceReferenceImpl ref = Mockito.mock(ServiceReferenceImpl.class);
         Mockito.when(ref.getRegistration()).thenReturn(reg);
 
-        final ConcurrentMap<Bundle, UsageCount[]> inUseMap =
-                (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        final ConcurrentMap<Bundle, Usages> inUseMap =
+                (ConcurrentMap<Bundle, Usages>) getPrivateField(sr, "m_inUseMap");
 
         UsageCount uc = new UsageCount(ref, false);
         uc.m_svcHolderRef.set(new ServiceHolder());
 
-        inUseMap.put(b, new UsageCount[] {uc});
+        inUseMap.put(b, usages(uc));
 
         assertFalse(sr.ungetService(b, ref, null));
         assertNull(uc.m_svcHolderRef.get());
@@ -535,8 +536,8 @@ public class ServiceRegistryTest extends TestCase
         ServiceReferenceImpl ref = Mockito.mock(ServiceReferenceImpl.class);
         Mockito.when(ref.getRegistration()).thenReturn(reg);
 
-        final ConcurrentMap<Bundle, UsageCount[]> inUseMap =
-                (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        final ConcurrentMap<Bundle, Usages> inUseMap =
+                (ConcurrentMap<Bundle, Usages>) getPrivateField(sr, "m_inUseMap");
 
         UsageCount uc = new UsageCount(ref, false);
         ServiceHolder sh = new ServiceHolder();
@@ -547,7 +548,7 @@ public class ServiceRegistryTest extends TestCase
 
         Mockito.verify(reg, Mockito.never()).
             ungetService(Mockito.isA(Bundle.class), Mockito.any());
-        inUseMap.put(b, new UsageCount[] {uc});
+        inUseMap.put(b, usages(uc));
 
         assertTrue(sr.ungetService(b, ref, null));
         assertNull(uc.m_svcHolderRef.get());
@@ -568,14 +569,14 @@ public class ServiceRegistryTest extends TestCase
         ServiceReferenceImpl ref = Mockito.mock(ServiceReferenceImpl.class);
         Mockito.when(ref.getRegistration()).thenReturn(reg);
 
-        final ConcurrentMap<Bundle, UsageCount[]> inUseMap =
-                (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        final ConcurrentMap<Bundle, Usages> inUseMap =
+                (ConcurrentMap<Bundle, Usages>) getPrivateField(sr, "m_inUseMap");
 
         UsageCount uc = new UsageCount(ref, false);
         uc.m_svcHolderRef.set(new ServiceHolder());
         uc.m_count.set(2);
 
-        inUseMap.put(b, new UsageCount[] {uc});
+        inUseMap.put(b, usages(uc));
 
         assertTrue(sr.ungetService(b, ref, null));
         assertNotNull(uc.m_svcHolderRef.get());
@@ -597,14 +598,14 @@ public class ServiceRegistryTest extends TestCase
         ServiceReferenceImpl ref = Mockito.mock(ServiceReferenceImpl.class);
         Mockito.when(ref.getRegistration()).thenReturn(reg);
 
-        final ConcurrentMap<Bundle, UsageCount[]> inUseMap =
-                (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        final ConcurrentMap<Bundle, Usages> inUseMap =
+                (ConcurrentMap<Bundle, Usages>) getPrivateField(sr, "m_inUseMap");
 
         UsageCount uc = new UsageCount(ref, false);
         uc.m_svcHolderRef.set(new ServiceHolder());
         uc.m_count.set(2);
 
-        inUseMap.put(b, new UsageCount[] {uc});
+        inUseMap.put(b, usages(uc));
 
         assertTrue(sr.ungetService(b, ref, null));
         assertNull(uc.m_svcHolderRef.get());
@@ -626,8 +627,8 @@ public class ServiceRegistryTest extends TestCase
         ServiceReferenceImpl ref = Mockito.mock(ServiceReferenceImpl.class);
         Mockito.when(ref.getRegistration()).thenReturn(reg);
 
-        final ConcurrentMap<Bundle, UsageCount[]> inUseMap =
-                (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        final ConcurrentMap<Bundle, Usages> inUseMap =
+                (ConcurrentMap<Bundle, Usages>) getPrivateField(sr, "m_inUseMap");
 
         String svc = "myService";
         UsageCount uc = new UsageCount(ref, false);
@@ -637,7 +638,7 @@ public class ServiceRegistryTest extends TestCase
         uc.m_svcHolderRef.set(sh);
         uc.m_count.set(1);
 
-        inUseMap.put(b, new UsageCount[] {uc});
+        inUseMap.put(b, usages(uc));
 
         try
         {
@@ -699,7 +700,7 @@ public class ServiceRegistryTest extends TestCase
         ServiceRegistry sr = new ServiceRegistry(null, null);
 
         @SuppressWarnings("unchecked")
-        ConcurrentMap<Bundle, UsageCount[]> inUseMap = (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        ConcurrentMap<Bundle, Usages> inUseMap = (ConcurrentMap<Bundle, Usages>) getPrivateField(sr, "m_inUseMap");
 
         assertEquals("Precondition", 0, inUseMap.size());
 
@@ -707,8 +708,8 @@ public class ServiceRegistryTest extends TestCase
         ServiceReference<?> ref = Mockito.mock(ServiceReference.class);
         UsageCount uc = sr.obtainUsageCount(b, ref, null, false);
         assertEquals(1, inUseMap.size());
-        assertEquals(1, inUseMap.get(b).length);
-        assertSame(uc, inUseMap.get(b)[0]);
+        assertEquals(1, inUseMap.get(b).toArray().length);
+        assertSame(uc, inUseMap.get(b).toArray()[0]);
         assertSame(ref, uc.m_ref);
         assertFalse(uc.m_prototype);
 
@@ -726,19 +727,19 @@ public class ServiceRegistryTest extends TestCase
         ServiceRegistry sr = new ServiceRegistry(null, null);
 
         @SuppressWarnings("unchecked")
-        ConcurrentMap<Bundle, UsageCount[]> inUseMap = (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        ConcurrentMap<Bundle, Usages> inUseMap = (ConcurrentMap<Bundle, Usages>) getPrivateField(sr, "m_inUseMap");
 
         Bundle b = Mockito.mock(Bundle.class);
         ServiceReference<?> ref = Mockito.mock(ServiceReference.class);
         UsageCount uc = sr.obtainUsageCount(b, ref, null, true);
         assertEquals(1, inUseMap.size());
-        assertEquals(1, inUseMap.values().iterator().next().length);
+        assertEquals(1, inUseMap.values().iterator().next().toArray().length);
 
         ServiceReference<?> ref2 = Mockito.mock(ServiceReference.class);
         UsageCount uc2 = sr.obtainUsageCount(b, ref2, null, true);
         assertEquals(1, inUseMap.size());
-        assertEquals(2, inUseMap.values().iterator().next().length);
-        List<UsageCount> ucl = Arrays.asList(inUseMap.get(b));
+        assertEquals(2, inUseMap.values().iterator().next().toArray().length);
+        List<UsageCount> ucl = Arrays.asList(inUseMap.get(b).toArray());
         assertTrue(ucl.contains(uc));
         assertTrue(ucl.contains(uc2));
     }
@@ -748,7 +749,7 @@ public class ServiceRegistryTest extends TestCase
         ServiceRegistry sr = new ServiceRegistry(null, null);
 
         @SuppressWarnings("unchecked")
-        ConcurrentMap<Bundle, UsageCount[]> inUseMap = (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        ConcurrentMap<Bundle, Usages> inUseMap = (ConcurrentMap<Bundle, Usages>) getPrivateField(sr, "m_inUseMap");
 
         Bundle b = Mockito.mock(Bundle.class);
         ServiceReference<?> ref = Mockito.mock(ServiceReference.class);
@@ -758,7 +759,7 @@ public class ServiceRegistryTest extends TestCase
         String svc = "foobar";
         sh.m_service = svc;
         uc.m_svcHolderRef.set(sh);
-        inUseMap.put(b, new UsageCount[] {uc});
+        inUseMap.put(b, usages(uc));
 
         assertNull(sr.obtainUsageCount(b, Mockito.mock(ServiceReference.class), null, null));
 
@@ -771,13 +772,13 @@ public class ServiceRegistryTest extends TestCase
         ServiceRegistry sr = new ServiceRegistry(null, null);
 
         @SuppressWarnings("unchecked")
-        ConcurrentMap<Bundle, UsageCount[]> inUseMap = (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        ConcurrentMap<Bundle, Usages> inUseMap = (ConcurrentMap<Bundle, Usages>) getPrivateField(sr, "m_inUseMap");
 
         Bundle b = Mockito.mock(Bundle.class);
         ServiceReference<?> ref = Mockito.mock(ServiceReference.class);
 
         UsageCount uc = new UsageCount(ref, false);
-        inUseMap.put(b, new UsageCount[] {uc});
+        inUseMap.put(b, usages(uc));
 
         assertNull(sr.obtainUsageCount(b, Mockito.mock(ServiceReference.class), null, null));
 
@@ -792,24 +793,24 @@ public class ServiceRegistryTest extends TestCase
 
         final Bundle b = Mockito.mock(Bundle.class);
 
-        final ConcurrentMap<Bundle, UsageCount[]> orgInUseMap =
-            (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        final ConcurrentMap<Bundle, Usages> orgInUseMap =
+            (ConcurrentMap<Bundle, Usages>) getPrivateField(sr, "m_inUseMap");
 
-        ConcurrentMap<Bundle, UsageCount[]> inUseMap =
+        ConcurrentMap<Bundle, Usages> inUseMap =
             Mockito.mock(ConcurrentMap.class, AdditionalAnswers.delegatesTo(orgInUseMap));
-        Mockito.doAnswer(new Answer<UsageCount[]>()
+        Mockito.doAnswer(new Answer<Usages>()
             {
                 @Override
-                public UsageCount[] answer(InvocationOnMock invocation) throws Throwable
+                public Usages answer(InvocationOnMock invocation) throws Throwable
                 {
                     // This mimicks another thread putting another UsageCount in concurrently
-                    // The putIfAbsent() will fail and it has to retry
+                    // The putIfAbsent() will fail and it has to use the other usages
                     UsageCount uc = new UsageCount(Mockito.mock(ServiceReference.class), false);
-                    UsageCount[] uca = new UsageCount[] {uc};
-                    orgInUseMap.put(b, uca);
-                    return uca;
+                    Usages usages = usages(uc);
+                    orgInUseMap.put(b, usages);
+                    return usages;
                 }
-            }).when(inUseMap).putIfAbsent(Mockito.any(Bundle.class), Mockito.any(UsageCount[].class));
+            }).when(inUseMap).putIfAbsent(Mockito.any(Bundle.class), Mockito.any(Usages.class));
         setPrivateField(sr, "m_inUseMap", inUseMap);
 
         ServiceReference<?> ref = Mockito.mock(ServiceReference.class);
@@ -817,50 +818,40 @@ public class ServiceRegistryTest extends TestCase
         assertEquals(0, orgInUseMap.size());
         UsageCount uc = sr.obtainUsageCount(b, ref, null, false);
         assertEquals(1, orgInUseMap.size());
-        assertEquals(2, orgInUseMap.get(b).length);
+        assertEquals(2, orgInUseMap.get(b).toArray().length);
         assertSame(ref, uc.m_ref);
         assertFalse(uc.m_prototype);
-        List<UsageCount> l = new ArrayList<UsageCount>(Arrays.asList(orgInUseMap.get(b)));
+        List<UsageCount> l = new ArrayList<UsageCount>(Arrays.asList(orgInUseMap.get(b).toArray()));
         l.remove(uc);
         assertEquals("There should be one UsageCount left", 1, l.size());
         assertNotSame(ref, l.get(0).m_ref);
     }
 
-    @SuppressWarnings("unchecked")
     public void testObtainUsageCountRetry2() throws Exception
     {
         ServiceRegistry sr = new ServiceRegistry(null, null);
 
         final Bundle b = Mockito.mock(Bundle.class);
 
-        final ConcurrentMap<Bundle, UsageCount[]> orgInUseMap =
-            (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
-        orgInUseMap.put(b, new UsageCount[] {new UsageCount(Mockito.mock(ServiceReference.class), false)});
-
-        ConcurrentMap<Bundle, UsageCount[]> inUseMap =
-            Mockito.mock(ConcurrentMap.class, AdditionalAnswers.delegatesTo(orgInUseMap));
-        Mockito.doAnswer(new Answer<Boolean>()
-            {
-                @Override
-                public Boolean answer(InvocationOnMock invocation) throws Throwable
-                {
-                    orgInUseMap.remove(b);
-                    return false;
-                }
-            }).when(inUseMap).replace(Mockito.any(Bundle.class),
-                    Mockito.any(UsageCount[].class), Mockito.any(UsageCount[].class));
-        setPrivateField(sr, "m_inUseMap", inUseMap);
+        @SuppressWarnings("unchecked")
+        final ConcurrentMap<Bundle, Usages> inUseMap =
+            (ConcurrentMap<Bundle, Usages>) getPrivateField(sr, "m_inUseMap");
+        UsageCount old = new UsageCount(Mockito.mock(ServiceReference.class), false);
+        Usages removed = usages(old);
+        inUseMap.put(b, removed);
+
+        // Mimick another thread flushing the last usage count concurrently: the
+        // usages are removed and cannot be added to anymore.
+        assertTrue("Precondition", removed.remove(null, old));
+        assertNull("Precondition", removed.add(new UsageCount(Mockito.mock(ServiceReference.class), false)));
+        inUseMap.remove(b, removed);
 
         ServiceReference<?> ref = Mockito.mock(ServiceReference.class);
-
-        assertEquals("Precondition", 1, inUseMap.size());
-        assertEquals("Precondition", 1, inUseMap.values().iterator().next().length);
-        assertNotSame("Precondition", ref, inUseMap.get(b)[0].m_ref);
-        sr.obtainUsageCount(b, ref, null, false);
+        UsageCount uc = sr.obtainUsageCount(b, ref, null, false);
         assertEquals(1, inUseMap.size());
-        assertEquals(1, inUseMap.values().iterator().next().length);
-        assertSame("The old usage count should have been removed by the mock and this one should have been added",
-                ref, inUseMap.get(b)[0].m_ref);
+        assertNotSame(removed, inUseMap.get(b));
+        assertEquals(1, inUseMap.get(b).toArray().length);
+        assertSame(uc, inUseMap.get(b).toArray()[0]);
     }
 
     public void testFlushUsageCount() throws Exception
@@ -868,7 +859,7 @@ public class ServiceRegistryTest extends TestCase
         ServiceRegistry sr = new ServiceRegistry(null, null);
 
         @SuppressWarnings("unchecked")
-        ConcurrentMap<Bundle, UsageCount[]> inUseMap = (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        ConcurrentMap<Bundle, Usages> inUseMap = (ConcurrentMap<Bundle, Usages>) getPrivateField(sr, "m_inUseMap");
 
         Bundle b = Mockito.mock(Bundle.class);
 
@@ -877,15 +868,15 @@ public class ServiceRegistryTest extends TestCase
         ServiceReference<?> ref2 = Mockito.mock(ServiceReference.class);
         UsageCount uc2 = new UsageCount(ref2, true);
 
-        inUseMap.put(b, new UsageCount[] {uc, uc2});
+        inUseMap.put(b, usages(uc, uc2));
 
         assertEquals("Precondition", 1, inUseMap.size());
-        assertEquals("Precondition", 2, inUseMap.values().iterator().next().length);
+        assertEquals("Precondition", 2, inUseMap.values().iterator().next().toArray().length);
 
         sr.flushUsageCount(b, ref, uc);
         assertEquals(1, inUseMap.size());
-        assertEquals(1, inUseMap.values().iterator().next().length);
-        assertSame(uc2, inUseMap.values().iterator().next()[0]);
+        assertEquals(1, inUseMap.values().iterator().next().toArray().length);
+        assertSame(uc2, inUseMap.values().iterator().next().toArray()[0]);
 
         sr.flushUsageCount(b, ref2, uc2);
         assertEquals(0, inUseMap.size());
@@ -896,7 +887,7 @@ public class ServiceRegistryTest extends TestCase
         ServiceRegistry sr = new ServiceRegistry(null, null);
 
         @SuppressWarnings("unchecked")
-        ConcurrentMap<Bundle, UsageCount[]> inUseMap = (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        ConcurrentMap<Bundle, Usages> inUseMap = (ConcurrentMap<Bundle, Usages>) getPrivateField(sr, "m_inUseMap");
 
         Bundle b = Mockito.mock(Bundle.class);
         Bundle b2 = Mockito.mock(Bundle.class);
@@ -908,8 +899,8 @@ public class ServiceRegistryTest extends TestCase
         ServiceReference<?> ref3 = Mockito.mock(ServiceReference.class);
         UsageCount uc3 = new UsageCount(ref3, true);
 
-        inUseMap.put(b, new UsageCount[] {uc2, uc});
-        inUseMap.put(b2, new UsageCount[] {uc3});
+        inUseMap.put(b, usages(uc2, uc));
+        inUseMap.put(b2, usages(uc3));
 
         assertEquals("Precondition", 2, inUseMap.size());
 
@@ -925,21 +916,21 @@ public class ServiceRegistryTest extends TestCase
         ServiceRegistry sr = new ServiceRegistry(null, null);
 
         @SuppressWarnings("unchecked")
-        ConcurrentMap<Bundle, UsageCount[]> inUseMap = (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        ConcurrentMap<Bundle, Usages> inUseMap = (ConcurrentMap<Bundle, Usages>) getPrivateField(sr, "m_inUseMap");
 
         Bundle b = Mockito.mock(Bundle.class);
 
         ServiceReference<?> ref = Mockito.mock(ServiceReference.class);
         UsageCount uc = new UsageCount(ref, false);
 
-        inUseMap.put(b, new UsageCount[] {uc});
+        inUseMap.put(b, usages(uc));
         assertEquals("Precondition", 1, inUseMap.size());
-        assertEquals("Precondition", 1, inUseMap.values().iterator().next().length);
+        assertEquals("Precondition", 1, inUseMap.values().iterator().next().toArray().length);
 
         UsageCount uc2 = new UsageCount(Mockito.mock(ServiceReference.class), false);
         sr.flushUsageCount(b, ref, uc2);
         assertEquals("Should be no changes", 1, inUseMap.size());
-        assertEquals("Should be no changes", 1, inUseMap.values().iterator().next().length);
+        assertEquals("Should be no changes", 1, inUseMap.values().iterator().next().toArray().length);
     }
 
     public void testFlushUsageCountNull() throws Exception
@@ -947,7 +938,7 @@ public class ServiceRegistryTest extends TestCase
         ServiceRegistry sr = new ServiceRegistry(null, null);
 
         @SuppressWarnings("unchecked")
-        ConcurrentMap<Bundle, UsageCount[]> inUseMap = (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        ConcurrentMap<Bundle, Usages> inUseMap = (ConcurrentMap<Bundle, Usages>) getPrivateField(sr, "m_inUseMap");
 
         Bundle b = Mockito.mock(Bundle.class);
         Bundle b2 = Mockito.mock(Bundle.class);
@@ -959,8 +950,8 @@ public class ServiceRegistryTest extends TestCase
         ServiceReference<?> ref3 = Mockito.mock(ServiceReference.class);
         UsageCount uc3 = new UsageCount(ref3, true);
 
-        inUseMap.put(b, new UsageCount[] {uc2, uc});
-        inUseMap.put(b2, new UsageCount[] {uc3});
+        inUseMap.put(b, usages(uc2, uc));
+        inUseMap.put(b2, usages(uc3));
 
         assertEquals("Precondition", 2, inUseMap.size());
 
@@ -972,8 +963,7 @@ public class ServiceRegistryTest extends TestCase
 
     }
 
-    @SuppressWarnings("unchecked")
-    public void testFlushUsageCountRetry() throws Exception
+    public void testFlushUsageCountRemovesUsages() throws Exception
     {
         ServiceRegistry sr = new ServiceRegistry(null, null);
 
@@ -981,66 +971,24 @@ public class ServiceRegistryTest extends TestCase
         final ServiceReference<?> ref = Mockito.mock(ServiceReference.class);
         final UsageCount uc = new UsageCount(ref, false);
         final ServiceReference<?> ref2 = Mockito.mock(ServiceReference.class);
-        final UsageCount uc2 = new UsageCount(ref2, false);
+        final UsageCount uc2 = new UsageCount(ref2, true);
+        final UsageCount uc3 = new UsageCount(ref2, true);
 
-        final ConcurrentMap<Bundle, UsageCount[]> orgInUseMap =
-            (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
-
-        final ConcurrentMap<Bundle, UsageCount[]> inUseMap =
-            Mockito.mock(ConcurrentMap.class, AdditionalAnswers.delegatesTo(orgInUseMap));
-        Mockito.doAnswer(new Answer<Boolean>()
-            {
-                @Override
-                public Boolean answer(InvocationOnMock invocation) throws Throwable
-                {
-                    inUseMap.put(b, new UsageCount[] {uc});
-                    return false;
-                }
-            }).when(inUseMap).replace(Mockito.isA(Bundle.class),
-                    Mockito.isA(UsageCount[].class), Mockito.isA(UsageCount[].class));
-        setPrivateField(sr, "m_inUseMap", inUseMap);
-
-        inUseMap.put(b, new UsageCount[] {uc, uc2});
-
-        sr.flushUsageCount(b, null, uc);
-
-        assertNull("A 'concurrent' process has removed uc2 as well, "
-                + "so the entry for 'b' should have been removed",
-                inUseMap.get(b));
-    }
-
-    public void testFlushUsageCountRetry2() throws Exception
-    {
-        ServiceRegistry sr = new ServiceRegistry(null, null);
-
-        final Bundle b = Mockito.mock(Bundle.class);
-        final ServiceReference<?> ref = Mockito.mock(ServiceReference.class);
-        final UsageCount uc = new UsageCount(ref, false);
-        final ServiceReference<?> ref2 = Mockito.mock(ServiceReference.class);
-        final UsageCount uc2 = new UsageCount(ref2, false);
-
-        final ConcurrentMap<Bundle, UsageCount[]> orgInUseMap =
-            (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
-
-        final ConcurrentMap<Bundle, UsageCount[]> inUseMap =
-            Mockito.mock(ConcurrentMap.class, AdditionalAnswers.delegatesTo(orgInUseMap));
-        Mockito.doAnswer(new Answer<Boolean>()
-            {
-                @Override
-                public Boolean answer(InvocationOnMock invocation) throws Throwable
-                {
-                    inUseMap.put(b, new UsageCount[] {uc, uc2});
-                    return false;
-                }
-            }).when(inUseMap).remove(Mockito.isA(Bundle.class), Mockito.isA(UsageCount[].class));
-        setPrivateField(sr, "m_inUseMap", inUseMap);
-
-        inUseMap.put(b, new UsageCount[] {uc});
+        @SuppressWarnings("unchecked")
+        final ConcurrentMap<Bundle, Usages> inUseMap =
+            (ConcurrentMap<Bundle, Usages>) getPrivateField(sr, "m_inUseMap");
+        Usages usages = usages(uc, uc2, uc3);
+        inUseMap.put(b, usages);
 
         sr.flushUsageCount(b, null, uc);
+        assertSame(usages, inUseMap.get(b));
+        assertTrue(usages.uses(ref2));
+        assertFalse(usages.uses(ref));
 
-        assertEquals(1, inUseMap.get(b).length);
-        assertSame(uc2, inUseMap.get(b)[0]);
+        sr.flushUsageCount(b, ref2, null);
+        assertNull("The last usage count was flushed, so the entry for 'b' should have been removed",
+            inUseMap.get(b));
+        assertNull("Removed usages must not accept new usage counts", usages.add(uc));
     }
 
     public void testGetUngetServiceFactory() throws Exception
@@ -1168,8 +1116,8 @@ public class ServiceRegistryTest extends TestCase
         assertEquals("hi", sr.getService(clientBundle, reg.getReference(), false));
         sr.ungetService(clientBundle, reg.getReference(), null);
 
-        ConcurrentMap<Bundle, UsageCount[]> inUseMap =
-                (ConcurrentMap<Bundle, UsageCount[]>) getPrivateField(sr, "m_inUseMap");
+        ConcurrentMap<Bundle, Usages> inUseMap =
+                (ConcurrentMap<Bundle, Usages>) getPrivateField(sr, "m_inUseMap");
 
         sr.unregisterService(regBundle, reg);
         assertEquals(0, inUseMap.size());
@@ -1228,6 +1176,16 @@ public class ServiceRegistryTest extends TestCase
         sb.append("Obtained service");
     }
 
+    private static Usages usages(UsageCount... ucs)
+    {
+        Usages usages = new Usages();
+        for (UsageCount uc : ucs)
+        {
+            usages.add(uc);
+        }
+        return usages;
+    }
+
     private Object getPrivateField(Object obj, String fieldName) throws NoSuchFieldException,
             IllegalAccessException
     {
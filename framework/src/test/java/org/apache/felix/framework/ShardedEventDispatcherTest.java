@@ -0,0 +1,149 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
+
+public class ShardedEventDispatcherTest extends TestCase
+{
+    private File m_cacheDir;
+    private Framework m_felix;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        m_cacheDir = File.createTempFile("felix-cache", ".dir");
+        m_cacheDir.delete();
+        m_cacheDir.mkdirs();
+
+        Map<String, Object> params = new HashMap<String, Object>();
+        params.put(Constants.FRAMEWORK_SYSTEMPACKAGES,
+            "org.osgi.framework; version=1.4.0");
+        params.put(Constants.FRAMEWORK_STORAGE, m_cacheDir.getPath());
+        params.put(FelixConstants.EVENT_DISPATCHER_SHARDS_PROP, "2");
+
+        m_felix = new Felix(params);
+        m_felix.init();
+        m_felix.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        m_felix.stop();
+        m_felix.waitForStop(5000);
+        deleteDir(m_cacheDir);
+    }
+
+    public void testSlowListenerDoesNotBlockOtherBundles() throws Exception
+    {
+        Bundle slow = install("slow");
+        Bundle fast = install("fast");
+        slow.start();
+        fast.start();
+        // Consecutive bundle ids are served by different shards.
+        assertEquals(slow.getBundleId() + 1, fast.getBundleId());
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final BlockingQueue<Bundle> slowEvents = new LinkedBlockingQueue<Bundle>();
+        slow.getBundleContext().addBundleListener(new BundleListener()
+        {
+            public void bundleChanged(BundleEvent event)
+            {
+                try
+                {
+                    latch.await(10, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException ex)
+                {
+                    // Ignore.
+                }
+                slowEvents.add(event.getBundle());
+            }
+        });
+        final BlockingQueue<Bundle> fastEvents = new LinkedBlockingQueue<Bundle>();
+        fast.getBundleContext().addBundleListener(new BundleListener()
+        {
+            public void bundleChanged(BundleEvent event)
+            {
+                fastEvents.add(event.getBundle());
+            }
+        });
+
+        Bundle b1 = install("b1");
+        Bundle b2 = install("b2");
+        assertSame(b1, fastEvents.poll(5, TimeUnit.SECONDS));
+        assertSame(b2, fastEvents.poll(5, TimeUnit.SECONDS));
+        assertTrue(slowEvents.isEmpty());
+
+        latch.countDown();
+        assertSame(b1, slowEvents.poll(5, TimeUnit.SECONDS));
+        assertSame(b2, slowEvents.poll(5, TimeUnit.SECONDS));
+    }
+
+    private Bundle install(String bsn) throws Exception
+    {
+        return m_felix.getBundleContext().installBundle(createBundle(
+            "Bundle-SymbolicName: " + bsn + "\n"
+            + "Bundle-ManifestVersion: 2\n").toURI().toString());
+    }
+
+    private File createBundle(String manifest) throws IOException
+    {
+        File f = File.createTempFile("felix-bundle", ".jar", m_cacheDir);
+
+        Manifest mf = new Manifest(new ByteArrayInputStream(manifest.getBytes("utf-8")));
+        mf.getMainAttributes().putValue("Manifest-Version", "1.0");
+        JarOutputStream os = new JarOutputStream(new FileOutputStream(f), mf);
+        os.close();
+        return f;
+    }
+
+    private static void deleteDir(File root) throws IOException
+    {
+        if (root.isDirectory())
+        {
+            for (File file : root.listFiles())
+            {
+                deleteDir(file);
+            }
+        }
+        root.delete();
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.capabilityset;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.wiring.BundleCapabilityImpl;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.resource.Capability;
+
+public class CapabilitySetTest extends TestCase
+{
+    private static final String PKG = BundleRevision.PACKAGE_NAMESPACE;
+
+    private final List<BundleCapability> m_caps = new ArrayList<BundleCapability>();
+
+    @Override
+    protected void setUp()
+    {
+        for (int i = 0; i < 10; i++)
+        {
+            for (int j = 0; j < 3; j++)
+            {
+                Map<String, Object> attrs = new HashMap<String, Object>();
+                attrs.put(PKG, "pkg" + i);
+                attrs.put("version", new Version(j, 0, 0));
+                attrs.put("vendor", (i % 2 == 0) ? "even" : "odd");
+                m_caps.add(new BundleCapabilityImpl(
+                    null, PKG, Collections.<String, String>emptyMap(), attrs));
+            }
+        }
+    }
+
+    public void testIndexedMatchesScan()
+    {
+        CapabilitySet indexed = createCapabilitySet(Collections.singletonList(PKG), true);
+        CapabilitySet scanned = createCapabilitySet(null, false);
+
+        String[] filters = {
+            "(osgi.wiring.package=pkg3)",
+            "(&(osgi.wiring.package=pkg3)(version>=1.0.0))",
+            "(&(osgi.wiring.package=pkg3)(version>=1.0.0)(!(version>=2.0.0)))",
+            "(&(osgi.wiring.package=pkg3)(version=[1.0.0,2.0.0]))",
+            "(&(osgi.wiring.package=pkg3)(version=1))",
+            "(&(vendor=even)(version<=1.0.0))",
+            "(|(osgi.wiring.package=pkg1)(osgi.wiring.package=pkg2))",
+            "(&(|(osgi.wiring.package=pkg1)(vendor=even))(version>=2))",
+            "(osgi.wiring.package>=pkg8)",
+            "(version=[1.0.0,2.0.0])",
+            "(version=invalid)"
+        };
+
+        // Query often enough for auto indices to be created.
+        for (int i = 0; i < 100; i++)
+        {
+            for (String filter : filters)
+            {
+                SimpleFilter sf = SimpleFilter.parse(filter);
+                assertEquals(filter, scan(sf), indexed.match(sf, false));
+                assertEquals(filter, scan(sf), scanned.match(sf, false));
+            }
+        }
+    }
+
+    public void testRemoveCapability()
+    {
+        CapabilitySet capSet = createCapabilitySet(Collections.singletonList(PKG), true);
+        SimpleFilter sf = SimpleFilter.parse("(&(osgi.wiring.package=pkg3)(version>=1.0.0))");
+        assertEquals(2, capSet.match(sf, false).size());
+
+        for (BundleCapability cap : m_caps)
+        {
+            if (cap.getAttributes().get(PKG).equals("pkg3")
+                && cap.getAttributes().get("version").equals(new Version(2, 0, 0)))
+            {
+                capSet.removeCapability(cap);
+            }
+        }
+        assertEquals(1, capSet.match(sf, false).size());
+        assertEquals(scan(SimpleFilter.parse("(version>=2)")).size() - 1,
+            capSet.match(SimpleFilter.parse("(version>=2)"), false).size());
+    }
+
+    private CapabilitySet createCapabilitySet(List<String> indices, boolean autoIndex)
+    {
+        CapabilitySet capSet = new CapabilitySet(indices, true, autoIndex);
+        for (BundleCapability cap : m_caps)
+        {
+            capSet.addCapability(cap);
+        }
+        return capSet;
+    }
+
+    private Set<Capability> scan(SimpleFilter sf)
+    {
+        Set<Capability> result = new HashSet<Capability>();
+        for (BundleCapability cap : m_caps)
+        {
+            if (CapabilitySet.matches(cap, sf))
+            {
+                result.add(cap);
+            }
+        }
+        return result;
+    }
+}
@@ -26,6 +26,8 @@ import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.TestCase;
 
@@ -35,6 +37,8 @@ import org.easymock.EasyMock;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
 import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceListener;
 import org.osgi.framework.ServiceReference;
@@ -151,6 +155,59 @@ public class EventDispatcherTest extends TestCase
         assertTrue(calledHooks.contains(eh2));
     }
 
+    public void testDeliveryStatisticsOfRemovedListeners() throws Exception
+    {
+        final Bundle b1 = getMockBundle();
+        Logger logger = new Logger();
+        EventDispatcher ed = new EventDispatcher(
+            logger, new ServiceRegistry(logger, null), 1);
+
+        FrameworkListener fl1 = new FrameworkListener()
+        {
+            public void frameworkEvent(FrameworkEvent event)
+            {
+            }
+        };
+        ed.startDispatching();
+        ed.addListener(b1.getBundleContext(), FrameworkListener.class, fl1, null);
+        ed.fireFrameworkEvent(new FrameworkEvent(FrameworkEvent.INFO, b1, null));
+        // Stopping delivers the pending events.
+        ed.stopDispatching();
+        assertEquals(1, ed.getDeliveryStatistics().size());
+
+        // The statistics go with the last listener of the bundle.
+        ed.removeListener(b1.getBundleContext(), FrameworkListener.class, fl1);
+        assertTrue(ed.getDeliveryStatistics().isEmpty());
+
+        // A delivery completing after the listener was removed does not
+        // bring them back.
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch blocked = new CountDownLatch(1);
+        FrameworkListener fl2 = new FrameworkListener()
+        {
+            public void frameworkEvent(FrameworkEvent event)
+            {
+                started.countDown();
+                try
+                {
+                    blocked.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        ed.startDispatching();
+        ed.addListener(b1.getBundleContext(), FrameworkListener.class, fl2, null);
+        ed.fireFrameworkEvent(new FrameworkEvent(FrameworkEvent.INFO, b1, null));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        ed.removeListener(b1.getBundleContext(), FrameworkListener.class, fl2);
+        blocked.countDown();
+        ed.stopDispatching();
+        assertTrue(ed.getDeliveryStatistics().isEmpty());
+    }
+
     private Bundle getMockBundle()
     {
         BundleContext bc = EasyMock.createNiceMock(BundleContext.class);
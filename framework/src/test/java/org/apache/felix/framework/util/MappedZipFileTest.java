@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import junit.framework.TestCase;
+
+public class MappedZipFileTest extends TestCase
+{
+    private File m_zip;
+    private byte[] m_content;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        m_content = new byte[16384];
+        for (int i = 0; i < m_content.length; i++)
+        {
+            m_content[i] = (byte) ((i % 65) + 65);
+        }
+
+        m_zip = File.createTempFile("felix.test", ".zip");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(m_zip));
+        zos.putNextEntry(new ZipEntry("dir/"));
+        zos.putNextEntry(new ZipEntry("dir/deflated.txt"));
+        zos.write(m_content);
+        ZipEntry stored = new ZipEntry("dir/stored.txt");
+        stored.setMethod(ZipEntry.STORED);
+        stored.setSize(m_content.length);
+        CRC32 crc = new CRC32();
+        crc.update(m_content);
+        stored.setCrc(crc.getValue());
+        zos.putNextEntry(stored);
+        zos.write(m_content);
+        zos.putNextEntry(new ZipEntry("empty.txt"));
+        // Names with equal hash codes.
+        zos.putNextEntry(new ZipEntry("Aa"));
+        zos.write('1');
+        zos.putNextEntry(new ZipEntry("BB"));
+        zos.write('2');
+        zos.setComment("comment");
+        zos.close();
+    }
+
+    @Override
+    protected void tearDown() throws Exception
+    {
+        m_zip.delete();
+    }
+
+    public void testEntries() throws Exception
+    {
+        MappedZipFile zipFile = new MappedZipFile(m_zip);
+        ZipFile reference = new ZipFile(m_zip);
+        try
+        {
+            Set<String> names = new HashSet<String>();
+            for (Enumeration<ZipEntry> e = zipFile.entries(); e.hasMoreElements(); )
+            {
+                ZipEntry ze = e.nextElement();
+                names.add(ze.getName());
+                ZipEntry ref = reference.getEntry(ze.getName());
+                assertEquals(ref.getSize(), ze.getSize());
+                assertEquals(ref.isDirectory(), ze.isDirectory());
+                assertTrue(Arrays.equals(
+                    read(reference.getInputStream(ref)), zipFile.getBytes(ze)));
+                assertTrue(Arrays.equals(
+                    read(reference.getInputStream(ref)), read(zipFile.getInputStream(ze))));
+            }
+            assertEquals(new HashSet<String>(Arrays.asList(
+                "dir/", "dir/deflated.txt", "dir/stored.txt", "empty.txt", "Aa", "BB")),
+                names);
+        }
+        finally
+        {
+            reference.close();
+            zipFile.close();
+        }
+    }
+
+    public void testGetEntry() throws Exception
+    {
+        MappedZipFile zipFile = new MappedZipFile(m_zip);
+        assertTrue(Arrays.equals(m_content,
+            zipFile.getBytes(zipFile.getEntry("dir/deflated.txt"))));
+        assertTrue(Arrays.equals(m_content,
+            read(zipFile.getInputStream(zipFile.getEntry("dir/stored.txt")))));
+        assertEquals("1", new String(zipFile.getBytes(zipFile.getEntry("Aa"))));
+        assertEquals("2", new String(zipFile.getBytes(zipFile.getEntry("BB"))));
+        assertEquals("dir/", zipFile.getEntry("dir").getName());
+        assertNull(zipFile.getEntry("missing.txt"));
+        assertNull(zipFile.getEntry("dir/stored"));
+
+        zipFile.close();
+        try
+        {
+            zipFile.getEntry("Aa");
+            fail("Closed zip file must not be usable.");
+        }
+        catch (IllegalStateException ex)
+        {
+            // Expected.
+        }
+    }
+
+    private static byte[] read(InputStream is) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        byte[] buf = new byte[1000];
+        int n;
+        while ((n = is.read(buf)) >= 0)
+        {
+            baos.write(buf, 0, n);
+        }
+        is.close();
+        return baos.toByteArray();
+    }
+}
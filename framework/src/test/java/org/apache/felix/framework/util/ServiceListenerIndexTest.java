@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.FilterImpl;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.UnfilteredServiceListener;
+
+public class ServiceListenerIndexTest extends TestCase
+{
+    public void testSelect() throws Exception
+    {
+        BundleContext bc1 = proxy(BundleContext.class, null);
+        BundleContext bc2 = proxy(BundleContext.class, null);
+
+        Map<BundleContext, List<ListenerInfo>> listeners =
+            new HashMap<BundleContext, List<ListenerInfo>>();
+        ListenerInfo foo = add(listeners, bc1, "(objectClass=foo)", false);
+        ListenerInfo fooOrBar = add(listeners, bc1, "(|(objectClass=foo)(objectClass=bar))", false);
+        ListenerInfo barAndProp = add(listeners, bc2, "(&(prop=1)(OBJECTCLASS=bar))", false);
+        ListenerInfo all = add(listeners, bc2, null, false);
+        ListenerInfo prop = add(listeners, bc2, "(prop=1)", false);
+        ListenerInfo wildcard = add(listeners, bc2, "(objectClass=foo*)", false);
+        ListenerInfo unfiltered = add(listeners, bc1, "(objectClass=baz)", true);
+
+        ServiceListenerIndex index = new ServiceListenerIndex(listeners, null);
+        assertTrue(index.isIndexOf(listeners));
+
+        assertEquals(set(foo, fooOrBar, all, prop, wildcard, unfiltered),
+            select(index, "foo"));
+        assertEquals(set(fooOrBar, barAndProp, all, prop, wildcard, unfiltered),
+            select(index, "bar"));
+        assertEquals(set(foo, fooOrBar, barAndProp, all, prop, wildcard, unfiltered),
+            select(index, "foo", "bar"));
+        assertEquals(set(all, prop, wildcard, unfiltered),
+            select(index, "baz"));
+
+        // Rebuilding for a new snapshot reuses and keeps the listeners.
+        Map<BundleContext, List<ListenerInfo>> copy =
+            new HashMap<BundleContext, List<ListenerInfo>>(listeners);
+        copy.remove(bc2);
+        ServiceListenerIndex rebuilt = new ServiceListenerIndex(copy, index);
+        assertFalse(rebuilt.isIndexOf(listeners));
+        assertEquals(set(foo, fooOrBar, unfiltered), select(rebuilt, "foo"));
+        assertEquals(set(unfiltered), select(rebuilt, "other"));
+    }
+
+    private static ListenerInfo add(Map<BundleContext, List<ListenerInfo>> listeners,
+        BundleContext bc, String filter, boolean unfiltered) throws Exception
+    {
+        ServiceListener l = unfiltered
+            ? proxy(UnfilteredServiceListener.class, null)
+            : proxy(ServiceListener.class, null);
+        ListenerInfo info = new ListenerInfo(null, bc, ServiceListener.class, l,
+            (filter == null) ? null : new FilterImpl(filter), null, false);
+        List<ListenerInfo> list = listeners.get(bc);
+        if (list == null)
+        {
+            list = new ArrayList<ListenerInfo>();
+            listeners.put(bc, list);
+        }
+        list.add(info);
+        return info;
+    }
+
+    private static Set<ListenerInfo> select(ServiceListenerIndex index, String... classes)
+    {
+        Map<String, Object> props = new HashMap<String, Object>();
+        props.put(Constants.OBJECTCLASS, classes);
+        ServiceReference ref = proxy(ServiceReference.class, props);
+        Set<ListenerInfo> result = new HashSet<ListenerInfo>();
+        for (List<ListenerInfo> infos : index.select(ref).values())
+        {
+            result.addAll(infos);
+        }
+        return result;
+    }
+
+    private static Set<ListenerInfo> set(ListenerInfo... infos)
+    {
+        Set<ListenerInfo> result = new HashSet<ListenerInfo>();
+        for (ListenerInfo info : infos)
+        {
+            result.add(info);
+        }
+        return result;
+    }
+
+    private static <T> T proxy(Class<T> clazz, final Map<String, Object> props)
+    {
+        return clazz.cast(Proxy.newProxyInstance(
+            ServiceListenerIndexTest.class.getClassLoader(), new Class[] { clazz },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    if (method.getName().equals("getProperty"))
+                    {
+                        return props.get(args[0]);
+                    }
+                    if (method.getName().equals("equals"))
+                    {
+                        return Boolean.valueOf(proxy == args[0]);
+                    }
+                    if (method.getName().equals("hashCode"))
+                    {
+                        return Integer.valueOf(System.identityHashCode(proxy));
+                    }
+                    return null;
+                }
+            }));
+    }
+}
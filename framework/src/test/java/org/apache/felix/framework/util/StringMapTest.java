@@ -0,0 +1,140 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+public class StringMapTest extends TestCase
+{
+    public void testCaseInsensitiveLookup()
+    {
+        StringMap map = new StringMap();
+        map.put("Bundle-SymbolicName", "foo");
+        map.put("Import-Package", "org.foo");
+
+        assertEquals("foo", map.get("bundle-symbolicname"));
+        assertEquals("foo", map.get("BUNDLE-SYMBOLICNAME"));
+        assertTrue(map.containsKey("import-PACKAGE"));
+        assertNull(map.get("Export-Package"));
+        assertNull(map.get(Integer.valueOf(1)));
+
+        assertEquals("foo", map.put("BUNDLE-SYMBOLICNAME", "bar"));
+        assertEquals(2, map.size());
+        // The key of the first put is kept.
+        assertEquals("Bundle-SymbolicName", map.keySet().iterator().next());
+        assertEquals("bar", map.get("Bundle-SymbolicName"));
+    }
+
+    public void testNonAsciiKeys()
+    {
+        StringMap map = new StringMap();
+        map.put("\u00c4rger", "a");
+        assertEquals("a", map.get("\u00e4RGER"));
+        // The Kelvin sign equals 'k' according to StringComparator.
+        map.put("k", "k");
+        assertEquals(0, StringComparator.COMPARATOR.compare("k", "\u212a"));
+        assertEquals("k", map.get("\u212a"));
+    }
+
+    public void testInsertionOrder()
+    {
+        StringMap map = new StringMap();
+        List<String> keys = Arrays.asList(
+            "Manifest-Version", "Bundle-Name", "Bundle-Version", "Export-Package");
+        for (String key : keys)
+        {
+            map.put(key, key.length());
+        }
+        assertEquals(keys, new ArrayList<String>(map.keySet()));
+
+        map.remove("BUNDLE-NAME");
+        assertEquals(Arrays.asList("Manifest-Version", "Bundle-Version", "Export-Package"),
+            new ArrayList<String>(map.keySet()));
+        assertEquals(Integer.valueOf(14), map.get("export-package"));
+    }
+
+    public void testIteratorRemoveAndSetValue()
+    {
+        StringMap map = new StringMap();
+        for (int i = 0; i < 10; i++)
+        {
+            map.put("key" + i, i);
+        }
+        for (Iterator<Map.Entry<String, Object>> it = map.entrySet().iterator(); it.hasNext(); )
+        {
+            Map.Entry<String, Object> entry = it.next();
+            if (((Integer) entry.getValue()) % 2 == 0)
+            {
+                it.remove();
+            }
+            else
+            {
+                entry.setValue("odd");
+            }
+        }
+        assertEquals(5, map.size());
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals((i % 2 == 0) ? null : "odd", map.get("KEY" + i));
+        }
+    }
+
+    public void testSameAsTreeMap()
+    {
+        // Compare random operations with the tree map previously used.
+        Random random = new Random(42);
+        StringMap map = new StringMap();
+        Map<String, Object> reference = new TreeMap<String, Object>(StringComparator.COMPARATOR);
+        for (int i = 0; i < 10000; i++)
+        {
+            StringBuilder sb = new StringBuilder();
+            for (int j = random.nextInt(4); j >= 0; j--)
+            {
+                sb.append("aBcD".charAt(random.nextInt(4)));
+            }
+            String key = sb.toString();
+            switch (random.nextInt(3))
+            {
+                case 0:
+                    assertEquals(reference.put(key, i), map.put(key, i));
+                    break;
+                case 1:
+                    assertEquals(reference.remove(key), map.remove(key));
+                    break;
+                default:
+                    assertEquals(reference.get(key), map.get(key));
+            }
+            assertEquals(reference.size(), map.size());
+        }
+        assertEquals(reference, map);
+        assertEquals(new HashMap<String, Object>(reference), new StringMap(map));
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get("a"));
+    }
+}
@@ -109,4 +109,14 @@ public class UtilTest extends TestCase
         v = Util.substVars(props.getProperty("one"), "one", null, props);
         assertEquals("2 middle text 3", v);
     }
-}
\ No newline at end of file
+
+    public void testGetThreadCount()
+    {
+        assertEquals(3, Util.getThreadCount(null, 3));
+        assertEquals(Runtime.getRuntime().availableProcessors(), Util.getThreadCount(" true ", 1));
+        assertEquals(1, Util.getThreadCount("false", 1));
+        assertEquals(4, Util.getThreadCount("4", 1));
+        assertEquals(0, Util.getThreadCount("-2", 1));
+        assertEquals(1, Util.getThreadCount("many", 1));
+    }
+}
@@ -0,0 +1,159 @@
+/* 
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.framework.util.manifestparser;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.framework.util.FelixConstants;
+import org.apache.felix.framework.wiring.BundleRequirementImpl;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRequirement;
+
+public class ManifestCacheTest extends TestCase
+{
+    public void testRoundTrip() throws Exception
+    {
+        Map<String, String> headers = createHeaders();
+        ManifestParser mp = new ManifestParser(null, null, null, headers);
+        ManifestParser cached = ManifestCache.read(
+            null, null, null, headers, new ByteArrayInputStream(write(mp, headers)));
+
+        assertNotNull(cached);
+        assertEquals(mp.getSymbolicName(), cached.getSymbolicName());
+        assertEquals(mp.getBundleVersion(), cached.getBundleVersion());
+        assertEquals(mp.getActivationPolicy(), cached.getActivationPolicy());
+        assertEquals(mp.getActivationIncludeDirective(), cached.getActivationIncludeDirective());
+
+        List<BundleCapability> caps = mp.getCapabilities();
+        List<BundleCapability> cachedCaps = cached.getCapabilities();
+        assertEquals(caps.size(), cachedCaps.size());
+        for (int i = 0; i < caps.size(); i++)
+        {
+            assertEquals(caps.get(i).getNamespace(), cachedCaps.get(i).getNamespace());
+            assertEquals(caps.get(i).getDirectives(), cachedCaps.get(i).getDirectives());
+            assertEquals(caps.get(i).getAttributes(), cachedCaps.get(i).getAttributes());
+        }
+
+        List<BundleRequirement> reqs = mp.getRequirements();
+        List<BundleRequirement> cachedReqs = cached.getRequirements();
+        assertEquals(reqs.size(), cachedReqs.size());
+        for (int i = 0; i < reqs.size(); i++)
+        {
+            assertEquals(reqs.get(i).getNamespace(), cachedReqs.get(i).getNamespace());
+            assertEquals(reqs.get(i).getDirectives(), cachedReqs.get(i).getDirectives());
+            assertEquals(reqs.get(i).getAttributes(), cachedReqs.get(i).getAttributes());
+            assertEquals(
+                ((BundleRequirementImpl) reqs.get(i)).getFilter().toString(),
+                ((BundleRequirementImpl) cachedReqs.get(i)).getFilter().toString());
+        }
+
+        // Typed attributes keep their type.
+        Map<String, Object> attrs = findCapability(cachedCaps, "test.cap").getAttributes();
+        assertEquals(new Version("1.2"), attrs.get("version"));
+        assertEquals(Long.valueOf(3), ((List) attrs.get("ids")).get(0));
+
+        // The restored filters still match.
+        for (BundleRequirement req : cachedReqs)
+        {
+            if (req.getNamespace().equals("test.cap"))
+            {
+                assertTrue(req.matches(findCapability(cachedCaps, "test.cap")));
+            }
+        }
+    }
+
+    public void testChangedManifestIsIgnored() throws Exception
+    {
+        Map<String, String> headers = createHeaders();
+        ManifestParser mp = new ManifestParser(null, null, null, headers);
+        byte[] bytes = write(mp, headers);
+
+        headers.put(Constants.IMPORT_PACKAGE, "other.pkg");
+        assertNull(ManifestCache.read(
+            null, null, null, headers, new ByteArrayInputStream(bytes)));
+    }
+
+    public void testChangedFrameworkVersionIsIgnored() throws Exception
+    {
+        Map<String, String> headers = createHeaders();
+        ManifestParser mp = new ManifestParser(null, null, null, headers);
+        Map<String, String> config = new HashMap<String, String>();
+        config.put(FelixConstants.FELIX_VERSION_PROPERTY, "1.0.0");
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ManifestCache.write(mp, config, headers, os);
+        byte[] bytes = os.toByteArray();
+
+        assertNotNull(ManifestCache.read(
+            null, config, null, headers, new ByteArrayInputStream(bytes)));
+        config.put(FelixConstants.FELIX_VERSION_PROPERTY, "1.0.1");
+        assertNull(ManifestCache.read(
+            null, config, null, headers, new ByteArrayInputStream(bytes)));
+    }
+
+    private static Map<String, String> createHeaders()
+    {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put(Constants.BUNDLE_MANIFESTVERSION, "2");
+        headers.put(Constants.BUNDLE_SYMBOLICNAME, "test.bundle;singleton:=true");
+        headers.put(Constants.BUNDLE_VERSION, "1.0.0.qualifier");
+        headers.put(Constants.BUNDLE_ACTIVATIONPOLICY, "lazy;include:=\"test.pkg\"");
+        headers.put(Constants.EXPORT_PACKAGE,
+            "test.pkg;version=1.1;uses:=\"test.impl,org.osgi.framework\","
+            + "test.api;mandatory:=vendor;vendor=apache");
+        headers.put(Constants.IMPORT_PACKAGE,
+            "org.osgi.framework;version=\"[1.4,2)\",test.opt;resolution:=optional");
+        headers.put(Constants.DYNAMICIMPORT_PACKAGE, "test.dyn.*");
+        headers.put(Constants.REQUIRE_BUNDLE, "other.bundle;bundle-version=\"(1.0,2.0]\"");
+        headers.put(Constants.PROVIDE_CAPABILITY,
+            "test.cap;test.cap=foo;version:Version=1.2;ids:List<Long>=\"3,4\"");
+        headers.put(Constants.REQUIRE_CAPABILITY,
+            "test.cap;filter:=\"(&(test.cap=f*)(version>=1.0))\"");
+        return headers;
+    }
+
+    private static byte[] write(ManifestParser mp, Map<String, String> headers)
+        throws Exception
+    {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        ManifestCache.write(mp, null, headers, os);
+        return os.toByteArray();
+    }
+
+    private static BundleCapability findCapability(
+        List<BundleCapability> caps, String namespace) throws BundleException
+    {
+        for (BundleCapability cap : caps)
+        {
+            if (cap.getNamespace().equals(namespace))
+            {
+                return cap;
+            }
+        }
+        throw new BundleException("No capability for " + namespace);
+    }
+}
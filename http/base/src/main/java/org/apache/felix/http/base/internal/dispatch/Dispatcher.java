@@ -25,6 +25,7 @@ import javax.servlet.RequestDispatcher;
 import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletRequestEvent;
+import javax.servlet.ServletRequestListener;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
@@ -70,29 +71,23 @@ public final class Dispatcher
     public void dispatch(final HttpServletRequest req, final HttpServletResponse res) throws ServletException, IOException
     {
         // check for invalidating session(s) first
-        final HttpSession session = req.getSession(false);
-        if ( session != null )
+        final WhiteboardManager mgr = this.whiteboardManager;
+        if ( mgr != null )
         {
-            final Set<Long> ids = HttpSessionWrapper.getExpiredSessionContextIds(session);
-            final WhiteboardManager mgr = this.whiteboardManager;
-            if ( mgr != null )
+            final HttpSession session = req.getSession(false);
+            if ( session != null )
             {
-                this.whiteboardManager.sessionDestroyed(session, ids);
+                final Set<Long> ids = HttpSessionWrapper.getExpiredSessionContextIds(session);
+                if ( !ids.isEmpty() )
+                {
+                    mgr.sessionDestroyed(session, ids);
+                }
             }
         }
 
         // get full decoded path for dispatching
         // we can't use req.getRequestURI() or req.getRequestURL() as these are returning the encoded path
-        String path = req.getServletPath();
-        if ( path == null )
-        {
-            path = "";
-        }
-        if ( req.getPathInfo() != null )
-        {
-            path = path.concat(req.getPathInfo());
-        }
-        final String requestURI = path;
+        final String requestURI = getDecodedPath(req.getServletPath(), req.getPathInfo());
 
         // Determine which servlet we should forward the request to...
         final PathResolution pr = this.handlerRegistry.resolveServlet(requestURI);
@@ -114,11 +109,14 @@ public final class Dispatcher
                 pr.handler.getServletInfo().isAsyncSupported());
         final FilterHandler[] filterHandlers = this.handlerRegistry.getFilters(pr, req.getDispatcherType(), pr.requestURI);
 
+        // the listener is looked up once so the same event is used for both notifications
+        final ServletRequestListener requestListener = servletContext.getServletRequestListener();
+        final ServletRequestEvent requestEvent = (requestListener != null ? new ServletRequestEvent(servletContext, wrappedRequest) : null);
         try
         {
-            if ( servletContext.getServletRequestListener() != null )
+            if ( requestListener != null )
             {
-                servletContext.getServletRequestListener().requestInitialized(new ServletRequestEvent(servletContext, wrappedRequest));
+                requestListener.requestInitialized(requestEvent);
             }
             final FilterChain filterChain = new InvocationChain(pr.handler, filterHandlers);
             filterChain.doFilter(wrappedRequest, wrappedResponse);
@@ -134,10 +132,27 @@ public final class Dispatcher
         }
         finally
         {
-            if ( servletContext.getServletRequestListener() != null )
+            if ( requestListener != null )
             {
-                servletContext.getServletRequestListener().requestDestroyed(new ServletRequestEvent(servletContext, wrappedRequest));
+                requestListener.requestDestroyed(requestEvent);
             }
         }
     }
+
+    /**
+     * Combine servlet path and path info without creating a new string
+     * if one of them is empty.
+     */
+    static String getDecodedPath(@CheckForNull final String servletPath, @CheckForNull final String pathInfo)
+    {
+        if ( pathInfo == null || pathInfo.isEmpty() )
+        {
+            return servletPath == null ? "" : servletPath;
+        }
+        if ( servletPath == null || servletPath.isEmpty() )
+        {
+            return pathInfo;
+        }
+        return servletPath.concat(pathInfo);
+    }
 }
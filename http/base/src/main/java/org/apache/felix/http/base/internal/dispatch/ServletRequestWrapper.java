@@ -56,7 +56,7 @@ final class ServletRequestWrapper extends HttpServletRequestWrapper
     		ExtServletContext servletContext,
     		RequestInfo requestInfo,
             DispatcherType type,
-            final Long contextId,
+            final long contextId,
             final boolean asyncSupported)
     {
         super(req);
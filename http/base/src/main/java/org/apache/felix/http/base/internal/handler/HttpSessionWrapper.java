@@ -21,6 +21,7 @@ package org.apache.felix.http.base.internal.handler;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
 import java.util.List;
@@ -58,6 +59,9 @@ public class HttpSessionWrapper implements HttpSession
     /** The max inactive time (appended with context id), in seconds. */
     private static final String ATTR_MAX_INACTIVE = PREFIX + "maxinactive.";
 
+    /** Marker set as long as the container session holds at least one internal session. */
+    private static final String ATTR_CONTEXTS = PREFIX + "contexts";
+
     /** The underlying container session. */
     private final HttpSession delegate;
 
@@ -93,28 +97,49 @@ public class HttpSessionWrapper implements HttpSession
         return session.getAttribute(ATTR_CREATED + sessionId) != null;
     }
 
+    /**
+     * Get the ids of all internal sessions of the container session which are expired.
+     * This is called for every request, therefore the attributes are only scanned
+     * if the session holds an internal session and a set is only created if
+     * an expired session is found.
+     */
     public static Set<Long> getExpiredSessionContextIds(final HttpSession session)
     {
+        if ( session.getAttribute(ATTR_CONTEXTS) == null )
+        {
+            return Collections.emptySet();
+        }
         final long now = System.currentTimeMillis();
 
-        final Set<Long> ids = new HashSet<Long>();
+        Set<Long> ids = null;
         final Enumeration<String> names = session.getAttributeNames();
         while (names.hasMoreElements())
         {
             final String name = names.nextElement();
             if (name.startsWith(ATTR_LAST_ACCESSED))
             {
-                final String id = name.substring(ATTR_LAST_ACCESSED.length());
-
                 final long lastAccess = (Long) session.getAttribute(name);
+                if ( lastAccess >= now )
+                {
+                    continue;
+                }
+                final String id = name.substring(ATTR_LAST_ACCESSED.length());
                 final long maxTimeout = 1000L * ((Integer) session.getAttribute(ATTR_MAX_INACTIVE + id));
 
                 if ((maxTimeout > 0) && (lastAccess + maxTimeout) < now)
                 {
+                    if ( ids == null )
+                    {
+                        ids = new HashSet<Long>();
+                    }
                     ids.add(Long.valueOf(id));
                 }
             }
         }
+        if ( ids == null )
+        {
+            return Collections.emptySet();
+        }
         return ids;
     }
 
@@ -175,6 +200,11 @@ public class HttpSessionWrapper implements HttpSession
             if ( !terminate )
             {
                 session.setAttribute(ATTR_LAST_ACCESSED + this.sessionId, this.lastAccessed);
+                // sessions created before the marker was introduced get it on their next access
+                if ( session.getAttribute(ATTR_CONTEXTS) == null )
+                {
+                    session.setAttribute(ATTR_CONTEXTS, Boolean.TRUE);
+                }
             }
         }
         else
@@ -342,12 +372,32 @@ public class HttpSessionWrapper implements HttpSession
             }
         }
 
-        // if the session is empty we can invalidate
+        // if the session is empty we can invalidate, if only
+        // internal sessions are gone, the marker is removed
+        boolean isEmpty = true;
+        boolean hasContexts = false;
         final Enumeration<String> names = this.delegate.getAttributeNames();
-        if ( !names.hasMoreElements() )
+        while ( names.hasMoreElements() )
+        {
+            final String name = names.nextElement();
+            if ( !ATTR_CONTEXTS.equals(name) )
+            {
+                isEmpty = false;
+                if ( name.startsWith(ATTR_CREATED) )
+                {
+                    hasContexts = true;
+                    break;
+                }
+            }
+        }
+        if ( isEmpty )
         {
             this.delegate.invalidate();
         }
+        else if ( !hasContexts )
+        {
+            this.delegate.removeAttribute(ATTR_CONTEXTS);
+        }
 
         this.isInvalid = true;
     }
@@ -19,8 +19,11 @@ package org.apache.felix.http.base.internal.registry;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
@@ -28,6 +31,8 @@ import javax.servlet.DispatcherType;
 
 import org.apache.felix.http.base.internal.handler.FilterHandler;
 import org.apache.felix.http.base.internal.handler.ServletHandler;
+import org.apache.felix.http.base.internal.registry.PathResolverFactory.DefaultMatcher;
+import org.apache.felix.http.base.internal.registry.PathResolverFactory.PathMatcher;
 import org.apache.felix.http.base.internal.runtime.FilterInfo;
 import org.apache.felix.http.base.internal.runtime.dto.FilterDTOBuilder;
 import org.osgi.service.http.runtime.dto.FailedFilterDTO;
@@ -43,6 +48,11 @@ public final class FilterRegistry
     /** List of all filter registrations. These are sorted by the status objects. */
     private volatile List<FilterRegistrationStatus> filters = Collections.emptyList();
 
+    /** The active filters per dispatcher type, rebuilt whenever the filters change. */
+    private volatile ActiveFilters activeFilters = ActiveFilters.EMPTY;
+
+    private static final FilterHandler[] EMPTY_HANDLERS = new FilterHandler[0];
+
     /**
      * The status object keeps track of the registration status of a filter and holds
      * the resolvers to match against a uri.
@@ -56,12 +66,27 @@ public final class FilterRegistry
         private final int result;
         private final FilterHandler handler;
         private final PathResolver[] resolvers;
+        private final boolean matchesAll;
 
         public FilterRegistrationStatus(@Nonnull final FilterHandler handler, @CheckForNull final PathResolver[] resolvers, final int result)
         {
             this.handler = handler;
             this.resolvers = resolvers;
             this.result = result;
+            boolean matchesAll = false;
+            if ( resolvers != null )
+            {
+                for(final PathResolver resolver : resolvers)
+                {
+                    if ( resolver instanceof DefaultMatcher
+                         || (resolver instanceof PathMatcher && resolver.getPattern().equals("/*")) )
+                    {
+                        matchesAll = true;
+                        break;
+                    }
+                }
+            }
+            this.matchesAll = matchesAll;
         }
 
         public int getResult()
@@ -79,6 +104,20 @@ public final class FilterRegistry
             return this.resolvers;
         }
 
+        /**
+         * Whether the filter matches every request uri which is either empty
+         * or starts with a slash.
+         */
+        public boolean matchesAll()
+        {
+            return this.matchesAll;
+        }
+
+        public boolean hasResolvers()
+        {
+            return this.resolvers != null && this.resolvers.length > 0;
+        }
+
         @Override
         public int compareTo(final FilterRegistrationStatus o) {
             int result = this.result - o.result;
@@ -125,7 +164,7 @@ public final class FilterRegistry
         newList.add(status);
         Collections.sort(newList);
 
-        this.filters = newList;
+        this.setFilters(newList);
     }
 
     /**
@@ -150,7 +189,7 @@ public final class FilterRegistry
         }
         if ( found != null )
         {
-            this.filters = newList;
+            this.setFilters(newList);
 
             if ( found.getResult() == -1 && destroy )
             {
@@ -161,7 +200,13 @@ public final class FilterRegistry
 
     public synchronized void cleanup()
     {
-        this.filters = Collections.emptyList();
+        this.setFilters(Collections.<FilterRegistrationStatus>emptyList());
+    }
+
+    private void setFilters(final List<FilterRegistrationStatus> newList)
+    {
+        this.activeFilters = newList.isEmpty() ? ActiveFilters.EMPTY : new ActiveFilters(newList);
+        this.filters = newList;
     }
 
     /**
@@ -176,65 +221,172 @@ public final class FilterRegistry
             @Nonnull final DispatcherType dispatcherType,
             @Nonnull final String requestURI)
     {
-        final List<FilterHandler> result = new ArrayList<FilterHandler>();
-        final List<FilterRegistrationStatus> allFilters = this.filters;
+        // check for servlet name if it's not a resource
+        final String servletName = (handler != null && !handler.getServletInfo().isResource()) ? handler.getName() : null;
 
-        for(final FilterRegistrationStatus status : allFilters)
+        return this.activeFilters.getFilterHandlers(servletName, dispatcherType, requestURI);
+    }
+
+    /**
+     * Check if the filter is registered for the required dispatcher type
+     * @param handler The filter handler
+     * @param dispatcherType The requested dispatcher type
+     * @return {@code true} if the filter can be applied.
+     */
+    private static boolean referencesDispatcherType(final FilterHandler handler, final DispatcherType dispatcherType)
+    {
+        for(final DispatcherType dt : handler.getFilterInfo().getDispatcher())
         {
-            // as soon as we encounter a failing filter, we can stop
-            if ( status.getResult() != -1 )
+            if ( dt == dispatcherType )
             {
-                break;
+                return true;
             }
-            if (referencesDispatcherType(status.getHandler(), dispatcherType) )
+        }
+        return false;
+    }
+
+    /**
+     * Check if the filter is registered for the servlet name
+     * @param handler The filter handler
+     * @param servletName The servlet name
+     * @return {@code true} if the filter can be applied.
+     */
+    private static boolean referencesServletName(final FilterHandler handler, final String servletName)
+    {
+        if ( handler.getFilterInfo().getServletNames() != null )
+        {
+            for(final String name : handler.getFilterInfo().getServletNames())
             {
-                boolean added = false;
-                for(final PathResolver resolver : status.getResolvers())
+                if ( servletName.equals(name) )
                 {
-                    if ( resolver.resolve(requestURI) != null )
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The active filters keeps the active filters per dispatcher type.
+     * If none of the filters for a dispatcher type depends on the request uri,
+     * that is every filter either matches all uris or is only registered for
+     * servlet names, the filter chain only depends on the servlet. These chains
+     * are resolved upfront and kept per servlet name.
+     */
+    private static final class ActiveFilters
+    {
+        public static final ActiveFilters EMPTY = new ActiveFilters(Collections.<FilterRegistrationStatus>emptyList());
+
+        /** The active filters per dispatcher type, in processing order. */
+        private final Map<DispatcherType, FilterRegistrationStatus[]> filters = new EnumMap<DispatcherType, FilterRegistrationStatus[]>(DispatcherType.class);
+
+        /** Resolved chains for requests not handled by a named servlet. */
+        private final Map<DispatcherType, FilterHandler[]> chains = new EnumMap<DispatcherType, FilterHandler[]>(DispatcherType.class);
+
+        /** Resolved chains for servlets referenced by name by a filter. */
+        private final Map<DispatcherType, Map<String, FilterHandler[]>> chainsByServletName = new EnumMap<DispatcherType, Map<String, FilterHandler[]>>(DispatcherType.class);
+
+        public ActiveFilters(@Nonnull final List<FilterRegistrationStatus> allFilters)
+        {
+            for(final DispatcherType dispatcherType : DispatcherType.values())
+            {
+                final List<FilterRegistrationStatus> list = new ArrayList<FilterRegistrationStatus>();
+                boolean dependsOnURI = false;
+                for(final FilterRegistrationStatus status : allFilters)
+                {
+                    // as soon as we encounter a failing filter, we can stop
+                    if ( status.getResult() != -1 )
                     {
-                        result.add(status.getHandler());
-                        added = true;
                         break;
                     }
+                    if ( referencesDispatcherType(status.getHandler(), dispatcherType) )
+                    {
+                        list.add(status);
+                        dependsOnURI |= !status.matchesAll() && status.hasResolvers();
+                    }
                 }
-                // check for servlet name if it's not a resource
-                final String servletName = (handler != null && !handler.getServletInfo().isResource()) ? handler.getName() : null;
-                if ( !added && servletName != null && status.getHandler().getFilterInfo().getServletNames() != null )
+                final FilterRegistrationStatus[] statuses = list.toArray(new FilterRegistrationStatus[list.size()]);
+                this.filters.put(dispatcherType, statuses);
+
+                if ( !dependsOnURI )
                 {
-                    for(final String name : status.getHandler().getFilterInfo().getServletNames())
+                    this.chains.put(dispatcherType, getChain(statuses, null));
+
+                    final Map<String, FilterHandler[]> byName = new HashMap<String, FilterHandler[]>();
+                    for(final FilterRegistrationStatus status : statuses)
                     {
-                        if ( servletName.equals(name) )
+                        if ( status.getHandler().getFilterInfo().getServletNames() != null )
                         {
-                            result.add(status.getHandler());
-                            added = true;
-                            break;
+                            for(final String name : status.getHandler().getFilterInfo().getServletNames())
+                            {
+                                if ( !byName.containsKey(name) )
+                                {
+                                    byName.put(name, getChain(statuses, name));
+                                }
+                            }
                         }
                     }
+                    this.chainsByServletName.put(dispatcherType, byName);
                 }
-
             }
         }
 
-        return result.toArray(new FilterHandler[result.size()]);
-    }
+        private static FilterHandler[] getChain(final FilterRegistrationStatus[] statuses, final String servletName)
+        {
+            final List<FilterHandler> result = new ArrayList<FilterHandler>();
+            for(final FilterRegistrationStatus status : statuses)
+            {
+                if ( status.matchesAll() || (servletName != null && referencesServletName(status.getHandler(), servletName)) )
+                {
+                    result.add(status.getHandler());
+                }
+            }
+            return result.isEmpty() ? EMPTY_HANDLERS : result.toArray(new FilterHandler[result.size()]);
+        }
 
-    /**
-     * Check if the filter is registered for the required dispatcher type
-     * @param handler The filter handler
-     * @param dispatcherType The requested dispatcher type
-     * @return {@code true} if the filter can be applied.
-     */
-    private boolean referencesDispatcherType(final FilterHandler handler, final DispatcherType dispatcherType)
-    {
-        for(final DispatcherType dt : handler.getFilterInfo().getDispatcher())
+        public @Nonnull FilterHandler[] getFilterHandlers(@CheckForNull final String servletName,
+                @Nonnull final DispatcherType dispatcherType,
+                @Nonnull final String requestURI)
         {
-            if ( dt == dispatcherType )
+            final FilterHandler[] chain = this.chains.get(dispatcherType);
+            if ( chain != null && (requestURI.length() == 0 || requestURI.charAt(0) == '/') )
             {
-                return true;
+                if ( servletName != null )
+                {
+                    final FilterHandler[] namedChain = this.chainsByServletName.get(dispatcherType).get(servletName);
+                    if ( namedChain != null )
+                    {
+                        return namedChain;
+                    }
+                }
+                return chain;
             }
+
+            final FilterRegistrationStatus[] statuses = this.filters.get(dispatcherType);
+            if ( statuses.length == 0 )
+            {
+                return EMPTY_HANDLERS;
+            }
+            final List<FilterHandler> result = new ArrayList<FilterHandler>();
+            for(final FilterRegistrationStatus status : statuses)
+            {
+                boolean added = false;
+                for(final PathResolver resolver : status.getResolvers())
+                {
+                    if ( resolver.resolve(requestURI) != null )
+                    {
+                        result.add(status.getHandler());
+                        added = true;
+                        break;
+                    }
+                }
+                if ( !added && servletName != null && referencesServletName(status.getHandler(), servletName) )
+                {
+                    result.add(status.getHandler());
+                }
+            }
+            return result.toArray(new FilterHandler[result.size()]);
         }
-        return false;
     }
 
     /**
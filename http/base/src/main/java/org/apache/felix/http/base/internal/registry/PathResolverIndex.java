@@ -0,0 +1,275 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.http.base.internal.registry;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.apache.felix.http.base.internal.registry.PathResolverFactory.DefaultMatcher;
+import org.apache.felix.http.base.internal.registry.PathResolverFactory.ExactAndPathMatcher;
+import org.apache.felix.http.base.internal.registry.PathResolverFactory.ExactMatcher;
+import org.apache.felix.http.base.internal.registry.PathResolverFactory.ExtensionMatcher;
+import org.apache.felix.http.base.internal.registry.PathResolverFactory.PathMatcher;
+import org.apache.felix.http.base.internal.registry.PathResolverFactory.RootMatcher;
+
+/**
+ * The path resolver index is a compiled, immutable view of a sorted list of
+ * path resolvers. Instead of asking every resolver in turn, a request uri is
+ * looked up in
+ * - a map of exact patterns,
+ * - a character trie holding the prefixes of path patterns, walked once to
+ *   find the longest matching prefix,
+ * - a map of extensions, probed for every suffix of the uri starting with a dot.
+ *
+ * The index returns the same resolver as the first matching resolver of the
+ * sorted list would be: exact matches before longest path match before
+ * extension match before root and default match.
+ * If the list contains resolvers of an unknown kind, the index falls back to
+ * iterating the list.
+ */
+final class PathResolverIndex
+{
+    public static final PathResolverIndex EMPTY = new PathResolverIndex(Collections.<PathResolver>emptyList());
+
+    /** The sorted resolvers, only set if they can't be indexed. */
+    private final List<PathResolver> resolvers;
+
+    /** Exact and exact-and-path patterns. */
+    private final Map<String, PathResolver> exactMatches = new HashMap<String, PathResolver>();
+
+    /** The path of path patterns, matched exactly. */
+    private final Map<String, PathResolver> pathMatches = new HashMap<String, PathResolver>();
+
+    /** Extensions including the leading dot. */
+    private final Map<String, PathResolver> extensionMatches = new HashMap<String, PathResolver>();
+
+    /** Prefixes of exact-and-path and path patterns. */
+    private final Node prefixes = new Node();
+
+    private PathResolver rootMatcher;
+
+    private PathResolver defaultMatcher;
+
+    /**
+     * Create a new index
+     * @param sortedResolvers The resolvers, sorted by priority
+     */
+    public PathResolverIndex(@Nonnull final List<PathResolver> sortedResolvers)
+    {
+        boolean indexed = true;
+        // as the resolvers are sorted, the first resolver registered for
+        // a key is the one with the highest priority
+        for(final PathResolver resolver : sortedResolvers)
+        {
+            final String pattern = resolver.getPattern();
+            if ( resolver instanceof ExactMatcher )
+            {
+                putIfAbsent(this.exactMatches, pattern, resolver);
+            }
+            else if ( resolver instanceof ExactAndPathMatcher )
+            {
+                putIfAbsent(this.exactMatches, pattern, resolver);
+                final Node node = this.prefixes.add(pattern.concat("/"));
+                if ( node.exactAndPathMatcher == null )
+                {
+                    node.exactAndPathMatcher = resolver;
+                }
+            }
+            else if ( resolver instanceof PathMatcher )
+            {
+                putIfAbsent(this.pathMatches, pattern.substring(0, pattern.length() - 2), resolver);
+                final Node node = this.prefixes.add(pattern.substring(0, pattern.length() - 1));
+                if ( node.pathMatcher == null )
+                {
+                    node.pathMatcher = resolver;
+                }
+            }
+            else if ( resolver instanceof ExtensionMatcher )
+            {
+                putIfAbsent(this.extensionMatches, pattern.substring(1), resolver);
+            }
+            else if ( resolver instanceof RootMatcher )
+            {
+                if ( this.rootMatcher == null )
+                {
+                    this.rootMatcher = resolver;
+                }
+            }
+            else if ( resolver instanceof DefaultMatcher )
+            {
+                if ( this.defaultMatcher == null )
+                {
+                    this.defaultMatcher = resolver;
+                }
+            }
+            else
+            {
+                indexed = false;
+                break;
+            }
+        }
+        this.resolvers = indexed ? null : sortedResolvers;
+    }
+
+    private static void putIfAbsent(final Map<String, PathResolver> map, final String key, final PathResolver resolver)
+    {
+        if ( !map.containsKey(key) )
+        {
+            map.put(key, resolver);
+        }
+    }
+
+    /**
+     * Find the resolver for a request uri
+     * @param uri The request uri
+     * @return The resolver with the highest priority matching the uri or {@code null}
+     */
+    public @CheckForNull PathResolver find(@Nonnull final String uri)
+    {
+        if ( this.resolvers != null )
+        {
+            for(final PathResolver resolver : this.resolvers)
+            {
+                if ( resolver.resolve(uri) != null )
+                {
+                    return resolver;
+                }
+            }
+            return null;
+        }
+
+        PathResolver found = this.exactMatches.get(uri);
+        if ( found != null )
+        {
+            return found;
+        }
+
+        // walk the trie once, remembering the longest prefix of each kind
+        PathResolver exactAndPathMatcher = null;
+        PathResolver pathMatcher = null;
+        Node node = this.prefixes;
+        final int length = uri.length();
+        for(int i = 0; i < length; i++)
+        {
+            node = node.get(uri.charAt(i));
+            if ( node == null )
+            {
+                break;
+            }
+            if ( node.exactAndPathMatcher != null )
+            {
+                exactAndPathMatcher = node.exactAndPathMatcher;
+            }
+            if ( node.pathMatcher != null )
+            {
+                pathMatcher = node.pathMatcher;
+            }
+        }
+        if ( exactAndPathMatcher != null )
+        {
+            return exactAndPathMatcher;
+        }
+
+        found = this.pathMatches.get(uri);
+        if ( found != null )
+        {
+            return found;
+        }
+        if ( pathMatcher != null )
+        {
+            return pathMatcher;
+        }
+
+        // the longest extension starts at the first dot
+        if ( !this.extensionMatches.isEmpty() )
+        {
+            for(int pos = uri.indexOf('.'); pos != -1; pos = uri.indexOf('.', pos + 1))
+            {
+                found = this.extensionMatches.get(uri.substring(pos));
+                if ( found != null )
+                {
+                    return found;
+                }
+            }
+        }
+
+        if ( this.rootMatcher != null && (length == 0 || uri.equals("/")) )
+        {
+            return this.rootMatcher;
+        }
+
+        return this.defaultMatcher;
+    }
+
+    /**
+     * A node of the prefix trie. The children are kept in two parallel
+     * arrays as most nodes only have very few of them.
+     */
+    private static final class Node
+    {
+        private char[] chars = new char[0];
+
+        private Node[] children = new Node[0];
+
+        public PathResolver exactAndPathMatcher;
+
+        public PathResolver pathMatcher;
+
+        public Node get(final char c)
+        {
+            final char[] chars = this.chars;
+            for(int i = 0; i < chars.length; i++)
+            {
+                if ( chars[i] == c )
+                {
+                    return this.children[i];
+                }
+            }
+            return null;
+        }
+
+        public Node add(final String key)
+        {
+            Node node = this;
+            for(int i = 0; i < key.length(); i++)
+            {
+                final char c = key.charAt(i);
+                Node child = node.get(c);
+                if ( child == null )
+                {
+                    child = new Node();
+                    final int size = node.chars.length;
+                    final char[] chars = new char[size + 1];
+                    System.arraycopy(node.chars, 0, chars, 0, size);
+                    chars[size] = c;
+                    final Node[] children = new Node[size + 1];
+                    System.arraycopy(node.children, 0, children, 0, size);
+                    children[size] = child;
+                    node.chars = chars;
+                    node.children = children;
+                }
+                node = child;
+            }
+            return node;
+        }
+    }
+}
@@ -50,6 +50,9 @@ public final class ServletRegistry
 {
     private volatile List<PathResolver> activeResolvers = Collections.emptyList();
 
+    /** Compiled lookup structure for the active resolvers. */
+    private volatile PathResolverIndex activeIndex = PathResolverIndex.EMPTY;
+
     private final Map<String, List<ServletHandler>> inactiveServletMappings = new HashMap<String, List<ServletHandler>>();
 
     private final Map<String, List<ServletHandler>> servletsByName = new ConcurrentHashMap<String, List<ServletHandler>>();
@@ -70,20 +73,26 @@ public final class ServletRegistry
      */
     public PathResolution resolve(@Nonnull final String relativeRequestURI)
     {
-        final List<PathResolver> resolvers = this.activeResolvers;
-        for(final PathResolver entry : resolvers)
+        final PathResolver resolver = this.activeIndex.find(relativeRequestURI);
+        if ( resolver != null )
         {
-            final PathResolution pr = entry.resolve(relativeRequestURI);
+            final PathResolution pr = resolver.resolve(relativeRequestURI);
             if ( pr != null )
             {
                 // TODO - we should have all patterns under which this servlet is actively registered
-                pr.patterns = new String[] {entry.getPattern()};
+                pr.patterns = new String[] {resolver.getPattern()};
                 return pr;
             }
         }
         return null;
     }
 
+    private void setActiveResolvers(final List<PathResolver> resolvers)
+    {
+        this.activeIndex = resolvers.isEmpty() ? PathResolverIndex.EMPTY : new PathResolverIndex(resolvers);
+        this.activeResolvers = resolvers;
+    }
+
     private PathResolver findResolver(final List<PathResolver> resolvers, final String pattern)
     {
         for(final PathResolver pr : resolvers)
@@ -170,7 +179,7 @@ public final class ServletRegistry
                 addToNameMapping(handler);
             }
             Collections.sort(resolvers);
-            this.activeResolvers = resolvers;
+            this.setActiveResolvers(resolvers);
             this.mapping = newMap;
         }
     }
@@ -316,7 +325,7 @@ public final class ServletRegistry
             }
 
             Collections.sort(resolvers);
-            this.activeResolvers = resolvers;
+            this.setActiveResolvers(resolvers);
             this.mapping = newMap;
 
             if ( cleanupHandler != null )
@@ -328,7 +337,7 @@ public final class ServletRegistry
 
     public synchronized void cleanup()
     {
-        this.activeResolvers = Collections.emptyList();
+        this.setActiveResolvers(Collections.<PathResolver>emptyList());
         this.inactiveServletMappings.clear();
         this.servletsByName.clear();
         this.mapping = Collections.emptyMap();
@@ -17,11 +17,19 @@
 package org.apache.felix.http.base.internal.service;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -30,14 +38,36 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * The resource servlet
+ *
+ * Resources are served with a strong entity tag and support conditional
+ * and single range requests. If the client accepts it, a precompressed
+ * variant of the resource with the extension <code>.br</code> or
+ * <code>.gz</code> is served instead of the resource itself. The variants
+ * of a resource are looked up once and remembered for the lifetime of the
+ * registration.
  */
 public final class ResourceServlet extends HttpServlet
 {
     private static final long serialVersionUID = 1L;
 
+    /** Size of the buffer used to copy resources which are not files. */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** Range marking an unsatisfiable range request. */
+    static final long[] UNSATISFIABLE = new long[0];
+
+    /** The precompressed variants in order of preference: encoding, extension */
+    private static final String[][] ENCODINGS = new String[][] {
+        {"br", ".br"},
+        {"gzip", ".gz"}
+    };
+
     /** The path of the resource registration. */
     private final String prefix;
 
+    /** The precompressed variants found per resource name. */
+    private final ConcurrentMap<String, Variant[]> variants = new ConcurrentHashMap<String, Variant[]>();
+
     public ResourceServlet(final String prefix)
     {
         this.prefix = prefix;
@@ -72,29 +102,182 @@ public final class ResourceServlet extends HttpServlet
             res.setContentType(contentType);
         }
 
-        final long lastModified = getLastModified(url);
+        // check for a precompressed variant
+        URL resource = url;
+        String encoding = null;
+        final String acceptEncoding = req.getHeader("Accept-Encoding");
+        if ( acceptEncoding != null )
+        {
+            for(final Variant variant : getVariants(resName))
+            {
+                if ( acceptsEncoding(acceptEncoding, variant.encoding) )
+                {
+                    resource = variant.url;
+                    encoding = variant.encoding;
+                    break;
+                }
+            }
+        }
+
+        final File file = getFile(resource);
+        final URLConnection conn = (file == null ? resource.openConnection() : null);
+
+        final long lastModified = (file != null ? file.lastModified() : getLastModified(conn));
+        final long length = (file != null ? file.length() : getContentLength(conn));
+        final String etag = createETag(lastModified, length, encoding);
+
         if (lastModified != 0)
         {
             res.setDateHeader("Last-Modified", lastModified);
         }
+        if ( etag != null )
+        {
+            res.setHeader("ETag", etag);
+        }
+        if ( encoding != null )
+        {
+            res.setHeader("Content-Encoding", encoding);
+        }
+        // the identity response varies as well, as other clients may get a variant
+        res.setHeader("Vary", "Accept-Encoding");
+        if ( length >= 0 )
+        {
+            res.setHeader("Accept-Ranges", "bytes");
+        }
 
-        if (!resourceModified(lastModified, req.getDateHeader("If-Modified-Since")))
+        // If-None-Match takes precedence over If-Modified-Since
+        final String ifNoneMatch = req.getHeader("If-None-Match");
+        final boolean modified;
+        if ( ifNoneMatch != null )
+        {
+            modified = etag == null || !matchesETag(ifNoneMatch, etag);
+        }
+        else
+        {
+            modified = resourceModified(lastModified, req.getDateHeader("If-Modified-Since"));
+        }
+        if (!modified)
         {
             res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            close(conn);
+            return;
+        }
+
+        long start = 0;
+        long count = length;
+        final String range = req.getHeader("Range");
+        if ( range != null && length >= 0 && isRangeApplicable(req, etag, lastModified) )
+        {
+            final long[] byteRange = parseRange(range, length);
+            if ( byteRange == UNSATISFIABLE )
+            {
+                res.setHeader("Content-Range", "bytes */" + length);
+                res.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                close(conn);
+                return;
+            }
+            if ( byteRange != null )
+            {
+                start = byteRange[0];
+                count = byteRange[1] - byteRange[0] + 1;
+                res.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                res.setHeader("Content-Range", "bytes " + byteRange[0] + "-" + byteRange[1] + "/" + length);
+            }
+        }
+
+        // FELIX-3987 content length should be set *before* any streaming is done
+        // as headers should be written before the content is actually written...
+        if ( count >= 0 )
+        {
+            if ( count <= Integer.MAX_VALUE )
+            {
+                res.setContentLength((int) count);
+            }
+            else
+            {
+                res.setHeader("Content-Length", String.valueOf(count));
+            }
+        }
+
+        if ( "HEAD".equals(req.getMethod()) )
+        {
+            close(conn);
+        }
+        else if ( file != null )
+        {
+            copyFile(file, res, start, count);
         }
         else
         {
-            copyResource(url, res);
+            copyResource(conn, res, start, count);
         }
     }
 
-    private long getLastModified(final URL url)
+    /**
+     * Returns the precompressed variants of a resource in order of preference,
+     * looking them up on the first request for the resource.
+     */
+    private Variant[] getVariants(final String resName) throws IOException
+    {
+        Variant[] found = this.variants.get(resName);
+        if ( found == null )
+        {
+            final List<Variant> list = new ArrayList<Variant>();
+            for(final String[] variant : ENCODINGS)
+            {
+                final URL variantUrl = getServletContext().getResource(resName.concat(variant[1]));
+                if ( variantUrl != null )
+                {
+                    list.add(new Variant(variant[0], variantUrl));
+                }
+            }
+            found = list.toArray(new Variant[list.size()]);
+            this.variants.put(resName, found);
+        }
+        return found;
+    }
+
+    /**
+     * Returns the file for a resource located in the file system or {@code null}.
+     */
+    private File getFile(final URL url)
+    {
+        if ( "file".equals(url.getProtocol()) )
+        {
+            final File f = new File(url.getPath());
+            if ( f.isFile() )
+            {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Release the stream of a connection which has been connected to get
+     * the header fields, but whose content is not needed.
+     */
+    private void close(final URLConnection conn)
+    {
+        if ( conn != null )
+        {
+            try
+            {
+                conn.getInputStream().close();
+            }
+            catch ( final IOException ioe )
+            {
+                // ignore
+            }
+        }
+    }
+
+    private long getLastModified(final URLConnection conn)
     {
         long lastModified = 0;
 
         try
         {
-            final URLConnection conn = url.openConnection();
             lastModified = conn.getLastModified();
         }
         catch (final Exception e)
@@ -104,7 +287,7 @@ public final class ResourceServlet extends HttpServlet
 
         if (lastModified == 0)
         {
-            final String filepath = url.getPath();
+            final String filepath = conn.getURL().getPath();
             if (filepath != null)
             {
                 final File f = new File(filepath);
@@ -126,32 +309,100 @@ public final class ResourceServlet extends HttpServlet
         return resTimestamp == 0 || modSince == -1 || resTimestamp > modSince;
     }
 
-    private void copyResource(final URL url, final HttpServletResponse res) throws IOException
+    /**
+     * Check whether a range request should be honoured. If the request
+     * contains an If-Range header, it must match the current entity tag
+     * or last modified date of the resource.
+     */
+    private boolean isRangeApplicable(final HttpServletRequest req, final String etag, final long lastModified)
+    {
+        final String ifRange = req.getHeader("If-Range");
+        if ( ifRange == null )
+        {
+            return true;
+        }
+        if ( ifRange.startsWith("\"") || ifRange.startsWith("W/") )
+        {
+            // If-Range requires a strong comparison
+            return ifRange.equals(etag);
+        }
+        try
+        {
+            final long date = req.getDateHeader("If-Range");
+            return lastModified != 0 && date / 1000 == lastModified / 1000;
+        }
+        catch ( final IllegalArgumentException iae )
+        {
+            return false;
+        }
+    }
+
+    private void copyFile(final File file, final HttpServletResponse res, final long start, final long count)
+    throws IOException
+    {
+        final FileInputStream is = new FileInputStream(file);
+        OutputStream os = null;
+        try
+        {
+            os = res.getOutputStream();
+
+            // let the channel transfer the content, avoiding a copy into a local buffer
+            final FileChannel channel = is.getChannel();
+            final WritableByteChannel target = Channels.newChannel(os);
+            long position = start;
+            long remaining = count;
+            while ( remaining > 0 )
+            {
+                final long n = channel.transferTo(position, remaining, target);
+                if ( n <= 0 )
+                {
+                    break;
+                }
+                position += n;
+                remaining -= n;
+            }
+        }
+        finally
+        {
+            is.close();
+
+            if (os != null)
+            {
+                os.close();
+            }
+        }
+    }
+
+    private void copyResource(final URLConnection conn, final HttpServletResponse res, final long start, final long count)
+    throws IOException
     {
-        URLConnection conn = null;
         OutputStream os = null;
         InputStream is = null;
 
         try
         {
-            conn = url.openConnection();
-
             is = conn.getInputStream();
             os = res.getOutputStream();
-            // FELIX-3987 content length should be set *before* any streaming is done
-            // as headers should be written before the content is actually written...
-            int len = getContentLength(conn);
-            if (len >= 0)
+
+            long toSkip = start;
+            while ( toSkip > 0 )
             {
-                res.setContentLength(len);
+                final long n = is.skip(toSkip);
+                if ( n <= 0 )
+                {
+                    break;
+                }
+                toSkip -= n;
             }
 
-            byte[] buf = new byte[1024];
+            final byte[] buf = new byte[BUFFER_SIZE];
+            long remaining = (count < 0 ? Long.MAX_VALUE : count);
             int n;
 
-            while ((n = is.read(buf, 0, buf.length)) >= 0)
+            while (remaining > 0 && (n = is.read(buf, 0, (int) Math.min(buf.length, remaining))) >= 0)
             {
                 os.write(buf, 0, n);
+                remaining -= n;
             }
         }
         finally
@@ -168,11 +419,9 @@ public final class ResourceServlet extends HttpServlet
         }
     }
 
-    private int getContentLength(final URLConnection conn)
+    private long getContentLength(final URLConnection conn)
     {
-        int length = -1;
-
-        length = conn.getContentLength();
+        long length = conn.getContentLength();
         if (length < 0)
         {
             // Unknown, try whether it is a file, and if so, use the file
@@ -181,13 +430,176 @@ public final class ResourceServlet extends HttpServlet
             if (path != null)
             {
                 File f = new File(path);
-                // In case more than 2GB is streamed
-                if (f.length() < Integer.MAX_VALUE)
+                if (f.isFile())
                 {
-                    length = (int) f.length();
+                    length = f.length();
                 }
             }
         }
         return length;
     }
+
+    /**
+     * Create a strong entity tag from the last modified date and the length
+     * of the resource, similar to what most web servers do. The tag
+     * changes with every update of the providing bundle as the last modified
+     * date of bundle entries is the time of the last update.
+     *
+     * @return The entity tag or {@code null} if the resource provides no
+     *         last modified date or length.
+     */
+    static String createETag(final long lastModified, final long length, final String encoding)
+    {
+        if ( lastModified <= 0 || length < 0 )
+        {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder(32);
+        sb.append('"').append(Long.toHexString(lastModified)).append('-').append(Long.toHexString(length));
+        if ( encoding != null )
+        {
+            sb.append('-').append(encoding);
+        }
+        return sb.append('"').toString();
+    }
+
+    /**
+     * Check whether the value of an If-None-Match header matches the entity
+     * tag, using the weak comparison.
+     */
+    static boolean matchesETag(final String header, final String etag)
+    {
+        for(final String element : header.split(","))
+        {
+            String tag = element.trim();
+            if ( tag.equals("*") )
+            {
+                return true;
+            }
+            if ( tag.startsWith("W/") )
+            {
+                tag = tag.substring(2);
+            }
+            if ( tag.equals(etag) )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check whether the value of an Accept-Encoding header allows the
+     * given content coding.
+     */
+    static boolean acceptsEncoding(final String header, final String coding)
+    {
+        boolean wildcard = false;
+        for(final String element : header.split(","))
+        {
+            final int pos = element.indexOf(';');
+            final String name = (pos == -1 ? element : element.substring(0, pos)).trim();
+            final boolean acceptable = pos == -1 || getQuality(element.substring(pos + 1)) > 0;
+            if ( name.equalsIgnoreCase(coding) )
+            {
+                return acceptable;
+            }
+            if ( name.equals("*") )
+            {
+                wildcard = acceptable;
+            }
+        }
+        return wildcard;
+    }
+
+    private static float getQuality(final String params)
+    {
+        for(final String param : params.split(";"))
+        {
+            final String p = param.trim();
+            if ( p.startsWith("q=") || p.startsWith("Q=") )
+            {
+                try
+                {
+                    return Float.parseFloat(p.substring(2).trim());
+                }
+                catch ( final NumberFormatException nfe )
+                {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /**
+     * Parse the value of a Range header for a resource of the given length.
+     * Only a single byte range is supported, other requests are served with
+     * the full resource.
+     *
+     * @return The first and last byte position of the range, {@link #UNSATISFIABLE}
+     *         if the range can't be satisfied or {@code null} if the header
+     *         should be ignored.
+     */
+    static long[] parseRange(final String header, final long length)
+    {
+        if ( !header.regionMatches(true, 0, "bytes=", 0, 6) )
+        {
+            return null;
+        }
+        final String spec = header.substring(6).trim();
+        final int dash = spec.indexOf('-');
+        if ( dash == -1 || spec.indexOf(',') != -1 )
+        {
+            return null;
+        }
+        try
+        {
+            final long start;
+            final long end;
+            if ( dash == 0 )
+            {
+                // suffix range: the last n bytes
+                final long suffix = Long.parseLong(spec.substring(1).trim());
+                if ( suffix <= 0 || length == 0 )
+                {
+                    return UNSATISFIABLE;
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            }
+            else
+            {
+                start = Long.parseLong(spec.substring(0, dash).trim());
+                final String last = spec.substring(dash + 1).trim();
+                end = (last.length() == 0 ? length - 1 : Math.min(Long.parseLong(last), length - 1));
+                if ( start < 0 || (last.length() > 0 && Long.parseLong(last) < start) )
+                {
+                    return null;
+                }
+                if ( start >= length )
+                {
+                    return UNSATISFIABLE;
+                }
+            }
+            return new long[] {start, end};
+        }
+        catch ( final NumberFormatException nfe )
+        {
+            return null;
+        }
+    }
+
+    /** A precompressed variant of a resource. */
+    private static final class Variant
+    {
+        final String encoding;
+        final URL url;
+
+        Variant(final String encoding, final URL url)
+        {
+            this.encoding = encoding;
+            this.url = url;
+        }
+    }
 }
@@ -61,6 +61,18 @@ public class HttpSessionWrapperTest
         assertTrue(ids.contains(sessionID));
     }
 
+    @Test
+    public void testNoInternalSession() throws Exception
+    {
+        HttpSession session = mock(HttpSession.class);
+        when(session.getAttributeNames()).thenReturn(Collections.enumeration(Arrays.asList("foo")));
+
+        Set<Long> ids = HttpSessionWrapper.getExpiredSessionContextIds(session);
+        assertTrue(ids.isEmpty());
+        // without an internal session the attributes are not scanned
+        verify(session, never()).getAttributeNames();
+    }
+
     private HttpSession createMockSession(long sessionId, long lastAccessed, int maxInactive)
     {
         String attrLastAccessed = String.format("org.apache.felix.http.session.context.lastaccessed.%d", sessionId);
@@ -70,6 +82,7 @@ public class HttpSessionWrapperTest
         when(session.getAttributeNames()).thenReturn(Collections.enumeration(Arrays.asList(attrLastAccessed)));
         when(session.getAttribute(eq(attrLastAccessed))).thenReturn(lastAccessed);
         when(session.getAttribute(eq(attrMaxInactive))).thenReturn(maxInactive);
+        when(session.getAttribute(eq("org.apache.felix.http.session.context.contexts"))).thenReturn(Boolean.TRUE);
 
         return session;
     }
@@ -0,0 +1,142 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.http.base.internal.registry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PathResolverIndexTest {
+
+    private static final String[] URIS = new String[] {
+        "", "/", "/foo", "/foo/", "/foo/bar", "/foo/bar/", "/foo/bar/baz",
+        "/foo/bar.html", "/foo/bar.tar.gz", "/foo.bar/baz", "/alias", "/alias/",
+        "/alias/foo", "/aliasfoo", "/alias/sub", "/alias/sub/x", "/a/b/c.jsp",
+        "/exact", "/exact/", "/exactly", "/index.html", "/foo//bar", "foo"
+    };
+
+    private List<PathResolver> createResolvers(final String... patterns)
+    {
+        final List<PathResolver> resolvers = new ArrayList<PathResolver>();
+        for(final String pattern : patterns)
+        {
+            resolvers.add(PathResolverFactory.createPatternMatcher(null, pattern));
+        }
+        Collections.sort(resolvers);
+        return resolvers;
+    }
+
+    private PathResolver findLinear(final List<PathResolver> resolvers, final String uri)
+    {
+        for(final PathResolver resolver : resolvers)
+        {
+            if ( resolver.resolve(uri) != null )
+            {
+                return resolver;
+            }
+        }
+        return null;
+    }
+
+    private void assertSameAsLinear(final List<PathResolver> resolvers)
+    {
+        final PathResolverIndex index = new PathResolverIndex(resolvers);
+        for(final String uri : URIS)
+        {
+            assertSame(uri, findLinear(resolvers, uri), index.find(uri));
+        }
+    }
+
+    @Test public void testEmpty()
+    {
+        for(final String uri : URIS)
+        {
+            assertNull(PathResolverIndex.EMPTY.find(uri));
+        }
+    }
+
+    @Test public void testLongestPathMatch()
+    {
+        final List<PathResolver> resolvers = createResolvers("/*", "/foo/*", "/foo/bar/*");
+        final PathResolverIndex index = new PathResolverIndex(resolvers);
+
+        assertEquals("/foo/bar/*", index.find("/foo/bar/baz").getPattern());
+        assertEquals("/foo/bar/*", index.find("/foo/bar").getPattern());
+        assertEquals("/foo/*", index.find("/foo/barbaz").getPattern());
+        assertEquals("/*", index.find("/bar").getPattern());
+        assertSameAsLinear(resolvers);
+    }
+
+    @Test public void testExactBeforePath()
+    {
+        final List<PathResolver> resolvers = createResolvers("/foo/*", "/foo/bar", "*.html", "", "/");
+        final PathResolverIndex index = new PathResolverIndex(resolvers);
+
+        assertEquals("/foo/bar", index.find("/foo/bar").getPattern());
+        assertEquals("/foo/*", index.find("/foo/bar.html").getPattern());
+        assertEquals("*.html", index.find("/index.html").getPattern());
+        assertEquals("", index.find("/").getPattern());
+        assertEquals("/", index.find("/other").getPattern());
+        assertSameAsLinear(resolvers);
+    }
+
+    @Test public void testLongestExtension()
+    {
+        final List<PathResolver> resolvers = createResolvers("*.gz", "*.tar.gz", "*.bar/baz");
+        final PathResolverIndex index = new PathResolverIndex(resolvers);
+
+        assertEquals("*.tar.gz", index.find("/foo/bar.tar.gz").getPattern());
+        assertEquals("*.bar/baz", index.find("/foo.bar/baz").getPattern());
+        assertNull(index.find("/foo/bar"));
+        assertSameAsLinear(resolvers);
+    }
+
+    @Test public void testExactAndPath()
+    {
+        final List<PathResolver> resolvers = createResolvers("/*", "/alias/sub/*", "/exact");
+        resolvers.add(new PathResolverFactory.ExactAndPathMatcher(null, "/alias"));
+        Collections.sort(resolvers);
+        final PathResolverIndex index = new PathResolverIndex(resolvers);
+
+        // an http service alias takes precedence over any path pattern
+        assertEquals("/alias", index.find("/alias/sub/x").getPattern());
+        assertEquals("/alias", index.find("/alias").getPattern());
+        assertEquals("/*", index.find("/aliasfoo").getPattern());
+        assertSameAsLinear(resolvers);
+    }
+
+    @Test public void testMixed()
+    {
+        assertSameAsLinear(createResolvers("", "/", "/*", "/foo/*", "/foo", "/foo/bar/*", "*.html",
+                "*.jsp", "/exact", "/exact/", "/foo//*", "*.tar.gz", "*.gz"));
+    }
+
+    @Test public void testUnknownResolver()
+    {
+        final List<PathResolver> resolvers = createResolvers("/foo/*");
+        resolvers.add(PathResolverFactory.createRegexMatcher(".*\\.html"));
+        Collections.sort(resolvers);
+
+        assertSameAsLinear(resolvers);
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.felix.http.base.internal.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.Test;
+
+public class ResourceServletTest
+{
+    @Test public void testCreateETag()
+    {
+        assertEquals("\"ff-10\"", ResourceServlet.createETag(255, 16, null));
+        assertEquals("\"ff-10-gzip\"", ResourceServlet.createETag(255, 16, "gzip"));
+        assertNull(ResourceServlet.createETag(0, 16, null));
+        assertNull(ResourceServlet.createETag(255, -1, null));
+    }
+
+    @Test public void testMatchesETag()
+    {
+        assertTrue(ResourceServlet.matchesETag("\"ff-10\"", "\"ff-10\""));
+        assertTrue(ResourceServlet.matchesETag("\"a\", W/\"ff-10\"", "\"ff-10\""));
+        assertTrue(ResourceServlet.matchesETag("*", "\"ff-10\""));
+        assertFalse(ResourceServlet.matchesETag("\"ff-11\"", "\"ff-10\""));
+    }
+
+    @Test public void testAcceptsEncoding()
+    {
+        assertTrue(ResourceServlet.acceptsEncoding("gzip, deflate, br", "br"));
+        assertTrue(ResourceServlet.acceptsEncoding("GZIP;q=0.5", "gzip"));
+        assertFalse(ResourceServlet.acceptsEncoding("gzip;q=0", "gzip"));
+        assertFalse(ResourceServlet.acceptsEncoding("deflate", "gzip"));
+        assertTrue(ResourceServlet.acceptsEncoding("*", "gzip"));
+        assertFalse(ResourceServlet.acceptsEncoding("*, gzip;q=0", "gzip"));
+        assertFalse(ResourceServlet.acceptsEncoding("identity", "br"));
+    }
+
+    @Test public void testParseRange()
+    {
+        assertArrayEquals(new long[] {0, 99}, ResourceServlet.parseRange("bytes=0-99", 1000));
+        assertArrayEquals(new long[] {500, 999}, ResourceServlet.parseRange("bytes=500-", 1000));
+        assertArrayEquals(new long[] {900, 999}, ResourceServlet.parseRange("bytes=-100", 1000));
+        assertArrayEquals(new long[] {0, 999}, ResourceServlet.parseRange("bytes=-2000", 1000));
+        assertArrayEquals(new long[] {10, 999}, ResourceServlet.parseRange("bytes=10-5000", 1000));
+
+        assertSame(ResourceServlet.UNSATISFIABLE, ResourceServlet.parseRange("bytes=1000-", 1000));
+        assertSame(ResourceServlet.UNSATISFIABLE, ResourceServlet.parseRange("bytes=-0", 1000));
+        assertSame(ResourceServlet.UNSATISFIABLE, ResourceServlet.parseRange("bytes=0-", 0));
+
+        // ignored: invalid, multiple ranges or other units
+        assertNull(ResourceServlet.parseRange("bytes=5-1", 1000));
+        assertNull(ResourceServlet.parseRange("bytes=0-1,5-6", 1000));
+        assertNull(ResourceServlet.parseRange("items=0-1", 1000));
+        assertNull(ResourceServlet.parseRange("bytes=a-b", 1000));
+    }
+
+    @Test public void testVariants() throws Exception
+    {
+        final File dir = File.createTempFile("resources", "");
+        dir.delete();
+        dir.mkdir();
+        final File file = new File(dir, "a.txt");
+        file.createNewFile();
+        final File variant = new File(dir, "a.txt.gz");
+        variant.createNewFile();
+
+        final ServletContext context = mock(ServletContext.class);
+        when(context.getResource("/res/a.txt")).thenReturn(file.toURI().toURL());
+        when(context.getResource("/res/a.txt.gz")).thenReturn(variant.toURI().toURL());
+        final ServletConfig config = mock(ServletConfig.class);
+        when(config.getServletContext()).thenReturn(context);
+        final ResourceServlet servlet = new ResourceServlet("/res");
+        servlet.init(config);
+
+        HttpServletResponse res = head(servlet, "/a.txt", "br, gzip");
+        verify(res).setHeader("Content-Encoding", "gzip");
+        verify(res).setHeader("Vary", "Accept-Encoding");
+
+        // the identity response must vary as well
+        res = head(servlet, "/a.txt", null);
+        verify(res, never()).setHeader("Content-Encoding", "gzip");
+        verify(res).setHeader("Vary", "Accept-Encoding");
+
+        res = head(servlet, "/a.txt", "gzip");
+        verify(res).setHeader("Content-Encoding", "gzip");
+
+        // the variants are only looked up for the first request
+        verify(context, times(1)).getResource("/res/a.txt.br");
+        verify(context, times(1)).getResource("/res/a.txt.gz");
+
+        variant.delete();
+        file.delete();
+        dir.delete();
+    }
+
+    private static HttpServletResponse head(final ResourceServlet servlet, final String path, final String acceptEncoding)
+    throws Exception
+    {
+        final HttpServletRequest req = mock(HttpServletRequest.class);
+        when(req.getMethod()).thenReturn("HEAD");
+        when(req.getPathInfo()).thenReturn(path);
+        when(req.getHeader("Accept-Encoding")).thenReturn(acceptEncoding);
+        final HttpServletResponse res = mock(HttpServletResponse.class);
+        servlet.doGet(req, res);
+        return res;
+    }
+}
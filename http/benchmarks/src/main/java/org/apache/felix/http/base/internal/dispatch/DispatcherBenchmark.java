@@ -0,0 +1,262 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.http.base.internal.dispatch;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.GenericServlet;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+import org.apache.felix.http.base.internal.context.ExtServletContext;
+import org.apache.felix.http.base.internal.handler.HttpServiceFilterHandler;
+import org.apache.felix.http.base.internal.handler.HttpServiceServletHandler;
+import org.apache.felix.http.base.internal.registry.HandlerRegistry;
+import org.apache.felix.http.base.internal.registry.PerContextHandlerRegistry;
+import org.apache.felix.http.base.internal.runtime.FilterInfo;
+import org.apache.felix.http.base.internal.runtime.ServletInfo;
+import org.apache.felix.http.base.internal.service.HttpServiceFactory;
+import org.apache.felix.http.base.internal.whiteboard.WhiteboardManager;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkUtil;
+
+/**
+ * Measures {@link Dispatcher#dispatch(HttpServletRequest, HttpServletResponse)}
+ * for a request to an Http Service servlet, with and without filters and
+ * with and without a container session holding internal sessions.
+ * <p>
+ * The <code>DispatcherServlet</code> only delegates to the dispatcher, but
+ * needs a running framework to register the services, so the dispatcher is
+ * set up directly. Run with <code>-prof gc</code> to see the allocation
+ * rate per request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatcherBenchmark
+{
+    private static final String PREFIX = "org.apache.felix.http.session.context.";
+
+    @Param({"0", "3"})
+    public int filters;
+
+    @Param({"false", "true"})
+    public boolean session;
+
+    private Dispatcher m_dispatcher;
+    private HttpServletRequest m_request;
+    private HttpServletResponse m_response;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        final HandlerRegistry registry = new HandlerRegistry();
+        registry.init();
+        final PerContextHandlerRegistry contextRegistry = registry.getRegistry(HttpServiceFactory.HTTP_SERVICE_CONTEXT_SERVICE_ID);
+
+        final ExtServletContext context = proxy(ExtServletContext.class, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args)
+            {
+                if ( "handleSecurity".equals(method.getName()) )
+                {
+                    return Boolean.TRUE;
+                }
+                return null;
+            }
+        });
+        contextRegistry.registerServlet(new HttpServiceServletHandler(context,
+                new ServletInfo("bench", "/api", Collections.<String, String>emptyMap()),
+                new GenericServlet()
+                {
+                    @Override
+                    public void service(final ServletRequest req, final ServletResponse res)
+                    {
+                        ((HttpServletResponse) res).setStatus(200);
+                    }
+                }));
+        for(int i = 0; i < filters; i++)
+        {
+            contextRegistry.registerFilter(new HttpServiceFilterHandler(context,
+                    new FilterInfo("filter" + i, "/api/.*", i, Collections.<String, String>emptyMap()),
+                    new PassFilter()));
+        }
+
+        m_dispatcher = new Dispatcher(registry);
+        // the whiteboard manager is only needed to enable the session expiry check
+        final BundleContext bundleContext = proxy(BundleContext.class, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Exception
+            {
+                if ( "createFilter".equals(method.getName()) )
+                {
+                    return FrameworkUtil.createFilter((String) args[0]);
+                }
+                return null;
+            }
+        });
+        m_dispatcher.setWhiteboardManager(new WhiteboardManager(bundleContext,
+                new HttpServiceFactory(bundleContext, registry),
+                registry));
+
+        final HttpSession containerSession = this.session ? createSession() : null;
+        m_request = proxy(HttpServletRequest.class, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args)
+            {
+                final String name = method.getName();
+                if ( "getSession".equals(name) )
+                {
+                    return containerSession;
+                }
+                if ( "getServletPath".equals(name) )
+                {
+                    return "";
+                }
+                if ( "getPathInfo".equals(name) || "getRequestURI".equals(name) )
+                {
+                    return "/api/users/42";
+                }
+                if ( "getDispatcherType".equals(name) )
+                {
+                    return DispatcherType.REQUEST;
+                }
+                return null;
+            }
+        });
+        m_response = proxy(HttpServletResponse.class, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args)
+            {
+                if ( "getStatus".equals(method.getName()) )
+                {
+                    return 200;
+                }
+                if ( "isCommitted".equals(method.getName()) )
+                {
+                    return Boolean.FALSE;
+                }
+                return null;
+            }
+        });
+    }
+
+    @Benchmark
+    public HttpServletResponse dispatch() throws ServletException, IOException
+    {
+        m_dispatcher.dispatch(m_request, m_response);
+        return m_response;
+    }
+
+    /**
+     * Container session with application attributes and two internal
+     * sessions which are not expired.
+     */
+    private static HttpSession createSession()
+    {
+        final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+        attributes.put("user", "bench");
+        attributes.put("locale", "en");
+        for(final long id : new long[] {7, 8})
+        {
+            attributes.put(PREFIX + "created." + id, System.currentTimeMillis());
+            attributes.put(PREFIX + "lastaccessed." + id, System.currentTimeMillis());
+            attributes.put(PREFIX + "maxinactive." + id, 3600);
+        }
+        attributes.put(PREFIX + "contexts", Boolean.TRUE);
+
+        return proxy(HttpSession.class, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args)
+            {
+                if ( "getAttribute".equals(method.getName()) )
+                {
+                    return attributes.get(args[0]);
+                }
+                if ( "getAttributeNames".equals(method.getName()) )
+                {
+                    return Collections.enumeration(attributes.keySet());
+                }
+                return null;
+            }
+        });
+    }
+
+    private static <T> T proxy(final Class<T> type, final InvocationHandler handler)
+    {
+        return type.cast(Proxy.newProxyInstance(DispatcherBenchmark.class.getClassLoader(),
+                new Class<?>[] {type}, handler));
+    }
+
+    private static final class PassFilter implements Filter
+    {
+        @Override
+        public void init(final FilterConfig config)
+        {
+            // nothing to do
+        }
+
+        @Override
+        public void doFilter(final ServletRequest req, final ServletResponse res, final FilterChain chain)
+                throws IOException, ServletException
+        {
+            chain.doFilter(req, res);
+        }
+
+        @Override
+        public void destroy()
+        {
+            // nothing to do
+        }
+    }
+}
@@ -126,6 +126,12 @@ public class Activator implements BundleActivator
             context.getProperty(Server.CONFIG_PROPERTY_CONNECTION_REQUESTLIMIT_PROP));
         config.put(Server.CONFIG_PROPERTY_CONNECTION_TIMEOUT_PROP,
             context.getProperty(Server.CONFIG_PROPERTY_CONNECTION_TIMEOUT_PROP));
+        config.put(Server.CONFIG_PROPERTY_CONNECTION_POLLINTERVAL_PROP,
+            context.getProperty(Server.CONFIG_PROPERTY_CONNECTION_POLLINTERVAL_PROP));
+        config.put(Server.CONFIG_PROPERTY_RESPONSE_BUFFERSIZE_PROP,
+            context.getProperty(Server.CONFIG_PROPERTY_RESPONSE_BUFFERSIZE_PROP));
+        config.put(Server.CONFIG_PROPERTY_RESPONSE_COMPRESSION_PROP,
+            context.getProperty(Server.CONFIG_PROPERTY_RESPONSE_COMPRESSION_PROP));
 
         return config;
     }
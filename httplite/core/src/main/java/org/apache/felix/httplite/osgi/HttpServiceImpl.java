@@ -317,7 +317,7 @@ public class HttpServiceImpl implements HttpService, ServiceRegistrationResolver
      */
     public HttpServletResponseImpl getServletResponse(final OutputStream output)
     {
-        return new HttpServletResponseImpl(output);
+        return new HttpServletResponseImpl(output, m_server.getResponseConfiguration());
     }
 
     /**
@@ -20,9 +20,12 @@ package org.apache.felix.httplite.server;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 
 import javax.servlet.ServletException;
 
@@ -40,6 +43,16 @@ import org.apache.felix.httplite.servlet.HttpServletResponseImpl;
  * clients. A given persistent connection is limited in the number of
  * consecutive requests it is allowed to make before having its connection
  * closed as well as after a period of inactivity.
+ * <p>
+ * Between two requests a persistent connection does not need a thread;
+ * it can be watched by a {@link ConnectionPoller} until the client sends
+ * the next request. Pipelined requests which are already buffered are
+ * processed right away.
+ * <p>
+ * A connection is handed to a thread as soon as the first byte of a request
+ * has arrived. A slow client may then keep the thread waiting for the rest of
+ * the request line and headers, so reading them is limited to the inactivity
+ * timeout as a whole rather than per read.
 **/
 public class Connection
 {
@@ -52,11 +65,29 @@ public class Connection
      */
     public static final int DEFAULT_CONNECTION_REQUESTLIMIT = 50;
 
+    /**
+     * State of an idle connection without data from the client.
+     */
+    static final int IDLE = 0;
+    /**
+     * State of an idle connection whose client has sent data.
+     */
+    static final int READABLE = 1;
+    /**
+     * State of an idle connection closed by the client.
+     */
+    static final int CLOSED = 2;
+
+    // Socket timeout in milliseconds used to read ahead on an idle connection.
+    private static final int PROBE_TIMEOUT = 1;
+
     private final Socket m_socket;
+    private TimedInputStream m_input;
     private ConcreteServletInputStream m_is;
     private OutputStream m_os;
     private int m_requestCount = 0;
     private final int m_requestLimit;
+    private final int m_timeout;
     private final ServiceRegistrationResolver m_resolver;
     private final Logger m_logger;
 
@@ -88,13 +119,14 @@ public class Connection
         m_socket = socket;
         m_resolver = resolver;
         m_logger = logger;
+        m_timeout = timeout;
         m_socket.setSoTimeout(timeout);
         m_socket.setTcpNoDelay(true);
         m_requestLimit = requestLimit;
         try
         {
-            m_is = new ConcreteServletInputStream(new BufferedInputStream(
-                m_socket.getInputStream()));
+            m_input = new TimedInputStream(m_socket.getInputStream());
+            m_is = new ConcreteServletInputStream(new BufferedInputStream(m_input));
             m_os = new BufferedOutputStream(m_socket.getOutputStream());
         }
         catch (IOException ex)
@@ -138,153 +170,306 @@ public class Connection
 
     /**
      * Performs the actual servicing of the connection and its subsequent requests.
-     * This method will be called by threads in the thread pool. This method
-     * typically exits when the connection is closed due to either an explicit
-     * connection close, the inactivity timeout expires, the maximum request
-     * limit was reached, or an I/O error occurred. When this method returns,
-     * the associated socket will be closed, regardless of whether or not an
-     * expection was thrown.
+     * This method will be called by threads in the thread pool. It processes
+     * the next request and any further requests the client has already sent.
+     * The method returns <tt>true</tt> if the connection is persistent and
+     * waits for the next request; the caller is then responsible for calling
+     * this method again once more data is available or for closing the
+     * connection. Otherwise the connection has been closed due to either an
+     * explicit connection close, the maximum request limit was reached, or an
+     * I/O error occurred; in this case the associated socket will be closed,
+     * regardless of whether or not an exception was thrown.
+     * @return <tt>true</tt> if the connection is kept open.
      * @throws java.net.SocketTimeoutException If the inactivity timeout expired
      *         while trying to read from the socket.
      * @throws java.io.IOException If any I/O error occurs.
      * @throws ServletException on servlet errors
     **/
-    public void process() throws IOException, ServletException
+    public boolean process() throws IOException, ServletException
+    {
+        boolean close = true;
+        try
+        {
+            do
+            {
+                close = processRequest();
+            }
+            while (!close && isReadable());
+        }
+        finally
+        {
+            if (close)
+            {
+                close();
+            }
+        }
+        return !close;
+    }
+
+    /**
+     * Returns whether the client has sent data which has not been read yet.
+     * @return <tt>true</tt> if data is available.
+     * @throws java.io.IOException If any I/O error occurs.
+    **/
+    boolean isReadable() throws IOException
+    {
+        return m_is.available() > 0;
+    }
+
+    /**
+     * Returns the state of the connection while it waits for the next
+     * request. Since the available bytes do not show whether the client
+     * closed the connection, a probe reads ahead with a very short socket
+     * timeout, which blocks the caller for up to a millisecond.
+     * @param probe <tt>true</tt> to read ahead if no data is available.
+     * @return {@link #READABLE}, {@link #CLOSED} or {@link #IDLE}.
+     * @throws java.io.IOException If any I/O error occurs.
+    **/
+    int getIdleState(final boolean probe) throws IOException
+    {
+        if (isReadable())
+        {
+            return READABLE;
+        }
+        if (!probe)
+        {
+            return IDLE;
+        }
+
+        m_input.m_probe = true;
+        try
+        {
+            m_is.mark(1);
+            if (m_is.read() < 0)
+            {
+                return CLOSED;
+            }
+            m_is.reset();
+            return READABLE;
+        }
+        catch (SocketTimeoutException ex)
+        {
+            return IDLE;
+        }
+        finally
+        {
+            m_input.m_probe = false;
+        }
+    }
+
+    /**
+     * Returns whether the connection has been idle for longer than its
+     * inactivity timeout.
+     * @param idleTime The time in milliseconds since the last request.
+     * @return <tt>true</tt> if the connection should be closed.
+    **/
+    boolean isExpired(final long idleTime)
+    {
+        return m_timeout > 0 && idleTime >= m_timeout;
+    }
+
+    /**
+     * Reads and processes a single request.
+     * @return <tt>true</tt> if the connection has to be closed afterwards.
+    **/
+    private boolean processRequest() throws IOException, ServletException
     {
         HttpServletRequestImpl request = m_resolver.getServletRequest(m_socket);
         HttpServletResponseImpl response = m_resolver.getServletResponse(m_os);
 
+        boolean close = false;
+
+        // Read the next request, bounding the time a slow client may take
+        // for the request line and headers.
+        if (m_timeout > 0)
+        {
+            m_input.m_deadline = System.currentTimeMillis() + m_timeout;
+        }
         try
         {
-            // Loop until we close the connection.
-            boolean close = false;
-            while (!close)
-            {
-                // Read the next request.
-                try
-                {
-                    request.parseRequestLine(m_is);
-                }
-                catch (IOException e)
-                {
-                    m_logger.log(
-                        Logger.LOG_ERROR,
-                        "Error with request: " + request.toString() + ": "
-                            + e.getMessage());
-                    throw e;
-                }
-                m_requestCount++;
+            request.parseRequestLine(m_is);
+        }
+        catch (IOException e)
+        {
+            m_logger.log(
+                Logger.LOG_ERROR,
+                "Error with request: " + request.toString() + ": "
+                    + e.getMessage());
+            throw e;
+        }
+        m_requestCount++;
 
-                // Keep track of whether we have failed or not,
-                // because we still want to read the bytes to clear
-                // the input stream so we can service more requests.
-                boolean error = false;
+        // Keep track of whether we have failed or not,
+        // because we still want to read the bytes to clear
+        // the input stream so we can service more requests.
+        boolean error = false;
 
-                m_logger.log(Logger.LOG_DEBUG,
-                    "Processing " + request.getRequestURI() + " (" + (m_requestLimit - m_requestCount)
-                        + " remaining)");
+        m_logger.log(Logger.LOG_DEBUG,
+            "Processing " + request.getRequestURI() + " (" + (m_requestLimit - m_requestCount)
+                + " remaining)");
 
-                // If client is HTTP/1.1, then send continue message.
-                if (request.getProtocol().equals(HttpConstants.HTTP11_VERSION))
-                {
-                    response.sendContinueResponse();
-                }
+        // If client is HTTP/1.1, then send continue message.
+        if (request.getProtocol().equals(HttpConstants.HTTP11_VERSION))
+        {
+            response.sendContinueResponse();
+        }
 
-                // Read the header lines of the request.
-                request.parseHeader(m_is);
+        // Read the header lines of the request.
+        request.parseHeader(m_is);
+        m_input.m_deadline = 0;
+        response.setRequest(request);
 
-                // If we have an HTTP/1.0 request without the connection set to
-                // keep-alive or we explicitly have a request to close the connection,
-                // then set close flag to exit the loop rather than trying to read
-                // more requests.
-                String v = request.getHeader(HttpConstants.HEADER_CONNECTION);
-                if ((request.getProtocol().equals(HttpConstants.HTTP10_VERSION) && ((v == null) || (!v.equalsIgnoreCase(HttpConstants.KEEPALIVE_CONNECTION))))
-                    || ((v != null) && v.equalsIgnoreCase(HttpConstants.CLOSE_CONNECTION)))
-                {
-                    close = true;
-                    response.setConnectionType("close");
-                }
-                // If we have serviced the maximum number of requests for
-                // this connection, then set close flag so we exit the loop
-                // and close the connection.
-                else if (m_requestCount >= m_requestLimit)
-                {
-                    close = true;
-                    response.setConnectionType("close");
-                }
+        // If we have an HTTP/1.0 request without the connection set to
+        // keep-alive or we explicitly have a request to close the connection,
+        // then set close flag to close the connection after this request
+        // rather than trying to read more requests.
+        String v = request.getHeader(HttpConstants.HEADER_CONNECTION);
+        if ((request.getProtocol().equals(HttpConstants.HTTP10_VERSION) && ((v == null) || (!v.equalsIgnoreCase(HttpConstants.KEEPALIVE_CONNECTION))))
+            || ((v != null) && v.equalsIgnoreCase(HttpConstants.CLOSE_CONNECTION)))
+        {
+            close = true;
+            response.setConnectionType("close");
+        }
+        // If we have serviced the maximum number of requests for
+        // this connection, then set close flag so we close the connection.
+        else if (m_requestCount >= m_requestLimit)
+        {
+            close = true;
+            response.setConnectionType("close");
+        }
+        // HTTP/1.0 clients have to be told that the connection persists.
+        else if (request.getProtocol().equals(HttpConstants.HTTP10_VERSION))
+        {
+            response.setConnectionType(HttpConstants.KEEPALIVE_CONNECTION);
+        }
 
-                // We do not support OPTIONS method so send
-                // a "not implemented" error in that case.
-                if (!HttpServletRequestImpl.isSupportedMethod(request.getMethod()))
-                {
-                    error = true;
-                    response.setConnectionType(HttpConstants.CLOSE_CONNECTION);
-                    response.sendNotImplementedResponse();
-                }
+        // We do not support OPTIONS method so send
+        // a "not implemented" error in that case.
+        if (!HttpServletRequestImpl.isSupportedMethod(request.getMethod()))
+        {
+            error = true;
+            response.setConnectionType(HttpConstants.CLOSE_CONNECTION);
+            response.sendNotImplementedResponse();
+        }
 
-                // Ignore if we have already failed, otherwise send error message
-                // if an HTTP/1.1 client did not include HOST header.
-                if (!error && request.getProtocol().equals(HttpConstants.HTTP11_VERSION)
-                    && (request.getHeader(HttpConstants.HOST_HEADER) == null))
-                {
-                    error = true;
-                    response.setConnectionType(HttpConstants.CLOSE_CONNECTION);
-                    response.sendMissingHostResponse();
-                }
+        // Ignore if we have already failed, otherwise send error message
+        // if an HTTP/1.1 client did not include HOST header.
+        if (!error && request.getProtocol().equals(HttpConstants.HTTP11_VERSION)
+            && (request.getHeader(HttpConstants.HOST_HEADER) == null))
+        {
+            error = true;
+            response.setConnectionType(HttpConstants.CLOSE_CONNECTION);
+            response.sendMissingHostResponse();
+        }
 
-                // Read in the request body.
-                request.parseBody(m_is);
+        // Read in the request body.
+        request.parseBody(m_is);
 
-                // Only process the request if there was no error.
-                if (!error)
-                {
-                    ServiceRegistrationHandler processor = m_resolver.getProcessor(
-                        request, response, request.getRequestURI());
+        if (error)
+        {
+            return true;
+        }
 
-                    if (processor != null)
-                    {
-                        processor.handle(close);
+        ServiceRegistrationHandler processor = m_resolver.getProcessor(
+            request, response, request.getRequestURI());
 
-                        m_logger.log(Logger.LOG_DEBUG, "Processed " + request.toString());
+        if (processor == null)
+        {
+            response.setConnectionType(HttpConstants.CLOSE_CONNECTION);
+            response.sendNotFoundResponse();
+            return true;
+        }
 
-                        // TODO: Adding next line to make test cases pass, but not sure if it is correct
-                        // and needs further investigation.
-                        close = true;
-                        continue;
-                    }
+        processor.handle(close);
 
-                    close = true;
-                    response.setConnectionType(HttpConstants.CLOSE_CONNECTION);
-                    response.sendNotFoundResponse();
-                }
-            }
+        m_logger.log(Logger.LOG_DEBUG, "Processed " + request.toString());
+
+        // The connection can only be reused if the client is able to find
+        // the end of the response.
+        return close || !response.isPersistent();
+    }
+
+    /**
+     * Closes the connection and its socket.
+    **/
+    public void close()
+    {
+        try
+        {
+            m_is.close();
         }
-        finally
+        catch (IOException ex)
         {
-            try
-            {
-                m_is.close();
-            }
-            catch (IOException ex)
-            {
-                m_logger.log(Logger.LOG_ERROR, "Error closing socket input stream.", ex);
-            }
-            try
-            {
-                m_os.close();
-            }
-            catch (IOException ex)
+            m_logger.log(Logger.LOG_ERROR, "Error closing socket input stream.", ex);
+        }
+        try
+        {
+            m_os.close();
+        }
+        catch (IOException ex)
+        {
+            m_logger.log(Logger.LOG_ERROR, "Error closing socket output stream.", ex);
+        }
+        try
+        {
+            m_socket.close();
+        }
+        catch (IOException ex)
+        {
+            m_logger.log(Logger.LOG_ERROR, "Error closing socket.", ex);
+        }
+    }
+
+    /**
+     * Sets the socket timeout before each read from the socket, so a read
+     * ahead of an idle connection returns immediately and reading a request
+     * header does not take longer than the inactivity timeout in total.
+    **/
+    private class TimedInputStream extends FilterInputStream
+    {
+        // Time at which reading the current request header expires, or 0.
+        volatile long m_deadline = 0;
+        volatile boolean m_probe = false;
+        private int m_soTimeout = m_timeout;
+
+        TimedInputStream(final InputStream in)
+        {
+            super(in);
+        }
+
+        public int read() throws IOException
+        {
+            setTimeout();
+            return in.read();
+        }
+
+        public int read(final byte[] b, final int off, final int len) throws IOException
+        {
+            setTimeout();
+            return in.read(b, off, len);
+        }
+
+        private void setTimeout() throws IOException
+        {
+            int timeout = m_timeout;
+            if (m_probe)
             {
-                m_logger.log(Logger.LOG_ERROR, "Error closing socket output stream.", ex);
+                timeout = PROBE_TIMEOUT;
             }
-            try
+            else if (m_deadline > 0)
             {
-                m_socket.close();
+                final long remaining = m_deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                {
+                    throw new SocketTimeoutException("Timeout reading the request header.");
+                }
+                timeout = (int) Math.min(timeout, remaining);
             }
-            catch (IOException ex)
+            if (timeout != m_soTimeout)
             {
-                m_logger.log(Logger.LOG_ERROR, "Error closing socket.", ex);
+                m_socket.setSoTimeout(timeout);
+                m_soTimeout = timeout;
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,385 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.httplite.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.apache.felix.httplite.osgi.Logger;
+
+/**
+ * This class watches idle connections, i.e. newly accepted connections and
+ * persistent connections between two requests, from a single thread. A
+ * connection is only handed to the thread pool once the client has sent
+ * data, so idle clients do not occupy pool threads. Connections which
+ * stay idle longer than their inactivity timeout are closed.
+ * <p>
+ * Since the server runs on JREs without <tt>java.nio</tt>, readiness is
+ * detected by polling the available bytes of the socket. Connections are
+ * polled every <tt>pollInterval</tt> milliseconds right after becoming idle;
+ * the longer a connection stays idle the less often it is polled, up to
+ * ten times the poll interval. The connections are kept ordered by their
+ * next poll time, so each pass only visits the connections which are due.
+ * <p>
+ * The available bytes do not reveal that a client closed its connection, so
+ * in addition a connection is probed by reading ahead with a very short
+ * timeout ten poll intervals after becoming idle and then every hundred poll
+ * intervals. A probe blocks the poller thread, so readable connections are
+ * handed over before probing and a pass probes at most
+ * {@link #MAX_PROBES} connections; the remaining probes are left to the
+ * following passes. Connections are polled and probed without holding the
+ * lock of the poller.
+**/
+public class ConnectionPoller
+{
+    /**
+     * Default poll interval in milliseconds.
+     */
+    public static final int DEFAULT_POLL_INTERVAL = 10;
+
+    private static final int MAX_BACKOFF = 10;
+
+    private static final int PROBE_INTERVAL = 100;
+
+    /**
+     * Maximum number of connections probed in one pass.
+     */
+    private static final int MAX_PROBES = 10;
+
+    private final ThreadPool m_threadPool;
+    private final int m_pollInterval;
+    private final Logger m_logger;
+    private final SortedSet m_entries = new TreeSet();
+
+    private Thread m_thread;
+    private boolean m_running = false;
+    private int m_idleCount = 0;
+    private long m_nextId = 0;
+
+    /**
+     * Constructs a poller handing readable connections to the given thread pool.
+     * @param threadPool The thread pool processing the connections.
+     * @param pollInterval The minimum poll interval in milliseconds.
+     * @param logger Logger instance.
+    **/
+    public ConnectionPoller(final ThreadPool threadPool, final int pollInterval, final Logger logger)
+    {
+        m_threadPool = threadPool;
+        m_pollInterval = (pollInterval > 0) ? pollInterval : DEFAULT_POLL_INTERVAL;
+        m_logger = logger;
+    }
+
+    /**
+     * Starts the poller thread if it is not already running.
+    **/
+    public synchronized void start()
+    {
+        if (!m_running)
+        {
+            m_running = true;
+            m_thread = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    poll();
+                }
+            }, "HttpServer Poller");
+            m_thread.start();
+        }
+    }
+
+    /**
+     * Stops the poller thread and closes all idle connections. Connections
+     * added after the poller has been stopped are closed immediately.
+     * @throws java.lang.InterruptedException If the calling thread is interrupted.
+    **/
+    public void stop() throws InterruptedException
+    {
+        final Thread thread;
+        synchronized (this)
+        {
+            m_running = false;
+            thread = m_thread;
+            m_thread = null;
+            notifyAll();
+        }
+        if (thread != null)
+        {
+            thread.join();
+        }
+
+        final List entries;
+        synchronized (this)
+        {
+            entries = new ArrayList(m_entries);
+            m_entries.clear();
+            m_idleCount = 0;
+        }
+        for (Iterator i = entries.iterator(); i.hasNext();)
+        {
+            ((Entry) i.next()).m_connection.close();
+        }
+    }
+
+    /**
+     * Adds an idle connection to be watched.
+     * @param connection The connection waiting for the next request.
+    **/
+    public void addConnection(final Connection connection)
+    {
+        synchronized (this)
+        {
+            if (m_running)
+            {
+                final long now = System.currentTimeMillis();
+                m_entries.add(new Entry(connection, m_nextId++, now, now + m_pollInterval * MAX_BACKOFF));
+                m_idleCount++;
+                notifyAll();
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * Returns the number of idle connections currently watched.
+     * @return The number of idle connections.
+    **/
+    public synchronized int getIdleCount()
+    {
+        return m_idleCount;
+    }
+
+    /**
+     * This method is the main loop of the poller thread.
+    **/
+    private void poll()
+    {
+        final List due = new ArrayList();
+        final List idle = new ArrayList();
+        final List ready = new ArrayList();
+        final List expired = new ArrayList();
+        while (true)
+        {
+            synchronized (this)
+            {
+                try
+                {
+                    while (m_running && m_entries.isEmpty())
+                    {
+                        wait();
+                    }
+                    if (!m_running)
+                    {
+                        return;
+                    }
+
+                    // Take the due entries off the head; they are added back
+                    // with their new poll time if they stay idle.
+                    final long now = System.currentTimeMillis();
+                    for (Iterator i = m_entries.iterator(); i.hasNext();)
+                    {
+                        final Entry entry = (Entry) i.next();
+                        if (entry.m_nextPoll > now)
+                        {
+                            break;
+                        }
+                        due.add(entry);
+                        i.remove();
+                    }
+                    if (due.isEmpty())
+                    {
+                        wait(((Entry) m_entries.first()).m_nextPoll - now);
+                        continue;
+                    }
+                }
+                catch (InterruptedException ex)
+                {
+                    // Only stop() ends the poller.
+                    continue;
+                }
+            }
+
+            // Hand over readable connections before any probe blocks this
+            // thread.
+            for (Iterator i = due.iterator(); i.hasNext();)
+            {
+                final Entry entry = (Entry) i.next();
+                if (check(entry, false, ready, expired))
+                {
+                    idle.add(entry);
+                }
+            }
+            due.clear();
+            dispatch(ready, expired);
+
+            int probes = 0;
+            long now = System.currentTimeMillis();
+            for (Iterator i = idle.iterator(); i.hasNext() && (probes < MAX_PROBES);)
+            {
+                final Entry entry = (Entry) i.next();
+                if (entry.m_nextProbe <= now)
+                {
+                    probes++;
+                    if (!check(entry, true, ready, expired))
+                    {
+                        i.remove();
+                    }
+                }
+            }
+            dispatch(ready, expired);
+
+            now = System.currentTimeMillis();
+            for (Iterator i = idle.iterator(); i.hasNext();)
+            {
+                final Entry entry = (Entry) i.next();
+                // back off for connections which are idle for a long time
+                final long backoff = Math.min(MAX_BACKOFF,
+                    1 + (now - entry.m_idleSince) / (m_pollInterval * MAX_BACKOFF));
+                entry.m_nextPoll = now + m_pollInterval * backoff;
+            }
+            synchronized (this)
+            {
+                m_entries.addAll(idle);
+            }
+            idle.clear();
+        }
+    }
+
+    /**
+     * Polls or probes a connection taken off the poller.
+     * @param entry The entry of the connection.
+     * @param probe <tt>true</tt> to read ahead if no data is available.
+     * @param ready The list to add the entry to if the connection is readable.
+     * @param expired The list to add the entry to if the connection is to be closed.
+     * @return <tt>true</tt> if the connection stays idle.
+    **/
+    private boolean check(final Entry entry, final boolean probe, final List ready,
+        final List expired)
+    {
+        int state;
+        try
+        {
+            state = entry.m_connection.getIdleState(probe);
+        }
+        catch (IOException ex)
+        {
+            state = Connection.CLOSED;
+        }
+        final long now = System.currentTimeMillis();
+
+        if (state == Connection.READABLE)
+        {
+            ready.add(entry);
+            return false;
+        }
+        if ((state == Connection.CLOSED)
+            || entry.m_connection.isExpired(now - entry.m_idleSince))
+        {
+            expired.add(entry);
+            return false;
+        }
+        if (probe)
+        {
+            entry.m_nextProbe = now + m_pollInterval * PROBE_INTERVAL;
+        }
+        return true;
+    }
+
+    /**
+     * Hands readable connections to the thread pool and closes expired ones.
+     * This is done outside of the lock, as the thread pool may add
+     * connections back to the poller.
+     * @param ready The readable connections, cleared on return.
+     * @param expired The connections to be closed, cleared on return.
+    **/
+    private void dispatch(final List ready, final List expired)
+    {
+        if (ready.isEmpty() && expired.isEmpty())
+        {
+            return;
+        }
+        synchronized (this)
+        {
+            m_idleCount -= ready.size() + expired.size();
+        }
+
+        for (Iterator i = ready.iterator(); i.hasNext();)
+        {
+            final Connection connection = ((Entry) i.next()).m_connection;
+            try
+            {
+                m_threadPool.addConnection(connection);
+            }
+            catch (IllegalStateException ex)
+            {
+                // The thread pool is stopping.
+                connection.close();
+            }
+        }
+        ready.clear();
+        for (Iterator i = expired.iterator(); i.hasNext();)
+        {
+            m_logger.log(Logger.LOG_DEBUG, "Idle connection closed.");
+            ((Entry) i.next()).m_connection.close();
+        }
+        expired.clear();
+    }
+
+    /**
+     * An idle connection and its polling state. Entries are ordered by
+     * their next poll time and then by the order in which they were added,
+     * so no two entries are equal.
+    **/
+    private static class Entry implements Comparable
+    {
+        final Connection m_connection;
+        final long m_id;
+        final long m_idleSince;
+        long m_nextPoll;
+        long m_nextProbe;
+
+        Entry(final Connection connection, final long id, final long idleSince, final long nextProbe)
+        {
+            m_connection = connection;
+            m_id = id;
+            m_idleSince = idleSince;
+            m_nextPoll = idleSince;
+            m_nextProbe = nextProbe;
+        }
+
+        public int compareTo(final Object o)
+        {
+            final Entry entry = (Entry) o;
+            if (m_nextPoll != entry.m_nextPoll)
+            {
+                return (m_nextPoll < entry.m_nextPoll) ? -1 : 1;
+            }
+            if (m_id != entry.m_id)
+            {
+                return (m_id < entry.m_id) ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+}
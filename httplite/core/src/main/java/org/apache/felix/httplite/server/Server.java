@@ -28,6 +28,7 @@ import java.util.Map;
 
 import org.apache.felix.httplite.osgi.Logger;
 import org.apache.felix.httplite.osgi.ServiceRegistrationResolver;
+import org.apache.felix.httplite.servlet.ResponseConfiguration;
 
 /**
  * This class implements a simple multi-threaded web server. It
@@ -45,6 +46,18 @@ public class Server
      * Connection request limit property
      */
     public static final String CONFIG_PROPERTY_CONNECTION_REQUESTLIMIT_PROP = "org.apache.felix.http.connection.requestlimit";
+    /**
+     * Poll interval for idle connections property
+     */
+    public static final String CONFIG_PROPERTY_CONNECTION_POLLINTERVAL_PROP = "org.apache.felix.http.connection.pollinterval";
+    /**
+     * Response buffer size property
+     */
+    public static final String CONFIG_PROPERTY_RESPONSE_BUFFERSIZE_PROP = "org.apache.felix.http.response.buffersize";
+    /**
+     * Response compression thresholds property
+     */
+    public static final String CONFIG_PROPERTY_RESPONSE_COMPRESSION_PROP = "org.apache.felix.http.response.compression";
     /**
      * Thread pool timeout property
      */
@@ -102,6 +115,8 @@ public class Server
     private Thread m_serverThread;
     private ServerSocket m_serverSocket;
     private final ThreadPool m_threadPool;
+    private final ConnectionPoller m_poller;
+    private final ResponseConfiguration m_responseConfig;
 
     private final int m_connectionTimeout;
     private final int m_connectionRequestLimit;
@@ -138,6 +153,20 @@ public class Server
      *       connections after which the connection is closed; the default value
      *       is 10000 milliseconds.
      *   </li>
+     *   <li><tt>org.apache.felix.http.connection.pollinterval</tt> - the interval at which idle
+     *       connections are checked for new requests; connections which are idle for a longer
+     *       time are checked less often. The default value is 10 milliseconds.
+     *   </li>
+     *   <li><tt>org.apache.felix.http.response.buffersize</tt> - the size of the response buffer;
+     *       bodies which fit into the buffer are sent with a content length, larger bodies are
+     *       sent in chunks. The default value is 8192 bytes.
+     *   </li>
+     *   <li><tt>org.apache.felix.http.response.compression</tt> - a comma separated list of
+     *       <tt>type=size</tt> entries; response bodies of the listed MIME types, which may use a
+     *       wildcard subtype, are compressed with gzip if they are at least <tt>size</tt> bytes
+     *       long and the client accepts it. An empty value disables compression. The default
+     *       value covers text, JavaScript, JSON, XML and SVG bodies of at least 256 bytes.
+     *   </li>
      * </ul>
      * The configuration properties cannot be changed after construction. The
      * web server is not active until it is started.
@@ -163,6 +192,23 @@ public class Server
             : Integer.parseInt((String) configMap.get(Server.CONFIG_PROPERTY_CONNECTION_TIMEOUT_PROP));
         m_connectionRequestLimit = (configMap.get(Server.CONFIG_PROPERTY_CONNECTION_REQUESTLIMIT_PROP) == null) ? Connection.DEFAULT_CONNECTION_REQUESTLIMIT
             : Integer.parseInt((String) configMap.get(Server.CONFIG_PROPERTY_CONNECTION_REQUESTLIMIT_PROP));
+        int pollInterval = (configMap.get(Server.CONFIG_PROPERTY_CONNECTION_POLLINTERVAL_PROP) == null) ? ConnectionPoller.DEFAULT_POLL_INTERVAL
+            : Integer.parseInt((String) configMap.get(Server.CONFIG_PROPERTY_CONNECTION_POLLINTERVAL_PROP));
+        m_poller = new ConnectionPoller(m_threadPool, pollInterval, m_logger);
+        m_threadPool.setConnectionPoller(m_poller);
+        int bufferSize = (configMap.get(Server.CONFIG_PROPERTY_RESPONSE_BUFFERSIZE_PROP) == null) ? ResponseConfiguration.DEFAULT_BUFFER_SIZE
+            : Integer.parseInt((String) configMap.get(Server.CONFIG_PROPERTY_RESPONSE_BUFFERSIZE_PROP));
+        String compression = (configMap.get(Server.CONFIG_PROPERTY_RESPONSE_COMPRESSION_PROP) == null) ? ResponseConfiguration.DEFAULT_COMPRESSION_THRESHOLDS
+            : (String) configMap.get(Server.CONFIG_PROPERTY_RESPONSE_COMPRESSION_PROP);
+        m_responseConfig = new ResponseConfiguration(bufferSize, compression);
+    }
+
+    /**
+     * @return The settings for writing response bodies.
+     */
+    public ResponseConfiguration getResponseConfiguration()
+    {
+        return m_responseConfig;
     }
 
     /**
@@ -351,8 +397,9 @@ public class Server
     **/
     private void acceptConnections()
     {
-        // Start the thread pool.
+        // Start the thread pool and the poller for idle connections.
         m_threadPool.start();
+        m_poller.start();
 
         Socket socket;
 
@@ -367,12 +414,12 @@ public class Server
                 socket = m_serverSocket.accept();
                 try
                 {
-                    // Create connection object and add it to the thread pool
-                    // to be serviced.
+                    // Create connection object and let the poller hand it to
+                    // the thread pool once the client has sent its request.
                     Connection connection = new Connection(socket, m_connectionTimeout,
                         m_connectionRequestLimit, m_resolver, m_logger);
                     m_logger.log(Logger.LOG_DEBUG, "Accepted a new connection.");
-                    m_threadPool.addConnection(connection);
+                    m_poller.addConnection(connection);
                 }
                 catch (IOException ex)
                 {
@@ -403,6 +450,21 @@ public class Server
     **/
     private void shutdown()
     {
+        m_logger.log(Logger.LOG_DEBUG, "Closing idle connections.");
+
+        while (true)
+        {
+            try
+            {
+                m_poller.stop();
+                break;
+            }
+            catch (InterruptedException ex)
+            {
+                // See below, the server thread is never interrupted.
+            }
+        }
+
         m_logger.log(Logger.LOG_DEBUG, "Waiting for thread pool threads to stop.");
 
         while (true)
@@ -31,6 +31,10 @@ import org.apache.felix.httplite.osgi.Logger;
  * are only created if they are needed up until the thread limit. If threads
  * are inactive for a period of time, then the threads terminate; the default
  * is 60000 milliseconds.
+ * <p>
+ * If a {@link ConnectionPoller} is set, persistent connections are handed
+ * to the poller after each request instead of blocking a thread while
+ * waiting for the next request.
 **/
 public class ThreadPool
 {
@@ -49,6 +53,7 @@ public class ThreadPool
     private int m_threadAvailable = 0;
     private final List m_connectionList = new ArrayList();
     private final Logger m_logger;
+    private ConnectionPoller m_poller;
 
     /**
      * Constructs a thread pool with the specified thread limit and with
@@ -76,6 +81,16 @@ public class ThreadPool
         m_state = Server.INACTIVE_STATE;
     }
 
+    /**
+     * Sets the poller watching persistent connections between requests.
+     * @param poller The poller or <tt>null</tt> to keep the connection
+     *        in the thread until it is closed.
+    **/
+    public synchronized void setConnectionPoller(final ConnectionPoller poller)
+    {
+        m_poller = poller;
+    }
+
     /**
      * This method returns the current state of the thread pool, which is one
      * of the following values:
@@ -302,8 +317,24 @@ public class ThreadPool
             // service those remaining connections before stopping.
             try
             {
-                connection.process();
-                m_logger.log(Logger.LOG_DEBUG, "Connection closed normally.");
+                while (connection.process())
+                {
+                    final ConnectionPoller poller;
+                    synchronized (this)
+                    {
+                        poller = m_poller;
+                    }
+                    if (poller != null)
+                    {
+                        poller.addConnection(connection);
+                        connection = null;
+                        break;
+                    }
+                }
+                if (connection != null)
+                {
+                    m_logger.log(Logger.LOG_DEBUG, "Connection closed normally.");
+                }
             }
             catch (SocketTimeoutException ex)
             {
@@ -0,0 +1,78 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.httplite.servlet;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a response body with the chunked transfer coding. Every write
+ * becomes one chunk, so callers should write in blocks. Closing the stream
+ * writes the last chunk but leaves the underlying stream open.
+**/
+class ChunkedOutputStream extends FilterOutputStream
+{
+    private static final byte[] CRLF = HttpConstants.HEADER_DELEMITER.getBytes();
+    private static final byte[] LAST_CHUNK = ("0" + HttpConstants.HEADER_TERMINATOR).getBytes();
+
+    private final byte[] m_single = new byte[1];
+
+    /**
+     * @param out The connection output stream.
+     */
+    ChunkedOutputStream(final OutputStream out)
+    {
+        super(out);
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.FilterOutputStream#write(int)
+     */
+    public void write(final int b) throws IOException
+    {
+        m_single[0] = (byte) b;
+        write(m_single, 0, 1);
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.FilterOutputStream#write(byte[], int, int)
+     */
+    public void write(final byte[] b, final int off, final int len) throws IOException
+    {
+        if (len == 0)
+        {
+            // an empty chunk would terminate the body
+            return;
+        }
+        out.write(Integer.toHexString(len).getBytes());
+        out.write(CRLF);
+        out.write(b, off, len);
+        out.write(CRLF);
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.FilterOutputStream#close()
+     */
+    public void close() throws IOException
+    {
+        out.write(LAST_CHUNK);
+        out.flush();
+    }
+}
@@ -51,6 +51,22 @@ public class HttpConstants
      * Connection header
      */
     public static final String HEADER_CONNECTION = "Connection";
+    /**
+     * Transfer-Encoding header
+     */
+    public static final String HEADER_TRANSFER_ENCODING = "Transfer-Encoding";
+    /**
+     * Content-Encoding header
+     */
+    public static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    /**
+     * Accept-Encoding header
+     */
+    public static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    /**
+     * Vary header
+     */
+    public static final String HEADER_VARY = "Vary";
 
     /**
      * For building HTML error messages, this value is the default start of the html document for error message responses.
@@ -108,6 +124,14 @@ public class HttpConstants
      * Close value for Connection header.
      */
     public static final String CLOSE_CONNECTION = "close";
+    /**
+     * Chunked value for Transfer-Encoding header.
+     */
+    public static final String CHUNKED_ENCODING = "chunked";
+    /**
+     * Gzip value for Content-Encoding header.
+     */
+    public static final String GZIP_ENCODING = "gzip";
     /**
      * Date format for HTTP
      */
@@ -22,7 +22,7 @@ package org.apache.felix.httplite.servlet;
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -335,33 +335,21 @@ public class HttpServletRequestImpl implements HttpServletRequest
 
         if ( length > 0 )
         {
-            ByteArrayOutputStream baos = null;
-
             byte[] buf = new byte[length];
-            int left = length;
+            int offset = 0;
 
-            do
+            // Read exactly the body, so pipelined requests are not consumed.
+            while ( offset < length )
             {
-                left = left - is.read( buf );
-                if ( left > 0 )
+                int n = is.read( buf, offset, length - offset );
+                if ( n < 0 )
                 {
-                    if ( baos == null )
-                    {
-                        baos = new ByteArrayOutputStream( length );
-                    }
-                    baos.write( buf );
+                    throw new EOFException( "Unexpected end of request body." );
                 }
+                offset += n;
             }
-            while ( left > 0 );
 
-            if ( baos != null )
-            {
-                m_requestBody = baos.toByteArray();
-            }
-            else
-            {
-                m_requestBody = buf;
-            }
+            m_requestBody = buf;
         }
         else
         {
@@ -18,12 +18,10 @@
  */
 package org.apache.felix.httplite.servlet;
 
-import java.io.BufferedInputStream;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.HttpURLConnection;
 import java.net.URLEncoder;
@@ -35,6 +33,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.StringTokenizer;
 import java.util.TimeZone;
 
 import javax.servlet.ServletOutputStream;
@@ -43,7 +42,9 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * This class represents an HTTP response and handles sending properly
- * formatted responses to HTTP requests.
+ * formatted responses to HTTP requests. The body is buffered and, depending
+ * on its size and type, sent with a Content-Length, chunked or compressed;
+ * see {@link ResponseOutputStream}.
 **/
 public class HttpServletResponseImpl implements HttpServletResponse
 {
@@ -51,8 +52,10 @@ public class HttpServletResponseImpl implements HttpServletResponse
 
     private final SimpleDateFormat m_dateFormat;
     private final OutputStream m_out;
-    private int m_bufferSize = COPY_BUFFER_SIZE;
-    private ByteArrayOutputStream m_buffer;
+    private final ResponseConfiguration m_config;
+    private HttpServletRequestImpl m_request;
+    private int m_bufferSize;
+    private ResponseOutputStream m_stream;
     private final Map m_headers = new HashMap();
     private String m_characterEncoding = "UTF-8";
     //TODO: Make locale static and perhaps global to the service.
@@ -66,37 +69,47 @@ public class HttpServletResponseImpl implements HttpServletResponse
     private int m_statusCode = HttpURLConnection.HTTP_OK;
     private String m_customStatusMessage = null;
     private boolean m_headersWritten = false;
+    private boolean m_persistent = false;
 
     /**
      * Constructs an HTTP response for the specified server and request.
      * @param outputStream The output stream for the client.
+     * @param config The buffer and compression settings.
     **/
-    public HttpServletResponseImpl(OutputStream outputStream)
+    public HttpServletResponseImpl(OutputStream outputStream, ResponseConfiguration config)
     {
         m_out = outputStream;
+        m_config = config;
+        m_bufferSize = config.getBufferSize();
         m_dateFormat = new SimpleDateFormat(HttpConstants.HTTP_DATE_FORMAT);
         m_dateFormat.setTimeZone(TimeZone.getTimeZone(HttpConstants.HTTP_TIMEZONE));
     }
 
+    /**
+     * Sets the request this is the response to, once its headers have been
+     * read. The request determines how the body can be sent.
+     * @param request The request.
+     */
+    public void setRequest(HttpServletRequestImpl request)
+    {
+        m_request = request;
+    }
+
     /**
      * Write HTTP headers to output stream.
      * 
-     * @param close if true, should save state, only allow headers to be written once.  Does not close the stream.
+     * @param persistent if the client is able to find the end of the body.  Does not close the stream.
      * @throws IOException on I/O error
      */
-    void writeHeaders(boolean close) throws IOException
+    void writeHeaders(boolean persistent) throws IOException
     {
         if (m_headersWritten)
         {
             throw new IllegalStateException("Headers have already been written.");
         }
+        m_headersWritten = true;
 
-        if (!m_headers.containsKey(HttpConstants.HEADER_CONTENT_LENGTH)
-            && m_buffer != null)
-        {
-            setContentLength(m_buffer.size());
-        }
-
+        m_persistent = persistent;
         m_out.write(buildResponse(m_statusCode, m_headers, m_customStatusMessage, null));
         
         if (m_cookies != null)
@@ -113,20 +126,11 @@ public class HttpServletResponseImpl implements HttpServletResponse
             }
         }
         m_out.write(HttpConstants.HEADER_DELEMITER.getBytes());
-        m_out.flush();
-
-        if (close)
-        {
-            m_headersWritten = true;
-        }
-        else
-        {
-            m_headers.clear();
-        }
     }
 
     /**
-     * Copy the contents of the input to the output stream, then close the input stream.
+     * Copy the contents of the input to the output stream, then close the input stream
+     * and complete the response.
      * @param inputStream input stream
      * @param close if connection should be closed 
      * @throws IOException on I/O error
@@ -134,35 +138,33 @@ public class HttpServletResponseImpl implements HttpServletResponse
     public void writeToOutputStream(final InputStream inputStream, final boolean close)
         throws IOException
     {
-        InputStream bufferedInput = new BufferedInputStream(inputStream);
-
-        if (!m_headers.containsKey(HttpConstants.HEADER_CONTENT_LENGTH))
+        try
         {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            copy(bufferedInput, baos);
-            byte[] outputBuffer = baos.toByteArray();
-
-            setContentLength(outputBuffer.length);
-            bufferedInput = new ByteArrayInputStream(outputBuffer);
+            copy(inputStream, getResponseStream());
         }
-
-        if (!m_headersWritten)
+        finally
         {
-            writeHeaders(close);
+            inputStream.close();
         }
+        complete();
+    }
 
-        try
+    /**
+     * Completes the response after the request has been handled: commits
+     * the response if this has not happened yet and finishes the body.
+     * @throws IOException on I/O error
+     */
+    public void complete() throws IOException
+    {
+        if (m_printWriter != null)
         {
-            copy(bufferedInput, m_out);
-
-            m_out.flush();
+            m_printWriter.flush();
         }
-        finally
+
+        // Nothing is left to do after an error or a redirect.
+        if (!m_headersWritten || (m_stream != null && m_stream.isCommitted()))
         {
-            if (bufferedInput != null)
-            {
-                bufferedInput.close();
-            }
+            getResponseStream().close();
         }
     }
 
@@ -257,25 +259,14 @@ public class HttpServletResponseImpl implements HttpServletResponse
      */
     synchronized public void flushBuffer() throws IOException
     {
-        if (m_getOutputStreamCalled)
-        {
-            m_servletOutputStream.flush();
-        }
-        else if (m_getWriterCalled)
+        if (m_printWriter != null)
         {
             m_printWriter.flush();
         }
 
-        if (!m_headersWritten)
-        {
-            writeHeaders(true);
-        }
-
-        if (m_buffer != null)
+        if (!m_headersWritten || (m_stream != null && m_stream.isCommitted()))
         {
-            byte[] content = m_buffer.toByteArray();
-            copy(new ByteArrayInputStream(content), m_out);
-            m_out.flush();
+            getResponseStream().flushBuffer();
         }
     }
 
@@ -284,9 +275,9 @@ public class HttpServletResponseImpl implements HttpServletResponse
      */
     public int getBufferSize()
     {
-        if (m_buffer != null)
+        if (m_stream != null)
         {
-            return m_buffer.size();
+            return m_stream.getBufferSize();
         }
 
         return m_bufferSize;
@@ -336,8 +327,7 @@ public class HttpServletResponseImpl implements HttpServletResponse
 
         if (m_servletOutputStream == null)
         {
-            m_buffer = new ByteArrayOutputStream(m_bufferSize);
-            m_servletOutputStream = new ServletOutputStreamImpl(m_buffer);
+            m_servletOutputStream = new ServletOutputStreamImpl(getResponseStream());
         }
         return m_servletOutputStream;
     }
@@ -355,13 +345,24 @@ public class HttpServletResponseImpl implements HttpServletResponse
 
         if (m_printWriter == null)
         {
-            m_buffer = new ByteArrayOutputStream(m_bufferSize);
-            m_printWriter = new PrintWriter(m_buffer);
+            m_printWriter = new PrintWriter(new OutputStreamWriter(getResponseStream(), m_characterEncoding));
         }
 
         return m_printWriter;
     }
 
+    /**
+     * @return The stream buffering the body, created on first use.
+     */
+    private ResponseOutputStream getResponseStream()
+    {
+        if (m_stream == null)
+        {
+            m_stream = new ResponseOutputStream(this, m_out, m_bufferSize);
+        }
+        return m_stream;
+    }
+
     /* (non-Javadoc)
      * @see javax.servlet.ServletResponse#isCommitted()
      */
@@ -379,7 +380,10 @@ public class HttpServletResponseImpl implements HttpServletResponse
         {
             throw new IllegalStateException("Response has already been committed.");
         }
-        m_buffer.reset();
+        if (m_stream != null)
+        {
+            m_stream.resetBuffer();
+        }
         m_printWriter = null;
         m_servletOutputStream = null;
         m_getOutputStreamCalled = false;
@@ -399,7 +403,10 @@ public class HttpServletResponseImpl implements HttpServletResponse
             throw new IllegalStateException("Response has already been committed.");
         }
 
-        m_buffer.reset();
+        if (m_stream != null)
+        {
+            m_stream.resetBuffer();
+        }
         m_printWriter = null;
         m_servletOutputStream = null;
         m_getOutputStreamCalled = false;
@@ -416,6 +423,10 @@ public class HttpServletResponseImpl implements HttpServletResponse
             throw new IllegalStateException("Response has already been committed.");
         }
 
+        if (m_stream != null)
+        {
+            m_stream.setBufferSize(arg0);
+        }
         m_bufferSize = arg0;
     }
 
@@ -435,6 +446,159 @@ public class HttpServletResponseImpl implements HttpServletResponse
         m_headers.put(HttpConstants.HEADER_CONTENT_LENGTH, Integer.toString(arg0));
     }
 
+    /**
+     * Returns whether the response has been written with a content length
+     * or chunked, so the client is able to find its end and the connection
+     * can be used for further requests.
+     * @return <tt>true</tt> if the connection can be kept open.
+     */
+    public boolean isPersistent()
+    {
+        return m_persistent;
+    }
+
+    /**
+     * @return <tt>true</tt> if the body must not be sent.
+     */
+    boolean isHeadRequest()
+    {
+        return m_request != null && m_request.getMethod().equals(HttpConstants.HEAD_REQUEST);
+    }
+
+    /**
+     * @return <tt>true</tt> if the client understands the chunked transfer coding.
+     */
+    boolean isChunkingSupported()
+    {
+        return m_request != null && m_request.getProtocol().equals(HttpConstants.HTTP11_VERSION);
+    }
+
+    /**
+     * @return The Content-Length set by the application or <tt>-1</tt>.
+     */
+    int getDeclaredContentLength()
+    {
+        Object value = m_headers.get(HttpConstants.HEADER_CONTENT_LENGTH);
+        if (value != null)
+        {
+            try
+            {
+                return Integer.parseInt(value.toString());
+            }
+            catch (NumberFormatException e)
+            {
+                // treat as unknown
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the minimum body size for compressing this response.
+     * @return The threshold in bytes or <tt>-1</tt> if the body is not compressed.
+     */
+    int getCompressionThreshold()
+    {
+        if (m_statusCode < HttpURLConnection.HTTP_OK
+            || m_statusCode == HttpURLConnection.HTTP_NO_CONTENT
+            || m_statusCode == HttpURLConnection.HTTP_NOT_MODIFIED
+            || m_headers.containsKey(HttpConstants.HEADER_CONTENT_ENCODING))
+        {
+            return -1;
+        }
+        return m_config.getCompressionThreshold(getContentType());
+    }
+
+    /**
+     * Returns whether the client accepts a gzip encoded body, i.e. whether
+     * gzip or a wildcard is listed in Accept-Encoding with a non-zero quality.
+     * @return <tt>true</tt> if the body can be compressed with gzip.
+     */
+    boolean acceptsCompression()
+    {
+        String header = (m_request == null) ? null
+            : m_request.getHeader(HttpConstants.HEADER_ACCEPT_ENCODING);
+        if (header == null)
+        {
+            return false;
+        }
+
+        boolean accepted = false;
+        StringTokenizer st = new StringTokenizer(header, ",");
+        while (st.hasMoreTokens())
+        {
+            String coding = st.nextToken().trim();
+            float quality = 1;
+            int idx = coding.indexOf(';');
+            if (idx != -1)
+            {
+                String param = coding.substring(idx + 1).trim();
+                coding = coding.substring(0, idx).trim();
+                if (param.startsWith("q="))
+                {
+                    try
+                    {
+                        quality = Float.parseFloat(param.substring(2));
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        quality = 0;
+                    }
+                }
+            }
+
+            if (coding.equalsIgnoreCase(HttpConstants.GZIP_ENCODING)
+                || coding.equalsIgnoreCase("x-gzip"))
+            {
+                // an explicit entry overrides the wildcard
+                return quality > 0;
+            }
+            if (coding.equals("*"))
+            {
+                accepted = quality > 0;
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * Adds a value to a header holding a comma separated list, such as Vary,
+     * unless the header already lists it or the <tt>*</tt> wildcard.
+     * @param name The name of the header.
+     * @param value The value to add.
+     */
+    void addHeaderValue(final String name, final String value)
+    {
+        for (Iterator i = m_headers.entrySet().iterator(); i.hasNext();)
+        {
+            Map.Entry entry = (Map.Entry) i.next();
+            if (((String) entry.getKey()).equalsIgnoreCase(name))
+            {
+                String values = entry.getValue().toString();
+                StringTokenizer st = new StringTokenizer(values, ",");
+                while (st.hasMoreTokens())
+                {
+                    String token = st.nextToken().trim();
+                    if (token.equalsIgnoreCase(value) || token.equals("*"))
+                    {
+                        return;
+                    }
+                }
+                entry.setValue(values + ", " + value);
+                return;
+            }
+        }
+        m_headers.put(name, value);
+    }
+
+    /**
+     * @param name The name of the header to remove.
+     */
+    void removeHeader(final String name)
+    {
+        m_headers.remove(name);
+    }
+
     /**
      * Can be 'close' or 'Keep-Alive'.
      * @param type
@@ -528,6 +692,8 @@ public class HttpServletResponseImpl implements HttpServletResponse
             throw new IllegalStateException(
                 "Response has already been committed, unable to send error.");
 
+        m_persistent = false;
+        m_headersWritten = true;
         m_out.write(buildResponse(sc, msg));
         m_out.flush();
     }
@@ -550,6 +716,8 @@ public class HttpServletResponseImpl implements HttpServletResponse
             throw new IllegalStateException("Response has already been committed.");
         }
 
+        m_persistent = false;
+        m_headersWritten = true;
         Map map = new HashMap();
         map.put("Location", location);
         m_out.write(buildResponse(307, map, null, null));
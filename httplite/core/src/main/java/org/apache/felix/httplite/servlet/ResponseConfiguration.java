@@ -0,0 +1,132 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.httplite.servlet;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+/**
+ * Holds the settings for writing response bodies: the size of the response
+ * buffer and the minimum body size per MIME type above which bodies are
+ * compressed.
+ * <p>
+ * Compression thresholds are configured as a comma separated list of
+ * <tt>type=size</tt> entries, for example <tt>text/*=256,application/json=1024</tt>.
+ * A wildcard subtype matches all types of the major type which are not
+ * listed explicitly; types not matching any entry are never compressed.
+**/
+public class ResponseConfiguration
+{
+    /**
+     * Default response buffer size in bytes.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1024 * 8;
+    /**
+     * Default minimum body size in bytes for compression, used for entries
+     * without an explicit size.
+     */
+    public static final int DEFAULT_COMPRESSION_THRESHOLD = 256;
+    /**
+     * Default compression thresholds.
+     */
+    public static final String DEFAULT_COMPRESSION_THRESHOLDS = "text/*=256,application/javascript=256,"
+        + "application/json=256,application/xml=256,image/svg+xml=256";
+
+    private final int m_bufferSize;
+    private final Map m_thresholds = new HashMap();
+
+    /**
+     * @param bufferSize The response buffer size in bytes.
+     * @param compressionThresholds The compression thresholds; an empty
+     *        string disables compression.
+     * @throws IllegalArgumentException If a threshold is not a number.
+    **/
+    public ResponseConfiguration(final int bufferSize, final String compressionThresholds)
+    {
+        m_bufferSize = (bufferSize > 0) ? bufferSize : DEFAULT_BUFFER_SIZE;
+
+        StringTokenizer st = new StringTokenizer(compressionThresholds, ",");
+        while (st.hasMoreTokens())
+        {
+            String entry = st.nextToken().trim();
+            if (entry.length() == 0)
+            {
+                continue;
+            }
+
+            int threshold = DEFAULT_COMPRESSION_THRESHOLD;
+            int idx = entry.indexOf('=');
+            if (idx != -1)
+            {
+                try
+                {
+                    threshold = Integer.parseInt(entry.substring(idx + 1).trim());
+                }
+                catch (NumberFormatException e)
+                {
+                    throw new IllegalArgumentException("Invalid compression threshold: " + entry);
+                }
+                entry = entry.substring(0, idx).trim();
+            }
+            m_thresholds.put(entry.toLowerCase(), new Integer(threshold));
+        }
+    }
+
+    /**
+     * @return The response buffer size in bytes.
+    **/
+    public int getBufferSize()
+    {
+        return m_bufferSize;
+    }
+
+    /**
+     * Returns the minimum body size for compressing a body of the given type.
+     * @param contentType The value of the Content-Type header, may include parameters.
+     * @return The minimum size in bytes or <tt>-1</tt> if the type is not compressed.
+    **/
+    public int getCompressionThreshold(final String contentType)
+    {
+        if (contentType == null || m_thresholds.isEmpty())
+        {
+            return -1;
+        }
+
+        String type = contentType;
+        int idx = type.indexOf(';');
+        if (idx != -1)
+        {
+            type = type.substring(0, idx);
+        }
+        type = type.trim().toLowerCase();
+
+        Integer threshold = (Integer) m_thresholds.get(type);
+        if (threshold == null)
+        {
+            idx = type.indexOf('/');
+            if (idx != -1)
+            {
+                threshold = (Integer) m_thresholds.get(type.substring(0, idx) + "/*");
+            }
+        }
+
+        return (threshold == null) ? -1 : threshold.intValue();
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.httplite.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Buffers the body of a response and decides how it is sent once the
+ * response is committed:
+ * <ul>
+ *   <li>If the whole body fits into the buffer, it is sent with a
+ *       Content-Length header.</li>
+ *   <li>Otherwise it is streamed with the chunked transfer coding, unless the
+ *       application set the Content-Length. HTTP/1.0 clients do not
+ *       support chunks, so the connection is closed after the body.</li>
+ *   <li>Bodies of compressible types and above the threshold of their type
+ *       are compressed with gzip if the client accepts it.</li>
+ * </ul>
+ * The response is committed when the buffer overflows, when the buffer is
+ * flushed explicitly, or when the stream is closed at the end of the request.
+**/
+class ResponseOutputStream extends OutputStream
+{
+    private final HttpServletResponseImpl m_response;
+    private final OutputStream m_out;
+    private byte[] m_buffer;
+    private int m_count = 0;
+    private OutputStream m_body;
+    private boolean m_committed = false;
+    private boolean m_closed = false;
+
+    /**
+     * @param response The response the body belongs to.
+     * @param out The connection output stream.
+     * @param bufferSize The buffer size in bytes.
+     */
+    ResponseOutputStream(final HttpServletResponseImpl response, final OutputStream out, final int bufferSize)
+    {
+        m_response = response;
+        m_out = out;
+        m_buffer = new byte[bufferSize];
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.OutputStream#write(int)
+     */
+    public void write(final int b) throws IOException
+    {
+        ensureOpen();
+        if (m_count == m_buffer.length)
+        {
+            drain();
+        }
+        m_buffer[m_count++] = (byte) b;
+    }
+
+    /* (non-Javadoc)
+     * @see java.io.OutputStream#write(byte[], int, int)
+     */
+    public void write(final byte[] b, final int off, final int len) throws IOException
+    {
+        ensureOpen();
+        if (len > m_buffer.length - m_count)
+        {
+            drain();
+            if (len >= m_buffer.length)
+            {
+                m_body.write(b, off, len);
+                return;
+            }
+        }
+        System.arraycopy(b, off, m_buffer, m_count, len);
+        m_count += len;
+    }
+
+    /**
+     * Flushes the body once the response is committed. Before, the content
+     * stays in the buffer so it can still be sent with a Content-Length.
+     * @see java.io.OutputStream#flush()
+     */
+    public void flush() throws IOException
+    {
+        if (m_body != null && !m_closed)
+        {
+            drain();
+            m_body.flush();
+        }
+    }
+
+    /**
+     * Commits the response and sends the buffered content.
+     * @throws IOException on I/O error
+     */
+    void flushBuffer() throws IOException
+    {
+        ensureOpen();
+        drain();
+        m_body.flush();
+    }
+
+    /**
+     * Completes the body, committing the response if this has not happened
+     * yet. The connection stream is flushed but not closed.
+     * @see java.io.OutputStream#close()
+     */
+    public void close() throws IOException
+    {
+        if (m_closed)
+        {
+            return;
+        }
+
+        if (m_committed)
+        {
+            drain();
+            m_body.close();
+        }
+        else
+        {
+            commit(true);
+        }
+        m_closed = true;
+        m_out.flush();
+    }
+
+    /**
+     * @return <tt>true</tt> if the headers have been sent.
+     */
+    boolean isCommitted()
+    {
+        return m_committed;
+    }
+
+    /**
+     * @return The buffer size in bytes.
+     */
+    int getBufferSize()
+    {
+        return m_buffer.length;
+    }
+
+    /**
+     * @param size The new buffer size in bytes.
+     * @throws IllegalStateException If content has been written.
+     */
+    void setBufferSize(final int size)
+    {
+        if (m_committed || m_count > 0)
+        {
+            throw new IllegalStateException("Content has already been written.");
+        }
+        m_buffer = new byte[size];
+    }
+
+    /**
+     * Discards the buffered content.
+     * @throws IllegalStateException If the response has been committed.
+     */
+    void resetBuffer()
+    {
+        if (m_committed)
+        {
+            throw new IllegalStateException("Response has already been committed.");
+        }
+        m_count = 0;
+    }
+
+    private void ensureOpen() throws IOException
+    {
+        if (m_closed)
+        {
+            throw new IOException("Response has already been completed.");
+        }
+    }
+
+    /**
+     * Passes the buffered content to the body stream, committing the
+     * response first if necessary.
+     */
+    private void drain() throws IOException
+    {
+        if (!m_committed)
+        {
+            commit(false);
+        }
+        else if (m_count > 0)
+        {
+            m_body.write(m_buffer, 0, m_count);
+            m_count = 0;
+        }
+    }
+
+    /**
+     * Writes the headers and the buffered content.
+     * @param complete <tt>true</tt> if the buffer holds the whole body.
+     */
+    private void commit(final boolean complete) throws IOException
+    {
+        m_committed = true;
+
+        // Responses to HEAD requests carry the headers of the GET response only.
+        final OutputStream out = m_response.isHeadRequest() ? new NullOutputStream() : m_out;
+        final int declared = m_response.getDeclaredContentLength();
+        final int size = complete ? m_count : declared;
+
+        boolean compress = false;
+        final int threshold = m_response.getCompressionThreshold();
+        if (threshold >= 0)
+        {
+            // caches must not serve a compressed body to other clients
+            m_response.addHeaderValue(HttpConstants.HEADER_VARY, HttpConstants.HEADER_ACCEPT_ENCODING);
+            // the size is unknown if the body is streamed without a Content-Length
+            compress = m_response.acceptsCompression()
+                && (size < 0 || (size > 0 && size >= threshold));
+        }
+
+        if (complete)
+        {
+            if (compress)
+            {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream(m_count / 2);
+                GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+                gzip.write(m_buffer, 0, m_count);
+                gzip.finish();
+
+                m_response.setHeader(HttpConstants.HEADER_CONTENT_ENCODING, HttpConstants.GZIP_ENCODING);
+                m_response.setContentLength(bytes.size());
+                m_response.writeHeaders(true);
+                bytes.writeTo(out);
+            }
+            else
+            {
+                if (declared < 0)
+                {
+                    m_response.setContentLength(m_count);
+                }
+                m_response.writeHeaders(true);
+                out.write(m_buffer, 0, m_count);
+            }
+            m_count = 0;
+            return;
+        }
+
+        final boolean persistent;
+        if (compress)
+        {
+            m_response.removeHeader(HttpConstants.HEADER_CONTENT_LENGTH);
+            m_response.setHeader(HttpConstants.HEADER_CONTENT_ENCODING, HttpConstants.GZIP_ENCODING);
+        }
+        if (!compress && declared >= 0)
+        {
+            m_body = new UnclosableOutputStream(out);
+            persistent = true;
+        }
+        else if (m_response.isChunkingSupported())
+        {
+            m_response.setHeader(HttpConstants.HEADER_TRANSFER_ENCODING, HttpConstants.CHUNKED_ENCODING);
+            m_body = new ChunkedOutputStream(out);
+            persistent = true;
+        }
+        else
+        {
+            // the end of the body is signaled by closing the connection
+            m_response.setConnectionType(HttpConstants.CLOSE_CONNECTION);
+            m_body = new UnclosableOutputStream(out);
+            persistent = false;
+        }
+        m_response.writeHeaders(persistent);
+
+        if (compress)
+        {
+            m_body = new GZIPOutputStream(m_body, m_buffer.length);
+        }
+        m_body.write(m_buffer, 0, m_count);
+        m_count = 0;
+    }
+
+    /**
+     * Passes writes to the connection stream, but does not close it.
+     */
+    private static class UnclosableOutputStream extends FilterOutputStream
+    {
+        UnclosableOutputStream(final OutputStream out)
+        {
+            super(out);
+        }
+
+        public void write(final byte[] b, final int off, final int len) throws IOException
+        {
+            out.write(b, off, len);
+        }
+
+        public void close() throws IOException
+        {
+            out.flush();
+        }
+    }
+
+    /**
+     * Discards the body of responses to HEAD requests.
+     */
+    private static class NullOutputStream extends OutputStream
+    {
+        public void write(final int b)
+        {
+            // discard
+        }
+
+        public void write(final byte[] b, final int off, final int len)
+        {
+            // discard
+        }
+    }
+}
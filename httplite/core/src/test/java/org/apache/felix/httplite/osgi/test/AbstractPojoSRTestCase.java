@@ -20,6 +20,7 @@ package org.apache.felix.httplite.osgi.test;
 
 
 import java.util.HashMap;
+import java.util.Map;
 import java.util.ServiceLoader;
 
 import junit.framework.TestCase;
@@ -51,7 +52,7 @@ public abstract class AbstractPojoSRTestCase extends TestCase
         //Initialize service registry
         ServiceLoader loader = ServiceLoader.load( PojoServiceRegistryFactory.class );
 
-        registry = ( ( PojoServiceRegistryFactory ) loader.iterator().next() ).newPojoServiceRegistry( new HashMap() );
+        registry = ( ( PojoServiceRegistryFactory ) loader.iterator().next() ).newPojoServiceRegistry( getConfiguration() );
 
         assertNotNull( registry );
 
@@ -61,6 +62,15 @@ public abstract class AbstractPojoSRTestCase extends TestCase
     }
 
 
+    /**
+     * @return the framework properties of the service registry, which tests may override to configure the server.
+     */
+    protected Map getConfiguration()
+    {
+        return new HashMap();
+    }
+
+
     protected void tearDown() throws Exception
     {
         if ( activator != null && registry != null )
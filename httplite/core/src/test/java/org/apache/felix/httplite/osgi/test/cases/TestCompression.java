@@ -0,0 +1,220 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.httplite.osgi.test.cases;
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.felix.httplite.osgi.test.AbstractHttpliteTestCase;
+import org.osgi.service.http.HttpService;
+import org.osgi.service.http.NamespaceException;
+
+
+/**
+ * Tests for buffering, chunking and compression of response bodies.
+ *
+ */
+public class TestCompression extends AbstractHttpliteTestCase
+{
+
+    /**
+     * Test that a text body is compressed if the client accepts gzip.
+     * @throws ServletException
+     * @throws NamespaceException
+     * @throws IOException
+     */
+    public void testCompressesText() throws ServletException, NamespaceException, IOException
+    {
+        HttpService httpService = getHTTPService( registry.getBundleContext() );
+
+        String content = createText( 4000 );
+        httpService.registerServlet( "/test", new ContentServlet( "text/plain", content.getBytes() ), null, null );
+
+        HttpURLConnection client = getConnection( DEFAULT_BASE_URL + "/test", "GET" );
+        client.setRequestProperty( "Accept-Encoding", "gzip" );
+        client.connect();
+
+        assertEquals( 200, client.getResponseCode() );
+        assertEquals( "gzip", client.getHeaderField( "Content-Encoding" ) );
+        assertTrue( client.getContentLength() < content.length() );
+        assertEquals( content, readInputAsString( new GZIPInputStream( client.getInputStream() ) ) );
+    }
+
+
+    /**
+     * Test that a body is not compressed if the client does not accept gzip.
+     * @throws ServletException
+     * @throws NamespaceException
+     * @throws IOException
+     */
+    public void testDoesNotCompressWithoutAcceptEncoding() throws ServletException, NamespaceException, IOException
+    {
+        HttpService httpService = getHTTPService( registry.getBundleContext() );
+
+        String content = createText( 4000 );
+        httpService.registerServlet( "/test", new ContentServlet( "text/plain", content.getBytes() ), null, null );
+
+        HttpURLConnection client = getConnection( DEFAULT_BASE_URL + "/test", "GET" );
+        client.connect();
+
+        assertEquals( 200, client.getResponseCode() );
+        assertNull( client.getHeaderField( "Content-Encoding" ) );
+        assertEquals( "Accept-Encoding", client.getHeaderField( "Vary" ) );
+        assertEquals( content.length(), client.getContentLength() );
+        assertEquals( content, readInputAsString( client.getInputStream() ) );
+    }
+
+
+    /**
+     * Test that Accept-Encoding is added to a Vary header set by the servlet.
+     * @throws ServletException
+     * @throws NamespaceException
+     * @throws IOException
+     */
+    public void testKeepsVaryOfServlet() throws ServletException, NamespaceException, IOException
+    {
+        HttpService httpService = getHTTPService( registry.getBundleContext() );
+
+        String content = createText( 4000 );
+        httpService.registerServlet( "/test", new ContentServlet( "text/plain", content.getBytes() )
+        {
+            protected void doGet( HttpServletRequest req, HttpServletResponse resp ) throws ServletException,
+                IOException
+            {
+                resp.setHeader( "Vary", "Cookie" );
+                super.doGet( req, resp );
+            }
+        }, null, null );
+
+        HttpURLConnection client = getConnection( DEFAULT_BASE_URL + "/test", "GET" );
+        client.setRequestProperty( "Accept-Encoding", "gzip" );
+        client.connect();
+
+        assertEquals( 200, client.getResponseCode() );
+        assertEquals( "gzip", client.getHeaderField( "Content-Encoding" ) );
+        assertEquals( "Cookie, Accept-Encoding", client.getHeaderField( "Vary" ) );
+    }
+
+
+    /**
+     * Test that small bodies and bodies of types which do not compress well are sent as is.
+     * @throws ServletException
+     * @throws NamespaceException
+     * @throws IOException
+     */
+    public void testDoesNotCompressSmallOrBinaryBodies() throws ServletException, NamespaceException, IOException
+    {
+        HttpService httpService = getHTTPService( registry.getBundleContext() );
+
+        httpService.registerServlet( "/small", new ContentServlet( "text/plain", createText( 100 ).getBytes() ), null, null );
+        httpService.registerServlet( "/binary", new ContentServlet( "image/png", createText( 4000 ).getBytes() ), null, null );
+
+        HttpURLConnection client = getConnection( DEFAULT_BASE_URL + "/small", "GET" );
+        client.setRequestProperty( "Accept-Encoding", "gzip" );
+        client.connect();
+
+        assertEquals( 200, client.getResponseCode() );
+        assertNull( client.getHeaderField( "Content-Encoding" ) );
+        assertEquals( 100, client.getContentLength() );
+
+        client = getConnection( DEFAULT_BASE_URL + "/binary", "GET" );
+        client.setRequestProperty( "Accept-Encoding", "gzip" );
+        client.connect();
+
+        assertEquals( 200, client.getResponseCode() );
+        assertNull( client.getHeaderField( "Content-Encoding" ) );
+        assertNull( client.getHeaderField( "Vary" ) );
+        assertEquals( 4000, client.getContentLength() );
+    }
+
+
+    /**
+     * Test that a body larger than the response buffer is sent in chunks.
+     * @throws ServletException
+     * @throws NamespaceException
+     * @throws IOException
+     */
+    public void testLargeBodyIsChunked() throws ServletException, NamespaceException, IOException
+    {
+        HttpService httpService = getHTTPService( registry.getBundleContext() );
+
+        byte[] content = new byte[64 * 1024];
+        for ( int i = 0; i < content.length; ++i )
+        {
+            content[i] = ( byte ) i;
+        }
+        httpService.registerServlet( "/test", new ContentServlet( "application/octet-stream", content ), null, null );
+
+        HttpURLConnection client = getConnection( DEFAULT_BASE_URL + "/test", "GET" );
+        client.connect();
+
+        assertEquals( 200, client.getResponseCode() );
+        assertEquals( "chunked", client.getHeaderField( "Transfer-Encoding" ) );
+        assertTrue( Arrays.equals( content, readInputAsByteArray( client.getInputStream() ) ) );
+    }
+
+
+    private static String createText( int length )
+    {
+        StringBuffer sb = new StringBuffer();
+        while ( sb.length() < length )
+        {
+            sb.append( "Apache Felix Lightweight HTTP Service " );
+        }
+        sb.setLength( length );
+
+        return sb.toString();
+    }
+
+    /**
+     * Servlet writing a fixed body in small blocks.
+     */
+    private static class ContentServlet extends HttpServlet
+    {
+        private final String m_contentType;
+        private final byte[] m_content;
+
+
+        ContentServlet( String contentType, byte[] content )
+        {
+            this.m_contentType = contentType;
+            this.m_content = content;
+        }
+
+
+        protected void doGet( HttpServletRequest req, HttpServletResponse resp ) throws ServletException, IOException
+        {
+            resp.setContentType( m_contentType );
+            OutputStream out = resp.getOutputStream();
+            for ( int i = 0; i < m_content.length; i += 1000 )
+            {
+                out.write( m_content, i, Math.min( 1000, m_content.length - i ) );
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.httplite.osgi.test.cases;
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.felix.httplite.osgi.test.AbstractHttpliteTestCase;
+import org.apache.felix.httplite.server.Server;
+import org.osgi.service.http.HttpService;
+import org.osgi.service.http.NamespaceException;
+
+
+/**
+ * Tests for persistent connections, which are watched by the connection poller between requests.
+ *
+ */
+public class TestPersistentConnections extends AbstractHttpliteTestCase
+{
+
+    private static final int CONNECTION_TIMEOUT = 3000;
+
+    private Socket m_socket;
+    private InputStream m_in;
+    private OutputStream m_out;
+    private Map m_headers;
+
+
+    protected Map getConfiguration()
+    {
+        Map config = super.getConfiguration();
+        config.put( Server.CONFIG_PROPERTY_CONNECTION_TIMEOUT_PROP, Integer.toString( CONNECTION_TIMEOUT ) );
+        return config;
+    }
+
+
+    protected void setUp() throws Exception
+    {
+        super.setUp();
+
+        HttpService httpService = getHTTPService( registry.getBundleContext() );
+        httpService.registerServlet( "/test", new QueryStringServlet(), null, null );
+
+        m_socket = new Socket( "localhost", DEFAULT_PORT );
+        m_socket.setSoTimeout( 2 * CONNECTION_TIMEOUT );
+        m_in = new BufferedInputStream( m_socket.getInputStream() );
+        m_out = m_socket.getOutputStream();
+    }
+
+
+    protected void tearDown() throws Exception
+    {
+        m_socket.close();
+        super.tearDown();
+    }
+
+
+    /**
+     * Test that consecutive requests are served on the same connection.
+     * @throws ServletException
+     * @throws NamespaceException
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void testKeepAlive() throws ServletException, NamespaceException, IOException, InterruptedException
+    {
+        send( "GET /test?1 HTTP/1.1\r\nHost: localhost\r\n\r\n" );
+        assertEquals( "1", readResponse() );
+
+        // let the connection become idle
+        Thread.sleep( 500 );
+
+        send( "GET /test?2 HTTP/1.1\r\nHost: localhost\r\n\r\n" );
+        assertEquals( "2", readResponse() );
+    }
+
+
+    /**
+     * Test that pipelined requests are answered in order.
+     * @throws ServletException
+     * @throws NamespaceException
+     * @throws IOException
+     */
+    public void testPipelinedRequests() throws ServletException, NamespaceException, IOException
+    {
+        send( "GET /test?1 HTTP/1.1\r\nHost: localhost\r\n\r\nGET /test?2 HTTP/1.1\r\nHost: localhost\r\n\r\n" );
+
+        assertEquals( "1", readResponse() );
+        assertEquals( "2", readResponse() );
+    }
+
+
+    /**
+     * Test that a HTTP/1.0 connection is kept open if the client asks for it.
+     * @throws ServletException
+     * @throws NamespaceException
+     * @throws IOException
+     */
+    public void testHttp10KeepAlive() throws ServletException, NamespaceException, IOException
+    {
+        send( "GET /test?1 HTTP/1.0\r\nConnection: keep-alive\r\n\r\n" );
+        assertEquals( "1", readResponse() );
+        assertEquals( "keep-alive", ( ( String ) m_headers.get( "connection" ) ).toLowerCase() );
+
+        send( "GET /test?2 HTTP/1.0\r\nConnection: keep-alive\r\n\r\n" );
+        assertEquals( "2", readResponse() );
+    }
+
+
+    /**
+     * Test that an idle connection is closed after the connection timeout.
+     * @throws ServletException
+     * @throws NamespaceException
+     * @throws IOException
+     */
+    public void testIdleTimeout() throws ServletException, NamespaceException, IOException
+    {
+        send( "GET /test?1 HTTP/1.1\r\nHost: localhost\r\n\r\n" );
+        assertEquals( "1", readResponse() );
+
+        long start = System.currentTimeMillis();
+        assertEquals( -1, m_in.read() );
+        assertTrue( System.currentTimeMillis() - start >= CONNECTION_TIMEOUT / 2 );
+    }
+
+
+    /**
+     * Test that the server closes an idle connection soon after the client closed it.
+     * @throws ServletException
+     * @throws NamespaceException
+     * @throws IOException
+     */
+    public void testPeerClose() throws ServletException, NamespaceException, IOException
+    {
+        send( "GET /test?1 HTTP/1.1\r\nHost: localhost\r\n\r\n" );
+        assertEquals( "1", readResponse() );
+
+        long start = System.currentTimeMillis();
+        m_socket.shutdownOutput();
+        assertEquals( -1, m_in.read() );
+        assertTrue( System.currentTimeMillis() - start < CONNECTION_TIMEOUT / 2 );
+    }
+
+
+    private void send( String request ) throws IOException
+    {
+        m_out.write( request.getBytes( "US-ASCII" ) );
+        m_out.flush();
+    }
+
+
+    /**
+     * Reads a response with a content length or a chunked body, skipping interim responses.
+     * @return the body of the response
+     * @throws IOException
+     */
+    private String readResponse() throws IOException
+    {
+        String status = readLine();
+        m_headers = new HashMap();
+        for ( String line = readLine(); line.length() > 0 || status.indexOf( " 100 " ) > 0; line = readLine() )
+        {
+            if ( line.length() == 0 )
+            {
+                status = readLine();
+                continue;
+            }
+            int index = line.indexOf( ':' );
+            m_headers.put( line.substring( 0, index ).trim().toLowerCase(), line.substring( index + 1 ).trim() );
+        }
+        assertTrue( status, status.indexOf( " 200 " ) > 0 );
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        if ( m_headers.containsKey( "content-length" ) )
+        {
+            readBytes( body, Integer.parseInt( ( String ) m_headers.get( "content-length" ) ) );
+        }
+        else
+        {
+            assertEquals( "chunked", m_headers.get( "transfer-encoding" ) );
+            for ( int size = Integer.parseInt( readLine(), 16 ); size > 0; size = Integer.parseInt( readLine(), 16 ) )
+            {
+                readBytes( body, size );
+                readLine();
+            }
+            readLine();
+        }
+        return body.toString( "US-ASCII" );
+    }
+
+
+    private void readBytes( ByteArrayOutputStream body, int length ) throws IOException
+    {
+        for ( int i = 0; i < length; i++ )
+        {
+            int b = m_in.read();
+            assertTrue( b != -1 );
+            body.write( b );
+        }
+    }
+
+
+    private String readLine() throws IOException
+    {
+        StringBuffer line = new StringBuffer();
+        for ( int c = m_in.read(); c != '\n'; c = m_in.read() )
+        {
+            assertTrue( c != -1 );
+            if ( c != '\r' )
+            {
+                line.append( ( char ) c );
+            }
+        }
+        return line.toString();
+    }
+
+
+    private static class QueryStringServlet extends HttpServlet
+    {
+        protected void doGet( HttpServletRequest req, HttpServletResponse resp ) throws ServletException, IOException
+        {
+            resp.setContentType( "text/plain" );
+            resp.getWriter().print( req.getQueryString() );
+        }
+    }
+}
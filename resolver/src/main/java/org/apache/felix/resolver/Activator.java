@@ -18,6 +18,10 @@
  */
 package org.apache.felix.resolver;
 
+import java.lang.management.ManagementFactory;
+
+import javax.management.ObjectName;
+
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.service.resolver.Resolver;
@@ -25,6 +29,12 @@ import org.osgi.service.resolver.Resolver;
 public class Activator implements BundleActivator
 {
     public static final String LOG_LEVEL = "felix.resolver.log.level";
+    public static final String PARALLEL_PERMUTATIONS = "felix.resolver.permutations.parallel";
+    public static final String TIMEOUT = "felix.resolver.timeout";
+    public static final String MAX_PERMUTATIONS = "felix.resolver.permutations.max";
+    public static final String JMX = "felix.resolver.jmx";
+
+    private ObjectName m_mbeanName;
 
     public void start(BundleContext bc) throws Exception
     {
@@ -40,13 +50,56 @@ public class Activator implements BundleActivator
                 // Use default log level.
             }
         }
-        bc.registerService(
-            Resolver.class,
-            new ResolverImpl(new Logger(logLevel)),
-            null);
+        int permutations = Util.getThreadCount(bc.getProperty(PARALLEL_PERMUTATIONS), 1);
+        Logger logger = new Logger(logLevel);
+        ResolverImpl resolver = new ResolverImpl(
+            logger,
+            Runtime.getRuntime().availableProcessors(),
+            permutations,
+            getLimit(bc, TIMEOUT),
+            (int) Math.min(Integer.MAX_VALUE, getLimit(bc, MAX_PERMUTATIONS)));
+        if (Boolean.valueOf(bc.getProperty(JMX)).booleanValue())
+        {
+            ResolverMonitor monitor = new ResolverMonitor();
+            try
+            {
+                ObjectName name = new ObjectName(ResolverMonitorMBean.OBJECT_NAME
+                    + ",bundle=" + bc.getBundle().getBundleId());
+                ManagementFactory.getPlatformMBeanServer().registerMBean(monitor, name);
+                resolver.addListener(monitor);
+                m_mbeanName = name;
+            }
+            catch (Exception ex)
+            {
+                logger.log(Logger.LOG_WARNING, "Unable to register resolver MBean.", ex);
+            }
+        }
+        bc.registerService(Resolver.class, resolver, null);
+    }
+
+    private static long getLimit(BundleContext bc, String name)
+    {
+        String value = bc.getProperty(name);
+        if (value != null)
+        {
+            try
+            {
+                return Long.parseLong(value.trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                // Do not limit resolves.
+            }
+        }
+        return 0;
     }
 
     public void stop(BundleContext bc) throws Exception
     {
+        if (m_mbeanName != null)
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(m_mbeanName);
+            m_mbeanName = null;
+        }
     }
 }
\ No newline at end of file
@@ -123,6 +123,21 @@ class Candidates
         return m_populateResultCache.size();
     }
 
+    public int getNbRequirements()
+    {
+        return m_candidateMap.size();
+    }
+
+    public int getNbCandidates()
+    {
+        int count = 0;
+        for (List<Capability> caps : m_candidateMap.values())
+        {
+            count += caps.size();
+        }
+        return count;
+    }
+
     public Map<Resource, Resource> getHosts()
     {
         Map<Resource, Resource> hosts = new HashMap<Resource, Resource>();
@@ -0,0 +1,322 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.resolver;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of a single resolve operation as passed to
+ * {@link ResolveListener}s. Times are in nanoseconds. When package spaces
+ * or candidate permutations are calculated concurrently, the times spent
+ * by all threads are summed up, so they may exceed the total time.
+ * Statistics are only collected for resolve operations started while a
+ * listener is registered, so that resolving without listeners does not pay
+ * for updating the shared counters.
+ */
+public class ResolveStatistics
+{
+    private final boolean m_dynamic;
+    private final boolean m_enabled;
+    private final long m_start = System.nanoTime();
+    private final AtomicInteger m_usesPermutations = new AtomicInteger();
+    private final AtomicInteger m_importPermutations = new AtomicInteger();
+    private final AtomicInteger m_substitutionPermutations = new AtomicInteger();
+    private final AtomicLong m_populateTime = new AtomicLong();
+    private final AtomicLong m_packageSpacesTime = new AtomicLong();
+    private final AtomicLong m_consistencyTime = new AtomicLong();
+    private final AtomicLong m_wireMapTime = new AtomicLong();
+    private final AtomicLong m_usesCacheHits = new AtomicLong();
+    private final AtomicLong m_usesCacheMisses = new AtomicLong();
+    private volatile int m_resources;
+    private volatile int m_requirements;
+    private volatile int m_candidates;
+    private volatile long m_totalTime;
+    private volatile boolean m_successful;
+
+    ResolveStatistics(boolean dynamic, boolean enabled)
+    {
+        m_dynamic = dynamic;
+        m_enabled = enabled;
+    }
+
+    /**
+     * Returns whether this was the resolve of a dynamic import.
+     */
+    public boolean isDynamic()
+    {
+        return m_dynamic;
+    }
+
+    /**
+     * Returns whether the resolve operation succeeded.
+     */
+    public boolean isSuccessful()
+    {
+        return m_successful;
+    }
+
+    /**
+     * Returns the number of candidate permutations checked, which includes
+     * the initial permutation.
+     */
+    public int getPermutations()
+    {
+        return getUsesPermutations() + getImportPermutations()
+            + getSubstitutionPermutations();
+    }
+
+    /**
+     * Returns the number of checked permutations resulting from uses
+     * constraint violations, which includes the initial permutation.
+     */
+    public int getUsesPermutations()
+    {
+        return m_usesPermutations.get();
+    }
+
+    /**
+     * Returns the number of checked permutations backtracking on the
+     * candidate chosen for a requirement.
+     */
+    public int getImportPermutations()
+    {
+        return m_importPermutations.get();
+    }
+
+    /**
+     * Returns the number of checked permutations resulting from
+     * substitutable exports.
+     */
+    public int getSubstitutionPermutations()
+    {
+        return m_substitutionPermutations.get();
+    }
+
+    /**
+     * Returns the time spent populating the candidates of the resources.
+     */
+    public long getPopulateTime()
+    {
+        return m_populateTime.get();
+    }
+
+    /**
+     * Returns the time spent calculating package spaces.
+     */
+    public long getPackageSpacesTime()
+    {
+        return m_packageSpacesTime.get();
+    }
+
+    /**
+     * Returns the time spent checking package space consistency.
+     */
+    public long getConsistencyTime()
+    {
+        return m_consistencyTime.get();
+    }
+
+    /**
+     * Returns the time spent creating the wires of a successful resolve.
+     */
+    public long getWireMapTime()
+    {
+        return m_wireMapTime.get();
+    }
+
+    /**
+     * Returns the total time of the resolve operation.
+     */
+    public long getTotalTime()
+    {
+        return m_totalTime;
+    }
+
+    /**
+     * Returns how often a parsed uses directive was found in the cache.
+     */
+    public long getUsesCacheHits()
+    {
+        return m_usesCacheHits.get();
+    }
+
+    /**
+     * Returns how often a uses directive had to be parsed.
+     */
+    public long getUsesCacheMisses()
+    {
+        return m_usesCacheMisses.get();
+    }
+
+    /**
+     * Returns the number of resources whose candidates were populated.
+     */
+    public int getResources()
+    {
+        return m_resources;
+    }
+
+    /**
+     * Returns the number of requirements with candidates.
+     */
+    public int getRequirements()
+    {
+        return m_requirements;
+    }
+
+    /**
+     * Returns the number of candidates of all requirements.
+     */
+    public int getCandidates()
+    {
+        return m_candidates;
+    }
+
+    boolean isEnabled()
+    {
+        return m_enabled;
+    }
+
+    void usesPermutation()
+    {
+        if (m_enabled)
+        {
+            m_usesPermutations.incrementAndGet();
+        }
+    }
+
+    void importPermutation()
+    {
+        if (m_enabled)
+        {
+            m_importPermutations.incrementAndGet();
+        }
+    }
+
+    void substitutionPermutation()
+    {
+        if (m_enabled)
+        {
+            m_substitutionPermutations.incrementAndGet();
+        }
+    }
+
+    void addPopulateTime(long time)
+    {
+        if (m_enabled)
+        {
+            m_populateTime.addAndGet(time);
+        }
+    }
+
+    void addPackageSpacesTime(long time)
+    {
+        if (m_enabled)
+        {
+            m_packageSpacesTime.addAndGet(time);
+        }
+    }
+
+    void addConsistencyTime(long time)
+    {
+        if (m_enabled)
+        {
+            m_consistencyTime.addAndGet(time);
+        }
+    }
+
+    void addWireMapTime(long time)
+    {
+        if (m_enabled)
+        {
+            m_wireMapTime.addAndGet(time);
+        }
+    }
+
+    void usesCacheHit()
+    {
+        if (m_enabled)
+        {
+            m_usesCacheHits.incrementAndGet();
+        }
+    }
+
+    void usesCacheMiss()
+    {
+        if (m_enabled)
+        {
+            m_usesCacheMisses.incrementAndGet();
+        }
+    }
+
+    /**
+     * Adds the times and counts of a permutation check, which collects
+     * them separately while it runs concurrently with other checks.
+     */
+    void add(ResolveStatistics statistics)
+    {
+        if (!m_enabled)
+        {
+            return;
+        }
+        m_packageSpacesTime.addAndGet(statistics.getPackageSpacesTime());
+        m_consistencyTime.addAndGet(statistics.getConsistencyTime());
+        m_usesCacheHits.addAndGet(statistics.getUsesCacheHits());
+        m_usesCacheMisses.addAndGet(statistics.getUsesCacheMisses());
+    }
+
+    void setCandidates(Candidates candidates)
+    {
+        if (!m_enabled)
+        {
+            return;
+        }
+        m_resources = candidates.getNbResources();
+        m_requirements = candidates.getNbRequirements();
+        m_candidates = candidates.getNbCandidates();
+    }
+
+    void completed(boolean successful)
+    {
+        m_successful = successful;
+        m_totalTime = System.nanoTime() - m_start;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ResolveStatistics[dynamic=" + m_dynamic
+            + ", successful=" + m_successful
+            + ", totalTime=" + m_totalTime
+            + ", permutations=" + getPermutations()
+            + " (uses=" + getUsesPermutations()
+            + ", import=" + getImportPermutations()
+            + ", substitution=" + getSubstitutionPermutations()
+            + "), populateTime=" + getPopulateTime()
+            + ", packageSpacesTime=" + getPackageSpacesTime()
+            + ", consistencyTime=" + getConsistencyTime()
+            + ", wireMapTime=" + getWireMapTime()
+            + ", usesCacheHits=" + getUsesCacheHits()
+            + ", usesCacheMisses=" + getUsesCacheMisses()
+            + ", resources=" + m_resources
+            + ", requirements=" + m_requirements
+            + ", candidates=" + m_candidates + "]";
+    }
+}
@@ -31,12 +31,18 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.felix.resolver.util.ArrayMap;
 import org.apache.felix.resolver.util.OpenHashMap;
@@ -69,6 +75,28 @@ public class ResolverImpl implements Resolver
 
     private final Executor m_executor;
 
+    // Number of candidate permutations checked concurrently.
+    private final int m_permutationParallelism;
+
+    // Maximum duration of a resolve in milliseconds, zero for no limit.
+    private final long m_timeout;
+
+    // Maximum number of candidate permutations checked by a resolve, zero
+    // for no limit.
+    private final int m_maxPermutations;
+
+    // Package spaces of resolved resources, which only depend on their
+    // wirings and are reused by subsequent resolves; null unless enabled
+    // by the owner of the resolved state.
+    private volatile ConcurrentMap<Resource, ResolvedPackages> m_resolvedPackages = null;
+    // Incremented whenever a kept package space is invalidated, so that a
+    // resolve running at the same time does not keep a stale one.
+    private final AtomicLong m_resolvedPackagesVersion = new AtomicLong();
+
+    // Listeners notified with the statistics of each resolve.
+    private final List<ResolveListener> m_listeners =
+        new CopyOnWriteArrayList<ResolveListener>();
+
     // Note this class is not thread safe.
     // Only use in the context of a single thread.
     class ResolveSession
@@ -87,11 +115,113 @@ public class ResolverImpl implements Resolver
         // removed the offending capabilities
         private Candidates m_multipleCardCandidates = null;
 
-        private final ConcurrentMap<String, List<String>> m_usesCache = new ConcurrentHashMap<String, List<String>>();
-
-        ResolveSession(ResolveContext resolveContext)
+        private final ConcurrentMap<String, List<String>> m_usesCache;
+        // Time in nanoseconds at which the resolve runs out of time, only
+        // used if there is a timeout.
+        private final long m_deadline;
+        // Number of candidate permutations checked so far.
+        private int m_permutationCount = 0;
+        // Set when the resolve context cancels the resolve.
+        private volatile boolean m_cancelled = false;
+        // Set when the permutation checked with this session is no longer
+        // needed because a permutation of higher priority is consistent.
+        private volatile boolean m_checkCancelled = false;
+        // Statistics reported to the resolve listeners.
+        private final ResolveStatistics m_statistics;
+        // Package spaces kept from previous resolves, or null.
+        private final ConcurrentMap<Resource, ResolvedPackages> m_resolvedPackages;
+        // Version of the kept package spaces when the resolve started.
+        private final long m_resolvedPackagesVersion;
+
+        ResolveSession(ResolveContext resolveContext, boolean dynamic)
         {
             m_resolveContext = resolveContext;
+            m_statistics = new ResolveStatistics(dynamic, !m_listeners.isEmpty());
+            m_usesCache = new ConcurrentHashMap<String, List<String>>();
+            m_resolvedPackages = ResolverImpl.this.m_resolvedPackages;
+            m_resolvedPackagesVersion = ResolverImpl.this.m_resolvedPackagesVersion.get();
+            m_deadline = System.nanoTime() + (m_timeout * 1000000L);
+            // This must be the first call on the resolve context.
+            resolveContext.onCancel(new Runnable()
+            {
+                public void run()
+                {
+                    m_cancelled = true;
+                }
+            });
+        }
+
+        // Creates a session for checking a single permutation on another
+        // thread, which shares only the resolve context of the given
+        // session. Its statistics are added to the given session once the
+        // check is done.
+        ResolveSession(ResolveSession session)
+        {
+            m_resolveContext = session.m_resolveContext;
+            m_usesCache = new ConcurrentHashMap<String, List<String>>();
+            m_deadline = session.m_deadline;
+            m_statistics = new ResolveStatistics(
+                session.m_statistics.isDynamic(), session.m_statistics.isEnabled());
+            m_resolvedPackages = session.m_resolvedPackages;
+            m_resolvedPackagesVersion = session.m_resolvedPackagesVersion;
+        }
+
+        ResolveStatistics getStatistics()
+        {
+            return m_statistics;
+        }
+
+        void cancelCheck()
+        {
+            m_checkCancelled = true;
+        }
+
+        boolean isCheckCancelled()
+        {
+            return m_checkCancelled;
+        }
+
+        /**
+         * Accounts for the given number of candidate permutations about to
+         * be checked and fails the resolve if it was cancelled or ran out
+         * of its time or permutation budget.
+         * @param permutations The number of permutations about to be checked.
+         * @param diagnosis The failure of the initial permutation, if any,
+         *        which is reported as the reason the resolve failed.
+         * @throws ResolutionException If the resolve must stop.
+         */
+        void checkBudget(int permutations, ResolutionError diagnosis)
+            throws ResolutionException
+        {
+            if (m_cancelled)
+            {
+                throw stopped("Resolve was cancelled", diagnosis);
+            }
+            if ((m_maxPermutations > 0) && (m_permutationCount >= m_maxPermutations))
+            {
+                throw stopped("Resolve exceeded its budget of "
+                    + m_maxPermutations + " candidate permutations", diagnosis);
+            }
+            if ((m_timeout > 0) && (System.nanoTime() - m_deadline > 0))
+            {
+                throw stopped("Resolve exceeded its time budget of "
+                    + m_timeout + " ms after " + m_permutationCount
+                    + " candidate permutations", diagnosis);
+            }
+            m_permutationCount += permutations;
+        }
+
+        private ResolutionException stopped(String reason, ResolutionError diagnosis)
+        {
+            if (diagnosis == null)
+            {
+                return new ResolutionException(
+                    reason, new CancellationException(reason), null);
+            }
+            return new ResolutionException(
+                reason + ": " + diagnosis.getMessage(),
+                new CancellationException(reason),
+                diagnosis.getUnresolvedRequirements());
         }
 
         Candidates getMultipleCardCandidates()
@@ -109,6 +239,40 @@ public class ResolverImpl implements Resolver
             return m_resolveContext;
         }
 
+        /**
+         * Returns the package space of a resolved resource calculated by
+         * a previous resolve, if its wiring did not change since.
+         */
+        ResolvedPackages getResolvedPackages(Resource resource)
+        {
+            if (m_resolvedPackages == null)
+            {
+                return null;
+            }
+            ResolvedPackages resolved = m_resolvedPackages.get(resource);
+            if ((resolved != null)
+                && (resolved.m_wiring != m_resolveContext.getWirings().get(resource)))
+            {
+                m_resolvedPackages.remove(resource, resolved);
+                resolved = null;
+            }
+            return resolved;
+        }
+
+        void putResolvedPackages(Resource resource, ResolvedPackages resolved)
+        {
+            if (m_resolvedPackages != null)
+            {
+                m_resolvedPackages.put(resource, resolved);
+                // The wiring may have changed in place since the resolve
+                // started, in which case the package space may be stale.
+                if (ResolverImpl.this.m_resolvedPackagesVersion.get() != m_resolvedPackagesVersion)
+                {
+                    m_resolvedPackages.remove(resource, resolved);
+                }
+            }
+        }
+
         public ConcurrentMap<String, List<String>> getUsesCache() {
             return m_usesCache;
         }
@@ -120,17 +284,63 @@ public class ResolverImpl implements Resolver
     }
 
     public ResolverImpl(Logger logger, int parallelism)
+    {
+        this(logger, parallelism, 1);
+    }
+
+    public ResolverImpl(Logger logger, Executor executor)
+    {
+        this(logger, executor, 1);
+    }
+
+    /**
+     * Creates a resolver that checks up to <tt>permutationParallelism</tt>
+     * candidate permutations concurrently when the first permutation is
+     * not consistent. The permutations are taken in the same priority
+     * order as when they are checked one by one and the first consistent
+     * one in that order is used, so the result does not depend on timing.
+     * A value of one or less checks permutations one by one.
+     */
+    public ResolverImpl(Logger logger, int parallelism, int permutationParallelism)
+    {
+        this(logger, parallelism, permutationParallelism, 0, 0);
+    }
+
+    public ResolverImpl(Logger logger, Executor executor, int permutationParallelism)
+    {
+        this(logger, executor, permutationParallelism, 0, 0);
+    }
+
+    /**
+     * Creates a resolver whose resolves stop with a
+     * <tt>ResolutionException</tt> once they took longer than
+     * <tt>timeout</tt> milliseconds or checked more than
+     * <tt>maxPermutations</tt> candidate permutations. The limits are
+     * checked between permutations and a value of zero or less means no
+     * limit. The exception reports why the initial permutation failed.
+     */
+    public ResolverImpl(
+        Logger logger, int parallelism, int permutationParallelism,
+        long timeout, int maxPermutations)
     {
         this.m_logger = logger;
         this.m_parallelism = parallelism;
         this.m_executor = null;
+        this.m_permutationParallelism = permutationParallelism;
+        this.m_timeout = Math.max(0, timeout);
+        this.m_maxPermutations = Math.max(0, maxPermutations);
     }
 
-    public ResolverImpl(Logger logger, Executor executor)
+    public ResolverImpl(
+        Logger logger, Executor executor, int permutationParallelism,
+        long timeout, int maxPermutations)
     {
         this.m_logger = logger;
         this.m_parallelism = -1;
         this.m_executor = executor;
+        this.m_permutationParallelism = permutationParallelism;
+        this.m_timeout = Math.max(0, timeout);
+        this.m_maxPermutations = Math.max(0, maxPermutations);
     }
 
     public Map<Resource, List<Wire>> resolve(ResolveContext rc) throws ResolutionException
@@ -180,9 +390,96 @@ public class ResolverImpl implements Resolver
         }
     }
 
+    /**
+     * Enables or disables keeping the package spaces of resolved resources
+     * for subsequent resolves, which is disabled by default.
+     * <p>
+     * A kept package space is only valid as long as every resolve context
+     * passed to this resolver reports the same wiring for its resource. It
+     * must therefore only be enabled by the single owner of the resolved
+     * state, such as the framework, and not for a resolver that is shared
+     * with other clients. The owner calls
+     * {@link #invalidateResolvedPackages(Resource)} whenever it changes a
+     * wiring in place or removes a resolved resource.
+     */
+    public void setReuseResolvedPackages(boolean reuse)
+    {
+        m_resolvedPackages = reuse
+            ? new ConcurrentHashMap<Resource, ResolvedPackages>()
+            : null;
+    }
+
+    /**
+     * Drops the kept package space of the given resource, whose wiring
+     * was changed, for example by adding a dynamic wire, or which is no
+     * longer resolved.
+     */
+    public void invalidateResolvedPackages(Resource resource)
+    {
+        ConcurrentMap<Resource, ResolvedPackages> resolvedPackages = m_resolvedPackages;
+        if (resolvedPackages != null)
+        {
+            m_resolvedPackagesVersion.incrementAndGet();
+            resolvedPackages.remove(resource);
+        }
+    }
+
+    /**
+     * Adds a listener, which is notified with the statistics of each
+     * subsequent resolve operation.
+     */
+    public void addListener(ResolveListener listener)
+    {
+        m_listeners.add(listener);
+    }
+
+    public void removeListener(ResolveListener listener)
+    {
+        m_listeners.remove(listener);
+    }
+
+    private void fireResolveCompleted(ResolveSession session, boolean successful)
+    {
+        // Listeners added during the resolve get the next one.
+        ResolveStatistics statistics = session.getStatistics();
+        if (!statistics.isEnabled())
+        {
+            return;
+        }
+        statistics.completed(successful);
+        for (ResolveListener listener : m_listeners)
+        {
+            try
+            {
+                listener.resolveCompleted(statistics);
+            }
+            catch (Throwable th)
+            {
+                m_logger.log(Logger.LOG_WARNING, "Resolve listener exception.", th);
+            }
+        }
+    }
+
     public Map<Resource, List<Wire>> resolve(ResolveContext rc, Executor executor) throws ResolutionException
     {
-        ResolveSession session = new ResolveSession(rc);
+        ResolveSession session = new ResolveSession(rc, false);
+        boolean successful = false;
+        try
+        {
+            Map<Resource, List<Wire>> wireMap = resolve(session, executor);
+            successful = true;
+            return wireMap;
+        }
+        finally
+        {
+            fireResolveCompleted(session, successful);
+        }
+    }
+
+    private Map<Resource, List<Wire>> resolve(ResolveSession session, Executor executor)
+        throws ResolutionException
+    {
+        ResolveContext rc = session.getContext();
         Map<Resource, List<Wire>> wireMap =
             new HashMap<Resource, List<Wire>>();
 
@@ -226,10 +523,13 @@ public class ResolverImpl implements Resolver
                 }
 
                 allCandidates.addMandatoryResources(mandatory);
+                long start = System.nanoTime();
                 allCandidates.populate(rc, toPopulate);
 
                 // Merge any fragments into hosts.
                 ResolutionError rethrow = allCandidates.prepare(rc);
+                session.getStatistics().addPopulateTime(System.nanoTime() - start);
+                session.getStatistics().setCandidates(allCandidates);
                 if (rethrow != null)
                 {
                     throw rethrow.toException();
@@ -277,98 +577,153 @@ public class ResolverImpl implements Resolver
 
                 Set<Object> processedDeltas = new HashSet<Object>();
                 Map<Resource, ResolutionError> faultyResources = null;
+                // The failure of the initial permutation, which is reported
+                // if the resolve runs out of budget.
+                ResolutionError diagnosis = null;
                 do
                 {
-                    if (!usesPermutations.isEmpty())
+                    // Take the next permutations in priority order. Unless
+                    // permutations are checked concurrently, this is a
+                    // single permutation.
+                    List<PermutationCheck> checks = new ArrayList<PermutationCheck>();
+                    while (checks.size() < Math.max(1, m_permutationParallelism))
                     {
-                        allCandidates = usesPermutations.remove(0);
-                    }
-                    else if (!importPermutations.isEmpty())
-                    {
-                        allCandidates = importPermutations.remove(0);
-                    }
-                    else if (!substPermutations.isEmpty())
-                    {
-                        allCandidates = substPermutations.remove(0);
-                    }
-                    else
-                    {
-                        break;
-                    }
+                        Candidates permutation;
+                        if (!usesPermutations.isEmpty())
+                        {
+                            permutation = usesPermutations.remove(0);
+                            session.getStatistics().usesPermutation();
+                        }
+                        else if (!importPermutations.isEmpty())
+                        {
+                            permutation = importPermutations.remove(0);
+                            session.getStatistics().importPermutation();
+                        }
+                        else if (!substPermutations.isEmpty())
+                        {
+                            permutation = substPermutations.remove(0);
+                            session.getStatistics().substitutionPermutation();
+                        }
+                        else
+                        {
+                            break;
+                        }
 
-                    // The delta is used to detect that we have already processed this particular permutation
-                    if (!processedDeltas.add(allCandidates.getDelta()))
-                    {
-                        // This permutation has already been tried
-                        // Don't try it again
-                        continue;
-                    }
+                        // The delta is used to detect that we have already processed this particular permutation
+                        if (!processedDeltas.add(permutation.getDelta()))
+                        {
+                            // This permutation has already been tried
+                            // Don't try it again
+                            continue;
+                        }
 
-                    // Null out each time a new permutation is attempted.
-                    // We only use this to store a valid permutation which is a
-                    // delta of the current permutation.
-                    session.setMultipleCardCandidates(null);
+//permutation.dump();
 
-//allCandidates.dump();
+                        ResolutionError substError = permutation.checkSubstitutes(substPermutations);
+                        if (substError != null)
+                        {
+                            rethrow = substError;
+                            continue;
+                        }
 
-                    rethrow = allCandidates.checkSubstitutes(substPermutations);
-                    if (rethrow != null)
+                        // Compute the list of hosts
+                        Map<Resource, Resource> hosts = new OpenHashMap<Resource, Resource>();
+                        for (Resource resource : allResources)
+                        {
+                            // If we are resolving a fragment, then get its
+                            // host candidate and verify it instead.
+                            Requirement hostReq = hostReqs.get(resource);
+                            if (hostReq != null)
+                            {
+                                Capability hostCap = permutation.getFirstCandidate(hostReq);
+                                // If the resource is an already resolved fragment and can not
+                                // be attached to new hosts, there will be no matching host,
+                                // so ignore this resource
+                                if (hostCap == null)
+                                {
+                                    continue;
+                                }
+                                resource = hostCap.getResource();
+                            }
+                            hosts.put(resource, permutation.getWrappedHost(resource));
+                        }
+
+                        // Permutations checked concurrently get their own
+                        // session, a single one is checked as before.
+                        checks.add(new PermutationCheck(
+                            (m_permutationParallelism > 1) ? new ResolveSession(session) : session,
+                            permutation, hosts));
+                    }
+                    if (checks.isEmpty())
                     {
-                        continue;
+                        break;
                     }
+                    session.checkBudget(checks.size(), diagnosis);
 
-                    // Compute the list of hosts
-                    Map<Resource, Resource> hosts = new OpenHashMap<Resource, Resource>();
-                    for (Resource resource : allResources)
+                    if (m_permutationParallelism <= 1)
                     {
-                        // If we are resolving a fragment, then get its
-                        // host candidate and verify it instead.
-                        Requirement hostReq = hostReqs.get(resource);
-                        if (hostReq != null)
+                        checks.get(0).start(new DumbExecutor(), executor);
+                    }
+                    else
+                    {
+                        // Check each permutation as a whole on the executor;
+                        // package spaces of a permutation are then calculated
+                        // on the checking thread.
+                        for (PermutationCheck check : checks)
                         {
-                            Capability hostCap = allCandidates.getFirstCandidate(hostReq);
-                            // If the resource is an already resolved fragment and can not
-                            // be attached to new hosts, there will be no matching host,
-                            // so ignore this resource
-                            if (hostCap == null)
-                            {
-                                continue;
-                            }
-                            resource = hostCap.getResource();
+                            check.start(executor, new DumbExecutor());
                         }
-                        hosts.put(resource, allCandidates.getWrappedHost(resource));
                     }
 
-                    Map<Resource, ResolutionError> currentFaultyResources = new HashMap<Resource, ResolutionError>();
-
+                    // Use the results in priority order, so the first
+                    // consistent permutation is always the same one.
                     List<Candidates> newUses = new ArrayList<Candidates>();
                     List<Candidates> newImports = new ArrayList<Candidates>();
-
-                    rethrow = checkConsistency(
-                            executor,
-                            session,
-                            newUses,
-                            newImports,
-                            allCandidates,
-                            currentFaultyResources,
-                            hosts,
-                            false);
-
-                    usesPermutations.addAll(0, newUses);
-                    importPermutations.addAll(0, newImports);
-
-                    if (!currentFaultyResources.isEmpty())
+                    for (int checkIdx = 0; checkIdx < checks.size(); checkIdx++)
                     {
-                        if (faultyResources == null)
+                        PermutationCheck check = checks.get(checkIdx);
+                        rethrow = check.await();
+                        if (check.m_session != session)
                         {
-                            faultyResources = currentFaultyResources;
+                            session.getStatistics().add(check.m_session.getStatistics());
                         }
-                        else if (faultyResources.size() > currentFaultyResources.size())
+                        if (diagnosis == null)
                         {
-                            // save the optimal faultyResources which has less
-                            faultyResources = currentFaultyResources;
+                            diagnosis = rethrow;
                         }
+
+                        if (!check.m_faultyResources.isEmpty())
+                        {
+                            if (faultyResources == null)
+                            {
+                                faultyResources = check.m_faultyResources;
+                            }
+                            else if (faultyResources.size() > check.m_faultyResources.size())
+                            {
+                                // save the optimal faultyResources which has less
+                                faultyResources = check.m_faultyResources;
+                            }
+                        }
+
+                        if (rethrow == null)
+                        {
+                            allCandidates = check.m_candidates;
+                            session.setMultipleCardCandidates(
+                                check.m_session.getMultipleCardCandidates());
+                            // Skip or stop the checks of lower priority
+                            // permutations, which are not needed anymore.
+                            for (int i = checkIdx + 1; i < checks.size(); i++)
+                            {
+                                checks.get(i).cancel();
+                            }
+                            break;
+                        }
+                        newUses.addAll(check.m_usesPermutations);
+                        newImports.addAll(check.m_importPermutations);
                     }
+
+                    usesPermutations.addAll(0, newUses);
+                    importPermutations.addAll(0, newImports);
                 }
                 while (rethrow != null);
 
@@ -415,6 +770,7 @@ public class ResolverImpl implements Resolver
                         // Use the consistent permutation
                         allCandidates = session.getMultipleCardCandidates();
                     }
+                    start = System.nanoTime();
                     for (Resource resource : allResources)
                     {
                         Resource target = resource;
@@ -443,6 +799,7 @@ public class ResolverImpl implements Resolver
                                     wireMap, allCandidates);
                         }
                     }
+                    session.getStatistics().addWireMapTime(System.nanoTime() - start);
                 }
             }
             finally
@@ -456,6 +813,91 @@ public class ResolverImpl implements Resolver
         return wireMap;
     }
 
+    /**
+     * The consistency check of a single candidate permutation, which
+     * collects the permutations and faulty resources it produces so that
+     * several permutations can be checked at the same time. Concurrent
+     * checks use their own session, so they share no state but the
+     * resolve context.
+     */
+    private class PermutationCheck implements Callable<ResolutionError>
+    {
+        final ResolveSession m_session;
+        final Candidates m_candidates;
+        final Map<Resource, Resource> m_hosts;
+        final List<Candidates> m_usesPermutations = new ArrayList<Candidates>();
+        final List<Candidates> m_importPermutations = new ArrayList<Candidates>();
+        final Map<Resource, ResolutionError> m_faultyResources =
+            new HashMap<Resource, ResolutionError>();
+        final FutureTask<ResolutionError> m_task = new FutureTask<ResolutionError>(this);
+        private volatile Executor m_innerExecutor;
+
+        PermutationCheck(
+            ResolveSession session, Candidates candidates, Map<Resource, Resource> hosts)
+        {
+            m_session = session;
+            m_candidates = candidates;
+            m_hosts = hosts;
+        }
+
+        void start(Executor executor, Executor innerExecutor)
+        {
+            m_innerExecutor = innerExecutor;
+            executor.execute(m_task);
+        }
+
+        void cancel()
+        {
+            m_session.cancelCheck();
+            m_task.cancel(false);
+        }
+
+        public ResolutionError call()
+        {
+            // Null out each time a new permutation is attempted.
+            // We only use this to store a valid permutation which is a
+            // delta of the current permutation.
+            m_session.setMultipleCardCandidates(null);
+            return checkConsistency(
+                m_innerExecutor,
+                m_session,
+                m_usesPermutations,
+                m_importPermutations,
+                m_candidates,
+                m_faultyResources,
+                m_hosts,
+                false);
+        }
+
+        ResolutionError await()
+        {
+            try
+            {
+                return m_task.get();
+            }
+            catch (InterruptedException e)
+            {
+                throw new IllegalStateException(e);
+            }
+            catch (ExecutionException e)
+            {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                {
+                    throw (RuntimeException) cause;
+                }
+                else if (cause instanceof Error)
+                {
+                    throw (Error) cause;
+                }
+                else
+                {
+                    throw new RuntimeException(cause);
+                }
+            }
+        }
+    }
+
     private ResolutionError checkConsistency(
         Executor executor,
         ResolveSession session,
@@ -467,14 +909,22 @@ public class ResolverImpl implements Resolver
         boolean dynamic)
     {
         // Calculate package spaces
+        long start = System.nanoTime();
         Map<Resource, Packages> resourcePkgMap =
             calculatePackageSpaces(executor, session, allCandidates, hosts.values());
+        session.getStatistics().addPackageSpacesTime(System.nanoTime() - start);
+        start = System.nanoTime();
         ResolutionError error = null;
         // Check package consistency
         Map<Resource, Object> resultCache =
                 new OpenHashMap<Resource, Object>(resourcePkgMap.size());
         for (Entry<Resource, Resource> entry : hosts.entrySet())
         {
+            if (session.isCheckCancelled())
+            {
+                // The result is not used anymore.
+                break;
+            }
             ResolutionError rethrow = checkPackageSpaceConsistency(
                     session, usesPermutations, importPermutations, entry.getValue(),
                     allCandidates, dynamic, resourcePkgMap, resultCache);
@@ -496,6 +946,7 @@ public class ResolverImpl implements Resolver
                 error = rethrow;
             }
         }
+        session.getStatistics().addConsistencyTime(System.nanoTime() - start);
         return error;
     }
 
@@ -528,7 +979,27 @@ public class ResolverImpl implements Resolver
         List<Capability> matches)
         throws ResolutionException
     {
-        ResolveSession session = new ResolveSession(rc);
+        ResolveSession session = new ResolveSession(rc, true);
+        boolean successful = false;
+        try
+        {
+            Map<Resource, List<Wire>> wireMap =
+                resolveDynamic(session, host, dynamicReq, matches);
+            successful = true;
+            return wireMap;
+        }
+        finally
+        {
+            fireResolveCompleted(session, successful);
+        }
+    }
+
+    private Map<Resource, List<Wire>> resolveDynamic(
+        ResolveSession session, Resource host, Requirement dynamicReq,
+        List<Capability> matches)
+        throws ResolutionException
+    {
+        ResolveContext rc = session.getContext();
         Map<Resource, List<Wire>> wireMap = new HashMap<Resource, List<Wire>>();
 
         // We can only create a dynamic import if the following
@@ -563,12 +1034,15 @@ public class ResolverImpl implements Resolver
                     // Create all candidates pre-populated with the single candidate set
                     // for the resolving dynamic import of the host.
                     Candidates allCandidates = new Candidates(onDemandResources);
+                    long start = System.nanoTime();
                     ResolutionError rethrow = allCandidates.populateDynamic(rc, host, dynamicReq, matches);
                     if (rethrow == null)
                     {
                         // Merge any fragments into hosts.
                         rethrow = allCandidates.prepare(rc);
                     }
+                    session.getStatistics().addPopulateTime(System.nanoTime() - start);
+                    session.getStatistics().setCandidates(allCandidates);
                     if (rethrow != null)
                     {
                         throw rethrow.toException();
@@ -580,13 +1054,22 @@ public class ResolverImpl implements Resolver
                     // Record the initial candidate permutation.
                     usesPermutations.add(allCandidates);
 
+                    ResolutionError diagnosis = null;
                     do
                     {
+                        session.checkBudget(1, diagnosis);
                         resourcePkgMap.clear();
 
-                        allCandidates = (usesPermutations.size() > 0)
-                            ? usesPermutations.remove(0)
-                            : importPermutations.remove(0);
+                        if (usesPermutations.size() > 0)
+                        {
+                            allCandidates = usesPermutations.remove(0);
+                            session.getStatistics().usesPermutation();
+                        }
+                        else
+                        {
+                            allCandidates = importPermutations.remove(0);
+                            session.getStatistics().importPermutation();
+                        }
 //allCandidates.dump();
 
                         rethrow = allCandidates.checkSubstitutes(importPermutations);
@@ -604,6 +1087,10 @@ public class ResolverImpl implements Resolver
                                 new OpenHashMap<Resource, ResolutionError>(resourcePkgMap.size()),
                                 allCandidates.getHosts(),
                                 true);
+                        if (diagnosis == null)
+                        {
+                            diagnosis = rethrow;
+                        }
                     }
                     while ((rethrow != null)
                         && ((usesPermutations.size() > 0) || (importPermutations.size() > 0)));
@@ -651,8 +1138,10 @@ public class ResolverImpl implements Resolver
                             // Use the consistent permutation
                             allCandidates = session.getMultipleCardCandidates();
                         }
+                        start = System.nanoTime();
                         wireMap = populateDynamicWireMap(rc,
                             host, dynamicReq, wireMap, allCandidates);
+                        session.getStatistics().addWireMapTime(System.nanoTime() - start);
                     }
                 }
                 finally
@@ -831,9 +1320,7 @@ public class ResolverImpl implements Resolver
         Wiring wiring = session.getContext().getWirings().get(resource);
         Set<Capability> usesCycleMap = new HashSet<Capability>();
 
-        int size = wireCandidates.size();
-        boolean isDynamicImporting = size > 0
-                && Util.isDynamic(wireCandidates.get(size - 1).requirement);
+        boolean isDynamicImporting = isDynamicImporting(wireCandidates);
 
         if ((wiring == null) || isDynamicImporting)
         {
@@ -1052,9 +1539,14 @@ public class ResolverImpl implements Resolver
                     uses = session.getUsesCache().get(s);
                     if (uses == null)
                     {
+                        session.getStatistics().usesCacheMiss();
                         uses = parseUses(s);
                         session.getUsesCache().put(s, uses);
                     }
+                    else
+                    {
+                        session.getStatistics().usesCacheHit();
+                    }
                 }
                 else
                 {
@@ -1160,9 +1652,27 @@ public class ResolverImpl implements Resolver
             executor.await();
         }
 
-        // Parallel get all exported packages
+        // Reuse the package spaces of resolved resources from previous
+        // resolves; these do not depend on the candidates.
         final OpenHashMap<Resource, Packages> allPackages = new OpenHashMap<Resource, Packages>(allCandidates.getNbResources());
-        for (final Resource resource : allWireCandidates.keySet())
+        final Set<Resource> toCalculate = new HashSet<Resource>();
+        for (Map.Entry<Resource, List<WireCandidate>> entry : allWireCandidates.entrySet())
+        {
+            Resource resource = entry.getKey();
+            ResolvedPackages resolved = isDynamicImporting(entry.getValue())
+                ? null : session.getResolvedPackages(resource);
+            if (resolved != null)
+            {
+                allPackages.put(resource, resolved.m_packages);
+            }
+            else
+            {
+                toCalculate.add(resource);
+            }
+        }
+
+        // Parallel get all exported packages
+        for (final Resource resource : toCalculate)
         {
             final Packages packages = new Packages(resource);
             allPackages.put(resource, packages);
@@ -1177,7 +1687,7 @@ public class ResolverImpl implements Resolver
         executor.await();
 
         // Parallel compute package lists
-        for (final Resource resource : allWireCandidates.keySet())
+        for (final Resource resource : toCalculate)
         {
             executor.execute(new Runnable()
             {
@@ -1193,10 +1703,9 @@ public class ResolverImpl implements Resolver
         // First, sequentially compute packages for resources
         // that have required packages, so that all recursive
         // calls can be done without threading problems
-        for (Map.Entry<Resource, Packages> entry : allPackages.fast())
+        for (Resource resource : toCalculate)
         {
-            final Resource resource = entry.getKey();
-            final Packages packages = entry.getValue();
+            Packages packages = allPackages.get(resource);
             if (!packages.m_requiredPkgs.isEmpty())
             {
                 getPackageSourcesInternal(session, allPackages, resource, packages);
@@ -1204,10 +1713,9 @@ public class ResolverImpl implements Resolver
         }
         // Next, for all remaining resources, we can compute them
         // in parallel, as they won't refer to other resource packages
-        for (Map.Entry<Resource, Packages> entry : allPackages.fast())
+        for (final Resource resource : toCalculate)
         {
-            final Resource resource = entry.getKey();
-            final Packages packages = entry.getValue();
+            final Packages packages = allPackages.get(resource);
             if (packages.m_sources.isEmpty())
             {
                 executor.execute(new Runnable()
@@ -1222,7 +1730,7 @@ public class ResolverImpl implements Resolver
         executor.await();
 
         // Parallel compute uses
-        for (final Resource resource : allWireCandidates.keySet())
+        for (final Resource resource : toCalculate)
         {
             executor.execute(new Runnable()
             {
@@ -1234,9 +1742,29 @@ public class ResolverImpl implements Resolver
         }
         executor.await();
 
+        // Keep the package spaces of resolved resources for subsequent
+        // resolves. Dynamically importing resources are excluded, since
+        // their package space includes the import being resolved.
+        for (Resource resource : toCalculate)
+        {
+            Wiring wiring = session.getContext().getWirings().get(resource);
+            if ((wiring != null) && !isDynamicImporting(allWireCandidates.get(resource)))
+            {
+                session.putResolvedPackages(
+                    resource, new ResolvedPackages(wiring, allPackages.get(resource)));
+            }
+        }
+
         return allPackages;
     }
 
+    private static boolean isDynamicImporting(List<WireCandidate> wireCandidates)
+    {
+        // A dynamic import being resolved is always the last wire candidate.
+        int size = wireCandidates.size();
+        return (size > 0) && Util.isDynamic(wireCandidates.get(size - 1).requirement);
+    }
+
     private static List<String> parseUses(String s) {
         int nb = 1;
         int l = s.length();
@@ -2073,6 +2601,23 @@ public class ResolverImpl implements Resolver
         }
     }
 
+    /**
+     * The package space of a resolved resource together with the wiring it
+     * was calculated from. Changes of the wiring in place, such as added
+     * dynamic imports, are reported by the owner of the resolved state.
+     */
+    private static final class ResolvedPackages
+    {
+        final Wiring m_wiring;
+        final Packages m_packages;
+
+        ResolvedPackages(Wiring wiring, Packages packages)
+        {
+            m_wiring = wiring;
+            m_packages = packages;
+        }
+    }
+
     public static class Packages
     {
         public final OpenHashMap<String, Blame> m_exportedPkgs;
@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.resolver;
+
+/**
+ * Resolve listener aggregating the statistics of all resolve operations,
+ * which can be registered as a standard MBean under
+ * {@link ResolverMonitorMBean#OBJECT_NAME}.
+ */
+public class ResolverMonitor implements ResolveListener, ResolverMonitorMBean
+{
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private long m_resolves;
+    private long m_failedResolves;
+    private long m_dynamicResolves;
+    private long m_usesPermutations;
+    private long m_importPermutations;
+    private long m_substitutionPermutations;
+    private long m_totalTime;
+    private long m_maxTime;
+    private long m_populateTime;
+    private long m_packageSpacesTime;
+    private long m_consistencyTime;
+    private long m_wireMapTime;
+    private long m_usesCacheHits;
+    private long m_usesCacheMisses;
+    private long m_candidates;
+    private ResolveStatistics m_last;
+
+    public synchronized void resolveCompleted(ResolveStatistics statistics)
+    {
+        m_resolves++;
+        if (!statistics.isSuccessful())
+        {
+            m_failedResolves++;
+        }
+        if (statistics.isDynamic())
+        {
+            m_dynamicResolves++;
+        }
+        m_usesPermutations += statistics.getUsesPermutations();
+        m_importPermutations += statistics.getImportPermutations();
+        m_substitutionPermutations += statistics.getSubstitutionPermutations();
+        m_totalTime += statistics.getTotalTime();
+        m_maxTime = Math.max(m_maxTime, statistics.getTotalTime());
+        m_populateTime += statistics.getPopulateTime();
+        m_packageSpacesTime += statistics.getPackageSpacesTime();
+        m_consistencyTime += statistics.getConsistencyTime();
+        m_wireMapTime += statistics.getWireMapTime();
+        m_usesCacheHits += statistics.getUsesCacheHits();
+        m_usesCacheMisses += statistics.getUsesCacheMisses();
+        m_candidates += statistics.getCandidates();
+        m_last = statistics;
+    }
+
+    public synchronized long getResolves()
+    {
+        return m_resolves;
+    }
+
+    public synchronized long getFailedResolves()
+    {
+        return m_failedResolves;
+    }
+
+    public synchronized long getDynamicResolves()
+    {
+        return m_dynamicResolves;
+    }
+
+    public synchronized long getUsesPermutations()
+    {
+        return m_usesPermutations;
+    }
+
+    public synchronized long getImportPermutations()
+    {
+        return m_importPermutations;
+    }
+
+    public synchronized long getSubstitutionPermutations()
+    {
+        return m_substitutionPermutations;
+    }
+
+    public synchronized long getTotalTime()
+    {
+        return m_totalTime / NANOS_PER_MILLI;
+    }
+
+    public synchronized long getMaxTime()
+    {
+        return m_maxTime / NANOS_PER_MILLI;
+    }
+
+    public synchronized long getPopulateTime()
+    {
+        return m_populateTime / NANOS_PER_MILLI;
+    }
+
+    public synchronized long getPackageSpacesTime()
+    {
+        return m_packageSpacesTime / NANOS_PER_MILLI;
+    }
+
+    public synchronized long getConsistencyTime()
+    {
+        return m_consistencyTime / NANOS_PER_MILLI;
+    }
+
+    public synchronized long getWireMapTime()
+    {
+        return m_wireMapTime / NANOS_PER_MILLI;
+    }
+
+    public synchronized double getUsesCacheHitRate()
+    {
+        long lookups = m_usesCacheHits + m_usesCacheMisses;
+        return (lookups == 0) ? 0 : (double) m_usesCacheHits / lookups;
+    }
+
+    public synchronized long getCandidates()
+    {
+        return m_candidates;
+    }
+
+    public synchronized String getLastResolve()
+    {
+        return (m_last == null) ? null : m_last.toString();
+    }
+
+    public synchronized void reset()
+    {
+        m_resolves = 0;
+        m_failedResolves = 0;
+        m_dynamicResolves = 0;
+        m_usesPermutations = 0;
+        m_importPermutations = 0;
+        m_substitutionPermutations = 0;
+        m_totalTime = 0;
+        m_maxTime = 0;
+        m_populateTime = 0;
+        m_packageSpacesTime = 0;
+        m_consistencyTime = 0;
+        m_wireMapTime = 0;
+        m_usesCacheHits = 0;
+        m_usesCacheMisses = 0;
+        m_candidates = 0;
+        m_last = null;
+    }
+}
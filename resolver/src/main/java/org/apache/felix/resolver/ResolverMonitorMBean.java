@@ -0,0 +1,61 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.resolver;
+
+/**
+ * Management interface of {@link ResolverMonitor}. Times are in
+ * milliseconds and summed up over all resolve operations since the last
+ * reset.
+ */
+public interface ResolverMonitorMBean
+{
+    String OBJECT_NAME = "org.apache.felix.resolver:type=Resolver";
+
+    long getResolves();
+
+    long getFailedResolves();
+
+    long getDynamicResolves();
+
+    long getUsesPermutations();
+
+    long getImportPermutations();
+
+    long getSubstitutionPermutations();
+
+    long getTotalTime();
+
+    long getMaxTime();
+
+    long getPopulateTime();
+
+    long getPackageSpacesTime();
+
+    long getConsistencyTime();
+
+    long getWireMapTime();
+
+    double getUsesCacheHitRate();
+
+    long getCandidates();
+
+    String getLastResolve();
+
+    void reset();
+}
@@ -181,4 +181,35 @@ public abstract class ResolveContext {
 	 *         unmodifiable.
 	 */
 	public abstract Map<Resource, Wiring> getWirings();
+
+	/**
+	 * Registers a callback with the resolve context that is associated with
+	 * the currently running resolve operation. The callback can be executed in
+	 * order to cancel the currently running resolve operation.
+	 * 
+	 * <p>
+	 * When a resolve operation begins, the resolver must call this method once
+	 * and only once for the duration of the resolve operation and that call
+	 * must happen before calling any other method on this resolve context. If
+	 * the specified callback is executed then the resolver must cancel the
+	 * currently running resolve operation and throw a
+	 * {@link ResolutionException} with a cause of type
+	 * {@link java.util.concurrent.CancellationException}.
+	 * 
+	 * <p>
+	 * The callback allows a resolve context to cancel a long running resolve
+	 * operation that appears to be running endlessly or at risk of running out
+	 * of resources. The resolve context may then decide to give up on resolve
+	 * operation or attempt to try another resolve operation with a smaller set
+	 * of resources which may allow the resolve operation to complete normally.
+	 * 
+	 * @param callback the callback to execute in order to cancel the resolve
+	 *        operation. Must not be {@code null}.
+	 * @throws IllegalStateException if the resolver attempts to register more
+	 *         than one callback for a resolve operation
+	 * @since 1.1
+	 */
+	public void onCancel(Runnable callback) {
+		// do nothing by default
+	}
 }
@@ -19,6 +19,7 @@
 package org.apache.felix.resolver.test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -32,9 +33,13 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
 
 import org.apache.felix.resolver.Logger;
+import org.apache.felix.resolver.ResolveListener;
+import org.apache.felix.resolver.ResolveStatistics;
 import org.apache.felix.resolver.ResolverImpl;
+import org.apache.felix.resolver.ResolverMonitor;
 import org.apache.felix.resolver.test.util.BundleCapability;
 import org.apache.felix.resolver.test.util.BundleRequirement;
 import org.apache.felix.resolver.test.util.GenericCapability;
@@ -431,6 +436,271 @@ public class ResolverTest
         assertEquals(resC1, wiresB.get(1).getProvider());
     }
 
+    @Test
+    public void testReuseResolvedPackageSpaces() throws Exception
+    {
+        // The package spaces of resolved resources are kept between
+        // resolves, so resolve the same state several times, with both the
+        // same and new wirings, and check the uses constraint of the
+        // resolved A is still honored.
+        ResolverImpl resolver = new ResolverImpl(new Logger(Logger.LOG_DEBUG), 1);
+        resolver.setReuseResolvedPackages(true);
+
+        Map<Resource, Wiring> wirings = new HashMap<Resource, Wiring>();
+        Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+        List<Resource> mandatory = populateScenario9(wirings, candMap);
+        for (int i = 0; i < 3; i++)
+        {
+            ResolveContextImpl rci = new ResolveContextImpl(
+                wirings, new HashMap<Requirement, List<Capability>>(candMap),
+                mandatory, Collections.<Resource> emptyList());
+            Map<Resource, List<Wire>> wireMap = resolver.resolve(rci);
+
+            Resource resB = findResource("B", wireMap.keySet());
+            List<Wire> wiresB = wireMap.get(resB);
+            assertEquals(2, wiresB.size());
+            assertEquals(findResource("A", wirings.keySet()), wiresB.get(0).getProvider());
+            assertEquals(findResource("C1", wirings.keySet()), wiresB.get(1).getProvider());
+
+            if (i == 0)
+            {
+                // as done by the framework when adding a dynamic wire
+                resolver.invalidateResolvedPackages(findResource("A", wirings.keySet()));
+            }
+            else if (i == 1)
+            {
+                wirings = new HashMap<Resource, Wiring>();
+                candMap = new HashMap<Requirement, List<Capability>>();
+                mandatory = populateScenario9(wirings, candMap);
+            }
+        }
+    }
+
+    @Test
+    public void testParallelPermutations() throws Exception
+    {
+        Resolver sequential = new ResolverImpl(new Logger(Logger.LOG_DEBUG), 1);
+        Resolver parallel = new ResolverImpl(new Logger(Logger.LOG_DEBUG), 4, 4);
+
+        // The first consistent permutation in priority order must be chosen,
+        // whatever the order in which the permutations complete.
+        for (int i = 0; i < 10; i++)
+        {
+            Map<Resource, Wiring> wirings = new HashMap<Resource, Wiring>();
+            Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+            List<Resource> mandatory = populateScenario6(wirings, candMap);
+            ResolveContextImpl rci = new ResolveContextImpl(wirings, candMap, mandatory, Collections.<Resource> emptyList());
+            assertEquals(sequential.resolve(rci), parallel.resolve(rci));
+
+            wirings = new HashMap<Resource, Wiring>();
+            candMap = new HashMap<Requirement, List<Capability>>();
+            mandatory = populateScenario8(wirings, candMap);
+            rci = new ResolveContextImpl(wirings, candMap, mandatory, Collections.<Resource> emptyList());
+            assertEquals(sequential.resolve(rci), parallel.resolve(rci));
+        }
+
+        Map<Resource, Wiring> wirings = new HashMap<Resource, Wiring>();
+        Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+        List<Resource> mandatory = populateScenario5(wirings, candMap);
+        ResolveContextImpl rci = new ResolveContextImpl(wirings, candMap, mandatory, Collections.<Resource> emptyList());
+        try
+        {
+            parallel.resolve(rci);
+            fail("Should have thrown a resolution exception as bundle A in scenario 5 cannot be resolved due to constraint violations.");
+        }
+        catch (ResolutionException re)
+        {
+            // good
+        }
+    }
+
+    @Test
+    public void testPermutationBudget() throws Exception
+    {
+        // Scenario 6 needs more than one candidate permutation.
+        Map<Resource, Wiring> wirings = new HashMap<Resource, Wiring>();
+        Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+        List<Resource> mandatory = populateScenario6(wirings, candMap);
+        ResolveContextImpl rci = new ResolveContextImpl(wirings, candMap, mandatory, Collections.<Resource> emptyList());
+
+        Resolver resolver = new ResolverImpl(new Logger(Logger.LOG_DEBUG), 1, 1, 0, 1);
+        try
+        {
+            resolver.resolve(rci);
+            fail("Should have run out of candidate permutations.");
+        }
+        catch (ResolutionException re)
+        {
+            assertTrue(re.getCause() instanceof CancellationException);
+            // The failure of the initial permutation is reported.
+            assertTrue(re.getMessage(), re.getMessage().contains("Uses constraint violation"));
+        }
+
+        resolver = new ResolverImpl(new Logger(Logger.LOG_DEBUG), 1, 1, 60000, 1000);
+        assertEquals(new ResolverImpl(new Logger(Logger.LOG_DEBUG), 1).resolve(rci), resolver.resolve(rci));
+    }
+
+    @Test
+    public void testCancel() throws Exception
+    {
+        Map<Resource, Wiring> wirings = new HashMap<Resource, Wiring>();
+        Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+        List<Resource> mandatory = populateScenario6(wirings, candMap);
+        final List<Runnable> callbacks = new ArrayList<Runnable>();
+        ResolveContextImpl rci = new ResolveContextImpl(wirings, candMap, mandatory, Collections.<Resource> emptyList())
+        {
+            @Override
+            public void onCancel(Runnable callback)
+            {
+                callbacks.add(callback);
+                callback.run();
+            }
+        };
+
+        try
+        {
+            new ResolverImpl(new Logger(Logger.LOG_DEBUG), 1).resolve(rci);
+            fail("Should have been cancelled.");
+        }
+        catch (ResolutionException re)
+        {
+            assertTrue(re.getCause() instanceof CancellationException);
+        }
+        assertEquals(1, callbacks.size());
+    }
+
+    @Test
+    public void testTimeout() throws Exception
+    {
+        Map<Resource, Wiring> wirings = new HashMap<Resource, Wiring>();
+        Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+        List<Resource> mandatory = populateScenario6(wirings, candMap);
+        ResolveContextImpl rci = new ResolveContextImpl(wirings, candMap, mandatory, Collections.<Resource> emptyList())
+        {
+            @Override
+            public List<Capability> findProviders(Requirement r)
+            {
+                // Slow providers make the resolve run out of time before
+                // the first candidate permutation is checked.
+                try
+                {
+                    Thread.sleep(20);
+                }
+                catch (InterruptedException ex)
+                {
+                    Thread.currentThread().interrupt();
+                }
+                return super.findProviders(r);
+            }
+        };
+
+        Resolver resolver = new ResolverImpl(new Logger(Logger.LOG_DEBUG), 1, 1, 10, 0);
+        try
+        {
+            resolver.resolve(rci);
+            fail("Should have run out of time.");
+        }
+        catch (ResolutionException re)
+        {
+            assertTrue(re.getCause() instanceof CancellationException);
+            assertTrue(re.getMessage(), re.getMessage().contains("time budget of 10 ms"));
+        }
+    }
+
+    @Test
+    public void testResolveListener() throws Exception
+    {
+        ResolverImpl resolver = new ResolverImpl(new Logger(Logger.LOG_DEBUG), 1);
+        final List<ResolveStatistics> statistics = new ArrayList<ResolveStatistics>();
+        resolver.addListener(new ResolveListener()
+        {
+            public void resolveCompleted(ResolveStatistics s)
+            {
+                statistics.add(s);
+            }
+        });
+        ResolverMonitor monitor = new ResolverMonitor();
+        resolver.addListener(monitor);
+
+        Map<Resource, Wiring> wirings = new HashMap<Resource, Wiring>();
+        Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+        List<Resource> mandatory = populateScenario6(wirings, candMap);
+        resolver.resolve(new ResolveContextImpl(wirings, candMap, mandatory, Collections.<Resource> emptyList()));
+
+        assertEquals(1, statistics.size());
+        ResolveStatistics s = statistics.get(0);
+        assertTrue(s.isSuccessful());
+        assertFalse(s.isDynamic());
+        assertTrue(s.toString(), s.getPermutations() > 1);
+        assertEquals(s.getPermutations(), s.getUsesPermutations()
+            + s.getImportPermutations() + s.getSubstitutionPermutations());
+        assertTrue(s.getResources() > 0);
+        assertTrue(s.getCandidates() >= s.getRequirements());
+        assertTrue(s.getUsesCacheHits() + s.getUsesCacheMisses() > 0);
+        assertTrue(s.getTotalTime() > 0);
+
+        wirings = new HashMap<Resource, Wiring>();
+        candMap = new HashMap<Requirement, List<Capability>>();
+        mandatory = populateScenario5(wirings, candMap);
+        try
+        {
+            resolver.resolve(new ResolveContextImpl(wirings, candMap, mandatory, Collections.<Resource> emptyList()));
+            fail("Should have thrown a resolution exception as bundle A in scenario 5 cannot be resolved due to constraint violations.");
+        }
+        catch (ResolutionException re)
+        {
+            // good
+        }
+        assertEquals(2, statistics.size());
+        assertFalse(statistics.get(1).isSuccessful());
+
+        assertEquals(2, monitor.getResolves());
+        assertEquals(1, monitor.getFailedResolves());
+        assertEquals(s.getUsesPermutations() + statistics.get(1).getUsesPermutations(),
+            monitor.getUsesPermutations());
+        monitor.reset();
+        assertEquals(0, monitor.getResolves());
+    }
+
+    @Test
+    public void testResolveListenerAddedDuringResolve() throws Exception
+    {
+        final ResolverImpl resolver = new ResolverImpl(new Logger(Logger.LOG_DEBUG), 1);
+        final List<ResolveStatistics> statistics = new ArrayList<ResolveStatistics>();
+        final ResolveListener listener = new ResolveListener()
+        {
+            public void resolveCompleted(ResolveStatistics s)
+            {
+                statistics.add(s);
+            }
+        };
+
+        Map<Resource, Wiring> wirings = new HashMap<Resource, Wiring>();
+        Map<Requirement, List<Capability>> candMap = new HashMap<Requirement, List<Capability>>();
+        List<Resource> mandatory = populateScenario6(wirings, candMap);
+        resolver.resolve(new ResolveContextImpl(wirings, candMap, mandatory, Collections.<Resource> emptyList())
+        {
+            @Override
+            public List<Capability> findProviders(Requirement r)
+            {
+                resolver.removeListener(listener);
+                resolver.addListener(listener);
+                return super.findProviders(r);
+            }
+        });
+
+        // Statistics are only collected for resolves started with listeners.
+        assertTrue(statistics.isEmpty());
+
+        wirings = new HashMap<Resource, Wiring>();
+        candMap = new HashMap<Requirement, List<Capability>>();
+        mandatory = populateScenario6(wirings, candMap);
+        resolver.resolve(new ResolveContextImpl(wirings, candMap, mandatory, Collections.<Resource> emptyList()));
+
+        assertEquals(1, statistics.size());
+        assertTrue(statistics.get(0).getPermutations() > 1);
+    }
+
     /**
      * Test dynamic resolution with a resolved fragment
      */
@@ -0,0 +1,148 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl.helper;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.felix.scr.impl.metadata.DSVersion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.osgi.service.component.ComponentContext;
+import org.osgi.service.log.LogService;
+
+/**
+ * Measures calling a component method through {@link ActivateMethod}, the
+ * path shared by all lifecycle and bind methods.
+ * <p>
+ * With <code>debug=true</code> the debug log arguments are built on every
+ * call, which is what every call cost before they were only built when
+ * debug logging is enabled. The <code>reflection</code> and
+ * <code>methodHandle</code> benchmarks call the same method directly
+ * through <code>Method.invoke</code> and through a spread
+ * <code>MethodHandle</code> invoked with <code>invokeWithArguments</code>;
+ * the latter is not used by SCR since it boxes and adapts the arguments on
+ * every call and is much slower than cached reflection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ComponentMethodBenchmark
+{
+    @Param({"false", "true"})
+    public boolean debug;
+
+    private Component m_component;
+    private ActivateMethod m_activateMethod;
+    private ActivatorParameter m_parameter;
+    private SimpleLogger m_logger;
+    private Method m_method;
+    private MethodHandle m_handle;
+    private Object[] m_params;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        m_component = new Component();
+        final ComponentContext context = (ComponentContext) Proxy.newProxyInstance(
+            ComponentMethodBenchmark.class.getClassLoader(),
+            new Class<?>[] { ComponentContext.class },
+            new InvocationHandler()
+            {
+                public Object invoke(final Object proxy, final Method method, final Object[] args)
+                {
+                    return null;
+                }
+            });
+        m_parameter = new ActivatorParameter(context, -1);
+        m_logger = new SimpleLogger()
+        {
+            public void log(final int level, final String message, final Throwable ex)
+            {
+                // discard
+            }
+
+            public void log(final int level, final String message, final Object[] arguments, final Throwable ex)
+            {
+                // discard
+            }
+
+            public boolean isLogEnabled(final int level)
+            {
+                return debug || level < LogService.LOG_DEBUG;
+            }
+        };
+
+        m_activateMethod = new ActivateMethod("activate", true, Component.class, DSVersion.DS13, false, false);
+        // resolve the method outside of the measurement
+        m_activateMethod.invoke(m_component, m_parameter, null, m_logger);
+
+        m_method = Component.class.getDeclaredMethod("activate", ComponentContext.class);
+        m_method.setAccessible(true);
+        m_handle = MethodHandles.lookup().unreflect(m_method)
+            .asType(MethodType.genericMethodType(2))
+            .asSpreader(Object[].class, 1);
+        m_params = new Object[] { context };
+    }
+
+    @Benchmark
+    public MethodResult activate()
+    {
+        return m_activateMethod.invoke(m_component, m_parameter, null, m_logger);
+    }
+
+    @Benchmark
+    public Object reflection() throws Exception
+    {
+        return m_method.invoke(m_component, m_params);
+    }
+
+    @Benchmark
+    public Object methodHandle() throws Throwable
+    {
+        return m_handle.invokeWithArguments(m_component, m_params);
+    }
+
+    public static class Component
+    {
+        private int m_count;
+
+        protected void activate(final ComponentContext context)
+        {
+            m_count++;
+        }
+    }
+}
@@ -27,6 +27,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.felix.scr.impl.config.ScrConfiguration;
+import org.apache.felix.scr.impl.metadata.ComponentMetadataCache;
 import org.apache.felix.scr.impl.runtime.ServiceComponentRuntimeImpl;
 import org.apache.felix.utils.extender.AbstractExtender;
 import org.apache.felix.utils.extender.Extension;
@@ -81,7 +82,10 @@ public class Activator extends AbstractExtender
     private ComponentRegistry m_componentRegistry;
 
     //  thread acting upon configurations
-    private ComponentActorThread m_componentActor;
+    private ComponentActor m_componentActor;
+
+    // cache of parsed component descriptors
+    private ComponentMetadataCache m_metadataCache;
 
     private ServiceRegistration<?> m_runtime_reg;
 
@@ -163,6 +167,12 @@ public class Activator extends AbstractExtender
         m_componentBundles = new HashMap<Long, BundleComponentActivator>();
         m_componentRegistry = new ComponentRegistry();
 
+        // prepare the cache of parsed component descriptors, dropping the
+        // entries of bundles uninstalled in the meantime
+        m_metadataCache = new ComponentMetadataCache(m_context.getDataFile("metadata"),
+            m_context.getBundle());
+        m_metadataCache.prune(m_globalContext);
+
         final ServiceComponentRuntime runtime = new ServiceComponentRuntimeImpl(
             m_globalContext, m_componentRegistry);
         m_runtime_reg = m_context.registerService(ServiceComponentRuntime.class, runtime,
@@ -173,10 +183,8 @@ public class Activator extends AbstractExtender
             new Object[] { m_bundle.getHeaders().get(Constants.BUNDLE_VERSION) }, null);
 
         // create and start the component actor
-        m_componentActor = new ComponentActorThread();
-        Thread t = new Thread(m_componentActor, "SCR Component Actor");
-        t.setDaemon(true);
-        t.start();
+        m_componentActor = new ComponentActor(m_configuration.actorThreads());
+        m_configuration.setComponentActor(m_componentActor);
 
         super.doStart();
 
@@ -222,6 +230,7 @@ public class Activator extends AbstractExtender
         // terminate the actor thread
         if (m_componentActor != null)
         {
+            m_configuration.setComponentActor(null);
             m_componentActor.terminate();
             m_componentActor = null;
         }
@@ -395,7 +404,8 @@ public class Activator extends AbstractExtender
         try
         {
             BundleComponentActivator ga = new BundleComponentActivator(
-                m_componentRegistry, m_componentActor, context, m_configuration);
+                m_componentRegistry, m_componentActor, context, m_configuration,
+                m_metadataCache);
             ga.initialEnable();
 
             // replace bundle activator in the map
@@ -28,6 +28,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
@@ -46,6 +47,7 @@ import org.apache.felix.scr.impl.manager.ExtendedServiceEvent;
 import org.apache.felix.scr.impl.manager.ExtendedServiceListener;
 import org.apache.felix.scr.impl.manager.ExtendedServiceListenerContext;
 import org.apache.felix.scr.impl.metadata.ComponentMetadata;
+import org.apache.felix.scr.impl.metadata.ComponentMetadataCache;
 import org.apache.felix.scr.impl.metadata.XmlHandler;
 import org.apache.felix.scr.impl.parser.KXml2SAXParser;
 import org.osgi.framework.Bundle;
@@ -55,6 +57,9 @@ import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceListener;
 import org.osgi.framework.ServiceReference;
+import org.osgi.framework.namespace.HostNamespace;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
 import org.osgi.service.component.ComponentException;
 import org.osgi.service.log.LogService;
 import org.osgi.util.tracker.ServiceTracker;
@@ -83,7 +88,7 @@ public class BundleComponentActivator implements Logger, ExtendedServiceListener
     private final ServiceTracker<LogService, LogService> m_logService;
 
     // thread acting upon configurations
-    private final ComponentActorThread m_componentActor;
+    private final ComponentActor m_componentActor;
 
     // true as long as the dispose method is not called
     private final AtomicBoolean m_active = new AtomicBoolean(true);
@@ -91,6 +96,9 @@ public class BundleComponentActivator implements Logger, ExtendedServiceListener
 
     // the configuration
     private final ScrConfiguration m_configuration;
+
+    // the cache of parsed component descriptors
+    private final ComponentMetadataCache m_metadataCache;
     
     private final ConfigAdminTracker configAdminTracker;
 
@@ -242,15 +250,17 @@ public class BundleComponentActivator implements Logger, ExtendedServiceListener
      *      register components with to ensure uniqueness of component names
      *      and to ensure configuration updates.
      * @param   context  The bundle context owning the components
+     * @param   metadataCache  The cache of parsed component descriptors
      *
      * @throws ComponentException if any error occurrs initializing this class
      */
-    BundleComponentActivator(ComponentRegistry componentRegistry, ComponentActorThread componentActor, BundleContext context, ScrConfiguration configuration) throws ComponentException
+    BundleComponentActivator(ComponentRegistry componentRegistry, ComponentActor componentActor, BundleContext context, ScrConfiguration configuration, ComponentMetadataCache metadataCache) throws ComponentException
     {
         // keep the parameters for later
         m_componentRegistry = componentRegistry;
         m_componentActor = componentActor;
         m_context = context;
+        m_metadataCache = metadataCache;
         m_bundle = context.getBundle();
 
         // have the LogService handy (if available)
@@ -300,6 +310,22 @@ public class BundleComponentActivator implements Logger, ExtendedServiceListener
             new Object[] { m_bundle.getBundleId(), descriptorLocations }, null, null,
             null);
 
+        String cacheKey = getMetadataCacheKey();
+        Map<String, byte[]> cached;
+        try
+        {
+            cached = m_metadataCache.load(m_bundle, cacheKey);
+        }
+        catch (IOException ex)
+        {
+            log(LogService.LOG_WARNING,
+                "BundleComponentActivator : Bundle [{0}] Cannot read cached component metadata",
+                new Object[] { m_bundle.getBundleId() }, null, null, ex);
+            cached = Collections.emptyMap();
+        }
+        Map<String, byte[]> descriptors = new LinkedHashMap<String, byte[]>();
+        boolean changed = false;
+
         // 112.4.1: The value of the the header is a comma separated list of XML entries within the Bundle
         StringTokenizer st = new StringTokenizer(descriptorLocations, ", ");
 
@@ -320,9 +346,55 @@ public class BundleComponentActivator implements Logger, ExtendedServiceListener
             // load from the descriptors
             for (URL descriptorURL : descriptorURLs)
             {
-                loadDescriptor(descriptorURL);
+                String url = descriptorURL.toString();
+                byte[] encoded = loadDescriptor(descriptorURL, cached.get(url));
+                if (encoded != null)
+                {
+                    descriptors.put(url, encoded);
+                }
+                changed |= encoded != cached.get(url);
+            }
+        }
+
+        // only rewrite the cache if a descriptor had to be parsed
+        if (changed || descriptors.size() != cached.size())
+        {
+            try
+            {
+                m_metadataCache.store(m_bundle, cacheKey, descriptors);
+            }
+            catch (IOException ex)
+            {
+                log(LogService.LOG_WARNING,
+                    "BundleComponentActivator : Bundle [{0}] Cannot cache component metadata",
+                    new Object[] { m_bundle.getBundleId() }, null, null, ex);
+            }
+        }
+    }
+
+    /**
+     * Returns the key identifying the cached metadata of the descriptors of
+     * this bundle. The descriptors cannot change without the bundle or one of
+     * its fragments being updated, but the parsed metadata depends on the
+     * configuration, too.
+     */
+    private String getMetadataCacheKey()
+    {
+        StringBuilder key = new StringBuilder();
+        key.append(m_bundle.getLastModified());
+        BundleWiring wiring = m_bundle.adapt(BundleWiring.class);
+        if (wiring != null)
+        {
+            for (BundleWire wire : wiring.getProvidedWires(HostNamespace.HOST_NAMESPACE))
+            {
+                Bundle fragment = wire.getRequirer().getBundle();
+                key.append(',').append(fragment.getBundleId());
+                key.append('@').append(fragment.getLastModified());
             }
         }
+        key.append(',').append(getConfiguration().isFactoryEnabled());
+        key.append(',').append(getConfiguration().keepInstances());
+        return key.toString();
     }
 
     /**
@@ -430,7 +502,17 @@ public class BundleComponentActivator implements Logger, ExtendedServiceListener
         return urls.toArray(new URL[urls.size()]);
     }
 
-    private void loadDescriptor(final URL descriptorURL)
+    /**
+     * Loads the components declared in a component descriptor.
+     *
+     * @param descriptorURL The URL of the descriptor
+     * @param cached The cached metadata of the descriptor or <code>null</code>
+     *      if the descriptor must be parsed
+     * @return The encoded metadata of the descriptor to cache, or
+     *      <code>null</code> if the descriptor should not be cached because
+     *      not all of its components could be registered
+     */
+    private byte[] loadDescriptor(final URL descriptorURL, final byte[] cached)
     {
         // simple path for log messages
         final String descriptorLocation = descriptorURL.getPath();
@@ -438,22 +520,52 @@ public class BundleComponentActivator implements Logger, ExtendedServiceListener
         InputStream stream = null;
         try
         {
-            stream = descriptorURL.openStream();
+            List<ComponentMetadata> metadataList = null;
+            byte[] encoded = cached;
+            if (cached != null)
+            {
+                try
+                {
+                    metadataList = ComponentMetadataCache.decode(cached);
+                }
+                catch (IOException ex)
+                {
+                    log(LogService.LOG_DEBUG,
+                        "Ignoring cached metadata of descriptor entry ''{0}''",
+                        new Object[] { descriptorLocation }, null, null, ex);
+                }
+            }
+
+            if (metadataList == null)
+            {
+                stream = descriptorURL.openStream();
 
-            BufferedReader in = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
-            XmlHandler handler = new XmlHandler(m_bundle, this,
-                getConfiguration().isFactoryEnabled(), getConfiguration().keepInstances());
-            KXml2SAXParser parser;
+                BufferedReader in = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+                XmlHandler handler = new XmlHandler(m_bundle, this,
+                    getConfiguration().isFactoryEnabled(), getConfiguration().keepInstances());
+                KXml2SAXParser parser;
 
-            parser = new KXml2SAXParser(in);
+                parser = new KXml2SAXParser(in);
 
-            parser.parseXML(handler);
+                parser.parseXML(handler);
+
+                metadataList = handler.getComponentMetadataList();
+
+                // encode before validating, which modifies the metadata
+                try
+                {
+                    encoded = ComponentMetadataCache.encode(metadataList);
+                }
+                catch (IOException ex)
+                {
+                    encoded = null;
+                }
+            }
 
             // 112.4.2 Component descriptors may contain a single, root component element
             // or one or more component elements embedded in a larger document
-            for (Object o : handler.getComponentMetadataList())
+            for (ComponentMetadata metadata : metadataList)
             {
-                ComponentMetadata metadata = (ComponentMetadata) o;
                 ComponentRegistryKey key = null;
                 try
                 {
@@ -493,8 +605,12 @@ public class BundleComponentActivator implements Logger, ExtendedServiceListener
                     {
                         m_componentRegistry.unregisterComponentHolder(key);
                     }
+
+                    // parse the descriptor again next time to report the problem
+                    encoded = null;
                 }
             }
+            return encoded;
         }
         catch (IOException ex)
         {
@@ -522,6 +638,7 @@ public class BundleComponentActivator implements Logger, ExtendedServiceListener
                 }
             }
         }
+        return null;
     }
     
     /**
@@ -723,10 +840,10 @@ public class BundleComponentActivator implements Logger, ExtendedServiceListener
     {
         if (isActive())
         {
-            ComponentActorThread cat = m_componentActor;
+            ComponentActor cat = m_componentActor;
             if (cat != null)
             {
-                cat.schedule(task);
+                cat.schedule(m_bundle.getBundleId(), task);
             }
             else
             {
@@ -845,7 +962,7 @@ public class BundleComponentActivator implements Logger, ExtendedServiceListener
         ServiceReference<T> serviceReference, int trackingCount)
     {
         m_componentRegistry.registerMissingDependency(dependencyManager,
-            serviceReference, trackingCount);
+            serviceReference, trackingCount, m_bundle.getBundleId());
     }
 
 	public void setRegionConfigurationSupport(RegionConfigurationSupport rcs) {
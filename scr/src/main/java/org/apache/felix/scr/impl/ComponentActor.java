@@ -0,0 +1,334 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl;
+
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.service.log.LogService;
+
+
+/**
+ * The <code>ComponentActor</code> runs the asynchronous tasks acting upon
+ * registered components of the service component runtime.
+ * <p>
+ * All tasks are kept in one queue in the order they have been scheduled. A
+ * free thread of the pool takes the first task whose bundle has no other
+ * task running, so the tasks of one bundle are run one after the other in
+ * scheduling order while the tasks of different bundles may run
+ * concurrently. With a single thread this is always the first task of the
+ * queue and all tasks are run strictly in scheduling order.
+ */
+public class ComponentActor
+{
+
+    // the tasks scheduled but not started yet, in scheduling order
+    private final LinkedList<Task> m_tasks = new LinkedList<Task>();
+
+    // the ids of the bundles a task is running for, guarded by m_tasks
+    private final Set<Long> m_running = new HashSet<Long>();
+
+    // the number of workers submitted to the pool, guarded by m_tasks
+    private int m_workers;
+
+    // the number of tasks run so far
+    private final AtomicLong m_completed = new AtomicLong();
+
+    private final ThreadPoolExecutor m_executor;
+
+
+    ComponentActor( final int threads )
+    {
+        final int size = Math.max( 1, threads );
+        m_executor = new ThreadPoolExecutor( size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory()
+            {
+                private final AtomicInteger m_count = new AtomicInteger();
+
+
+                public Thread newThread( Runnable r )
+                {
+                    final int count = m_count.incrementAndGet();
+                    Thread t = new Thread( r, ( count == 1 ) ? "SCR Component Actor" : "SCR Component Actor #"
+                        + count );
+                    t.setDaemon( true );
+                    return t;
+                }
+            } );
+        Activator.log( LogService.LOG_DEBUG, null, "Starting ComponentActor with {0} thread(s)", new Object[]
+            { size }, null );
+    }
+
+
+    /**
+     * Changes the number of threads running tasks.
+     */
+    public void setThreads( final int threads )
+    {
+        final int size = Math.max( 1, threads );
+        int start = 0;
+        synchronized ( m_tasks )
+        {
+            if ( size > m_executor.getMaximumPoolSize() )
+            {
+                m_executor.setMaximumPoolSize( size );
+                m_executor.setCorePoolSize( size );
+            }
+            else
+            {
+                m_executor.setCorePoolSize( size );
+                m_executor.setMaximumPoolSize( size );
+            }
+
+            // surplus workers stop after their current task, additional
+            // workers are started for the tasks already waiting
+            while ( m_workers < size && m_workers < m_tasks.size() )
+            {
+                m_workers++;
+                start++;
+            }
+        }
+
+        for ( ; start > 0; start-- )
+        {
+            submit();
+        }
+    }
+
+
+    /**
+     * Returns the number of threads running tasks.
+     */
+    public int getThreads()
+    {
+        return m_executor.getCorePoolSize();
+    }
+
+
+    /**
+     * Returns the number of tasks scheduled but not started yet.
+     */
+    public int getPendingTaskCount()
+    {
+        synchronized ( m_tasks )
+        {
+            return m_tasks.size();
+        }
+    }
+
+
+    /**
+     * Returns the number of bundles whose tasks are queued or running.
+     */
+    public int getActivePartitionCount()
+    {
+        synchronized ( m_tasks )
+        {
+            final Set<Long> bundles = new HashSet<Long>( m_running );
+            for ( Task task : m_tasks )
+            {
+                bundles.add( task.m_key );
+            }
+            return bundles.size();
+        }
+    }
+
+
+    /**
+     * Returns the number of tasks run since this actor has been started.
+     */
+    public long getCompletedTaskCount()
+    {
+        return m_completed.get();
+    }
+
+
+    // waits for all scheduled tasks to be run and stops the threads
+    void terminate()
+    {
+        synchronized ( m_tasks )
+        {
+            while ( !m_tasks.isEmpty() || !m_running.isEmpty() )
+            {
+                try
+                {
+                    m_tasks.wait();
+                }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                    Activator.log( LogService.LOG_ERROR, null, "Interrupted exception waiting for queue to empty", e );
+                    break;
+                }
+            }
+        }
+
+        Activator.log( LogService.LOG_DEBUG, null, "Shutting down ComponentActor", null );
+        m_executor.shutdown();
+    }
+
+
+    // queue the given runnable to be run as soon as possible after the
+    // tasks already scheduled
+    void schedule( final long bundleId, final Runnable task )
+    {
+        final Long key = bundleId;
+        final boolean start;
+        synchronized ( m_tasks )
+        {
+            m_tasks.add( new Task( key, task ) );
+
+            // a running task of the same bundle is followed by its worker,
+            // otherwise a new worker is needed unless all threads are busy
+            start = !m_running.contains( key ) && m_workers < getThreads();
+            if ( start )
+            {
+                m_workers++;
+            }
+
+            Activator.log( LogService.LOG_DEBUG, null, "Adding task [{0}] for bundle {1} as #{2} in the queue",
+                new Object[] { task, key, m_tasks.size() }, null );
+        }
+
+        if ( start )
+        {
+            submit();
+        }
+    }
+
+
+    private void submit()
+    {
+        try
+        {
+            m_executor.execute( new Worker() );
+        }
+        catch ( RejectedExecutionException ree )
+        {
+            // the actor has been terminated, drop the remaining tasks
+            final int dropped;
+            synchronized ( m_tasks )
+            {
+                m_workers--;
+                dropped = ( m_workers == 0 ) ? m_tasks.size() : 0;
+                if ( dropped > 0 )
+                {
+                    m_tasks.clear();
+                }
+                m_tasks.notifyAll();
+            }
+            if ( dropped > 0 )
+            {
+                Activator.log( LogService.LOG_WARNING, null, "ComponentActor not running, dropping {0} task(s)",
+                    new Object[] { dropped }, null );
+            }
+        }
+    }
+
+    /**
+     * A task scheduled for a bundle.
+     */
+    private static class Task
+    {
+
+        private final Long m_key;
+
+        private final Runnable m_task;
+
+
+        Task( final Long key, final Runnable task )
+        {
+            m_key = key;
+            m_task = task;
+        }
+    }
+
+    /**
+     * Runs the first task of the queue whose bundle has no task running
+     * until there is no such task left.
+     */
+    private class Worker implements Runnable
+    {
+
+        public void run()
+        {
+            Task task = null;
+            while ( true )
+            {
+                synchronized ( m_tasks )
+                {
+                    if ( task != null )
+                    {
+                        m_running.remove( task.m_key );
+                        m_tasks.notifyAll();
+                    }
+
+                    task = m_workers > getThreads() ? null : next();
+                    if ( task == null )
+                    {
+                        m_workers--;
+                        return;
+                    }
+                    m_running.add( task.m_key );
+                }
+
+                try
+                {
+                    Activator.log( LogService.LOG_DEBUG, null, "Running task: " + task.m_task, null );
+                    task.m_task.run();
+                }
+                catch ( Throwable t )
+                {
+                    Activator.log( LogService.LOG_ERROR, null, "Unexpected problem executing task " + task.m_task, t );
+                }
+                finally
+                {
+                    m_completed.incrementAndGet();
+                }
+            }
+        }
+
+
+        // removes the first task whose bundle has no task running, called
+        // with the lock on m_tasks held
+        private Task next()
+        {
+            for ( Iterator<Task> i = m_tasks.iterator(); i.hasNext(); )
+            {
+                final Task task = i.next();
+                if ( !m_running.contains( task.m_key ) )
+                {
+                    i.remove();
+                    return task;
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -458,33 +459,51 @@ public class ComponentRegistry
         return false;
     }
 
-    public synchronized <T> void missingServicePresent( final ServiceReference<T> serviceReference, ComponentActorThread actor )
+    public synchronized <T> void missingServicePresent( final ServiceReference<T> serviceReference, ComponentActor actor )
     {
         final List<Entry<?, ?>> dependencyManagers = m_missingDependencies.remove( serviceReference );
         if ( dependencyManagers != null )
         {
-            actor.schedule( new Runnable()
+            // late binding is run in the order of the other tasks of the
+            // bundle declaring the reference
+            final Map<Long, List<Entry<?, ?>>> byBundle = new LinkedHashMap<Long, List<Entry<?, ?>>>();
+            for ( Entry<?, ?> entry : dependencyManagers )
             {
+                List<Entry<?, ?>> entries = byBundle.get( entry.getBundleId() );
+                if ( entries == null )
+                {
+                    entries = new ArrayList<Entry<?, ?>>();
+                    byBundle.put( entry.getBundleId(), entries );
+                }
+                entries.add( entry );
+            }
 
-                public void run()
+            for ( Map.Entry<Long, List<Entry<?, ?>>> bundleEntries : byBundle.entrySet() )
+            {
+                final List<Entry<?, ?>> entries = bundleEntries.getValue();
+                actor.schedule( bundleEntries.getKey(), new Runnable()
                 {
-                    for ( Entry<?, ?> entry : dependencyManagers )
+
+                    public void run()
                     {
-                        ((DependencyManager<?, T>)entry.getDm()).invokeBindMethodLate( serviceReference, entry.getTrackingCount() );
+                        for ( Entry<?, ?> entry : entries )
+                        {
+                            ((DependencyManager<?, T>)entry.getDm()).invokeBindMethodLate( serviceReference, entry.getTrackingCount() );
+                        }
                     }
-                }
 
-                @Override
-                public String toString()
-                {
-                    return "Late binding task of reference " + serviceReference + " for dependencyManagers " + dependencyManagers;
-                }
+                    @Override
+                    public String toString()
+                    {
+                        return "Late binding task of reference " + serviceReference + " for dependencyManagers " + entries;
+                    }
 
-            } );
+                } );
+            }
         }
     }
 
-    public synchronized <S, T> void registerMissingDependency( DependencyManager<S, T> dependencyManager, ServiceReference<T> serviceReference, int trackingCount )
+    public synchronized <S, T> void registerMissingDependency( DependencyManager<S, T> dependencyManager, ServiceReference<T> serviceReference, int trackingCount, long bundleId )
     {
         //check that the service reference is from scr
         if ( serviceReference.getProperty( ComponentConstants.COMPONENT_NAME ) == null || serviceReference.getProperty( ComponentConstants.COMPONENT_ID ) == null )
@@ -497,18 +516,20 @@ public class ComponentRegistry
             dependencyManagers = new ArrayList<Entry<?, ?>>();
             m_missingDependencies.put( serviceReference, dependencyManagers );
         }
-        dependencyManagers.add( new Entry<S, T>( dependencyManager, trackingCount ) );
+        dependencyManagers.add( new Entry<S, T>( dependencyManager, trackingCount, bundleId ) );
     }
 
     private static class Entry<S,T>
     {
         private final DependencyManager<S, T> dm;
         private final int trackingCount;
+        private final long bundleId;
 
-        private Entry( DependencyManager<S, T> dm, int trackingCount )
+        private Entry( DependencyManager<S, T> dm, int trackingCount, long bundleId )
         {
             this.dm = dm;
             this.trackingCount = trackingCount;
+            this.bundleId = bundleId;
         }
 
         public DependencyManager<S, T> getDm()
@@ -520,6 +541,11 @@ public class ComponentRegistry
         {
             return trackingCount;
         }
+
+        public long getBundleId()
+        {
+            return bundleId;
+        }
     }
     
     private final ConcurrentMap<Long, RegionConfigurationSupport> bundleToRcsMap = new ConcurrentHashMap<Long, RegionConfigurationSupport>();
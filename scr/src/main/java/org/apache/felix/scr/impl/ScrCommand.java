@@ -557,6 +557,14 @@ public class ScrCommand implements ScrInfo
         out.println(scrConfiguration.lockTimeout());
         out.print("Stop timeount milliseconds: ");
         out.println(scrConfiguration.stopTimeout());
+        out.print("Component actor threads: ");
+        out.println(scrConfiguration.actorThreads());
+        out.print("Component actor pending tasks: ");
+        out.println(scrConfiguration.actorPendingTasks());
+        out.print("Component actor active bundles: ");
+        out.println(scrConfiguration.actorActiveBundles());
+        out.print("Component actor completed tasks: ");
+        out.println(scrConfiguration.actorCompletedTasks());
         out.print("Global extender: ");
         out.println(scrConfiguration.globalExtender());
         out.print("Info Service registered: ");
@@ -23,6 +23,7 @@ import java.util.Dictionary;
 import java.util.Hashtable;
 
 import org.apache.felix.scr.impl.Activator;
+import org.apache.felix.scr.impl.ComponentActor;
 import org.apache.felix.scr.impl.ScrCommand;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
@@ -74,6 +75,10 @@ public class ScrConfiguration
 
     public static final long DEFAULT_STOP_TIMEOUT_MILLISECONDS = 60000;
 
+    public static final String PROP_ACTOR_THREADS = "ds.actor.threads";
+
+    public static final int DEFAULT_ACTOR_THREADS = 1;
+
     public static final String PROP_LOGLEVEL = "ds.loglevel";
 
     private static final String LOG_LEVEL_DEBUG = "debug";
@@ -104,6 +109,8 @@ public class ScrConfiguration
 
     private long stopTimeout = DEFAULT_STOP_TIMEOUT_MILLISECONDS;
 
+    private int actorThreads = DEFAULT_ACTOR_THREADS;
+
     private Boolean globalExtender;
 
     private BundleContext bundleContext;
@@ -112,6 +119,8 @@ public class ScrConfiguration
     
     private ScrCommand scrCommand;
 
+    private ComponentActor componentActor;
+
     public ScrConfiguration( Activator activator )
     {
         this.activator = activator;
@@ -154,6 +163,15 @@ public class ScrConfiguration
         scrCommand.update(infoAsService());
     }
 
+    public synchronized void setComponentActor(ComponentActor componentActor)
+    {
+        this.componentActor = componentActor;
+        if ( componentActor != null )
+        {
+            componentActor.setThreads( actorThreads );
+        }
+    }
+
     // Called from the ScrManagedService.updated method to reconfigure
     void configure( Dictionary<String, ?> config, boolean fromConfig )
     {
@@ -173,6 +191,7 @@ public class ScrConfiguration
                         infoAsService = false;
                         lockTimeout = DEFAULT_LOCK_TIMEOUT_MILLISECONDS;
                         stopTimeout = DEFAULT_STOP_TIMEOUT_MILLISECONDS;
+                        actorThreads = DEFAULT_ACTOR_THREADS;
                         newGlobalExtender = false;
                     }
                     else
@@ -183,6 +202,7 @@ public class ScrConfiguration
                         infoAsService = getDefaultInfoAsService();
                         lockTimeout = getDefaultLockTimeout();
                         stopTimeout = getDefaultStopTimeout();
+                        actorThreads = getDefaultActorThreads();
                         newGlobalExtender = getDefaultGlobalExtender();
                     }
                 }
@@ -201,12 +221,17 @@ public class ScrConfiguration
                 lockTimeout = timeout == null? DEFAULT_LOCK_TIMEOUT_MILLISECONDS: timeout;
                 timeout = ( Long ) config.get( PROP_STOP_TIMEOUT );
                 stopTimeout = timeout == null? DEFAULT_STOP_TIMEOUT_MILLISECONDS: timeout;
+                actorThreads = getActorThreads( config.get( PROP_ACTOR_THREADS ) );
                 newGlobalExtender = VALUE_TRUE.equalsIgnoreCase( String.valueOf( config.get( PROP_GLOBAL_EXTENDER) ) );
             }
             if ( scrCommand != null )
             {
                 scrCommand.update( infoAsService() );
             }
+            if ( componentActor != null )
+            {
+                componentActor.setThreads( actorThreads );
+            }
             oldGlobalExtender = this.globalExtender;
             this.globalExtender = newGlobalExtender;
         }
@@ -257,6 +282,41 @@ public class ScrConfiguration
         return globalExtender;
     }
 
+    /**
+     * Returns the number of threads running asynchronous component tasks.
+     */
+    public int actorThreads()
+    {
+        return actorThreads;
+    }
+
+    /**
+     * Returns the number of asynchronous component tasks waiting to be run
+     * or -1 if the component actor is not running.
+     */
+    public synchronized int actorPendingTasks()
+    {
+        return componentActor == null ? -1 : componentActor.getPendingTaskCount();
+    }
+
+    /**
+     * Returns the number of bundles for which asynchronous component tasks
+     * are queued or running or -1 if the component actor is not running.
+     */
+    public synchronized int actorActiveBundles()
+    {
+        return componentActor == null ? -1 : componentActor.getActivePartitionCount();
+    }
+
+    /**
+     * Returns the number of asynchronous component tasks run since the
+     * component actor has been started or -1 if it is not running.
+     */
+    public synchronized long actorCompletedTasks()
+    {
+        return componentActor == null ? -1 : componentActor.getCompletedTaskCount();
+    }
+
     private boolean getDefaultFactoryEnabled()
     {
         return VALUE_TRUE.equals( bundleContext.getProperty( PROP_FACTORY_ENABLED ) );
@@ -300,6 +360,31 @@ public class ScrConfiguration
     }
 
 
+    private int getDefaultActorThreads()
+    {
+        return getActorThreads( bundleContext.getProperty( PROP_ACTOR_THREADS ) );
+    }
+
+    private int getActorThreads( final Object value )
+    {
+        if ( value instanceof Number )
+        {
+            return Math.max( 1, ( ( Number ) value ).intValue() );
+        }
+        else if ( value != null )
+        {
+            try
+            {
+                return Math.max( 1, Integer.parseInt( value.toString().trim() ) );
+            }
+            catch ( NumberFormatException nfe )
+            {
+                // fall back to the default
+            }
+        }
+        return DEFAULT_ACTOR_THREADS;
+    }
+
     private boolean getDefaultGlobalExtender()
     {
         return VALUE_TRUE.equalsIgnoreCase( bundleContext.getProperty( PROP_GLOBAL_EXTENDER) );
@@ -117,6 +117,15 @@ class ScrManagedServiceMetaTypeProvider extends ScrManagedService
                 new String[] { String.valueOf(this.getScrConfiguration().stopTimeout())},
                 0, null, null) );
 
+        adList.add( new AttributeDefinitionImpl(
+                ScrConfiguration.PROP_ACTOR_THREADS,
+                "Component actor threads",
+                "Number of threads running asynchronous component tasks. Tasks of the same bundle are always run "
+                    + "in order; tasks of different bundles may run concurrently if more than one thread is configured.",
+                AttributeDefinition.INTEGER,
+                new String[] { String.valueOf(this.getScrConfiguration().actorThreads())},
+                0, null, null) );
+
         adList.add( new AttributeDefinitionImpl(
                 ScrConfiguration.PROP_GLOBAL_EXTENDER,
                 "Global Extender",
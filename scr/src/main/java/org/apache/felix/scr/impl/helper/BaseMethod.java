@@ -45,6 +45,8 @@ public abstract class BaseMethod<P>
 
     private volatile Method m_method;
 
+    private volatile boolean m_hasReturnValue;
+
     private final boolean m_methodRequired;
 
     private volatile State m_state;
@@ -108,6 +110,7 @@ public abstract class BaseMethod<P>
 
         if ( method != null )
         {
+            m_hasReturnValue = method.getReturnType() != Void.TYPE;
             m_state = Resolved.INSTANCE;
             logger.log( LogService.LOG_DEBUG, "Found {0} method: {1}", new Object[]
                 { getMethodNamePrefix(), method }, null );
@@ -217,12 +220,23 @@ public abstract class BaseMethod<P>
             if ( componentInstance != null )
             {
                 final Object[] params = getParameters(m_method, rawParameter);
-                logger.log( LogService.LOG_DEBUG, "invoking {0}: {1}: parameters {2}", new Object[]
-                        { getMethodNamePrefix(), getMethodName(), Arrays.asList( params ) }, null );
+                final boolean debug = logger.isLogEnabled( LogService.LOG_DEBUG );
+                if ( debug )
+                {
+                    logger.log( LogService.LOG_DEBUG, "invoking {0}: {1}: parameters {2}", new Object[]
+                            { getMethodNamePrefix(), getMethodName(), Arrays.asList( params ) }, null );
+                }
                 Object result = m_method.invoke(componentInstance, params);
-                logger.log( LogService.LOG_DEBUG, "invoked {0}: {1}", new Object[]
-                    { getMethodNamePrefix(), getMethodName() }, null );
-                return new MethodResult((m_method.getReturnType() != Void.TYPE), (Map<String, Object>) result);
+                if ( debug )
+                {
+                    logger.log( LogService.LOG_DEBUG, "invoked {0}: {1}", new Object[]
+                        { getMethodNamePrefix(), getMethodName() }, null );
+                }
+                if ( !m_hasReturnValue )
+                {
+                    return MethodResult.VOID;
+                }
+                return new MethodResult(true, (Map<String, Object>) result);
             }
             else
             {
@@ -19,6 +19,9 @@
 package org.apache.felix.scr.impl.metadata;
 
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -942,6 +945,128 @@ public class ComponentMetadata
     }
 
 
+    /**
+     * Writes the metadata as read from the descriptor for the
+     * {@link ComponentMetadataCache}. This may only be called before the
+     * metadata is validated.
+     */
+    void write( DataOutputStream out ) throws IOException
+    {
+        if ( m_validated )
+        {
+            throw new IllegalStateException( "already validated" );
+        }
+
+        out.writeUTF( m_dsVersion.name() );
+        ComponentMetadataCache.writeString( out, m_name );
+        out.writeBoolean( m_enabled );
+        ComponentMetadataCache.writeString( out, m_factory );
+        ComponentMetadataCache.writeBoolean( out, m_immediate );
+        out.writeBoolean( m_implementationClassName == IMPLEMENTATION_CLASS_DUPLICATE );
+        ComponentMetadataCache.writeString( out, m_implementationClassName );
+        ComponentMetadataCache.writeString( out, m_activate );
+        out.writeBoolean( m_activateDeclared );
+        ComponentMetadataCache.writeString( out, m_deactivate );
+        out.writeBoolean( m_deactivateDeclared );
+        ComponentMetadataCache.writeString( out, m_modified );
+        ComponentMetadataCache.writeString( out, m_configurationPolicy );
+        ComponentMetadataCache.writeStrings( out, m_configurationPid );
+
+        out.writeInt( m_propertyMetaData.size() );
+        for ( PropertyMetadata property : m_propertyMetaData )
+        {
+            property.write( out );
+        }
+
+        out.writeBoolean( m_service == SERVICE_DUPLICATE );
+        out.writeBoolean( m_service != null && m_service != SERVICE_DUPLICATE );
+        if ( m_service != null && m_service != SERVICE_DUPLICATE )
+        {
+            m_service.write( out );
+        }
+
+        out.writeInt( m_references.size() );
+        for ( ReferenceMetadata reference : m_references )
+        {
+            reference.write( out );
+        }
+
+        out.writeBoolean( m_configurableServiceProperties );
+        out.writeBoolean( m_persistentFactoryComponent );
+        out.writeBoolean( m_deleteCallsModify );
+        ComponentMetadataCache.writeBoolean( out, m_obsoleteFactoryComponentFactory );
+        out.writeBoolean( m_configureWithInterfaces );
+        out.writeBoolean( m_delayedKeepInstances );
+    }
+
+
+    /**
+     * Reads metadata written by {@link #write(DataOutputStream)}. The returned
+     * metadata is not validated.
+     */
+    static ComponentMetadata read( DataInputStream in ) throws IOException
+    {
+        DSVersion dsVersion;
+        try
+        {
+            dsVersion = DSVersion.valueOf( in.readUTF() );
+        }
+        catch ( IllegalArgumentException iae )
+        {
+            throw new IOException( iae.getMessage() );
+        }
+
+        ComponentMetadata cm = new ComponentMetadata( dsVersion );
+        cm.m_name = ComponentMetadataCache.readString( in );
+        cm.m_enabled = in.readBoolean();
+        cm.m_factory = ComponentMetadataCache.readString( in );
+        cm.m_immediate = ComponentMetadataCache.readBoolean( in );
+        boolean duplicateImplementation = in.readBoolean();
+        cm.m_implementationClassName = ComponentMetadataCache.readString( in );
+        if ( duplicateImplementation )
+        {
+            cm.m_implementationClassName = IMPLEMENTATION_CLASS_DUPLICATE;
+        }
+        cm.m_activate = ComponentMetadataCache.readString( in );
+        cm.m_activateDeclared = in.readBoolean();
+        cm.m_deactivate = ComponentMetadataCache.readString( in );
+        cm.m_deactivateDeclared = in.readBoolean();
+        cm.m_modified = ComponentMetadataCache.readString( in );
+        cm.m_configurationPolicy = ComponentMetadataCache.readString( in );
+        cm.m_configurationPid = ComponentMetadataCache.readStrings( in );
+
+        int count = in.readInt();
+        for ( int i = 0; i < count; i++ )
+        {
+            cm.m_propertyMetaData.add( PropertyMetadata.read( in ) );
+        }
+
+        boolean duplicateService = in.readBoolean();
+        if ( in.readBoolean() )
+        {
+            cm.m_service = ServiceMetadata.read( in );
+        }
+        if ( duplicateService )
+        {
+            cm.m_service = SERVICE_DUPLICATE;
+        }
+
+        count = in.readInt();
+        for ( int i = 0; i < count; i++ )
+        {
+            cm.m_references.add( ReferenceMetadata.read( in ) );
+        }
+
+        cm.m_configurableServiceProperties = in.readBoolean();
+        cm.m_persistentFactoryComponent = in.readBoolean();
+        cm.m_deleteCallsModify = in.readBoolean();
+        cm.m_obsoleteFactoryComponentFactory = ComponentMetadataCache.readBoolean( in );
+        cm.m_configureWithInterfaces = in.readBoolean();
+        cm.m_delayedKeepInstances = in.readBoolean();
+        return cm;
+    }
+
+
     /**
      * Returns a <code>ComponentException</code> for this compeonent with the
      * given explanation for failure.
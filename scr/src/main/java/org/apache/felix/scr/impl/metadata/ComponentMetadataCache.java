@@ -0,0 +1,335 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl.metadata;
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+
+
+/**
+ * The <code>ComponentMetadataCache</code> stores the component metadata read
+ * from the component descriptors of a bundle in the data area of the SCR
+ * bundle, so the descriptors need not be parsed again the next time the
+ * bundle is started. The metadata is stored as it is before validation,
+ * since validation must be repeated on every start anyway.
+ * <p>
+ * There is one file per bundle, named after the bundle id. The cached
+ * metadata of a bundle is only used if the key it was stored with matches
+ * the current key, which is built from the bundle's last modification time
+ * and the SCR configuration affecting the descriptor parser, and if it was
+ * stored by the same version of the SCR bundle, whose parser and encoding
+ * may differ from other versions.
+ */
+public class ComponentMetadataCache
+{
+
+    private static final int FORMAT_VERSION = 2;
+
+    private static final String FILE_SUFFIX = ".metadata";
+
+    // the directory holding the cache files, null if caching is disabled
+    private final File m_directory;
+
+    // the version and last modification time of the SCR bundle
+    private final String m_ownerKey;
+
+
+    /**
+     * Creates a cache storing its files in the given directory.
+     *
+     * @param directory The directory for the cache files or <code>null</code>
+     *      to disable caching.
+     * @param owner The SCR bundle storing the cache files.
+     */
+    public ComponentMetadataCache( File directory, Bundle owner )
+    {
+        if ( directory != null && !directory.isDirectory() && !directory.mkdirs() )
+        {
+            directory = null;
+        }
+        m_directory = directory;
+        m_ownerKey = owner.getVersion() + "@" + owner.getLastModified();
+    }
+
+
+    /**
+     * Returns the encoded metadata of the component descriptors of the bundle
+     * indexed by descriptor URL or an empty map if there is no cached metadata
+     * for the given key.
+     *
+     * @param bundle The bundle whose descriptors to return.
+     * @param key The key the metadata must have been stored with.
+     * @throws IOException If the cache file cannot be read.
+     */
+    public Map<String, byte[]> load( Bundle bundle, String key ) throws IOException
+    {
+        File file = getFile( bundle.getBundleId() );
+        if ( file == null || !file.isFile() )
+        {
+            return Collections.emptyMap();
+        }
+
+        DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+        try
+        {
+            if ( in.readInt() != FORMAT_VERSION || !m_ownerKey.equals( readString( in ) )
+                || !key.equals( readString( in ) ) )
+            {
+                return Collections.emptyMap();
+            }
+            int count = in.readInt();
+            Map<String, byte[]> descriptors = new LinkedHashMap<String, byte[]>();
+            for ( int i = 0; i < count; i++ )
+            {
+                String url = readString( in );
+                byte[] encoded = new byte[in.readInt()];
+                in.readFully( encoded );
+                descriptors.put( url, encoded );
+            }
+            return descriptors;
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+
+    /**
+     * Stores the encoded metadata of the component descriptors of the bundle,
+     * replacing any metadata stored before.
+     *
+     * @param bundle The bundle whose descriptors to store.
+     * @param key The key identifying the current bundle contents.
+     * @param descriptors The encoded metadata indexed by descriptor URL.
+     * @throws IOException If the cache file cannot be written.
+     */
+    public void store( Bundle bundle, String key, Map<String, byte[]> descriptors ) throws IOException
+    {
+        File file = getFile( bundle.getBundleId() );
+        if ( file == null )
+        {
+            return;
+        }
+
+        // write to a temporary file first, so a concurrent or interrupted
+        // write never leaves a truncated cache file behind
+        File tmp = new File( file.getPath() + ".tmp" + Thread.currentThread().getId() );
+        DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) );
+        try
+        {
+            out.writeInt( FORMAT_VERSION );
+            writeString( out, m_ownerKey );
+            writeString( out, key );
+            out.writeInt( descriptors.size() );
+            for ( Map.Entry<String, byte[]> entry : descriptors.entrySet() )
+            {
+                writeString( out, entry.getKey() );
+                out.writeInt( entry.getValue().length );
+                out.write( entry.getValue() );
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        if ( !tmp.renameTo( file ) )
+        {
+            file.delete();
+            if ( !tmp.renameTo( file ) )
+            {
+                tmp.delete();
+                throw new IOException( "Cannot replace " + file );
+            }
+        }
+    }
+
+
+    /**
+     * Removes the cache files of bundles which are not installed any longer.
+     *
+     * @param context A bundle context used to look up the installed bundles.
+     */
+    public void prune( BundleContext context )
+    {
+        File[] files = ( m_directory == null ) ? null : m_directory.listFiles();
+        if ( files == null )
+        {
+            return;
+        }
+        for ( File file : files )
+        {
+            String name = file.getName();
+            if ( name.endsWith( FILE_SUFFIX ) )
+            {
+                try
+                {
+                    long bundleId = Long.parseLong( name.substring( 0, name.length() - FILE_SUFFIX.length() ) );
+                    if ( context.getBundle( bundleId ) != null )
+                    {
+                        continue;
+                    }
+                }
+                catch ( NumberFormatException nfe )
+                {
+                    // not one of our files, remove it as well
+                }
+            }
+            file.delete();
+        }
+    }
+
+
+    /**
+     * Encodes the given, not yet validated, component metadata.
+     *
+     * @param metadata The metadata read from a single component descriptor.
+     * @throws IOException If the metadata cannot be encoded.
+     */
+    public static byte[] encode( List<ComponentMetadata> metadata ) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( bytes );
+        out.writeInt( metadata.size() );
+        for ( ComponentMetadata cm : metadata )
+        {
+            cm.write( out );
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+
+    /**
+     * Decodes component metadata encoded by {@link #encode(List)}. The
+     * returned metadata is not validated.
+     *
+     * @param encoded The encoded metadata.
+     * @throws IOException If the metadata cannot be decoded.
+     */
+    public static List<ComponentMetadata> decode( byte[] encoded ) throws IOException
+    {
+        DataInputStream in = new DataInputStream( new ByteArrayInputStream( encoded ) );
+        int count = in.readInt();
+        List<ComponentMetadata> metadata = new ArrayList<ComponentMetadata>( count );
+        for ( int i = 0; i < count; i++ )
+        {
+            metadata.add( ComponentMetadata.read( in ) );
+        }
+        return metadata;
+    }
+
+
+    private File getFile( long bundleId )
+    {
+        return ( m_directory == null ) ? null : new File( m_directory, bundleId + FILE_SUFFIX );
+    }
+
+
+    //---------- encoding helpers used by the metadata classes
+
+    static void writeString( DataOutputStream out, String value ) throws IOException
+    {
+        if ( value == null )
+        {
+            out.writeInt( -1 );
+        }
+        else
+        {
+            // not using writeUTF since values may exceed its 64k limit
+            byte[] bytes = value.getBytes( "UTF-8" );
+            out.writeInt( bytes.length );
+            out.write( bytes );
+        }
+    }
+
+
+    static String readString( DataInputStream in ) throws IOException
+    {
+        int length = in.readInt();
+        if ( length < 0 )
+        {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully( bytes );
+        return new String( bytes, "UTF-8" );
+    }
+
+
+    static void writeBoolean( DataOutputStream out, Boolean value ) throws IOException
+    {
+        out.writeByte( value == null ? -1 : ( value.booleanValue() ? 1 : 0 ) );
+    }
+
+
+    static Boolean readBoolean( DataInputStream in ) throws IOException
+    {
+        byte value = in.readByte();
+        return value < 0 ? null : Boolean.valueOf( value == 1 );
+    }
+
+
+    static void writeStrings( DataOutputStream out, List<String> values ) throws IOException
+    {
+        if ( values == null )
+        {
+            out.writeInt( -1 );
+            return;
+        }
+        out.writeInt( values.size() );
+        for ( String value : values )
+        {
+            writeString( out, value );
+        }
+    }
+
+
+    static List<String> readStrings( DataInputStream in ) throws IOException
+    {
+        int count = in.readInt();
+        if ( count < 0 )
+        {
+            return null;
+        }
+        List<String> values = new ArrayList<String>( count );
+        for ( int i = 0; i < count; i++ )
+        {
+            values.add( readString( in ) );
+        }
+        return values;
+    }
+}
@@ -18,7 +18,11 @@
  */
 package org.apache.felix.scr.impl.metadata;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.StringTokenizer;
 
@@ -333,4 +337,45 @@ public class PropertyMetadata {
             throw new IllegalArgumentException( "Undefined property type '" + m_type + "'" );
         }
     }
+
+    /**
+     * Writes the property as read from the descriptor for the
+     * {@link ComponentMetadataCache}.
+     */
+    void write( DataOutputStream out ) throws IOException
+    {
+        ComponentMetadataCache.writeString( out, m_name );
+        ComponentMetadataCache.writeString( out, m_type );
+        if ( m_value instanceof String[] )
+        {
+            out.writeBoolean( true );
+            ComponentMetadataCache.writeStrings( out, Arrays.asList( ( String[] ) m_value ) );
+        }
+        else
+        {
+            out.writeBoolean( false );
+            ComponentMetadataCache.writeString( out, ( String ) m_value );
+        }
+    }
+
+
+    /**
+     * Reads a property written by {@link #write(DataOutputStream)}.
+     */
+    static PropertyMetadata read( DataInputStream in ) throws IOException
+    {
+        PropertyMetadata pm = new PropertyMetadata();
+        pm.m_name = ComponentMetadataCache.readString( in );
+        pm.m_type = ComponentMetadataCache.readString( in );
+        if ( in.readBoolean() )
+        {
+            List<String> values = ComponentMetadataCache.readStrings( in );
+            pm.m_value = values.toArray( new String[values.size()] );
+        }
+        else
+        {
+            pm.m_value = ComponentMetadataCache.readString( in );
+        }
+        return pm;
+    }
 }
@@ -18,6 +18,9 @@
  */
 package org.apache.felix.scr.impl.metadata;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Set;
 import java.util.TreeSet;
 
@@ -740,4 +743,58 @@ public class ReferenceMetadata
                 ", field-option=" + this.getFieldOption() +
                 ", field-collection-type=" + this.getFieldCollectionType();
     }
-}
\ No newline at end of file
+
+    /**
+     * Writes the reference as read from the descriptor for the
+     * {@link ComponentMetadataCache}.
+     */
+    void write( DataOutputStream out ) throws IOException
+    {
+        ComponentMetadataCache.writeString( out, m_name );
+        ComponentMetadataCache.writeString( out, m_interface );
+        ComponentMetadataCache.writeString( out, m_cardinality );
+        ComponentMetadataCache.writeString( out, m_target );
+        ComponentMetadataCache.writeString( out, m_bind );
+        ComponentMetadataCache.writeString( out, m_updated );
+        ComponentMetadataCache.writeString( out, m_unbind );
+        ComponentMetadataCache.writeString( out, m_field );
+        ComponentMetadataCache.writeString( out, m_field_option );
+        ComponentMetadataCache.writeString( out, m_field_collection_type );
+        ComponentMetadataCache.writeString( out, m_policy );
+        ComponentMetadataCache.writeString( out, m_policy_option );
+        ComponentMetadataCache.writeString( out, m_scopeName );
+        out.writeBoolean( m_isStatic );
+        out.writeBoolean( m_isOptional );
+        out.writeBoolean( m_isMultiple );
+        out.writeBoolean( m_isReluctant );
+        out.writeBoolean( m_isReplace );
+    }
+
+
+    /**
+     * Reads a reference written by {@link #write(DataOutputStream)}.
+     */
+    static ReferenceMetadata read( DataInputStream in ) throws IOException
+    {
+        ReferenceMetadata rm = new ReferenceMetadata();
+        rm.m_name = ComponentMetadataCache.readString( in );
+        rm.m_interface = ComponentMetadataCache.readString( in );
+        rm.m_cardinality = ComponentMetadataCache.readString( in );
+        rm.m_target = ComponentMetadataCache.readString( in );
+        rm.m_bind = ComponentMetadataCache.readString( in );
+        rm.m_updated = ComponentMetadataCache.readString( in );
+        rm.m_unbind = ComponentMetadataCache.readString( in );
+        rm.m_field = ComponentMetadataCache.readString( in );
+        rm.m_field_option = ComponentMetadataCache.readString( in );
+        rm.m_field_collection_type = ComponentMetadataCache.readString( in );
+        rm.m_policy = ComponentMetadataCache.readString( in );
+        rm.m_policy_option = ComponentMetadataCache.readString( in );
+        rm.m_scopeName = ComponentMetadataCache.readString( in );
+        rm.m_isStatic = in.readBoolean();
+        rm.m_isOptional = in.readBoolean();
+        rm.m_isMultiple = in.readBoolean();
+        rm.m_isReluctant = in.readBoolean();
+        rm.m_isReplace = in.readBoolean();
+        return rm;
+    }
+}
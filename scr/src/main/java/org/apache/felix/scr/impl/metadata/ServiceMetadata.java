@@ -18,6 +18,9 @@
  */
 package org.apache.felix.scr.impl.metadata;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -134,4 +137,28 @@ public class ServiceMetadata {
         }
         m_validated = true;
     }
+
+    /**
+     * Writes the service element as read from the descriptor for the
+     * {@link ComponentMetadataCache}.
+     */
+    void write( DataOutputStream out ) throws IOException
+    {
+        ComponentMetadataCache.writeBoolean( out, m_serviceFactory );
+        ComponentMetadataCache.writeString( out, m_scopeName );
+        ComponentMetadataCache.writeStrings( out, m_provides );
+    }
+
+
+    /**
+     * Reads a service element written by {@link #write(DataOutputStream)}.
+     */
+    static ServiceMetadata read( DataInputStream in ) throws IOException
+    {
+        ServiceMetadata sm = new ServiceMetadata();
+        sm.m_serviceFactory = ComponentMetadataCache.readBoolean( in );
+        sm.m_scopeName = ComponentMetadataCache.readString( in );
+        sm.m_provides = ComponentMetadataCache.readStrings( in );
+        return sm;
+    }
 }
@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+
+public class ComponentActorTest extends TestCase
+{
+
+    public void test_bundle_order() throws Exception
+    {
+        ComponentActor actor = new ComponentActor( 4 );
+        final List<List<Integer>> runs = new ArrayList<List<Integer>>();
+        for ( int b = 0; b < 8; b++ )
+        {
+            runs.add( Collections.synchronizedList( new ArrayList<Integer>() ) );
+        }
+
+        for ( int i = 0; i < 100; i++ )
+        {
+            for ( int b = 0; b < runs.size(); b++ )
+            {
+                final List<Integer> run = runs.get( b );
+                final int value = i;
+                actor.schedule( b, new Runnable()
+                {
+                    public void run()
+                    {
+                        run.add( value );
+                    }
+                } );
+            }
+        }
+        actor.terminate();
+
+        for ( List<Integer> run : runs )
+        {
+            assertEquals( 100, run.size() );
+            for ( int i = 0; i < run.size(); i++ )
+            {
+                assertEquals( i, run.get( i ).intValue() );
+            }
+        }
+        assertEquals( 800, actor.getCompletedTaskCount() );
+        assertEquals( 0, actor.getPendingTaskCount() );
+        assertEquals( 0, actor.getActivePartitionCount() );
+    }
+
+
+    public void test_bundles_run_concurrently() throws Exception
+    {
+        ComponentActor actor = new ComponentActor( 2 );
+        final CountDownLatch first = new CountDownLatch( 1 );
+        final CountDownLatch second = new CountDownLatch( 1 );
+
+        // bundle 1 blocks until bundle 2 has run, which needs a second thread
+        actor.schedule( 1, new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    first.countDown();
+                    second.await( 5, TimeUnit.SECONDS );
+                }
+                catch ( InterruptedException ie )
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        } );
+        assertTrue( first.await( 5, TimeUnit.SECONDS ) );
+        actor.schedule( 2, new Runnable()
+        {
+            public void run()
+            {
+                second.countDown();
+            }
+        } );
+
+        assertTrue( second.await( 5, TimeUnit.SECONDS ) );
+        actor.terminate();
+    }
+
+
+    public void test_single_thread_serializes_bundles() throws Exception
+    {
+        ComponentActor actor = new ComponentActor( 1 );
+        final List<Long> order = Collections.synchronizedList( new ArrayList<Long>() );
+        final CountDownLatch started = new CountDownLatch( 1 );
+        final CountDownLatch blocked = new CountDownLatch( 1 );
+        actor.schedule( 1, new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    started.countDown();
+                    blocked.await( 5, TimeUnit.SECONDS );
+                }
+                catch ( InterruptedException ie )
+                {
+                    Thread.currentThread().interrupt();
+                }
+                order.add( 1L );
+            }
+        } );
+        assertTrue( started.await( 5, TimeUnit.SECONDS ) );
+        actor.schedule( 2, new Runnable()
+        {
+            public void run()
+            {
+                order.add( 2L );
+            }
+        } );
+
+        assertEquals( 1, actor.getPendingTaskCount() );
+        assertEquals( 2, actor.getActivePartitionCount() );
+        blocked.countDown();
+        actor.terminate();
+
+        assertEquals( 1L, order.get( 0 ).longValue() );
+        assertEquals( 2L, order.get( 1 ).longValue() );
+        assertEquals( 2, actor.getCompletedTaskCount() );
+    }
+
+
+    public void test_single_thread_keeps_order_across_bundles() throws Exception
+    {
+        ComponentActor actor = new ComponentActor( 1 );
+        final List<String> order = Collections.synchronizedList( new ArrayList<String>() );
+        final CountDownLatch started = new CountDownLatch( 1 );
+        final CountDownLatch blocked = new CountDownLatch( 1 );
+        actor.schedule( 1, new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    started.countDown();
+                    blocked.await( 5, TimeUnit.SECONDS );
+                }
+                catch ( InterruptedException ie )
+                {
+                    Thread.currentThread().interrupt();
+                }
+                order.add( "1a" );
+            }
+        } );
+        assertTrue( started.await( 5, TimeUnit.SECONDS ) );
+
+        // queued while the first task runs, interleaving the bundles
+        final String[] tasks = { "2a", "1b", "3a", "1c", "2b" };
+        for ( final String name : tasks )
+        {
+            actor.schedule( name.charAt( 0 ) - '0', new Runnable()
+            {
+                public void run()
+                {
+                    order.add( name );
+                }
+            } );
+        }
+        blocked.countDown();
+        actor.terminate();
+
+        assertEquals( "[1a, 2a, 1b, 3a, 1c, 2b]", order.toString() );
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.felix.scr.impl.metadata;
+
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.felix.scr.impl.MockBundle;
+import org.apache.felix.scr.impl.MockLogger;
+import org.osgi.service.component.ComponentException;
+
+
+public class ComponentMetadataCacheTest extends TestCase
+{
+
+    private MockLogger logger = new MockLogger();
+
+
+    public void testEncodeDecode() throws Exception
+    {
+        final ComponentMetadata cm = createComponentMetadata();
+        final List<ComponentMetadata> decoded = ComponentMetadataCache.decode(
+            ComponentMetadataCache.encode( Collections.singletonList( cm ) ) );
+        assertEquals( 1, decoded.size() );
+
+        cm.validate( logger );
+        final ComponentMetadata copy = decoded.get( 0 );
+        copy.validate( logger );
+
+        assertEquals( cm.getDSVersion(), copy.getDSVersion() );
+        assertEquals( cm.getName(), copy.getName() );
+        assertEquals( cm.getImplementationClassName(), copy.getImplementationClassName() );
+        assertEquals( cm.isImmediate(), copy.isImmediate() );
+        assertEquals( cm.getActivate(), copy.getActivate() );
+        assertEquals( cm.isActivateDeclared(), copy.isActivateDeclared() );
+        assertEquals( cm.getModified(), copy.getModified() );
+        assertEquals( cm.getConfigurationPid(), copy.getConfigurationPid() );
+        assertEquals( cm.getConfigurationPolicy(), copy.getConfigurationPolicy() );
+        assertEquals( cm.isDelayedKeepInstances(), copy.isDelayedKeepInstances() );
+        assertEquals( cm.getServiceScope(), copy.getServiceScope() );
+        assertTrue( Arrays.equals( cm.getServiceMetadata().getProvides(), copy.getServiceMetadata().getProvides() ) );
+
+        assertEquals( cm.getProperties().keySet(), copy.getProperties().keySet() );
+        assertEquals( cm.getProperties().get( "count" ), copy.getProperties().get( "count" ) );
+        assertTrue( Arrays.equals( ( String[] ) cm.getProperties().get( "values" ),
+            ( String[] ) copy.getProperties().get( "values" ) ) );
+
+        assertEquals( 1, copy.getDependencies().size() );
+        final ReferenceMetadata rm = cm.getDependencies().get( 0 );
+        final ReferenceMetadata rmCopy = copy.getDependencies().get( 0 );
+        assertEquals( rm.getDebugInfo(), rmCopy.getDebugInfo() );
+        assertEquals( rm.isOptional(), rmCopy.isOptional() );
+        assertEquals( rm.isMultiple(), rmCopy.isMultiple() );
+        assertEquals( rm.isStatic(), rmCopy.isStatic() );
+        assertEquals( rm.isReluctant(), rmCopy.isReluctant() );
+    }
+
+
+    public void testDuplicateImplementationStillFailsValidation() throws Exception
+    {
+        final ComponentMetadata cm = createComponentMetadata();
+        cm.setImplementationClassName( "second.Implementation" );
+        final ComponentMetadata copy = ComponentMetadataCache.decode(
+            ComponentMetadataCache.encode( Collections.singletonList( cm ) ) ).get( 0 );
+        try
+        {
+            copy.validate( logger );
+            fail( "Expected validation failure for duplicate implementation element" );
+        }
+        catch ( ComponentException ce )
+        {
+            // expected
+        }
+    }
+
+
+    public void testStoreLoad() throws Exception
+    {
+        final File dir = File.createTempFile( "scr-cache", ".dir" );
+        dir.delete();
+        try
+        {
+            final MockBundle bundle = new MockBundle();
+            final ComponentMetadataCache cache = new ComponentMetadataCache( dir, bundle );
+            assertTrue( cache.load( bundle, "key" ).isEmpty() );
+
+            final Map<String, byte[]> descriptors = new LinkedHashMap<String, byte[]>();
+            descriptors.put( "OSGI-INF/a.xml", ComponentMetadataCache.encode(
+                Collections.singletonList( createComponentMetadata() ) ) );
+            cache.store( bundle, "key", descriptors );
+
+            final Map<String, byte[]> loaded = cache.load( bundle, "key" );
+            assertEquals( descriptors.keySet(), loaded.keySet() );
+            assertTrue( Arrays.equals( descriptors.get( "OSGI-INF/a.xml" ), loaded.get( "OSGI-INF/a.xml" ) ) );
+
+            // a changed bundle does not see the old metadata
+            assertTrue( cache.load( bundle, "other" ).isEmpty() );
+
+            // neither does an updated SCR bundle
+            final MockBundle updated = new MockBundle()
+            {
+                @Override
+                public long getLastModified()
+                {
+                    return 1;
+                }
+            };
+            assertTrue( new ComponentMetadataCache( dir, updated ).load( bundle, "key" ).isEmpty() );
+        }
+        finally
+        {
+            for ( File file : dir.listFiles() )
+            {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+
+    private ComponentMetadata createComponentMetadata()
+    {
+        final ComponentMetadata cm = new ComponentMetadata( DSVersion.DS13 );
+        cm.setName( "place.holder" );
+        cm.setImplementationClassName( "place.holder.implementation" );
+        cm.setModified( "modified" );
+        cm.setConfigurationPid( new String[] { "$", "other.pid" } );
+        cm.setDelayedKeepInstances( true );
+
+        final PropertyMetadata count = new PropertyMetadata();
+        count.setName( "count" );
+        count.setType( "Integer" );
+        count.setValue( "42" );
+        cm.addProperty( count );
+
+        final PropertyMetadata values = new PropertyMetadata();
+        values.setName( "values" );
+        values.setValues( "one\ntwo\n" );
+        cm.addProperty( values );
+
+        final ServiceMetadata sm = new ServiceMetadata();
+        sm.addProvide( "place.holder.service" );
+        sm.setScope( "prototype" );
+        cm.setService( sm );
+
+        final ReferenceMetadata rm = new ReferenceMetadata();
+        rm.setName( "ref" );
+        rm.setInterface( "place.holder.Service" );
+        rm.setCardinality( ReferenceMetadata.CARDINALITY_0_N );
+        rm.setPolicy( "dynamic" );
+        rm.setTarget( "(foo=bar)" );
+        rm.setBind( "bind" );
+        rm.setFieldOption( null );
+        cm.addDependency( rm );
+        return cm;
+    }
+}